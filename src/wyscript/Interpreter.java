@@ -22,10 +22,23 @@ import java.util.*;
 
 import wyscript.lang.*;
 import wyscript.util.Attribute;
+import wyscript.util.CopyElision;
+import wyscript.util.CopyOnWriteValue;
+import wyscript.util.JumpTable;
+import wyscript.util.ListValue;
+import wyscript.util.Memoiser;
 import wyscript.util.Pair;
+import wyscript.util.Purity;
+import wyscript.util.RecordValue;
 import wyscript.util.Ref;
+import wyscript.util.Shape;
+import wyscript.util.StringValue;
 import wyscript.util.SyntacticElement;
 import wyscript.util.Tuple;
+import wyscript.util.Values;
+import wyscript.util.VariableResolver;
+import static wyscript.util.CopyOnWriteValue.copy;
+import static wyscript.util.CopyOnWriteValue.release;
 import static wyscript.util.SyntaxError.*;
 
 /**
@@ -38,25 +51,96 @@ import static wyscript.util.SyntaxError.*;
  *
  */
 public class Interpreter {
+
+	// The ways in which the execution of a statement can complete. When a
+	// function returns, the value being returned is left in the last slot of
+	// its stack frame.
+	private static final int NORMAL = 0;
+	private static final int RETURN = 1;
+	private static final int NEXT = 2;
+
 	private HashMap<String, WyscriptFile.Decl> declarations;
 	private WyscriptFile file;
-	private HashMap<String, Object> constants;
+
+	/**
+	 * The global scope, holding the value of every constant. This is
+	 * initialised once, and is read-only thereafter.
+	 */
+	private Object[] constants;
 	private HashMap<String, Type> userTypes;
+	private Values values;
+
+	/**
+	 * The shape of the records built by each record constructor, which is
+	 * worked out the first time it is executed.
+	 */
+	private IdentityHashMap<Expr.RecordConstructor, Shape> shapes = new IdentityHashMap<Expr.RecordConstructor, Shape>();
 
+	/**
+	 * The jump table of each switch statement, which is built the first time
+	 * it is executed.
+	 */
+	private IdentityHashMap<Stmt.Switch, JumpTable> jumpTables = new IdentityHashMap<Stmt.Switch, JumpTable>();
+
+	/**
+	 * The value of each string constant, which is converted from the parsed
+	 * form the first time it is executed.
+	 */
+	private IdentityHashMap<Expr.Constant, StringValue> strings = new IdentityHashMap<Expr.Constant, StringValue>();
+
+	/**
+	 * Records the results of calls to the functions which are memoised, or is
+	 * null if none are.
+	 */
+	private final Memoiser memoiser;
+	private Set<WyscriptFile.FunDecl> memoised;
+
+	public Interpreter() {
+		this(null);
+	}
+
+	/**
+	 * Construct an interpreter which memoises every pure recursive function,
+	 * using a given memoiser.
+	 *
+	 * @param memoiser
+	 */
+	public Interpreter(Memoiser memoiser) {
+		this.memoiser = memoiser;
+	}
 
 	public void run(WyscriptFile wf) {
-		// First, initialise the map of declaration names to their bodies.
+		// First, assign every variable a slot in its enclosing stack frame.
+		VariableResolver resolver = new VariableResolver();
+		resolver.resolve(wf);
+		new CopyElision().analyse(wf);
+
+		// Only recursive functions are memoised, since otherwise a call is
+		// unlikely to be repeated often enough to be worth recording.
+		memoised = new HashSet<WyscriptFile.FunDecl>();
+		if (memoiser != null) {
+			for (WyscriptFile.FunDecl fd : new Purity().analyse(wf,
+					resolver.callGraph())) {
+				if (resolver.callGraph().isRecursive(fd)) {
+					memoised.add(fd);
+				}
+			}
+		}
+
+		// Second, initialise the map of declaration names to their bodies.
 		//Also, initialise any constant values declared in the file
 		declarations = new HashMap<String,WyscriptFile.Decl>();
-		constants = new HashMap<String, Object>();
+		constants = new Object[resolver.numberOfConstants()];
 		userTypes = new HashMap<String, Type>();
+		values = new Values(wf.filename, userTypes);
 
+		int nConstants = 0;
 		for(WyscriptFile.Decl decl : wf.declarations) {
 			declarations.put(decl.name(), decl);
 
 			if (decl instanceof WyscriptFile.ConstDecl) {
 				WyscriptFile.ConstDecl constant = (WyscriptFile.ConstDecl) decl;
-				constants.put(constant.name, execute(constant.constant, constants));
+				constants[nConstants++] = copy(execute(constant.constant, new Object[0]));
 			}
 
 			else if (decl instanceof WyscriptFile.TypeDecl) {
@@ -66,7 +150,7 @@ public class Interpreter {
 		}
 		this.file = wf;
 
-		// Second, pick the main method (if one exits) and execute it
+		// Third, pick the main method (if one exits) and execute it
 		WyscriptFile.Decl main = declarations.get("main");
 		if(main instanceof WyscriptFile.FunDecl) {
 			WyscriptFile.FunDecl fd = (WyscriptFile.FunDecl) main;
@@ -99,30 +183,47 @@ public class Interpreter {
 							+ function.name + "\"");
 		}
 
-		// Second, construct the stack frame in which this function will
-		// execute.
-		HashMap<String,Object> frame = new HashMap<String,Object>();
-		for(int i=0;i!=arguments.length;++i) {
-			WyscriptFile.Parameter parameter = function.parameters.get(i);
-			frame.put(parameter.name,arguments[i]);
+		// A call to a memoised function reuses the result of an earlier call
+		// with the same arguments, if there was one.
+		Memoiser.Key key = null;
+		if (memoised.contains(function)) {
+			key = memoiser.key(function, arguments);
+			Object result = memoiser.lookup(key);
+			if (result != Memoiser.NONE) {
+				for (Object argument : arguments) {
+					release(argument);
+				}
+				return result;
+			}
 		}
 
-		for (String s : constants.keySet()) {
-			frame.put(s, constants.get(s));
-		}
+		// Second, construct the stack frame in which this function will
+		// execute. Parameters occupy the first slots, whilst constants are
+		// read directly from the global scope.
+		int frameSize = function.getFrameSize();
+		Object[] frame = new Object[frameSize + 1];
+		System.arraycopy(arguments, 0, frame, 0, arguments.length);
 
-		// Third, execute the function body!
-		return execute(function.statements,frame);
+		// Third, execute the function body! Once finished, the variables in
+		// this frame no longer hold their values.
+		execute(function.statements,frame);
+		for (int i = 0; i != frameSize; ++i) {
+			release(frame[i]);
+		}
+		if (key != null) {
+			memoiser.store(key, frame[frameSize]);
+		}
+		return frame[frameSize];
 	}
 
-	private Object execute(List<Stmt> block, HashMap<String,Object> frame) {
+	private int execute(List<Stmt> block, Object[] frame) {
 		for(int i=0;i!=block.size();i=i+1) {
-			Object r = execute(block.get(i),frame);
-			if(r != null) {
+			int r = execute(block.get(i),frame);
+			if(r != NORMAL) {
 				return r;
 			}
 		}
-		return null;
+		return NORMAL;
 	}
 
 	/**
@@ -131,10 +232,12 @@ public class Interpreter {
 	 * @param stmt
 	 *            Statement to execute.
 	 * @param frame
-	 *            Stack frame mapping variables to their current value.
-	 * @return
+	 *            Stack frame holding the current value of each variable,
+	 *            indexed by slot.
+	 * @return How execution of the statement completed, i.e.
+	 *         <code>NORMAL</code>, <code>RETURN</code> or <code>NEXT</code>.
 	 */
-	private Object execute(Stmt stmt, HashMap<String,Object> frame) {
+	private int execute(Stmt stmt, Object[] frame) {
 		if(stmt instanceof Stmt.Assign) {
 			return execute((Stmt.Assign) stmt,frame);
 		} else if(stmt instanceof Stmt.OldFor) {
@@ -152,110 +255,107 @@ public class Interpreter {
 		} else if(stmt instanceof Stmt.Print) {
 			return execute((Stmt.Print) stmt,frame);
 		} else if(stmt instanceof Expr.Invoke) {
-			return execute((Expr.Invoke) stmt,frame);
+			execute((Expr.Invoke) stmt,frame);
+			return NORMAL;
 		} else if(stmt instanceof Stmt.Switch) {
 			return execute((Stmt.Switch) stmt, frame);
 		} else if(stmt instanceof Stmt.Next) {
 			return execute((Stmt.Next)stmt, frame);
 		} else {
 			internalFailure("unknown statement encountered (" + stmt + ")", file.filename,stmt);
-			return null;
+			return NORMAL;
 		}
 	}
 
-	private Object execute(Stmt.Switch stmt, HashMap<String, Object> frame) {
+	private int execute(Stmt.Switch stmt, Object[] frame) {
 		Object expr = execute(stmt.getExpr(), frame);
+		List<Stmt.SwitchStmt> cases = stmt.cases();
+
+		JumpTable table = jumpTables.get(stmt);
+		if (table == null) {
+			table = jumpTable(stmt, frame);
+		}
+		int target = table.lookup(expr);
+		if (target < 0) {
+			return NORMAL;
+		} else if (target == table.otherwise()) {
+			// A default entered directly does not fall through (see Stmt.Switch)
+			int tmp = execute(body(cases.get(target)), frame);
+			return tmp == NEXT ? NORMAL : tmp;
+		}
+
+		// Otherwise, execution falls through from the matching case until
+		// one completes without a next statement.
+		for (int i = target; i != cases.size(); ++i) {
+			int tmp = execute(body(cases.get(i)), frame);
+			if (tmp != NEXT)
+				return tmp;
+		}
+		return NORMAL;
+	}
 
-		boolean hasEvaluated = false;
-		boolean evaluateNext = false;
-
-		Stmt.Default def = null;
-
-		for (Stmt.SwitchStmt s: stmt.cases()) {
-			if (s instanceof Stmt.Default)  {
-				def = (Stmt.Default) s;
-				if (evaluateNext) {
-					evaluateNext = false;
-					Object tmp = execute(def.getStmts(), frame);
-
-					if (tmp instanceof Type.Null)
-						evaluateNext = true;
-						else return tmp;
-				}
-			}
-			else {
-				Stmt.Case c = (Stmt.Case) s;
-				Object o = execute(c.getConstant(), frame);
-
-				//We've found a match amongst the cases, or fall-through has occurred
-				if (o.equals(expr) || evaluateNext) {
-					hasEvaluated = true;
-					evaluateNext = false;
-					Object tmp = execute(c.getStmts(), frame);
-
-					//Fall-through
-					if (tmp instanceof Type.Null)
-						evaluateNext = true;
-
-					else return tmp;
-				}
+	/**
+	 * Build the jump table for a given switch statement. Since its case
+	 * constants are all constant, this is done once, when it is first
+	 * executed.
+	 */
+	private JumpTable jumpTable(Stmt.Switch stmt, Object[] frame) {
+		List<Stmt.SwitchStmt> cases = stmt.cases();
+		Object[] constants = new Object[cases.size()];
+		int def = -1;
+		for (int i = 0; i != constants.length; ++i) {
+			Stmt.SwitchStmt s = cases.get(i);
+			if (s instanceof Stmt.Default) {
+				def = i;
+			} else {
+				constants[i] = copy(execute(((Stmt.Case) s).getConstant(), frame));
 			}
 		}
-		if (def != null && !hasEvaluated) {
-			Object tmp = execute(def.getStmts(), frame);
-			if (!(tmp instanceof Type.Null))
-				return tmp;
+		JumpTable table = new JumpTable(constants, def);
+		jumpTables.put(stmt, table);
+		return table;
+	}
+
+	private static List<Stmt> body(Stmt.SwitchStmt s) {
+		if (s instanceof Stmt.Case) {
+			return ((Stmt.Case) s).getStmts();
+		} else {
+			return ((Stmt.Default) s).getStmts();
 		}
-		return null;
 	}
 
-	private Object execute(Stmt.Next stmt, HashMap<String, Object> frame) {
-		//Tombstone value to signal to the switch to progress to the next case
-		return new Type.Null();
+	private int execute(Stmt.Next stmt, Object[] frame) {
+		//Signal to the switch to progress to the next case
+		return NEXT;
 	}
 
-	private Object execute(Stmt.Assign stmt, HashMap<String,Object> frame) {
+	private int execute(Stmt.Assign stmt, Object[] frame) {
 		Expr lhs = stmt.getLhs();
 		if(lhs instanceof Expr.Variable) {
 			Expr.Variable ev = (Expr.Variable) lhs;
+			Object rhs = take(stmt.getRhs(),frame);
+			store(ev.getSlot(), rhs, frame);
+		} else if(lhs instanceof Expr.RecordAccess || lhs instanceof Expr.IndexOf
+				|| lhs instanceof Expr.Deref) {
+			ArrayList<Object> keys = new ArrayList<Object>();
+			evaluateKeys(lhs, keys, frame);
 			Object rhs = execute(stmt.getRhs(),frame);
-			// We need to perform a deep clone here to ensure the value
-			// semantics used in While are preserved.
-			frame.put(ev.getName(),deepClone(rhs));
-		} else if(lhs instanceof Expr.RecordAccess) {
-			Expr.RecordAccess ra = (Expr.RecordAccess) lhs;
-			Map<String,Object> src = (Map) execute(ra.getSource(),frame);
-			Object rhs = execute(stmt.getRhs(),frame);
-			// We need to perform a deep clone here to ensure the value
-			// semantics used in While are preserved.
-			src.put(ra.getName(), deepClone(rhs));
-		} else if(lhs instanceof Expr.IndexOf) {
-			Expr.IndexOf io = (Expr.IndexOf) lhs;
-			Object src = execute(io.getSource(),frame);
-			Integer idx = (Integer) execute(io.getIndex(),frame);
-			Object rhs = execute(stmt.getRhs(),frame);
-			if(src instanceof ArrayList) {
-				ArrayList<Object> list = (ArrayList) src;
-				// We need to perform a deep clone here to ensure the value
-				// semantics used in While are preserved.
-				list.set(idx,deepClone(rhs));
-			} else {
-				StringBuffer str = (StringBuffer) src;
-				str.setCharAt(idx, (Character) rhs);
-			}
-		} else if(lhs instanceof Expr.Deref) {
-			Ref var = (Ref) execute(((Expr.Deref)lhs).getExpr(), frame);
-			Object rhs = execute(stmt.getRhs(), frame);
-			var.setValue(rhs);
+			update(lhs, keys, rhs, frame);
 		} else if(lhs instanceof Expr.Tuple) {
-			Expr.Tuple lTup = (Expr.Tuple)lhs;
-
-			Tuple rTup = (Tuple) execute(stmt.getRhs(), frame);
-			//Split the tuple assignment into a list of assignments, and execute them
-			for (int i = 0; i < lTup.getExprs().size(); i++) {
-				Stmt.Assign tmp = new Stmt.Assign((Expr.LVal)lTup.getExprs().get(i),
-						new Expr.Constant(rTup.getValues().get(i)));
-				execute(tmp, frame);
+			List<Expr> lvals = ((Expr.Tuple) lhs).getExprs();
+			Tuple rhs = (Tuple) execute(stmt.getRhs(), frame);
+			// Write each component of the tuple straight into its lval, in
+			// order.
+			ArrayList<Object> keys = new ArrayList<Object>();
+			for (int i = 0; i != lvals.size(); ++i) {
+				Expr lval = lvals.get(i);
+				if (lval instanceof Expr.Variable) {
+					assign(((Expr.Variable) lval).getSlot(), rhs.get(i), frame);
+				} else {
+					keys.clear();
+					evaluateKeys(lval, keys, frame);
+					update(lval, keys, rhs.get(i), frame);
+				}
 			}
 		}
 
@@ -263,89 +363,262 @@ public class Interpreter {
 			internalFailure("unknown lval encountered (" + lhs + ")", file.filename,stmt);
 		}
 
-		return null;
+		return NORMAL;
+	}
+
+	/**
+	 * Write a given value into a record field, list or string element, or
+	 * reference, whose keys have already been evaluated.
+	 *
+	 * @param lval
+	 * @param keys
+	 *            Keys along the path of the lval, as determined by
+	 *            <code>evaluateKeys()</code>.
+	 * @param rhs
+	 * @param frame
+	 */
+	private void update(Expr lval, List<Object> keys, Object rhs, Object[] frame) {
+		if (lval instanceof Expr.Deref) {
+			((Ref) keys.get(0)).setValue(rhs);
+			return;
+		}
+		// The rhs must be copied before the lhs is unshared, otherwise an
+		// assignment such as "r.f = r" would create a cyclic value.
+		rhs = copy(rhs);
+		if (lval instanceof Expr.RecordAccess) {
+			Expr.RecordAccess ra = (Expr.RecordAccess) lval;
+			RecordValue src = (RecordValue) executeForUpdate(ra.getSource(), keys.iterator(), frame);
+			src.set(ra.getName(), rhs);
+			release(rhs);
+		} else {
+			// The index is the last key, after those of the source.
+			Expr.IndexOf io = (Expr.IndexOf) lval;
+			Integer idx = (Integer) keys.get(keys.size() - 1);
+			Object src = executeForUpdate(io.getSource(), keys.iterator(), frame);
+			if(src instanceof ListValue) {
+				ListValue list = (ListValue) src;
+				list.set(idx,rhs);
+				release(rhs);
+			} else {
+				StringValue str = (StringValue) src;
+				str.set(idx, (Character) rhs);
+			}
+		}
 	}
 
-	private Object execute(Stmt.OldFor stmt, HashMap<String,Object> frame) {
+	/**
+	 * Store a value in a given slot of the stack frame. Since lists and records
+	 * are copy-on-write, this only costs a deep clone of the value if it is
+	 * later updated whilst still held elsewhere.
+	 *
+	 * @param slot
+	 * @param value
+	 * @param frame
+	 */
+	private void assign(int slot, Object value, Object[] frame) {
+		store(slot, copy(value), frame);
+	}
+
+	/**
+	 * Store a value which has already been copied (or otherwise taken hold
+	 * of) in a given slot of the stack frame.
+	 *
+	 * @param slot
+	 * @param value
+	 * @param frame
+	 */
+	private void store(int slot, Object value, Object[] frame) {
+		Object old = frame[slot];
+		frame[slot] = value;
+		release(old);
+	}
+
+	/**
+	 * Evaluate an expression whose value is about to be stored in a variable
+	 * or passed to a function. The value is copied, unless the
+	 * <code>CopyElision</code> analysis has found this unnecessary for a dead
+	 * variable. In which case, the variable gives up its value altogether.
+	 * Copying a fresh value simply takes hold of it.
+	 *
+	 * @param expr
+	 * @param frame
+	 * @return The value to be stored.
+	 */
+	private Object take(Expr expr, Object[] frame) {
+		if (expr instanceof Expr.Variable
+				&& expr.attribute(Attribute.Move.class) != null) {
+			int slot = ((Expr.Variable) expr).getSlot();
+			Object value = frame[slot];
+			frame[slot] = null;
+			return value;
+		}
+		return copy(execute(expr, frame));
+	}
+
+	/**
+	 * Evaluate the index expressions (and dereferenced expressions) along the
+	 * path of an lval, in the same order they would be evaluated when reading
+	 * it. This allows the rhs of an assignment to be evaluated before the lval
+	 * is unshared for update, without changing the order in which any side
+	 * effects occur.
+	 *
+	 * @param lval
+	 * @param keys
+	 *            List into which the evaluated keys are placed.
+	 * @param frame
+	 */
+	private void evaluateKeys(Expr lval, List<Object> keys, Object[] frame) {
+		if (lval instanceof Expr.IndexOf) {
+			Expr.IndexOf io = (Expr.IndexOf) lval;
+			evaluateKeys(io.getSource(), keys, frame);
+			keys.add(execute(io.getIndex(), frame));
+		} else if (lval instanceof Expr.RecordAccess) {
+			evaluateKeys(((Expr.RecordAccess) lval).getSource(), keys, frame);
+		} else if (lval instanceof Expr.Deref) {
+			keys.add(execute(((Expr.Deref) lval).getExpr(), frame));
+		}
+	}
+
+	/**
+	 * Get the value of a given lval so that it can be updated in place. Any
+	 * shared compound values along the path of the lval are replaced with
+	 * their own copies, so that the update is not visible through any other
+	 * variable holding the original value.
+	 *
+	 * @param lval
+	 * @param keys
+	 *            Keys along the path of the lval, as determined by
+	 *            <code>evaluateKeys()</code>.
+	 * @param frame
+	 * @return
+	 */
+	private Object executeForUpdate(Expr lval, Iterator<Object> keys, Object[] frame) {
+		if (lval instanceof Expr.Variable) {
+			int slot = ((Expr.Variable) lval).getSlot();
+			Object value = frame[slot];
+			if (value instanceof CopyOnWriteValue) {
+				value = ((CopyOnWriteValue) value).unshare();
+				frame[slot] = value;
+			}
+			return value;
+		} else if (lval instanceof Expr.IndexOf) {
+			Expr.IndexOf io = (Expr.IndexOf) lval;
+			ListValue src = (ListValue) executeForUpdate(io.getSource(), keys, frame);
+			return src.getForUpdate((Integer) keys.next());
+		} else if (lval instanceof Expr.RecordAccess) {
+			Expr.RecordAccess ra = (Expr.RecordAccess) lval;
+			RecordValue src = (RecordValue) executeForUpdate(ra.getSource(), keys, frame);
+			return src.getForUpdate(ra.getName());
+		} else if (lval instanceof Expr.Deref) {
+			return ((Ref) keys.next()).getValueForUpdate();
+		} else {
+			internalFailure("unknown lval encountered (" + lval + ")", file.filename, lval);
+			return null;
+		}
+	}
+
+	private int execute(Stmt.OldFor stmt, Object[] frame) {
 		execute(stmt.getDeclaration(),frame);
 		while((Boolean) execute(stmt.getCondition(),frame)) {
-			Object ret = execute(stmt.getBody(),frame);
-			if(ret != null) {
+			int ret = execute(stmt.getBody(),frame);
+			if(ret != NORMAL) {
 				return ret;
 			}
 			execute(stmt.getIncrement(),frame);
 		}
-		return null;
+		return NORMAL;
 	}
 
-	private Object execute(Stmt.For stmt, HashMap<String,Object> frame) {
-		List src = (List) execute(stmt.getSource(),frame);
-		String index = stmt.getIndex().getName();
-		for(Object item : src) {
-			frame.put(index, item);
-			Object ret = execute(stmt.getBody(),frame);
-			if(ret != null) {
-				return ret;
+	private int execute(Stmt.For stmt, Object[] frame) {
+		if (isRange(stmt.getSource())) {
+			Expr.Binary range = (Expr.Binary) stmt.getSource();
+			int start = (Integer) execute(range.getLhs(), frame);
+			int end = (Integer) execute(range.getRhs(), frame);
+			int index = stmt.getIndex().getSlot();
+			int ret = NORMAL;
+			for (int i = start; i < end && ret == NORMAL; ++i) {
+				assign(index, i, frame);
+				ret = execute(stmt.getBody(), frame);
 			}
+			return ret;
 		}
-		return null;
+		// Take a hold on the source list, which is released once the loop
+		// completes.
+		ListValue src = (ListValue) copy(execute(stmt.getSource(),frame));
+		int index = stmt.getIndex().getSlot();
+		int ret = NORMAL;
+		for(int i = 0; i != src.size() && ret == NORMAL; ++i) {
+			assign(index, src.get(i), frame);
+			ret = execute(stmt.getBody(),frame);
+		}
+		src.release();
+		return ret;
 	}
 
-	private Object execute(Stmt.While stmt, HashMap<String,Object> frame) {
+	/**
+	 * Check whether a given expression is a range, which is only constructed
+	 * as a list when its value is actually needed as one. In particular, a for
+	 * loop over a range counts between its bounds instead. The other engines
+	 * and backends all treat such a loop in the same way.
+	 */
+	private static boolean isRange(Expr expr) {
+		return expr instanceof Expr.Binary
+				&& ((Expr.Binary) expr).getOp() == Expr.BOp.RANGE;
+	}
+
+	private int execute(Stmt.While stmt, Object[] frame) {
 		while((Boolean) execute(stmt.getCondition(),frame)) {
-			Object ret = execute(stmt.getBody(),frame);
-			if(ret != null) {
+			int ret = execute(stmt.getBody(),frame);
+			if(ret != NORMAL) {
 				return ret;
 			}
 		}
-		return null;
+		return NORMAL;
 	}
 
-	private Object execute(Stmt.IfElse stmt, HashMap<String,Object> frame) {
+	private int execute(Stmt.IfElse stmt, Object[] frame) {
 		boolean condition = (Boolean) execute(stmt.getCondition(),frame);
 		if(condition) {
 			return execute(stmt.getTrueBranch(),frame);
 		} else {
-			//Check else-if branches
-			for (Expr e : stmt.getAltExpressions()) {
-				boolean altCondition = (Boolean) execute(e, frame);
+			//Check else-if branches, in order
+			List<Stmt.ElseIf> alts = stmt.getAlts();
+			for (int i = 0; i != alts.size(); ++i) {
+				Stmt.ElseIf alt = alts.get(i);
+				boolean altCondition = (Boolean) execute(alt.getCondition(), frame);
 				if (altCondition) {
-					return execute(stmt.getAltBranch(e), frame);
+					return execute(alt.getBody(), frame);
 				}
 			}
 			return execute(stmt.getFalseBranch(),frame);
 		}
 	}
 
-	private Object execute(Stmt.Return stmt, HashMap<String,Object> frame) {
+	private int execute(Stmt.Return stmt, Object[] frame) {
 		Expr re = stmt.getExpr();
 		if(re != null) {
-			return execute(re,frame);
-		} else {
-			return Collections.EMPTY_SET; // used to indicate a function has returned
+			frame[frame.length - 1] = execute(re,frame);
 		}
+		return RETURN;
 	}
 
-	private Object execute(Stmt.VariableDeclaration stmt,
-			HashMap<String, Object> frame) {
+	private int execute(Stmt.VariableDeclaration stmt, Object[] frame) {
 		Expr re = stmt.getExpr();
 		Object value;
 		if (re != null) {
-			value = execute(re, frame);
+			value = take(re, frame);
 		} else {
 			value = Collections.EMPTY_SET; // used to indicate a variable has
 										   // been declared
 		}
-		// We need to perform a deep clone here to ensure the value
-		// semantics used in While are preserved.
-		frame.put(stmt.getName(), deepClone(value));
-		return null;
+		store(stmt.getSlot(), value, frame);
+		return NORMAL;
 	}
 
-	private Object execute(Stmt.Print stmt, HashMap<String,Object> frame) {
-		String str = toString(execute(stmt.getExpr(),frame));
+	private int execute(Stmt.Print stmt, Object[] frame) {
+		String str = values.toString(execute(stmt.getExpr(),frame));
 		System.out.println(str);
-		return null;
+		return NORMAL;
 	}
 
 	/**
@@ -354,10 +627,11 @@ public class Interpreter {
 	 * @param expr
 	 *            Expression to execute.
 	 * @param frame
-	 *            Stack frame mapping variables to their current value.
+	 *            Stack frame holding the current value of each variable,
+	 *            indexed by slot.
 	 * @return
 	 */
-	private Object execute(Expr expr, HashMap<String,Object> frame) {
+	private Object execute(Expr expr, Object[] frame) {
 		if(expr instanceof Expr.Binary) {
 			return execute((Expr.Binary) expr,frame);
 		} else if(expr instanceof Expr.Is) {
@@ -393,7 +667,7 @@ public class Interpreter {
 		}
 	}
 
-	private Object execute(Expr.Binary expr, HashMap<String,Object> frame) {
+	private Object execute(Expr.Binary expr, Object[] frame) {
 
 		Object lhs = execute(expr.getLhs(), frame);
 		Object rhs = null;
@@ -477,26 +751,21 @@ public class Interpreter {
 				return ((Double)lhs) >= ((Double)rhs);
 			}
 		case APPEND:
-			if(lhs instanceof StringBuffer && rhs instanceof StringBuffer) {
-				StringBuffer l = (StringBuffer) lhs;
-				return new StringBuffer(l).append((StringBuffer)rhs);
-			} else if(lhs instanceof StringBuffer) {
-				StringBuffer l = (StringBuffer) lhs;
-				return new StringBuffer(l).append(toString(rhs));
-			} else if(rhs instanceof StringBuffer) {
-				return toString(lhs) + ((StringBuffer)rhs);
-			} else if(lhs instanceof ArrayList && rhs instanceof ArrayList) {
-				ArrayList<Object> l = (ArrayList<Object>) lhs;
-				l = (ArrayList) deepClone(l);
-				l.addAll((ArrayList<Object>)rhs);
-				return l;
+			if(lhs instanceof StringValue && rhs instanceof StringValue) {
+				return ((StringValue) lhs).append((StringValue) rhs);
+			} else if(lhs instanceof StringValue) {
+				return ((StringValue) lhs).append(values.toString(rhs));
+			} else if(rhs instanceof StringValue) {
+				return new StringValue(values.toString(lhs)).append((StringValue) rhs);
+			} else if(lhs instanceof ListValue && rhs instanceof ListValue) {
+				return ((ListValue) lhs).append((ListValue) rhs);
 			}
 		case RANGE: {
 			int start = (Integer) lhs;
 			int end = (Integer) rhs;
-			ArrayList<Integer> result = new ArrayList<Integer>();
+			ListValue result = new ListValue(ListValue.Storage.INT, Math.max(end - start, 0));
 			while(start < end) {
-				result.add(start);
+				result.addInt(start);
 				start = start + 1;
 			}
 			return result;
@@ -508,196 +777,95 @@ public class Interpreter {
 		return null;
 	}
 
-	private Object execute(Expr.Is expr, HashMap<String, Object> frame) {
+	private Object execute(Expr.Is expr, Object[] frame) {
 		Object lhs = execute(expr.getLhs(), frame);
-		return instanceOf(lhs,expr.getRhs());
+		return values.instanceOf(lhs,expr.getRhs());
 	}
 
-	private Object execute(Expr.Cast expr, HashMap<String, Object> frame) {
+	private Object execute(Expr.Cast expr, Object[] frame) {
 		Object rhs = execute(expr.getSource(), frame);
 
-		return doCast(expr.getType(), rhs, expr.getSource());
-	}
-
-	/**
-	 * Method that passes cast execution to the appropriate method
-	 * for the type of the cast
-	 */
-	private Object doCast(Type t, Object o, SyntacticElement elem) {
-
-		if (t instanceof Type.List)
-			return doListCast((Type.List)t, (ArrayList)o, elem);
-
-		else if(t instanceof Type.Record) {
-			return doRecordCast((Type.Record)t, (HashMap)o, elem);
-		}
-		else if(t instanceof Type.Union) {
-			//We trust the type checker has done its job
-			return o;
-		}
-		else if(t instanceof Type.Named) {
-			return doCast(userTypes.get(t.toString()), o, elem);
-		}
-		else if(t instanceof Type.Tuple) {
-			return doTupleCast((Type.Tuple)t, (Tuple)o, elem);
-		}
-
-		else return doPrimitiveCast(t, o, elem);
-	}
-
-	private Object doTupleCast(Type.Tuple type, Tuple obj, SyntacticElement elem) {
-
-		ArrayList<Object> newTupleList = new ArrayList<Object>();
-		List<Type> types = type.getTypes();
-		List<Object> objects = obj.getValues();
-		for (int i = 0; i < types.size(); i++) {
-			Object o = doCast(types.get(i), objects.get(i), elem);
-			newTupleList.add(o);
-		}
-		return new Tuple(newTupleList);
+		return values.doCast(expr.getType(), rhs, expr.getSource());
 	}
 
-	private Object doRecordCast(Type.Record t, HashMap o, SyntacticElement elem) {
-		HashMap result = new HashMap();
-
-		for(Object name : o.keySet()) {
-			Object casted = null;
-			casted = doCast(t.getFields().get(name), o.get(name), elem);
-
-			result.put(name, casted);
-		}
-
-		return result;
-	}
-
-	/**
-	 * Casts a non-list object to the java equivalent of the given type,
-	 * and returns the resulting object.
-	 */
-	private Object doPrimitiveCast(Type t, Object o, SyntacticElement elem) {
-		Class c = getJavaClass(t);
-
-		//Need to handle the case where casting a null - just return null
-		if (c == null) {
-			return null;
-		}
-
-		//Need to have explicit conversions for the number types
-		//As Double cannot be cast to Integer, and vice versa
-		if (c.equals(Double.class)) {
-			Double d = 0.0;
-
-			if (o instanceof Integer) {
-				d = ((Integer)o).doubleValue();
-				return d;
-			}
-
-			else if (o instanceof Double) {
-				d = (Double)o;
-				return d;
+	private Object execute(Expr.Constant expr, Object[] frame) {
+		Object value = expr.getValue();
+		if (value instanceof StringBuffer) {
+			StringValue s = strings.get(expr);
+			if (s == null) {
+				// The string is held by this table, so it is never updated in
+				// place through any variable it is stored in.
+				s = new StringValue((StringBuffer) value);
+				s.acquire();
+				strings.put(expr, s);
 			}
-
-			else {
-				//Shouldn't happen, indicates a type failure
-				internalFailure("Casting error - cannot cast between types", file.filename, elem);
-				return null;
-			}
-		}
-
-		else if(c.equals(Integer.class)) {
-
-				Integer i = 0;
-
-				if (o instanceof Integer) {
-					i = (Integer)o;
-					return i;
-				}
-				else {
-					//Shouldn't happen, indicates a type checking failure
-					internalFailure("Casting error - cannot cast between types", file.filename, elem);
-					return null;
-				}
+			return s;
 		}
-
-		//In all other cases, type checker should have paved the way for us
-		return c.cast(o);
-	}
-
-	/**
-	 * Casts all elements in a list to the given type of the list class.
-	 * Recursively deals with nested lists.
-	 *
-	 * @param t 	- The type of the cast
-	 * @param list	- The list being casted
-	 * @return
-	 */
-	private ArrayList doListCast(Type.List t, ArrayList list, SyntacticElement elem) {
-
-		Class listType = getJavaClass(t.getElement());
-		ArrayList newList = new ArrayList();
-
-		for (Object o : list)
-			newList.add(doCast(t.getElement(), o, elem));
-
-		return newList;
-	}
-
-	private Object execute(Expr.Constant expr, HashMap<String,Object> frame) {
-		return expr.getValue();
+		return value;
 	}
 
-	private Object execute(Expr.Invoke expr, HashMap<String, Object> frame) {
+	private Object execute(Expr.Invoke expr, Object[] frame) {
 		List<Expr> arguments = expr.getArguments();
 		Object[] values = new Object[arguments.size()];
 		for (int i = 0; i != values.length; ++i) {
-			// We need to perform a deep clone here to ensure the value
-			// semantics used in While are preserved.
-			values[i] = deepClone(execute(arguments.get(i), frame));
+			// The callee's parameters hold their own copies of the arguments.
+			values[i] = take(arguments.get(i), frame);
 		}
-		WyscriptFile.FunDecl fun = (WyscriptFile.FunDecl) declarations.get(expr
-				.getName());
-		return execute(fun, values);
+		return execute(expr.getTarget(), values);
 	}
 
-	private Object execute(Expr.IndexOf expr, HashMap<String,Object> frame) {
+	private Object execute(Expr.IndexOf expr, Object[] frame) {
 		Object _src = execute(expr.getSource(),frame);
 		int idx = (Integer) execute(expr.getIndex(),frame);
-		if(_src instanceof StringBuffer) {
-			StringBuffer src = (StringBuffer) _src;
+		if(_src instanceof StringValue) {
+			StringValue src = (StringValue) _src;
 			return src.charAt(idx);
 		} else {
-			ArrayList<Object> src = (ArrayList<Object>) _src;
+			ListValue src = (ListValue) _src;
 			return src.get(idx);
 		}
 	}
 
 	private Object execute(Expr.ListConstructor expr,
-			HashMap<String, Object> frame) {
+			Object[] frame) {
 		List<Expr> es = expr.getArguments();
-		ArrayList<Object> ls = new ArrayList<Object>();
+		// The list is stored unboxed where its element type allows it
+		Attribute.Type type = expr.attribute(Attribute.Type.class);
+		ListValue ls = type != null && type.type instanceof Type.List ? values
+				.newList(((Type.List) type.type).getElement(), es.size())
+				: new ListValue(es.size());
 		for (int i = 0; i != es.size(); ++i) {
 			ls.add(execute(es.get(i), frame));
 		}
 		return ls;
 	}
 
-	private Object execute(Expr.RecordAccess expr, HashMap<String, Object> frame) {
-		HashMap<String, Object> src = (HashMap) execute(expr.getSource(), frame);
+	private Object execute(Expr.RecordAccess expr, Object[] frame) {
+		RecordValue src = (RecordValue) execute(expr.getSource(), frame);
 		return src.get(expr.getName());
 	}
 
-	private Object execute(Expr.RecordConstructor expr, HashMap<String,Object> frame) {
+	private Object execute(Expr.RecordConstructor expr, Object[] frame) {
 		List<Pair<String,Expr>> es = expr.getFields();
-		HashMap<String,Object> rs = new HashMap<String,Object>();
+		Shape shape = shapes.get(expr);
+		if(shape == null) {
+			String[] names = new String[es.size()];
+			for(int i = 0; i != names.length; ++i) {
+				names[i] = es.get(i).first();
+			}
+			shape = Shape.of(names);
+			shapes.put(expr, shape);
+		}
+		RecordValue rs = new RecordValue(shape);
 
 		for(Pair<String,Expr> e : es) {
-			rs.put(e.first(),execute(e.second(),frame));
+			rs.set(e.first(),execute(e.second(),frame));
 		}
 
 		return rs;
 	}
 
-	private Object execute(Expr.Unary expr, HashMap<String, Object> frame) {
+	private Object execute(Expr.Unary expr, Object[] frame) {
 		Object value = execute(expr.getExpr(), frame);
 		switch (expr.getOp()) {
 		case NOT:
@@ -709,10 +877,10 @@ public class Interpreter {
 				return -((Integer) value);
 			}
 		case LENGTHOF:
-			if(value instanceof StringBuffer) {
-				return ((StringBuffer) value).length();
+			if(value instanceof StringValue) {
+				return ((StringValue) value).length();
 			} else {
-				return ((ArrayList) value).size();
+				return ((ListValue) value).size();
 			}
 		}
 
@@ -721,244 +889,33 @@ public class Interpreter {
 		return null;
 	}
 
-	private Object execute(Expr.Variable expr, HashMap<String,Object> frame) {
-		return frame.get(expr.getName());
+	private Object execute(Expr.Variable expr, Object[] frame) {
+		if(expr.isGlobal()) {
+			return constants[expr.getSlot()];
+		}
+		return frame[expr.getSlot()];
 	}
 
-	private Object execute(Expr.Deref expr, HashMap<String, Object> frame) {
+	private Object execute(Expr.Deref expr, Object[] frame) {
 		Ref val = (Ref) execute(expr.getExpr(), frame);
 		return val.getValue();
 	}
 
-	private Object execute(Expr.New expr, HashMap<String, Object> frame) {
+	private Object execute(Expr.New expr, Object[] frame) {
 		Object value = execute(expr.getExpr(), frame);
 		return new Ref(value);
 	}
 
-	private Object execute(Expr.Tuple expr, HashMap<String, Object> frame) {
-		List<Object> values = new ArrayList<Object>();
-		for (Expr e : expr.getExprs()) {
-			values.add(execute(e, frame));
-		}
-		return new Tuple(values);
-	}
-
-	/**
-	 * Perform a deep clone of the given object value. This is either a
-	 * <code>Boolean</code>, <code>Integer</code>, <code>Double</code>,
-	 * <code>Character</code>, <code>String</code>, <code>ArrayList</code> (for
-	 * lists) or <code>HaspMap</code> (for records). Only the latter two need to
-	 * be cloned, since the others are immutable.
-	 *
-	 * @param o
-	 * @return
-	 */
-	private Object deepClone(Object o) {
-		if (o instanceof ArrayList) {
-			ArrayList<Object> l = (ArrayList) o;
-			ArrayList<Object> n = new ArrayList<Object>();
-			for (int i = 0; i != l.size(); ++i) {
-				n.add(deepClone(l.get(i)));
-			}
-			return n;
-		} else if (o instanceof HashMap) {
-			HashMap<String, Object> m = (HashMap) o;
-			HashMap<String, Object> n = new HashMap<String, Object>();
-			for (String field : m.keySet()) {
-				n.put(field, deepClone(m.get(field)));
-			}
-			return n;
-		} else if (o instanceof StringBuffer) {
-			StringBuffer sb = (StringBuffer) o;
-			return new StringBuffer(sb);
-		} else if (o instanceof Tuple) {
-			Tuple t = (Tuple) o;
-			List<Object> newVals = new ArrayList<Object>();
-			for (Object v : t.getValues())
-				newVals.add(deepClone(v));
-			return new Tuple(newVals);
-		}
-		else {
-			// other cases can be ignored
-			return o;
-		}
-	}
-
-	/**
-	 * Convert the given object value to a string. This is either a
-	 * <code>Boolean</code>, <code>Integer</code>, <code>Double</code>,
-	 * <code>Character</code>, <code>String</code>, <code>ArrayList</code> (for
-	 * lists) or <code>HashMap</code> (for records). The latter two must be
-	 * treated recursively.
-	 *
-	 * @param o
-	 * @return
-	 */
-	private String toString(Object o) {
-		if (o instanceof ArrayList) {
-			ArrayList<Object> l = (ArrayList) o;
-			String r = "[";
-			for (int i = 0; i != l.size(); ++i) {
-				if(i != 0) {
-					r = r + ", ";
-				}
-				r += toString(l.get(i));
-			}
-			return r + "]";
-		} else if (o instanceof HashMap) {
-			HashMap<String, Object> m = (HashMap) o;
-			String r = "{";
-			boolean firstTime = true;
-			ArrayList<String> fields = new ArrayList<String>(m.keySet());
-			Collections.sort(fields);
-			for (String field : fields) {
-				if(!firstTime) {
-					r += ",";
-				}
-				firstTime=false;
-				r += field + ":" + toString(m.get(field));
-			}
-			return r + "}";
-		} else if (o instanceof Tuple) {
-			Tuple t = (Tuple) o;
-			String r = "(";
-			boolean first = true;
-			for (Object obj : t.getValues()) {
-				if (!first)
-					r += ", ";
-				first = false;
-				r += toString(obj);
-			}
-			return r + ")";
+	private Object execute(Expr.Tuple expr, Object[] frame) {
+		List<Expr> exprs = expr.getExprs();
+		if (exprs.size() == 2) {
+			Object first = execute(exprs.get(0), frame);
+			return Tuple.create(first, execute(exprs.get(1), frame));
 		}
-
-		else if(o != null) {
-			// other cases can use their default toString methods.
-			return o.toString();
-		} else {
-			return "null";
-		}
-	}
-
-	/**
-	 * Determine whether a given value is an instanceof a given type. This is
-	 * done by recursively exploring the type and the value together, until we
-	 * can safely conclude that the value does (or does not) match the required
-	 * type.
-	 *
-	 * @param value
-	 * @param type
-	 * @return
-	 */
-	private boolean instanceOf(Object value, Type type) {
-		if(type instanceof Type.Void) {
-			return false;
-		}else if (type instanceof Type.Null) {
-			return value == null;
-		}else if(type instanceof Type.Bool) {
-			return value instanceof Boolean;
-		} else if(type instanceof Type.Char) {
-			return value instanceof Character;
-		} else if(type instanceof Type.Int) {
-			return value instanceof Integer;
-		} else if(type instanceof Type.Real) {
-			return value instanceof Double;
-		} else if(type instanceof Type.Strung) {
-			return value instanceof StringBuffer;
-		} else if (type instanceof Type.List) {
-			if (value instanceof ArrayList) {
-				Type.List lt = (Type.List) type;
-				ArrayList al = (ArrayList) value;
-				for (Object o : al) {
-					if (!instanceOf(o, lt.getElement())) {
-						return false;
-					}
-				}
-				return true;
-			}
-			return false;
-		} else if(type instanceof Type.Record) {
-			Type.Record ut = (Type.Record) type;
-			if(value instanceof HashMap) {
-				HashMap m = (HashMap) value;
-				for(Map.Entry<String,Type> p : ut.getFields().entrySet()) {
-					if (!instanceOf(m.get(p.getKey()), p.getValue())) {
-						return false;
-					}
-				}
-				return true;
-			}
-			return false;
-		} else if(type instanceof Type.Named) {
-			return instanceOf(value, userTypes.get(type.toString()));
-		} else if (type instanceof Type.Union){
-			Type.Union ut = (Type.Union) type;
-			for (Type bt : ut.getBounds()) {
-				if (instanceOf(value, bt)) {
-					return true;
-				}
-			}
-			return false;
-		} else if (type instanceof Type.Reference) {
-			Type.Reference ref = (Type.Reference) type;
-			return (value instanceof Ref && instanceOf(((Ref)value).getValue(), ref.getType()));
-		} else if (type instanceof Type.Tuple) {
-			if (!(value instanceof Tuple)) return false;
-			Tuple t = (Tuple) value;
-			if (t.getValues().size() != ((Type.Tuple)type).getTypes().size())
-				return false;
-			for (int i = 0; i < t.getValues().size(); i++) {
-				if (!(instanceOf(t.getValues().get(i), ((Type.Tuple)type).getTypes().get(i))))
-					return false;
-			}
-			return true;
-		}
-
-		else {
-			internalFailure("Unknown type encountered", file.filename, type);
-			return false;
-		}
-	}
-
-	/**
-	 * The inverse of the above method - given a WyScript type, return
-	 * the corresponding java class. Used for type casting.
-	 * Returns null if the type is a union - in this case, no
-	 * Java cast is required
-	 */
-	private Class getJavaClass(Type t) {
-
-		if (t instanceof Type.Bool)
-			return Boolean.class;
-
-		else if (t instanceof Type.Int)
-			return Integer.class;
-
-		else if (t instanceof Type.Real)
-			return Double.class;
-
-		else if (t instanceof Type.Strung)
-			return StringBuffer.class;
-
-		else if (t instanceof Type.Char)
-			return Character.class;
-
-		else if (t instanceof Type.List) {
-			return ArrayList.class;
-		}
-
-		else if (t instanceof Type.Record) {
-			return HashMap.class;
-		}
-
-		else if (t instanceof Type.Reference) {
-			return Ref.class;
-		}
-
-		else if (t instanceof Type.Tuple) {
-			return Tuple.class;
+		Object[] values = new Object[exprs.size()];
+		for (int i = 0; i != values.length; ++i) {
+			values[i] = execute(exprs.get(i), frame);
 		}
-		else return null;
-
+		return Tuple.create(values);
 	}
 }
@@ -21,10 +21,21 @@ package wyscript;
 import java.io.File;
 import java.io.PrintStream;
 
+import wyscript.engine.CompiledInterpreter;
 import wyscript.error.HandledException;
 import wyscript.io.*;
+import wyscript.ir.Builder;
+import wyscript.ir.JavaScriptGenerator;
+import wyscript.ir.PassManager;
+import wyscript.ir.Printer;
+import wyscript.jvm.ClassFileLoader;
 import wyscript.lang.WyscriptFile;
+import wyscript.opt.Optimiser;
 import wyscript.util.*;
+import wyscript.vm.CodeGenerator;
+import wyscript.vm.Module;
+import wyscript.vm.TaggedVirtualMachine;
+import wyscript.vm.VirtualMachine;
 
 public class Main {
 
@@ -38,12 +49,24 @@ public class Main {
 		}
 	}
 
-	private static enum Mode { interpret, js };
+	private static enum Mode { interpret, js, jvm, vm, wyc, ir };
+
+	private static enum Engine { interpreter, compiled, ir };
+
+	/**
+	 * The number of results held for each memoised function, unless given
+	 * explicitly.
+	 */
+	private static final int DEFAULT_MEMO_CAPACITY = 1024;
 
 	public static boolean run(String[] args) {
 		boolean verbose = false;
 		int fileArgsBegin = 0;
 		Mode mode = Mode.interpret;
+		Engine engine = Engine.interpreter;
+		int level = Optimiser.MAX_LEVEL;
+		Memoiser memoiser = null;
+		boolean tagged = false;
 
 		for (int i = 0; i != args.length; ++i) {
 			if (args[i].startsWith("-")) {
@@ -58,6 +81,48 @@ public class Main {
 					verbose = true;
 				} else if (arg.equals("-js")) {
 					mode = Mode.js;
+				} else if (arg.equals("-jvm")) {
+					mode = Mode.jvm;
+				} else if (arg.equals("-vm")) {
+					mode = Mode.vm;
+				} else if (arg.equals("-vm=tagged")) {
+					mode = Mode.vm;
+					tagged = true;
+				} else if (arg.equals("-wyc")) {
+					mode = Mode.wyc;
+				} else if (arg.equals("-ir")) {
+					mode = Mode.ir;
+				} else if (arg.startsWith("-engine=")) {
+					String name = arg.substring("-engine=".length());
+					try {
+						engine = Engine.valueOf(name);
+					} catch (IllegalArgumentException e) {
+						throw new RuntimeException("Unknown engine: " + name);
+					}
+				} else if (arg.equals("-memo")) {
+					memoiser = new Memoiser(DEFAULT_MEMO_CAPACITY);
+				} else if (arg.startsWith("-memo=")) {
+					String n = arg.substring("-memo=".length());
+					int capacity;
+					try {
+						capacity = Integer.parseInt(n);
+					} catch (NumberFormatException e) {
+						capacity = -1;
+					}
+					if (capacity <= 0) {
+						throw new RuntimeException("Invalid memo capacity: " + n);
+					}
+					memoiser = new Memoiser(capacity);
+				} else if (arg.startsWith("-O")) {
+					String n = arg.substring("-O".length());
+					try {
+						level = Integer.parseInt(n);
+					} catch (NumberFormatException e) {
+						level = -1;
+					}
+					if (level < 0 || level > Optimiser.MAX_LEVEL) {
+						throw new RuntimeException("Unknown optimisation level: " + n);
+					}
 				} else {
 					throw new RuntimeException("Unknown option: " + args[i]);
 				}
@@ -75,6 +140,17 @@ public class Main {
 			String filename = args[fileArgsBegin];
 			File srcFile = new File(filename);
 
+			// A module which has already been compiled is executed as is,
+			// without lexing, parsing or type checking it again.
+			if (filename.endsWith(".wyc")) {
+				if (tagged) {
+					new TaggedVirtualMachine(Module.load(srcFile)).run();
+				} else {
+					new VirtualMachine(Module.load(srcFile)).run();
+				}
+				return true;
+			}
+
 			// First, lex and parse the source file
 			Lexer lexer = new Lexer(srcFile.getPath());
 			Parser parser = new Parser(srcFile.getPath(), lexer.scan());
@@ -83,18 +159,56 @@ public class Main {
 			// Second, we'd want to perform some kind of type checking here.
 			new TypeChecker().check(ast, srcFile.getPath());
 
-			// Third, we'd want to run the interpreter or compile the file.
+			// Third, simplify the file as far as the optimisation level allows.
+			new Optimiser(level).optimise(ast);
+
+			// Fourth, we'd want to run the interpreter or compile the file.
 			switch(mode) {
 			case interpret:
-				new Interpreter().run(ast);
+				if (engine == Engine.compiled) {
+					new CompiledInterpreter().run(ast);
+				} else if (engine == Engine.ir) {
+					new wyscript.ir.Executor(lower(ast, level)).run();
+				} else {
+					new Interpreter(memoiser).run(ast);
+					if (memoiser != null && verbose) {
+						memoiser.report(errout);
+					}
+				}
 				break;
 			case js: {
 				File jsFile = new File(filename.substring(0,filename.lastIndexOf('.')) + ".js");
+				if (engine == Engine.ir) {
+					JavaScriptGenerator jsg = new JavaScriptGenerator(jsFile);
+					jsg.write(lower(ast, level));
+					jsg.close();
+					break;
+				}
 				JavaScriptFileWriter jsfw = new JavaScriptFileWriter(jsFile);
 				jsfw.write(ast);
 				jsfw.close();
 				break;
 			}
+			case jvm:
+				new ClassFileLoader().run(ast);
+				break;
+			case vm: {
+				Module module = new CodeGenerator().generate(ast);
+				if (tagged) {
+					new TaggedVirtualMachine(module).run();
+				} else {
+					new VirtualMachine(module).run();
+				}
+				break;
+			}
+			case wyc: {
+				File wycFile = new File(filename.substring(0,filename.lastIndexOf('.')) + ".wyc");
+				new CodeGenerator().generate(ast).save(wycFile);
+				break;
+			}
+			case ir:
+				new Printer(System.out).print(lower(ast, level));
+				break;
 			}
 
 		} catch (SyntaxError e) {
@@ -123,6 +237,16 @@ public class Main {
 		return true;
 	}
 
+	/**
+	 * Lower a type checked file into SSA form, and then apply the passes
+	 * which the optimisation level allows.
+	 */
+	private static wyscript.ir.Module lower(WyscriptFile ast, int level) {
+		wyscript.ir.Module module = new Builder().build(ast);
+		PassManager.standard(level).run(module);
+		return module;
+	}
+
 	public static void main(String[] args) throws Exception {
 		run(args);
 	}
@@ -135,7 +259,20 @@ public class Main {
 		String[][] info = {
 				{ "version", "Print version information" },
 				{ "verbose",
-						"Print detailed information on what the compiler is doing" } };
+						"Print detailed information on what the compiler is doing" },
+				{ "engine=<name>",
+						"Execute using the given engine: interpreter (default), compiled or ir (also applies to -js)" },
+				{ "memo[=<n>]",
+						"Memoise calls to pure recursive functions, holding at most n (default 1024) results for each (only applies to the default interpreter, and is ignored by every other engine and backend)" },
+				{ "O<n>",
+						"Optimise at the given level: 0 (none), 1 (fold constants) or 2 (default: propagate constants, inline small functions, propagate constants again, then hoist loop invariants and mark in-bounds indices)" },
+				{ "jvm", "Compile to JVM bytecode and execute it" },
+				{ "vm", "Compile to register bytecode and execute it" },
+				{ "vm=tagged",
+						"As -vm, but without boxing ints, reals, bools or chars held in registers" },
+				{ "ir", "Print the SSA form of the program, after optimisation" },
+				{ "wyc",
+						"Compile to register bytecode and save it (as a .wyc file)" } };
 
 		System.out.println("usage: wyjs <options> <source-files>");
 		System.out.println("Options:");
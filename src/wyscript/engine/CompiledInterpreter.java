@@ -0,0 +1,496 @@
+// This file is part of the WyScript Compiler (wysc).
+//
+// The WyScript Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WyScript Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WyScript Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+//
+// Copyright 2013, David James Pearce.
+
+package wyscript.engine;
+
+import java.util.*;
+
+import wyscript.lang.*;
+import wyscript.util.Attribute;
+import wyscript.util.ListValue;
+import wyscript.util.Pair;
+import wyscript.util.Values;
+import wyscript.util.VariableResolver;
+import static wyscript.util.CopyOnWriteValue.copy;
+import static wyscript.util.SyntaxError.*;
+
+/**
+ * <p>
+ * An alternative to the reference <code>Interpreter</code>, which first
+ * compiles a (type-checked) WyScript program into a tree of executable nodes
+ * and then executes that. Each statement and expression is translated exactly
+ * once into a node specialised for it, so the dispatch on the kind of
+ * statement, expression or operator happens at compile time rather than every
+ * time the node is executed. Likewise, variables are compiled to their slot in
+ * the stack frame, and invocations are linked directly to the function they
+ * call.
+ * </p>
+ * <p>
+ * The compiled program must behave exactly as the reference interpreter does,
+ * and both share the same runtime values.
+ * </p>
+ *
+ */
+public class CompiledInterpreter {
+	private WyscriptFile file;
+	private HashMap<String, Function> functions;
+
+	/**
+	 * The value of each constant, indexed by its slot in the global scope.
+	 */
+	private Object[] constants;
+	private HashMap<String, Type> userTypes;
+	private Values values;
+
+	public void run(WyscriptFile wf) {
+		// First, assign every variable a slot in its enclosing stack frame.
+		VariableResolver resolver = new VariableResolver();
+		resolver.resolve(wf);
+
+		this.file = wf;
+		functions = new HashMap<String, Function>();
+		constants = new Object[resolver.numberOfConstants()];
+		userTypes = new HashMap<String, Type>();
+		values = new Values(wf.filename, userTypes);
+
+		// Second, create every function and record every user-defined type,
+		// so that they can be referred to before they are declared.
+		for (WyscriptFile.Decl decl : wf.declarations) {
+			if (decl instanceof WyscriptFile.FunDecl) {
+				WyscriptFile.FunDecl fd = (WyscriptFile.FunDecl) decl;
+				functions.put(fd.name(), new Function(fd));
+			} else if (decl instanceof WyscriptFile.TypeDecl) {
+				WyscriptFile.TypeDecl type = (WyscriptFile.TypeDecl) decl;
+				userTypes.put(type.name(), type.type);
+			}
+		}
+
+		// Third, compile the body of every function.
+		for (WyscriptFile.Decl decl : wf.declarations) {
+			if (decl instanceof WyscriptFile.FunDecl) {
+				WyscriptFile.FunDecl fd = (WyscriptFile.FunDecl) decl;
+				functions.get(fd.name()).setBody(compile(fd.statements));
+			}
+		}
+
+		// Fourth, initialise the constants in order of declaration.
+		int nConstants = 0;
+		for (WyscriptFile.Decl decl : wf.declarations) {
+			if (decl instanceof WyscriptFile.ConstDecl) {
+				WyscriptFile.ConstDecl cd = (WyscriptFile.ConstDecl) decl;
+				constants[nConstants++] = copy(compile(cd.constant).evaluate(new Object[0]));
+			}
+		}
+
+		// Finally, pick the main method (if one exits) and execute it
+		Function main = functions.get("main");
+		if (main != null) {
+			main.execute(main.newFrame());
+		} else {
+			System.out.println("Cannot find a main() function");
+		}
+	}
+
+	// ======================================================================
+	// Statements
+	// ======================================================================
+
+	private StmtNode[] compile(List<Stmt> block) {
+		StmtNode[] nodes = new StmtNode[block.size()];
+		for (int i = 0; i != nodes.length; ++i) {
+			nodes[i] = compile(block.get(i));
+		}
+		return nodes;
+	}
+
+	private StmtNode compile(Stmt stmt) {
+		if (stmt instanceof Stmt.Assign) {
+			return compile((Stmt.Assign) stmt);
+		} else if (stmt instanceof Stmt.OldFor) {
+			return compile((Stmt.OldFor) stmt);
+		} else if (stmt instanceof Stmt.For) {
+			return compile((Stmt.For) stmt);
+		} else if (stmt instanceof Stmt.While) {
+			return compile((Stmt.While) stmt);
+		} else if (stmt instanceof Stmt.IfElse) {
+			return compile((Stmt.IfElse) stmt);
+		} else if (stmt instanceof Stmt.Return) {
+			return compile((Stmt.Return) stmt);
+		} else if (stmt instanceof Stmt.VariableDeclaration) {
+			return compile((Stmt.VariableDeclaration) stmt);
+		} else if (stmt instanceof Stmt.Print) {
+			return new StmtNode.Print(compile(((Stmt.Print) stmt).getExpr()), values);
+		} else if (stmt instanceof Expr.Invoke) {
+			return new StmtNode.Invoke(compile((Expr.Invoke) stmt));
+		} else if (stmt instanceof Stmt.Switch) {
+			return compile((Stmt.Switch) stmt);
+		} else if (stmt instanceof Stmt.Next) {
+			return new StmtNode.Next();
+		} else {
+			internalFailure("unknown statement encountered (" + stmt + ")", file.filename, stmt);
+			return null;
+		}
+	}
+
+	private StmtNode compile(Stmt.Assign stmt) {
+		Expr.LVal lhs = stmt.getLhs();
+		ExprNode rhs = compile(stmt.getRhs());
+		if (lhs instanceof Expr.Variable) {
+			return new StmtNode.AssignLocal(((Expr.Variable) lhs).getSlot(), rhs);
+		} else if (lhs instanceof Expr.Tuple) {
+			List<Expr> exprs = ((Expr.Tuple) lhs).getExprs();
+			LValNode[] lvals = new LValNode[exprs.size()];
+			int[] keys = new int[exprs.size()];
+			for (int i = 0; i != lvals.length; ++i) {
+				int[] nKeys = new int[1];
+				lvals[i] = compileLVal(exprs.get(i), nKeys);
+				keys[i] = nKeys[0];
+			}
+			return new StmtNode.AssignTuple(lvals, keys, rhs);
+		} else {
+			int[] nKeys = new int[1];
+			LValNode lval = compileLVal(lhs, nKeys);
+			return new StmtNode.Assign(lval, nKeys[0], rhs);
+		}
+	}
+
+	/**
+	 * Compile a given lval, allocating a position in the array of keys for
+	 * every key along its path.
+	 *
+	 * @param lval
+	 * @param nKeys
+	 *            Single element array holding the number of keys allocated so
+	 *            far.
+	 * @return
+	 */
+	private LValNode compileLVal(Expr lval, int[] nKeys) {
+		if (lval instanceof Expr.Variable) {
+			return new LValNode.Local(((Expr.Variable) lval).getSlot());
+		} else if (lval instanceof Expr.IndexOf) {
+			Expr.IndexOf io = (Expr.IndexOf) lval;
+			LValNode source = compileLVal(io.getSource(), nKeys);
+			return new LValNode.IndexOf(source, compile(io.getIndex()), nKeys[0]++);
+		} else if (lval instanceof Expr.RecordAccess) {
+			Expr.RecordAccess ra = (Expr.RecordAccess) lval;
+			LValNode source = compileLVal(ra.getSource(), nKeys);
+			return new LValNode.RecordAccess(source, ra.getName());
+		} else if (lval instanceof Expr.Deref) {
+			Expr.Deref d = (Expr.Deref) lval;
+			return new LValNode.Deref(compile(d.getExpr()), nKeys[0]++);
+		} else {
+			internalFailure("unknown lval encountered (" + lval + ")", file.filename, lval);
+			return null;
+		}
+	}
+
+	private StmtNode compile(Stmt.OldFor stmt) {
+		return new StmtNode.OldFor(compile(stmt.getDeclaration()),
+				compile(stmt.getCondition()), compile(stmt.getIncrement()),
+				compile(stmt.getBody()));
+	}
+
+	private StmtNode compile(Stmt.For stmt) {
+		Expr source = stmt.getSource();
+		if (source instanceof Expr.Binary
+				&& ((Expr.Binary) source).getOp() == Expr.BOp.RANGE) {
+			Expr.Binary range = (Expr.Binary) source;
+			return new StmtNode.ForRange(stmt.getIndex().getSlot(),
+					compile(range.getLhs()), compile(range.getRhs()),
+					compile(stmt.getBody()));
+		}
+		return new StmtNode.For(stmt.getIndex().getSlot(),
+				compile(stmt.getSource()), compile(stmt.getBody()));
+	}
+
+	private StmtNode compile(Stmt.While stmt) {
+		return new StmtNode.While(compile(stmt.getCondition()),
+				compile(stmt.getBody()));
+	}
+
+	private StmtNode compile(Stmt.IfElse stmt) {
+		List<Stmt.ElseIf> alts = stmt.getAlts();
+		ExprNode[] altConditions = new ExprNode[alts.size()];
+		StmtNode[][] altBranches = new StmtNode[alts.size()][];
+		for (int i = 0; i != altConditions.length; ++i) {
+			altConditions[i] = compile(alts.get(i).getCondition());
+			altBranches[i] = compile(alts.get(i).getBody());
+		}
+		return new StmtNode.IfElse(compile(stmt.getCondition()),
+				compile(stmt.getTrueBranch()), altConditions, altBranches,
+				compile(stmt.getFalseBranch()));
+	}
+
+	private StmtNode compile(Stmt.Return stmt) {
+		Expr re = stmt.getExpr();
+		return new StmtNode.Return(re != null ? compile(re) : null);
+	}
+
+	private StmtNode compile(Stmt.VariableDeclaration stmt) {
+		Expr re = stmt.getExpr();
+		return new StmtNode.VariableDeclaration(stmt.getSlot(),
+				re != null ? compile(re) : null);
+	}
+
+	private StmtNode compile(Stmt.Switch stmt) {
+		List<Stmt.SwitchStmt> cases = stmt.cases();
+		ExprNode[] constants = new ExprNode[cases.size()];
+		StmtNode[][] bodies = new StmtNode[cases.size()][];
+		for (int i = 0; i != constants.length; ++i) {
+			Stmt.SwitchStmt s = cases.get(i);
+			if (s instanceof Stmt.Case) {
+				Stmt.Case c = (Stmt.Case) s;
+				constants[i] = compile(c.getConstant());
+				bodies[i] = compile(c.getStmts());
+			} else {
+				bodies[i] = compile(((Stmt.Default) s).getStmts());
+			}
+		}
+		return new StmtNode.Switch(compile(stmt.getExpr()), constants, bodies);
+	}
+
+	// ======================================================================
+	// Expressions
+	// ======================================================================
+
+	private ExprNode[] compile(Collection<Expr> exprs) {
+		ExprNode[] nodes = new ExprNode[exprs.size()];
+		int i = 0;
+		for (Expr e : exprs) {
+			nodes[i++] = compile(e);
+		}
+		return nodes;
+	}
+
+	private ExprNode compile(Expr expr) {
+		if (expr instanceof Expr.Binary) {
+			return compile((Expr.Binary) expr);
+		} else if (expr instanceof Expr.Is) {
+			Expr.Is e = (Expr.Is) expr;
+			return new ExprNode.Is(compile(e.getLhs()), e.getRhs(), values);
+		} else if (expr instanceof Expr.Cast) {
+			Expr.Cast e = (Expr.Cast) expr;
+			return new ExprNode.Cast(compile(e.getSource()), e.getType(),
+					values, e.getSource());
+		} else if (expr instanceof Expr.Constant) {
+			Object value = ((Expr.Constant) expr).getValue();
+			if (value instanceof StringBuffer) {
+				return new ExprNode.StringConstant((StringBuffer) value);
+			}
+			return new ExprNode.Constant(value);
+		} else if (expr instanceof Expr.Invoke) {
+			return compile((Expr.Invoke) expr);
+		} else if (expr instanceof Expr.IndexOf) {
+			Expr.IndexOf e = (Expr.IndexOf) expr;
+			return new ExprNode.IndexOf(compile(e.getSource()), compile(e.getIndex()),
+					e.attribute(Attribute.InBounds.class) != null);
+		} else if (expr instanceof Expr.ListConstructor) {
+			// The storage is chosen once, from the checked element type
+			Type type = typeOf(expr);
+			ListValue.Storage storage = type instanceof Type.List ? ListValue.Storage
+					.of(expand(((Type.List) type).getElement()))
+					: ListValue.Storage.GENERIC;
+			return new ExprNode.ListConstructor(storage,
+					compile(((Expr.ListConstructor) expr).getArguments()));
+		} else if (expr instanceof Expr.RecordAccess) {
+			Expr.RecordAccess e = (Expr.RecordAccess) expr;
+			return new ExprNode.RecordAccess(compile(e.getSource()), e.getName());
+		} else if (expr instanceof Expr.RecordConstructor) {
+			return compile((Expr.RecordConstructor) expr);
+		} else if (expr instanceof Expr.Unary) {
+			return compile((Expr.Unary) expr);
+		} else if (expr instanceof Expr.Variable) {
+			Expr.Variable e = (Expr.Variable) expr;
+			if (e.isGlobal()) {
+				return new ExprNode.Global(constants, e.getSlot());
+			}
+			return new ExprNode.Local(e.getSlot());
+		} else if (expr instanceof Expr.Deref) {
+			return new ExprNode.Deref(compile(((Expr.Deref) expr).getExpr()));
+		} else if (expr instanceof Expr.New) {
+			return new ExprNode.New(compile(((Expr.New) expr).getExpr()));
+		} else if (expr instanceof Expr.Tuple) {
+			return new ExprNode.Tuple(compile(((Expr.Tuple) expr).getExprs()));
+		} else {
+			internalFailure("unknown expression encountered (" + expr + ")", file.filename, expr);
+			return null;
+		}
+	}
+
+	private ExprNode compile(Expr.Binary expr) {
+		ExprNode lhs = compile(expr.getLhs());
+		ExprNode rhs = compile(expr.getRhs());
+
+		// Where both operands are known to be ints, or both reals, an
+		// operator is specialised to operate on unboxed values.
+		Type lt = typeOf(expr.getLhs());
+		Type rt = typeOf(expr.getRhs());
+		if (lt instanceof Type.Int && rt instanceof Type.Int) {
+			switch (expr.getOp()) {
+			case ADD:
+				return new ExprNode.IntAdd(lhs, rhs);
+			case SUB:
+				return new ExprNode.IntSub(lhs, rhs);
+			case MUL:
+				return new ExprNode.IntMul(lhs, rhs);
+			case DIV:
+				return new ExprNode.IntDiv(lhs, rhs);
+			case REM:
+				return new ExprNode.IntRem(lhs, rhs);
+			case EQ:
+				return new ExprNode.IntEq(lhs, rhs);
+			case NEQ:
+				return new ExprNode.IntNeq(lhs, rhs);
+			case LT:
+				return new ExprNode.IntLt(lhs, rhs);
+			case LTEQ:
+				return new ExprNode.IntLtEq(lhs, rhs);
+			case GT:
+				return new ExprNode.IntGt(lhs, rhs);
+			case GTEQ:
+				return new ExprNode.IntGtEq(lhs, rhs);
+			}
+		} else if (lt instanceof Type.Real && rt instanceof Type.Real) {
+			switch (expr.getOp()) {
+			case ADD:
+				return new ExprNode.RealAdd(lhs, rhs);
+			case SUB:
+				return new ExprNode.RealSub(lhs, rhs);
+			case MUL:
+				return new ExprNode.RealMul(lhs, rhs);
+			case DIV:
+				return new ExprNode.RealDiv(lhs, rhs);
+			case REM:
+				return new ExprNode.RealRem(lhs, rhs);
+			case LT:
+				return new ExprNode.RealLt(lhs, rhs);
+			case LTEQ:
+				return new ExprNode.RealLtEq(lhs, rhs);
+			case GT:
+				return new ExprNode.RealGt(lhs, rhs);
+			case GTEQ:
+				return new ExprNode.RealGtEq(lhs, rhs);
+			}
+		}
+
+		switch (expr.getOp()) {
+		case AND:
+			return new ExprNode.And(lhs, rhs);
+		case OR:
+			return new ExprNode.Or(lhs, rhs);
+		case ADD:
+			return new ExprNode.Add(lhs, rhs);
+		case SUB:
+			return new ExprNode.Sub(lhs, rhs);
+		case MUL:
+			return new ExprNode.Mul(lhs, rhs);
+		case DIV:
+			return new ExprNode.Div(lhs, rhs);
+		case REM:
+			return new ExprNode.Rem(lhs, rhs);
+		case EQ:
+			return new ExprNode.Eq(lhs, rhs);
+		case NEQ:
+			return new ExprNode.Neq(lhs, rhs);
+		case LT:
+			return new ExprNode.Lt(lhs, rhs);
+		case LTEQ:
+			return new ExprNode.LtEq(lhs, rhs);
+		case GT:
+			return new ExprNode.Gt(lhs, rhs);
+		case GTEQ:
+			return new ExprNode.GtEq(lhs, rhs);
+		case APPEND:
+			return new ExprNode.Append(lhs, rhs, values);
+		case RANGE:
+			return new ExprNode.Range(lhs, rhs);
+		}
+
+		internalFailure("unknown binary expression encountered (" + expr + ")",
+				file.filename, expr);
+		return null;
+	}
+
+	private ExprNode compile(Expr.Unary expr) {
+		ExprNode operand = compile(expr.getExpr());
+
+		switch (expr.getOp()) {
+		case NOT:
+			return new ExprNode.Not(operand);
+		case NEG: {
+			Type t = typeOf(expr.getExpr());
+			if (t instanceof Type.Int) {
+				return new ExprNode.IntNeg(operand);
+			} else if (t instanceof Type.Real) {
+				return new ExprNode.RealNeg(operand);
+			}
+			return new ExprNode.Neg(operand);
+		}
+		case LENGTHOF:
+			return new ExprNode.LengthOf(operand);
+		}
+
+		internalFailure("unknown unary expression encountered (" + expr + ")",
+				file.filename, expr);
+		return null;
+	}
+
+	/**
+	 * Get the type of a given expression, as determined by the type checker,
+	 * with any named types expanded.
+	 *
+	 * @param expr
+	 * @return The type, or <code>null</code> if it is unknown.
+	 */
+	private Type typeOf(Expr expr) {
+		Attribute.Type attr = expr.attribute(Attribute.Type.class);
+		return attr != null ? expand(attr.type) : null;
+	}
+
+	/**
+	 * Expand a named type into its definition.
+	 */
+	private Type expand(Type type) {
+		// NOTE: a named type is expanded a bounded number of times, since a
+		// (contractive) recursive type can never be an int or real.
+		for (int i = 0; type instanceof Type.Named && i != userTypes.size(); ++i) {
+			type = userTypes.get(((Type.Named) type).getName());
+		}
+		return type;
+	}
+
+	private ExprNode compile(Expr.Invoke expr) {
+		Function fun = functions.get(expr.getName());
+		if (fun == null) {
+			internalFailure("unknown function encountered (" + expr.getName() + ")",
+					file.filename, expr);
+		}
+		return new ExprNode.Invoke(fun, compile(expr.getArguments()));
+	}
+
+	private ExprNode compile(Expr.RecordConstructor expr) {
+		List<Pair<String, Expr>> es = expr.getFields();
+		String[] fields = new String[es.size()];
+		ExprNode[] arguments = new ExprNode[es.size()];
+		for (int i = 0; i != fields.length; ++i) {
+			fields[i] = es.get(i).first();
+			arguments[i] = compile(es.get(i).second());
+		}
+		return new ExprNode.RecordConstructor(fields, arguments);
+	}
+}
@@ -0,0 +1,942 @@
+// This file is part of the WyScript Compiler (wysc).
+//
+// The WyScript Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WyScript Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WyScript Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+//
+// Copyright 2013, David James Pearce.
+
+package wyscript.engine;
+
+import wyscript.lang.Type;
+import wyscript.util.*;
+import static wyscript.util.CopyOnWriteValue.copy;
+
+/**
+ * An executable node produced by the <code>CompiledInterpreter</code> for a
+ * given expression. Each kind of expression (and each operator) has its own
+ * node class, so no dispatch on the kind of expression is required when it is
+ * evaluated. The semantics of each node mirror those of the corresponding case
+ * in the reference <code>Interpreter</code>.
+ *
+ */
+public abstract class ExprNode {
+
+	/**
+	 * Evaluate this expression in a given stack frame.
+	 *
+	 * @param frame
+	 *            Stack frame holding the current value of each variable,
+	 *            indexed by slot.
+	 * @return
+	 */
+	public abstract Object evaluate(Object[] frame);
+
+	/**
+	 * Evaluate this expression, whose value is known to be an int. Nodes which
+	 * compute ints override this, so that chains of arithmetic can be
+	 * evaluated without boxing every intermediate value.
+	 *
+	 * @param frame
+	 * @return
+	 */
+	public int evaluateInt(Object[] frame) {
+		return (Integer) evaluate(frame);
+	}
+
+	/**
+	 * Evaluate this expression, whose value is known to be a real.
+	 *
+	 * @param frame
+	 * @return
+	 */
+	public double evaluateReal(Object[] frame) {
+		return (Double) evaluate(frame);
+	}
+
+	/**
+	 * Evaluate this expression, whose value is known to be a bool.
+	 *
+	 * @param frame
+	 * @return
+	 */
+	public boolean evaluateBool(Object[] frame) {
+		return (Boolean) evaluate(frame);
+	}
+
+	// ======================================================================
+	// Variables and constants
+	// ======================================================================
+
+	public static final class Constant extends ExprNode {
+		private final Object value;
+
+		public Constant(Object value) {
+			this.value = value;
+		}
+
+		public Object evaluate(Object[] frame) {
+			return value;
+		}
+	}
+
+	public static final class StringConstant extends ExprNode {
+		private final StringValue value;
+
+		public StringConstant(StringBuffer value) {
+			this.value = new StringValue(value);
+		}
+
+		public Object evaluate(Object[] frame) {
+			// Each evaluation gives a distinct string, although they all share
+			// the same characters until one is updated.
+			return value.duplicate();
+		}
+	}
+
+	public static final class Local extends ExprNode {
+		private final int slot;
+
+		public Local(int slot) {
+			this.slot = slot;
+		}
+
+		public Object evaluate(Object[] frame) {
+			return frame[slot];
+		}
+	}
+
+	public static final class Global extends ExprNode {
+		private final Object[] constants;
+		private final int slot;
+
+		public Global(Object[] constants, int slot) {
+			this.constants = constants;
+			this.slot = slot;
+		}
+
+		public Object evaluate(Object[] frame) {
+			return constants[slot];
+		}
+	}
+
+	// ======================================================================
+	// Binary operators
+	// ======================================================================
+
+	public abstract static class Binary extends ExprNode {
+		protected final ExprNode lhs;
+		protected final ExprNode rhs;
+
+		public Binary(ExprNode lhs, ExprNode rhs) {
+			this.lhs = lhs;
+			this.rhs = rhs;
+		}
+	}
+
+	public static final class And extends Binary {
+		public And(ExprNode lhs, ExprNode rhs) {
+			super(lhs, rhs);
+		}
+
+		public Object evaluate(Object[] frame) {
+			return evaluateBool(frame);
+		}
+
+		public boolean evaluateBool(Object[] frame) {
+			return lhs.evaluateBool(frame) && rhs.evaluateBool(frame);
+		}
+	}
+
+	public static final class Or extends Binary {
+		public Or(ExprNode lhs, ExprNode rhs) {
+			super(lhs, rhs);
+		}
+
+		public Object evaluate(Object[] frame) {
+			return evaluateBool(frame);
+		}
+
+		public boolean evaluateBool(Object[] frame) {
+			return lhs.evaluateBool(frame) || rhs.evaluateBool(frame);
+		}
+	}
+
+	public static final class Add extends Binary {
+		public Add(ExprNode lhs, ExprNode rhs) {
+			super(lhs, rhs);
+		}
+
+		public Object evaluate(Object[] frame) {
+			Object l = lhs.evaluate(frame);
+			Object r = rhs.evaluate(frame);
+			if (l instanceof Integer) {
+				return ((Integer) l) + ((Integer) r);
+			} else {
+				return ((Double) l) + ((Double) r);
+			}
+		}
+	}
+
+	public static final class Sub extends Binary {
+		public Sub(ExprNode lhs, ExprNode rhs) {
+			super(lhs, rhs);
+		}
+
+		public Object evaluate(Object[] frame) {
+			Object l = lhs.evaluate(frame);
+			Object r = rhs.evaluate(frame);
+			if (l instanceof Integer) {
+				return ((Integer) l) - ((Integer) r);
+			} else {
+				return ((Double) l) - ((Double) r);
+			}
+		}
+	}
+
+	public static final class Mul extends Binary {
+		public Mul(ExprNode lhs, ExprNode rhs) {
+			super(lhs, rhs);
+		}
+
+		public Object evaluate(Object[] frame) {
+			Object l = lhs.evaluate(frame);
+			Object r = rhs.evaluate(frame);
+			if (l instanceof Integer) {
+				return ((Integer) l) * ((Integer) r);
+			} else {
+				return ((Double) l) * ((Double) r);
+			}
+		}
+	}
+
+	public static final class Div extends Binary {
+		public Div(ExprNode lhs, ExprNode rhs) {
+			super(lhs, rhs);
+		}
+
+		public Object evaluate(Object[] frame) {
+			Object l = lhs.evaluate(frame);
+			Object r = rhs.evaluate(frame);
+			if (l instanceof Integer) {
+				return ((Integer) l) / ((Integer) r);
+			} else {
+				return ((Double) l) / ((Double) r);
+			}
+		}
+	}
+
+	public static final class Rem extends Binary {
+		public Rem(ExprNode lhs, ExprNode rhs) {
+			super(lhs, rhs);
+		}
+
+		public Object evaluate(Object[] frame) {
+			Object l = lhs.evaluate(frame);
+			Object r = rhs.evaluate(frame);
+			if (l instanceof Integer) {
+				return ((Integer) l) % ((Integer) r);
+			} else {
+				return ((Double) l) % ((Double) r);
+			}
+		}
+	}
+
+	public static final class Eq extends Binary {
+		public Eq(ExprNode lhs, ExprNode rhs) {
+			super(lhs, rhs);
+		}
+
+		public Object evaluate(Object[] frame) {
+			Object l = lhs.evaluate(frame);
+			Object r = rhs.evaluate(frame);
+			return l.equals(r);
+		}
+	}
+
+	public static final class Neq extends Binary {
+		public Neq(ExprNode lhs, ExprNode rhs) {
+			super(lhs, rhs);
+		}
+
+		public Object evaluate(Object[] frame) {
+			Object l = lhs.evaluate(frame);
+			Object r = rhs.evaluate(frame);
+			return !l.equals(r);
+		}
+	}
+
+	public static final class Lt extends Binary {
+		public Lt(ExprNode lhs, ExprNode rhs) {
+			super(lhs, rhs);
+		}
+
+		public Object evaluate(Object[] frame) {
+			Object l = lhs.evaluate(frame);
+			Object r = rhs.evaluate(frame);
+			if (l instanceof Integer) {
+				return ((Integer) l) < ((Integer) r);
+			} else {
+				return ((Double) l) < ((Double) r);
+			}
+		}
+	}
+
+	public static final class LtEq extends Binary {
+		public LtEq(ExprNode lhs, ExprNode rhs) {
+			super(lhs, rhs);
+		}
+
+		public Object evaluate(Object[] frame) {
+			Object l = lhs.evaluate(frame);
+			Object r = rhs.evaluate(frame);
+			if (l instanceof Integer) {
+				return ((Integer) l) <= ((Integer) r);
+			} else {
+				return ((Double) l) <= ((Double) r);
+			}
+		}
+	}
+
+	public static final class Gt extends Binary {
+		public Gt(ExprNode lhs, ExprNode rhs) {
+			super(lhs, rhs);
+		}
+
+		public Object evaluate(Object[] frame) {
+			Object l = lhs.evaluate(frame);
+			Object r = rhs.evaluate(frame);
+			if (l instanceof Integer) {
+				return ((Integer) l) > ((Integer) r);
+			} else {
+				return ((Double) l) > ((Double) r);
+			}
+		}
+	}
+
+	public static final class GtEq extends Binary {
+		public GtEq(ExprNode lhs, ExprNode rhs) {
+			super(lhs, rhs);
+		}
+
+		public Object evaluate(Object[] frame) {
+			Object l = lhs.evaluate(frame);
+			Object r = rhs.evaluate(frame);
+			if (l instanceof Integer) {
+				return ((Integer) l) >= ((Integer) r);
+			} else {
+				return ((Double) l) >= ((Double) r);
+			}
+		}
+	}
+
+	public static final class Append extends Binary {
+		private final Values values;
+
+		public Append(ExprNode lhs, ExprNode rhs, Values values) {
+			super(lhs, rhs);
+			this.values = values;
+		}
+
+		public Object evaluate(Object[] frame) {
+			Object l = lhs.evaluate(frame);
+			Object r = rhs.evaluate(frame);
+			if (l instanceof StringValue && r instanceof StringValue) {
+				return ((StringValue) l).append((StringValue) r);
+			} else if (l instanceof StringValue) {
+				return ((StringValue) l).append(values.toString(r));
+			} else if (r instanceof StringValue) {
+				return new StringValue(values.toString(l)).append((StringValue) r);
+			} else {
+				return ((ListValue) l).append((ListValue) r);
+			}
+		}
+	}
+
+	public static final class Range extends Binary {
+		public Range(ExprNode lhs, ExprNode rhs) {
+			super(lhs, rhs);
+		}
+
+		public Object evaluate(Object[] frame) {
+			int start = lhs.evaluateInt(frame);
+			int end = rhs.evaluateInt(frame);
+			ListValue result = new ListValue(ListValue.Storage.INT,
+					Math.max(end - start, 0));
+			while (start < end) {
+				result.addInt(start);
+				start = start + 1;
+			}
+			return result;
+		}
+	}
+
+	// ======================================================================
+	// Type-specialised operators
+	// ======================================================================
+	//
+	// These are used in place of the operators above when the type checker
+	// has determined that both operands are ints, or both are reals. They
+	// operate on unboxed values, and box their result only when it is
+	// required by a node which is not itself specialised.
+
+	public abstract static class IntBinary extends Binary {
+		public IntBinary(ExprNode lhs, ExprNode rhs) {
+			super(lhs, rhs);
+		}
+
+		public Object evaluate(Object[] frame) {
+			return evaluateInt(frame);
+		}
+	}
+
+	public static final class IntAdd extends IntBinary {
+		public IntAdd(ExprNode lhs, ExprNode rhs) {
+			super(lhs, rhs);
+		}
+
+		public int evaluateInt(Object[] frame) {
+			return lhs.evaluateInt(frame) + rhs.evaluateInt(frame);
+		}
+	}
+
+	public static final class IntSub extends IntBinary {
+		public IntSub(ExprNode lhs, ExprNode rhs) {
+			super(lhs, rhs);
+		}
+
+		public int evaluateInt(Object[] frame) {
+			return lhs.evaluateInt(frame) - rhs.evaluateInt(frame);
+		}
+	}
+
+	public static final class IntMul extends IntBinary {
+		public IntMul(ExprNode lhs, ExprNode rhs) {
+			super(lhs, rhs);
+		}
+
+		public int evaluateInt(Object[] frame) {
+			return lhs.evaluateInt(frame) * rhs.evaluateInt(frame);
+		}
+	}
+
+	public static final class IntDiv extends IntBinary {
+		public IntDiv(ExprNode lhs, ExprNode rhs) {
+			super(lhs, rhs);
+		}
+
+		public int evaluateInt(Object[] frame) {
+			return lhs.evaluateInt(frame) / rhs.evaluateInt(frame);
+		}
+	}
+
+	public static final class IntRem extends IntBinary {
+		public IntRem(ExprNode lhs, ExprNode rhs) {
+			super(lhs, rhs);
+		}
+
+		public int evaluateInt(Object[] frame) {
+			return lhs.evaluateInt(frame) % rhs.evaluateInt(frame);
+		}
+	}
+
+	public static final class IntNeg extends ExprNode {
+		private final ExprNode operand;
+
+		public IntNeg(ExprNode operand) {
+			this.operand = operand;
+		}
+
+		public Object evaluate(Object[] frame) {
+			return evaluateInt(frame);
+		}
+
+		public int evaluateInt(Object[] frame) {
+			return -operand.evaluateInt(frame);
+		}
+	}
+
+	public abstract static class RealBinary extends Binary {
+		public RealBinary(ExprNode lhs, ExprNode rhs) {
+			super(lhs, rhs);
+		}
+
+		public Object evaluate(Object[] frame) {
+			return evaluateReal(frame);
+		}
+	}
+
+	public static final class RealAdd extends RealBinary {
+		public RealAdd(ExprNode lhs, ExprNode rhs) {
+			super(lhs, rhs);
+		}
+
+		public double evaluateReal(Object[] frame) {
+			return lhs.evaluateReal(frame) + rhs.evaluateReal(frame);
+		}
+	}
+
+	public static final class RealSub extends RealBinary {
+		public RealSub(ExprNode lhs, ExprNode rhs) {
+			super(lhs, rhs);
+		}
+
+		public double evaluateReal(Object[] frame) {
+			return lhs.evaluateReal(frame) - rhs.evaluateReal(frame);
+		}
+	}
+
+	public static final class RealMul extends RealBinary {
+		public RealMul(ExprNode lhs, ExprNode rhs) {
+			super(lhs, rhs);
+		}
+
+		public double evaluateReal(Object[] frame) {
+			return lhs.evaluateReal(frame) * rhs.evaluateReal(frame);
+		}
+	}
+
+	public static final class RealDiv extends RealBinary {
+		public RealDiv(ExprNode lhs, ExprNode rhs) {
+			super(lhs, rhs);
+		}
+
+		public double evaluateReal(Object[] frame) {
+			return lhs.evaluateReal(frame) / rhs.evaluateReal(frame);
+		}
+	}
+
+	public static final class RealRem extends RealBinary {
+		public RealRem(ExprNode lhs, ExprNode rhs) {
+			super(lhs, rhs);
+		}
+
+		public double evaluateReal(Object[] frame) {
+			return lhs.evaluateReal(frame) % rhs.evaluateReal(frame);
+		}
+	}
+
+	public static final class RealNeg extends ExprNode {
+		private final ExprNode operand;
+
+		public RealNeg(ExprNode operand) {
+			this.operand = operand;
+		}
+
+		public Object evaluate(Object[] frame) {
+			return evaluateReal(frame);
+		}
+
+		public double evaluateReal(Object[] frame) {
+			return -operand.evaluateReal(frame);
+		}
+	}
+
+	/**
+	 * A comparison between two ints, or two reals. NOTE: equality between
+	 * reals is not specialised, since <code>Double.equals()</code> differs
+	 * from <code>==</code> on NaN and negative zero.
+	 */
+	public abstract static class Comparison extends Binary {
+		public Comparison(ExprNode lhs, ExprNode rhs) {
+			super(lhs, rhs);
+		}
+
+		public Object evaluate(Object[] frame) {
+			return evaluateBool(frame);
+		}
+	}
+
+	public static final class IntEq extends Comparison {
+		public IntEq(ExprNode lhs, ExprNode rhs) {
+			super(lhs, rhs);
+		}
+
+		public boolean evaluateBool(Object[] frame) {
+			return lhs.evaluateInt(frame) == rhs.evaluateInt(frame);
+		}
+	}
+
+	public static final class IntNeq extends Comparison {
+		public IntNeq(ExprNode lhs, ExprNode rhs) {
+			super(lhs, rhs);
+		}
+
+		public boolean evaluateBool(Object[] frame) {
+			return lhs.evaluateInt(frame) != rhs.evaluateInt(frame);
+		}
+	}
+
+	public static final class IntLt extends Comparison {
+		public IntLt(ExprNode lhs, ExprNode rhs) {
+			super(lhs, rhs);
+		}
+
+		public boolean evaluateBool(Object[] frame) {
+			return lhs.evaluateInt(frame) < rhs.evaluateInt(frame);
+		}
+	}
+
+	public static final class IntLtEq extends Comparison {
+		public IntLtEq(ExprNode lhs, ExprNode rhs) {
+			super(lhs, rhs);
+		}
+
+		public boolean evaluateBool(Object[] frame) {
+			return lhs.evaluateInt(frame) <= rhs.evaluateInt(frame);
+		}
+	}
+
+	public static final class IntGt extends Comparison {
+		public IntGt(ExprNode lhs, ExprNode rhs) {
+			super(lhs, rhs);
+		}
+
+		public boolean evaluateBool(Object[] frame) {
+			return lhs.evaluateInt(frame) > rhs.evaluateInt(frame);
+		}
+	}
+
+	public static final class IntGtEq extends Comparison {
+		public IntGtEq(ExprNode lhs, ExprNode rhs) {
+			super(lhs, rhs);
+		}
+
+		public boolean evaluateBool(Object[] frame) {
+			return lhs.evaluateInt(frame) >= rhs.evaluateInt(frame);
+		}
+	}
+
+	public static final class RealLt extends Comparison {
+		public RealLt(ExprNode lhs, ExprNode rhs) {
+			super(lhs, rhs);
+		}
+
+		public boolean evaluateBool(Object[] frame) {
+			return lhs.evaluateReal(frame) < rhs.evaluateReal(frame);
+		}
+	}
+
+	public static final class RealLtEq extends Comparison {
+		public RealLtEq(ExprNode lhs, ExprNode rhs) {
+			super(lhs, rhs);
+		}
+
+		public boolean evaluateBool(Object[] frame) {
+			return lhs.evaluateReal(frame) <= rhs.evaluateReal(frame);
+		}
+	}
+
+	public static final class RealGt extends Comparison {
+		public RealGt(ExprNode lhs, ExprNode rhs) {
+			super(lhs, rhs);
+		}
+
+		public boolean evaluateBool(Object[] frame) {
+			return lhs.evaluateReal(frame) > rhs.evaluateReal(frame);
+		}
+	}
+
+	public static final class RealGtEq extends Comparison {
+		public RealGtEq(ExprNode lhs, ExprNode rhs) {
+			super(lhs, rhs);
+		}
+
+		public boolean evaluateBool(Object[] frame) {
+			return lhs.evaluateReal(frame) >= rhs.evaluateReal(frame);
+		}
+	}
+
+	// ======================================================================
+	// Unary operators
+	// ======================================================================
+
+	public static final class Not extends ExprNode {
+		private final ExprNode operand;
+
+		public Not(ExprNode operand) {
+			this.operand = operand;
+		}
+
+		public Object evaluate(Object[] frame) {
+			return evaluateBool(frame);
+		}
+
+		public boolean evaluateBool(Object[] frame) {
+			return !operand.evaluateBool(frame);
+		}
+	}
+
+	public static final class Neg extends ExprNode {
+		private final ExprNode operand;
+
+		public Neg(ExprNode operand) {
+			this.operand = operand;
+		}
+
+		public Object evaluate(Object[] frame) {
+			Object value = operand.evaluate(frame);
+			if (value instanceof Double) {
+				return -((Double) value);
+			} else {
+				return -((Integer) value);
+			}
+		}
+	}
+
+	public static final class LengthOf extends ExprNode {
+		private final ExprNode operand;
+
+		public LengthOf(ExprNode operand) {
+			this.operand = operand;
+		}
+
+		public Object evaluate(Object[] frame) {
+			Object value = operand.evaluate(frame);
+			if (value instanceof StringValue) {
+				return ((StringValue) value).length();
+			} else {
+				return ((ListValue) value).size();
+			}
+		}
+	}
+
+	// ======================================================================
+	// Types
+	// ======================================================================
+
+	public static final class Is extends ExprNode {
+		private final ExprNode operand;
+		private final Type type;
+		private final Values values;
+
+		public Is(ExprNode operand, Type type, Values values) {
+			this.operand = operand;
+			this.type = type;
+			this.values = values;
+		}
+
+		public Object evaluate(Object[] frame) {
+			return values.instanceOf(operand.evaluate(frame), type);
+		}
+	}
+
+	public static final class Cast extends ExprNode {
+		private final ExprNode operand;
+		private final Type type;
+		private final Values values;
+		private final SyntacticElement element;
+
+		public Cast(ExprNode operand, Type type, Values values,
+				SyntacticElement element) {
+			this.operand = operand;
+			this.type = type;
+			this.values = values;
+			this.element = element;
+		}
+
+		public Object evaluate(Object[] frame) {
+			return values.doCast(type, operand.evaluate(frame), element);
+		}
+	}
+
+	// ======================================================================
+	// Invocations
+	// ======================================================================
+
+	public static final class Invoke extends ExprNode {
+		private final Function function;
+		private final ExprNode[] arguments;
+
+		public Invoke(Function function, ExprNode[] arguments) {
+			this.function = function;
+			this.arguments = arguments;
+		}
+
+		public Object evaluate(Object[] frame) {
+			// The arguments are placed directly into the callee's stack frame,
+			// where its parameters hold their own copies of them.
+			Object[] callee = function.newFrame();
+			for (int i = 0; i != arguments.length; ++i) {
+				callee[i] = copy(arguments[i].evaluate(frame));
+			}
+			return function.execute(callee);
+		}
+	}
+
+	// ======================================================================
+	// Compound values
+	// ======================================================================
+
+	public static final class IndexOf extends ExprNode {
+		private final ExprNode source;
+		private final ExprNode index;
+
+		/**
+		 * Whether the index is known to be within bounds, and so need not be
+		 * checked.
+		 */
+		private final boolean inBounds;
+
+		public IndexOf(ExprNode source, ExprNode index, boolean inBounds) {
+			this.source = source;
+			this.index = index;
+			this.inBounds = inBounds;
+		}
+
+		public Object evaluate(Object[] frame) {
+			Object src = source.evaluate(frame);
+			int idx = index.evaluateInt(frame);
+			if (src instanceof StringValue) {
+				return ((StringValue) src).charAt(idx);
+			} else if (inBounds) {
+				return ((ListValue) src).getUnchecked(idx);
+			} else {
+				return ((ListValue) src).get(idx);
+			}
+		}
+
+		// NOTE: a list element known to be an int, real or bool is read
+		// without boxing it, if the list is stored unboxed.
+
+		public int evaluateInt(Object[] frame) {
+			ListValue src = (ListValue) source.evaluate(frame);
+			int idx = index.evaluateInt(frame);
+			return inBounds ? src.getIntUnchecked(idx) : src.getInt(idx);
+		}
+
+		public double evaluateReal(Object[] frame) {
+			ListValue src = (ListValue) source.evaluate(frame);
+			int idx = index.evaluateInt(frame);
+			return inBounds ? src.getRealUnchecked(idx) : src.getReal(idx);
+		}
+
+		public boolean evaluateBool(Object[] frame) {
+			ListValue src = (ListValue) source.evaluate(frame);
+			int idx = index.evaluateInt(frame);
+			return inBounds ? src.getBoolUnchecked(idx) : src.getBool(idx);
+		}
+	}
+
+	public static final class ListConstructor extends ExprNode {
+		private final ListValue.Storage storage;
+		private final ExprNode[] arguments;
+
+		public ListConstructor(ListValue.Storage storage, ExprNode[] arguments) {
+			this.storage = storage;
+			this.arguments = arguments;
+		}
+
+		public Object evaluate(Object[] frame) {
+			ListValue ls = new ListValue(storage, arguments.length);
+			for (int i = 0; i != arguments.length; ++i) {
+				ls.add(arguments[i].evaluate(frame));
+			}
+			return ls;
+		}
+	}
+
+	public static final class RecordAccess extends ExprNode {
+		private final ExprNode source;
+		private final String field;
+
+		// The offset of the field in the shape of the last record seen
+		private Shape shape;
+		private int offset;
+
+		public RecordAccess(ExprNode source, String field) {
+			this.source = source;
+			this.field = field;
+		}
+
+		public Object evaluate(Object[] frame) {
+			RecordValue r = (RecordValue) source.evaluate(frame);
+			if (r.shape() != shape) {
+				shape = r.shape();
+				offset = shape.offsetOf(field);
+			}
+			return r.get(offset);
+		}
+	}
+
+	public static final class RecordConstructor extends ExprNode {
+		private final Shape shape;
+		private final int[] offsets;
+		private final ExprNode[] arguments;
+
+		public RecordConstructor(String[] fields, ExprNode[] arguments) {
+			this.shape = Shape.of(fields);
+			this.offsets = new int[fields.length];
+			for (int i = 0; i != fields.length; ++i) {
+				offsets[i] = shape.offsetOf(fields[i]);
+			}
+			this.arguments = arguments;
+		}
+
+		public Object evaluate(Object[] frame) {
+			RecordValue rs = new RecordValue(shape);
+			for (int i = 0; i != offsets.length; ++i) {
+				rs.set(offsets[i], arguments[i].evaluate(frame));
+			}
+			return rs;
+		}
+	}
+
+	public static final class Tuple extends ExprNode {
+		private final ExprNode[] arguments;
+
+		public Tuple(ExprNode[] arguments) {
+			this.arguments = arguments;
+		}
+
+		public Object evaluate(Object[] frame) {
+			if (arguments.length == 2) {
+				Object first = arguments[0].evaluate(frame);
+				return wyscript.util.Tuple.create(first, arguments[1].evaluate(frame));
+			}
+			Object[] values = new Object[arguments.length];
+			for (int i = 0; i != arguments.length; ++i) {
+				values[i] = arguments[i].evaluate(frame);
+			}
+			return wyscript.util.Tuple.create(values);
+		}
+	}
+
+	// ======================================================================
+	// References
+	// ======================================================================
+
+	public static final class Deref extends ExprNode {
+		private final ExprNode operand;
+
+		public Deref(ExprNode operand) {
+			this.operand = operand;
+		}
+
+		public Object evaluate(Object[] frame) {
+			return ((Ref) operand.evaluate(frame)).getValue();
+		}
+	}
+
+	public static final class New extends ExprNode {
+		private final ExprNode operand;
+
+		public New(ExprNode operand) {
+			this.operand = operand;
+		}
+
+		public Object evaluate(Object[] frame) {
+			return new Ref(operand.evaluate(frame));
+		}
+	}
+}
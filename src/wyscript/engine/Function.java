@@ -0,0 +1,81 @@
+// This file is part of the WyScript Compiler (wysc).
+//
+// The WyScript Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WyScript Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WyScript Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+//
+// Copyright 2013, David James Pearce.
+
+package wyscript.engine;
+
+import wyscript.lang.WyscriptFile;
+import static wyscript.util.CopyOnWriteValue.release;
+
+/**
+ * A function which has been compiled into executable nodes. Functions are
+ * created before any bodies are compiled, so that invocations can be linked
+ * directly to the function they call (including recursive calls).
+ *
+ */
+public final class Function {
+	private final String name;
+	private final boolean isNative;
+	private final int frameSize;
+	private StmtNode[] body;
+
+	public Function(WyscriptFile.FunDecl decl) {
+		this.name = decl.name();
+		this.isNative = decl.Native;
+		this.frameSize = decl.getFrameSize();
+	}
+
+	public String name() {
+		return name;
+	}
+
+	public void setBody(StmtNode[] body) {
+		this.body = body;
+	}
+
+	/**
+	 * Construct an empty stack frame for this function. The arguments for an
+	 * invocation are placed in the first slots of this frame, and its last
+	 * slot receives the value returned.
+	 *
+	 * @return
+	 */
+	public Object[] newFrame() {
+		return new Object[frameSize + 1];
+	}
+
+	/**
+	 * Execute this function in a given stack frame, which already holds the
+	 * arguments.
+	 *
+	 * @param frame
+	 * @return
+	 */
+	public Object execute(Object[] frame) {
+		if (isNative) {
+			throw new RuntimeException("Can't execute native function " + name
+					+ " - must be run as JavaScript (-js)");
+		}
+		StmtNode.execute(body, frame);
+		// Once finished, the variables in this frame no longer hold their
+		// values.
+		for (int i = 0; i != frameSize; ++i) {
+			release(frame[i]);
+		}
+		return frame[frameSize];
+	}
+}
@@ -0,0 +1,189 @@
+// This file is part of the WyScript Compiler (wysc).
+//
+// The WyScript Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WyScript Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WyScript Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+//
+// Copyright 2013, David James Pearce.
+
+package wyscript.engine;
+
+import wyscript.util.*;
+import static wyscript.util.CopyOnWriteValue.copy;
+import static wyscript.util.CopyOnWriteValue.release;
+
+/**
+ * <p>
+ * An executable node for the left-hand side of an assignment. Assignments are
+ * performed in two steps, as in the reference interpreter: first, the index
+ * expressions (and dereferenced expressions) along the lval are evaluated into
+ * an array of keys; then, once the right-hand side has been evaluated, the
+ * lval is unshared and updated.
+ * </p>
+ * <p>
+ * The number of keys an lval requires, and the position of each within the
+ * array of keys, are fixed when it is compiled.
+ * </p>
+ */
+public abstract class LValNode {
+
+	/**
+	 * Evaluate the keys along this lval, in the order they would be evaluated
+	 * when reading it.
+	 *
+	 * @param frame
+	 * @param keys
+	 */
+	public abstract void evaluateKeys(Object[] frame, Object[] keys);
+
+	/**
+	 * Get the value of this lval so that it can be updated in place, unsharing
+	 * any compound values along its path.
+	 *
+	 * @param frame
+	 * @param keys
+	 * @return
+	 */
+	public abstract Object evaluateForUpdate(Object[] frame, Object[] keys);
+
+	/**
+	 * Assign a given value to this lval.
+	 *
+	 * @param frame
+	 * @param keys
+	 * @param value
+	 */
+	public abstract void assign(Object[] frame, Object[] keys, Object value);
+
+	public static final class Local extends LValNode {
+		private final int slot;
+
+		public Local(int slot) {
+			this.slot = slot;
+		}
+
+		public void evaluateKeys(Object[] frame, Object[] keys) {
+		}
+
+		public Object evaluateForUpdate(Object[] frame, Object[] keys) {
+			Object value = frame[slot];
+			if (value instanceof CopyOnWriteValue) {
+				value = ((CopyOnWriteValue) value).unshare();
+				frame[slot] = value;
+			}
+			return value;
+		}
+
+		public void assign(Object[] frame, Object[] keys, Object value) {
+			Object old = frame[slot];
+			frame[slot] = copy(value);
+			release(old);
+		}
+	}
+
+	public static final class IndexOf extends LValNode {
+		private final LValNode source;
+		private final ExprNode index;
+		private final int key;
+
+		public IndexOf(LValNode source, ExprNode index, int key) {
+			this.source = source;
+			this.index = index;
+			this.key = key;
+		}
+
+		public void evaluateKeys(Object[] frame, Object[] keys) {
+			source.evaluateKeys(frame, keys);
+			keys[key] = index.evaluate(frame);
+		}
+
+		public Object evaluateForUpdate(Object[] frame, Object[] keys) {
+			ListValue src = (ListValue) source.evaluateForUpdate(frame, keys);
+			return src.getForUpdate((Integer) keys[key]);
+		}
+
+		public void assign(Object[] frame, Object[] keys, Object value) {
+			// The value must be copied before the source is unshared, otherwise
+			// an assignment such as "xs[0] = xs" would create a cyclic value.
+			value = copy(value);
+			Object src = source.evaluateForUpdate(frame, keys);
+			int idx = (Integer) keys[key];
+			if (src instanceof ListValue) {
+				((ListValue) src).set(idx, value);
+				release(value);
+			} else {
+				((StringValue) src).set(idx, (Character) value);
+			}
+		}
+	}
+
+	public static final class RecordAccess extends LValNode {
+		private final LValNode source;
+		private final String field;
+
+		// The offset of the field in the shape of the last record seen
+		private Shape shape;
+		private int offset;
+
+		public RecordAccess(LValNode source, String field) {
+			this.source = source;
+			this.field = field;
+		}
+
+		public void evaluateKeys(Object[] frame, Object[] keys) {
+			source.evaluateKeys(frame, keys);
+		}
+
+		public Object evaluateForUpdate(Object[] frame, Object[] keys) {
+			RecordValue src = (RecordValue) source.evaluateForUpdate(frame, keys);
+			return src.getForUpdate(offsetIn(src));
+		}
+
+		public void assign(Object[] frame, Object[] keys, Object value) {
+			value = copy(value);
+			RecordValue src = (RecordValue) source.evaluateForUpdate(frame, keys);
+			src.set(offsetIn(src), value);
+			release(value);
+		}
+
+		private int offsetIn(RecordValue r) {
+			if (r.shape() != shape) {
+				shape = r.shape();
+				offset = shape.offsetOf(field);
+			}
+			return offset;
+		}
+	}
+
+	public static final class Deref extends LValNode {
+		private final ExprNode operand;
+		private final int key;
+
+		public Deref(ExprNode operand, int key) {
+			this.operand = operand;
+			this.key = key;
+		}
+
+		public void evaluateKeys(Object[] frame, Object[] keys) {
+			keys[key] = operand.evaluate(frame);
+		}
+
+		public Object evaluateForUpdate(Object[] frame, Object[] keys) {
+			return ((Ref) keys[key]).getValueForUpdate();
+		}
+
+		public void assign(Object[] frame, Object[] keys, Object value) {
+			((Ref) keys[key]).setValue(value);
+		}
+	}
+}
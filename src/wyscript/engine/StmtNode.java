@@ -0,0 +1,419 @@
+// This file is part of the WyScript Compiler (wysc).
+//
+// The WyScript Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WyScript Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WyScript Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+//
+// Copyright 2013, David James Pearce.
+
+package wyscript.engine;
+
+import java.util.Collections;
+
+import wyscript.util.*;
+import static wyscript.util.CopyOnWriteValue.copy;
+import static wyscript.util.CopyOnWriteValue.release;
+
+/**
+ * An executable node produced by the <code>CompiledInterpreter</code> for a
+ * given statement. As in the reference <code>Interpreter</code>, executing a
+ * statement returns how it completed: <code>NORMAL</code>, <code>RETURN</code>
+ * (in which case the value being returned is left in the last slot of the
+ * stack frame), or <code>NEXT</code> when a switch case falls through.
+ *
+ */
+public abstract class StmtNode {
+
+	public static final int NORMAL = 0;
+	public static final int RETURN = 1;
+
+	/**
+	 * Returned from a statement to indicate that control should pass to the
+	 * next case of the enclosing switch.
+	 */
+	public static final int NEXT = 2;
+
+	private static final Object[] NO_KEYS = new Object[0];
+
+	/**
+	 * Execute this statement in a given stack frame.
+	 *
+	 * @param frame
+	 *            Stack frame holding the current value of each variable,
+	 *            indexed by slot.
+	 * @return How execution of this statement completed.
+	 */
+	public abstract int execute(Object[] frame);
+
+	/**
+	 * Execute a block of statements in a given stack frame, stopping at the
+	 * first which does not complete normally.
+	 *
+	 * @param block
+	 * @param frame
+	 * @return
+	 */
+	public static int execute(StmtNode[] block, Object[] frame) {
+		for (int i = 0; i != block.length; ++i) {
+			int r = block[i].execute(frame);
+			if (r != NORMAL) {
+				return r;
+			}
+		}
+		return NORMAL;
+	}
+
+	// ======================================================================
+	// Assignments
+	// ======================================================================
+
+	/**
+	 * An assignment to a local variable, which needs no keys.
+	 */
+	public static final class AssignLocal extends StmtNode {
+		private final int slot;
+		private final ExprNode rhs;
+
+		public AssignLocal(int slot, ExprNode rhs) {
+			this.slot = slot;
+			this.rhs = rhs;
+		}
+
+		public int execute(Object[] frame) {
+			Object value = rhs.evaluate(frame);
+			Object old = frame[slot];
+			frame[slot] = copy(value);
+			release(old);
+			return NORMAL;
+		}
+	}
+
+	public static final class Assign extends StmtNode {
+		private final LValNode lhs;
+		private final int keys;
+		private final ExprNode rhs;
+
+		public Assign(LValNode lhs, int keys, ExprNode rhs) {
+			this.lhs = lhs;
+			this.keys = keys;
+			this.rhs = rhs;
+		}
+
+		public int execute(Object[] frame) {
+			Object[] ks = keys == 0 ? NO_KEYS : new Object[keys];
+			lhs.evaluateKeys(frame, ks);
+			Object value = rhs.evaluate(frame);
+			lhs.assign(frame, ks, value);
+			return NORMAL;
+		}
+	}
+
+	/**
+	 * An assignment to a tuple of lvals, which is split into an assignment to
+	 * each lval in turn.
+	 */
+	public static final class AssignTuple extends StmtNode {
+		private final LValNode[] lhs;
+		private final int[] keys;
+		private final ExprNode rhs;
+
+		public AssignTuple(LValNode[] lhs, int[] keys, ExprNode rhs) {
+			this.lhs = lhs;
+			this.keys = keys;
+			this.rhs = rhs;
+		}
+
+		public int execute(Object[] frame) {
+			Tuple values = (Tuple) rhs.evaluate(frame);
+			for (int i = 0; i != lhs.length; ++i) {
+				Object[] ks = keys[i] == 0 ? NO_KEYS : new Object[keys[i]];
+				lhs[i].evaluateKeys(frame, ks);
+				lhs[i].assign(frame, ks, values.get(i));
+			}
+			return NORMAL;
+		}
+	}
+
+	public static final class VariableDeclaration extends StmtNode {
+		private final int slot;
+		private final ExprNode initialiser;
+
+		public VariableDeclaration(int slot, ExprNode initialiser) {
+			this.slot = slot;
+			this.initialiser = initialiser;
+		}
+
+		public int execute(Object[] frame) {
+			Object value;
+			if (initialiser != null) {
+				value = initialiser.evaluate(frame);
+			} else {
+				value = Collections.EMPTY_SET; // used to indicate a variable
+												// has been declared
+			}
+			Object old = frame[slot];
+			frame[slot] = copy(value);
+			release(old);
+			return NORMAL;
+		}
+	}
+
+	// ======================================================================
+	// Simple statements
+	// ======================================================================
+
+	public static final class Print extends StmtNode {
+		private final ExprNode expr;
+		private final Values values;
+
+		public Print(ExprNode expr, Values values) {
+			this.expr = expr;
+			this.values = values;
+		}
+
+		public int execute(Object[] frame) {
+			System.out.println(values.toString(expr.evaluate(frame)));
+			return NORMAL;
+		}
+	}
+
+	public static final class Return extends StmtNode {
+		private final ExprNode expr;
+
+		public Return(ExprNode expr) {
+			this.expr = expr;
+		}
+
+		public int execute(Object[] frame) {
+			if (expr != null) {
+				frame[frame.length - 1] = expr.evaluate(frame);
+			}
+			return RETURN;
+		}
+	}
+
+	/**
+	 * An invocation used as a statement, whose result is discarded.
+	 */
+	public static final class Invoke extends StmtNode {
+		private final ExprNode invoke;
+
+		public Invoke(ExprNode invoke) {
+			this.invoke = invoke;
+		}
+
+		public int execute(Object[] frame) {
+			invoke.evaluate(frame);
+			return NORMAL;
+		}
+	}
+
+	public static final class Next extends StmtNode {
+		public int execute(Object[] frame) {
+			return NEXT;
+		}
+	}
+
+	// ======================================================================
+	// Control flow
+	// ======================================================================
+
+	public static final class IfElse extends StmtNode {
+		private final ExprNode condition;
+		private final StmtNode[] trueBranch;
+		private final ExprNode[] altConditions;
+		private final StmtNode[][] altBranches;
+		private final StmtNode[] falseBranch;
+
+		public IfElse(ExprNode condition, StmtNode[] trueBranch,
+				ExprNode[] altConditions, StmtNode[][] altBranches,
+				StmtNode[] falseBranch) {
+			this.condition = condition;
+			this.trueBranch = trueBranch;
+			this.altConditions = altConditions;
+			this.altBranches = altBranches;
+			this.falseBranch = falseBranch;
+		}
+
+		public int execute(Object[] frame) {
+			if (condition.evaluateBool(frame)) {
+				return execute(trueBranch, frame);
+			}
+			for (int i = 0; i != altConditions.length; ++i) {
+				if (altConditions[i].evaluateBool(frame)) {
+					return execute(altBranches[i], frame);
+				}
+			}
+			return execute(falseBranch, frame);
+		}
+	}
+
+	public static final class While extends StmtNode {
+		private final ExprNode condition;
+		private final StmtNode[] body;
+
+		public While(ExprNode condition, StmtNode[] body) {
+			this.condition = condition;
+			this.body = body;
+		}
+
+		public int execute(Object[] frame) {
+			while (condition.evaluateBool(frame)) {
+				int r = execute(body, frame);
+				if (r != NORMAL) {
+					return r;
+				}
+			}
+			return NORMAL;
+		}
+	}
+
+	public static final class OldFor extends StmtNode {
+		private final StmtNode declaration;
+		private final ExprNode condition;
+		private final StmtNode increment;
+		private final StmtNode[] body;
+
+		public OldFor(StmtNode declaration, ExprNode condition,
+				StmtNode increment, StmtNode[] body) {
+			this.declaration = declaration;
+			this.condition = condition;
+			this.increment = increment;
+			this.body = body;
+		}
+
+		public int execute(Object[] frame) {
+			declaration.execute(frame);
+			while (condition.evaluateBool(frame)) {
+				int r = execute(body, frame);
+				if (r != NORMAL) {
+					return r;
+				}
+				increment.execute(frame);
+			}
+			return NORMAL;
+		}
+	}
+
+	public static final class For extends StmtNode {
+		private final int slot;
+		private final ExprNode source;
+		private final StmtNode[] body;
+
+		public For(int slot, ExprNode source, StmtNode[] body) {
+			this.slot = slot;
+			this.source = source;
+			this.body = body;
+		}
+
+		public int execute(Object[] frame) {
+			ListValue src = (ListValue) copy(source.evaluate(frame));
+			int r = NORMAL;
+			for (int i = 0; i != src.size() && r == NORMAL; ++i) {
+				Object old = frame[slot];
+				frame[slot] = copy(src.get(i));
+				release(old);
+				r = execute(body, frame);
+			}
+			src.release();
+			return r;
+		}
+	}
+
+	/**
+	 * A for loop over a range. The bounds are evaluated once, as unboxed ints,
+	 * and the index variable is then assigned each value between them.
+	 */
+	public static final class ForRange extends StmtNode {
+		private final int slot;
+		private final ExprNode start;
+		private final ExprNode end;
+		private final StmtNode[] body;
+
+		public ForRange(int slot, ExprNode start, ExprNode end, StmtNode[] body) {
+			this.slot = slot;
+			this.start = start;
+			this.end = end;
+			this.body = body;
+		}
+
+		public int execute(Object[] frame) {
+			int i = start.evaluateInt(frame);
+			int n = end.evaluateInt(frame);
+			int r = NORMAL;
+			for (; i < n && r == NORMAL; ++i) {
+				Object old = frame[slot];
+				frame[slot] = i;
+				release(old);
+				r = execute(body, frame);
+			}
+			return r;
+		}
+	}
+
+	public static final class Switch extends StmtNode {
+		private final ExprNode expr;
+		/**
+		 * The constant for each case, in order, where <code>null</code>
+		 * indicates the default case.
+		 */
+		private final ExprNode[] constants;
+		private final StmtNode[][] bodies;
+
+		/**
+		 * Selects the case to execute, which is built the first time this
+		 * switch is executed.
+		 */
+		private JumpTable table;
+
+		public Switch(ExprNode expr, ExprNode[] constants, StmtNode[][] bodies) {
+			this.expr = expr;
+			this.constants = constants;
+			this.bodies = bodies;
+		}
+
+		public int execute(Object[] frame) {
+			Object value = expr.evaluate(frame);
+			if (table == null) {
+				table = jumpTable(frame);
+			}
+			int target = table.lookup(value);
+			if (target < 0) {
+				return NORMAL;
+			} else if (target == table.otherwise()) {
+				int r = execute(bodies[target], frame);
+				return r == NEXT ? NORMAL : r;
+			}
+			for (int i = target; i != bodies.length; ++i) {
+				int r = execute(bodies[i], frame);
+				if (r != NEXT) {
+					return r;
+				}
+			}
+			return NORMAL;
+		}
+
+		private JumpTable jumpTable(Object[] frame) {
+			Object[] values = new Object[constants.length];
+			int def = -1;
+			for (int i = 0; i != constants.length; ++i) {
+				if (constants[i] == null) {
+					def = i;
+				} else {
+					values[i] = copy(constants[i].evaluate(frame));
+				}
+			}
+			return new JumpTable(values, def);
+		}
+	}
+}
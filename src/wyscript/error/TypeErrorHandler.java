@@ -130,6 +130,11 @@ public class TypeErrorHandler {
 				msg = "Error: Cannot cast expression " + data.found() + " with a reference type";
 				suggestion = null; //If their code relied on this, there's no easy fix
 				break;
+
+			case BAD_CONSTANT_ASSIGN:
+				msg = "Error: cannot assign to " + data.found() + ", constants are read-only";
+				suggestion = null; //Can't make a suggestion without more info of user's intent
+				break;
 			}
 
 			outputSourceError(Main.errout, msg, data.filename(), data.start(), data.end());
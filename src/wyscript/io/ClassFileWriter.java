@@ -0,0 +1,1547 @@
+package wyscript.io;
+
+import static wyscript.jvm.Code.*;
+import static wyscript.util.SyntaxError.internalFailure;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import wyscript.jvm.ClassFile;
+import wyscript.jvm.Code;
+import wyscript.jvm.Code.Label;
+import wyscript.lang.*;
+import wyscript.util.*;
+
+/**
+ * <p>
+ * Converts a (type-checked) WyscriptFile into a JVM class file. Every function
+ * becomes a static method of the generated class, and every constant a static
+ * field, which is initialised by the generated <code>$init()</code> method.
+ * </p>
+ * <p>
+ * Where the static type of a variable, parameter or expression is
+ * <code>int</code>, <code>real</code>, <code>bool</code> or <code>char</code>,
+ * its value is held unboxed and operated on directly with the corresponding
+ * JVM instructions. All other values are represented exactly as in the
+ * reference <code>Interpreter</code>, and are operated on through the
+ * runtime support in <code>wyscript.jvm.Support</code>. The same
+ * copy-on-write discipline applies: values are copied when stored, and
+ * released when the variable holding them goes out of scope.
+ * </p>
+ * <p>
+ * The generated class is not self-contained, since it refers to the types
+ * used in casts and type tests, the shapes of the records it constructs, and
+ * the <code>Values</code> used to print them. These are supplied by setting
+ * the <code>$types</code>, <code>$shapes</code> and <code>$values</code>
+ * fields before the class is used (see
+ * <code>wyscript.jvm.ClassFileLoader</code>).
+ * </p>
+ *
+ */
+public class ClassFileWriter {
+	public static final String VALUES_FIELD = "$values";
+	public static final String TYPES_FIELD = "$types";
+	public static final String SHAPES_FIELD = "$shapes";
+	public static final String INIT_METHOD = "$init";
+
+	private static final String OBJECT = "java/lang/Object";
+	private static final String SUPPORT = "wyscript/jvm/Support";
+	private static final String COW = "wyscript/util/CopyOnWriteValue";
+	private static final String LIST = "wyscript/util/ListValue";
+	private static final String STORAGE = "wyscript/util/ListValue$Storage";
+	private static final String RECORD = "wyscript/util/RecordValue";
+	private static final String REF = "wyscript/util/Ref";
+	private static final String VALUES = "wyscript/util/Values";
+	private static final String TYPE = "wyscript/lang/Type";
+	private static final String SHAPE = "wyscript/util/Shape";
+
+	private static final String VALUES_DESC = "L" + VALUES + ";";
+	private static final String TYPES_DESC = "[L" + TYPE + ";";
+	private static final String SHAPE_DESC = "L" + SHAPE + ";";
+	private static final String SHAPES_DESC = "[" + SHAPE_DESC;
+
+	/**
+	 * Names of the methods of <code>java.lang.Object</code>, which cannot be
+	 * used for the method generated for a function.
+	 */
+	private static final String[] RESERVED = { "clone", "equals", "finalize",
+			"getClass", "hashCode", "notify", "notifyAll", "toString", "wait" };
+
+	/**
+	 * The representation of a value on the JVM stack.
+	 */
+	private enum Kind {
+		INT("I"), CHAR("C"), BOOL("Z"), REAL("D"), OBJECT("Ljava/lang/Object;"), VOID("V");
+
+		private final String descriptor;
+
+		Kind(String descriptor) {
+			this.descriptor = descriptor;
+		}
+
+		int size() {
+			return this == REAL ? 2 : this == VOID ? 0 : 1;
+		}
+
+		int load() {
+			return this == REAL ? DLOAD : this == OBJECT ? ALOAD : ILOAD;
+		}
+
+		int store() {
+			return this == REAL ? DSTORE : this == OBJECT ? ASTORE : ISTORE;
+		}
+
+		int ret() {
+			return this == REAL ? DRETURN : this == OBJECT ? ARETURN
+					: this == VOID ? RETURN : IRETURN;
+		}
+
+		boolean isPrimitive() {
+			return this == INT || this == CHAR || this == BOOL || this == REAL;
+		}
+	}
+
+	private final String className;
+	private WyscriptFile file;
+	private ClassFile cf;
+	private HashMap<String, Type> userTypes;
+	private HashMap<String, WyscriptFile.FunDecl> functions;
+	private ArrayList<Type> types;
+	private ArrayList<Shape> shapes;
+
+	/**
+	 * The name and kind of every constant, indexed by slot in the global
+	 * scope.
+	 */
+	private ArrayList<String> constNames;
+	private ArrayList<Kind> constKinds;
+
+	// The state of the function currently being written
+	private Code code;
+	private Kind returnKind;
+	private Kind[] slotKinds;
+	private int[] paramOffsets;
+	private int localsBase;
+	private int nextTemp;
+
+	/**
+	 * The locals holding a value which must be released when they go out of
+	 * scope, innermost last.
+	 */
+	private ArrayList<Integer> held;
+
+	/**
+	 * The target of a next statement in the current case body, and the size
+	 * of <code>held</code> on entry to that body.
+	 */
+	private Label nextTarget;
+	private int caseMark;
+
+	public ClassFileWriter(String className) {
+		this.className = className;
+	}
+
+	/**
+	 * Get the types referred to by the class last written, which must be
+	 * stored in its <code>$types</code> field.
+	 *
+	 * @return
+	 */
+	public Type[] types() {
+		return types.toArray(new Type[types.size()]);
+	}
+
+	/**
+	 * Get the shapes of the records constructed by the class last written,
+	 * which must be stored in its <code>$shapes</code> field.
+	 *
+	 * @return
+	 */
+	public Shape[] shapes() {
+		return shapes.toArray(new Shape[shapes.size()]);
+	}
+
+	/**
+	 * Get the user-defined types of the file last written.
+	 *
+	 * @return
+	 */
+	public Map<String, Type> userTypes() {
+		return userTypes;
+	}
+
+	/**
+	 * Writes a Wyscript file into a class file
+	 *
+	 * @return The bytes of the class file
+	 */
+	public byte[] write(WyscriptFile wf) {
+		this.file = wf;
+		cf = new ClassFile(className, OBJECT);
+		userTypes = new HashMap<String, Type>();
+		functions = new HashMap<String, WyscriptFile.FunDecl>();
+		types = new ArrayList<Type>();
+		shapes = new ArrayList<Shape>();
+		constNames = new ArrayList<String>();
+		constKinds = new ArrayList<Kind>();
+
+		// First, assign every variable a slot, which determines its local
+		new VariableResolver().resolve(wf);
+
+		// Next, sort out constants, named types and functions, so that they
+		// can be referred to before they are declared.
+		for (WyscriptFile.Decl declaration : wf.declarations) {
+			if (declaration instanceof WyscriptFile.TypeDecl) {
+				WyscriptFile.TypeDecl td = (WyscriptFile.TypeDecl) declaration;
+				userTypes.put(td.name(), td.type);
+			} else if (declaration instanceof WyscriptFile.FunDecl) {
+				WyscriptFile.FunDecl fd = (WyscriptFile.FunDecl) declaration;
+				functions.put(fd.name(), fd);
+			}
+		}
+		for (WyscriptFile.Decl declaration : wf.declarations) {
+			if (declaration instanceof WyscriptFile.ConstDecl) {
+				WyscriptFile.ConstDecl cd = (WyscriptFile.ConstDecl) declaration;
+				Kind kind = kindOf(typeOf(cd.constant));
+				constNames.add(cd.name());
+				constKinds.add(kind);
+				cf.addField(ClassFile.ACC_PUBLIC | ClassFile.ACC_STATIC,
+						cd.name(), kind.descriptor);
+			}
+		}
+		cf.addField(ClassFile.ACC_PUBLIC | ClassFile.ACC_STATIC, VALUES_FIELD,
+				VALUES_DESC);
+		cf.addField(ClassFile.ACC_PUBLIC | ClassFile.ACC_STATIC, TYPES_FIELD,
+				TYPES_DESC);
+		cf.addField(ClassFile.ACC_PUBLIC | ClassFile.ACC_STATIC, SHAPES_FIELD,
+				SHAPES_DESC);
+
+		writeConstants(wf);
+
+		for (WyscriptFile.Decl declaration : wf.declarations) {
+			if (declaration instanceof WyscriptFile.FunDecl) {
+				write((WyscriptFile.FunDecl) declaration);
+			}
+		}
+
+		return cf.toByteArray();
+	}
+
+	/**
+	 * Writes the method which initialises every constant, in order of
+	 * declaration.
+	 */
+	private void writeConstants(WyscriptFile wf) {
+		begin(0, 0);
+		returnKind = Kind.VOID;
+		int slot = 0;
+		for (WyscriptFile.Decl declaration : wf.declarations) {
+			if (declaration instanceof WyscriptFile.ConstDecl) {
+				WyscriptFile.ConstDecl cd = (WyscriptFile.ConstDecl) declaration;
+				Kind kind = constKinds.get(slot);
+				write(cd.constant, kind);
+				if (kind == Kind.OBJECT) {
+					copy();
+				}
+				code.field(PUTSTATIC, className, constNames.get(slot++),
+						kind.descriptor);
+			}
+		}
+		code.op(RETURN);
+		cf.addMethod(ClassFile.ACC_PUBLIC | ClassFile.ACC_STATIC, INIT_METHOD,
+				"()V", code);
+	}
+
+	/**
+	 * Writes a function declaration as a static method. The parameters occupy
+	 * the first locals, followed by two words for each remaining slot in the
+	 * stack frame (enough for any kind of value), followed by temporaries.
+	 */
+	public void write(WyscriptFile.FunDecl fd) {
+		int nParams = fd.parameters.size();
+		int frameSize = Math.max(fd.getFrameSize(), nParams);
+		paramOffsets = new int[nParams];
+		slotKinds = new Kind[frameSize];
+		int words = 0;
+		for (int i = 0; i != nParams; ++i) {
+			paramOffsets[i] = words;
+			slotKinds[i] = kindOf(fd.parameters.get(i).type);
+			words += slotKinds[i].size();
+		}
+		begin(words, 2 * (frameSize - nParams));
+		returnKind = returnKind(fd);
+
+		if (fd.Native) {
+			code.sconst(fd.name());
+			code.invoke(INVOKESTATIC, SUPPORT, "nativeFunction",
+					"(Ljava/lang/String;)Ljava/lang/RuntimeException;");
+			code.op(ATHROW);
+		} else {
+			for (int i = 0; i != nParams; ++i) {
+				if (slotKinds[i] == Kind.OBJECT) {
+					held.add(paramOffsets[i]);
+				}
+			}
+			for (Stmt s : fd.statements) {
+				write(s);
+			}
+			// Falling off the end of the body returns the default value of the
+			// return kind
+			releaseHeld(0);
+			pushDefault(returnKind);
+			code.op(returnKind.ret());
+		}
+
+		cf.addMethod(ClassFile.ACC_PUBLIC | ClassFile.ACC_STATIC,
+				methodName(fd.name()), descriptor(fd), code);
+	}
+
+	private void begin(int paramWords, int frameWords) {
+		code = new Code(cf, paramWords);
+		localsBase = paramWords;
+		nextTemp = paramWords + frameWords;
+		code.useLocals(nextTemp);
+		held = new ArrayList<Integer>();
+		nextTarget = null;
+	}
+
+	// ======================================================================
+	// Statements
+	// ======================================================================
+
+	public void write(Stmt stmt) {
+		if (stmt instanceof Stmt.Assign) {
+			write((Stmt.Assign) stmt);
+		} else if (stmt instanceof Stmt.Print) {
+			write((Stmt.Print) stmt);
+		} else if (stmt instanceof Stmt.Return) {
+			write((Stmt.Return) stmt);
+		} else if (stmt instanceof Stmt.VariableDeclaration) {
+			write((Stmt.VariableDeclaration) stmt);
+		} else if (stmt instanceof Expr.Invoke) {
+			// Pop whatever value the invocation left on the stack
+			coerce(write((Expr.Invoke) stmt), Kind.VOID);
+		} else if (stmt instanceof Stmt.IfElse) {
+			write((Stmt.IfElse) stmt);
+		} else if (stmt instanceof Stmt.OldFor) {
+			write((Stmt.OldFor) stmt);
+		} else if (stmt instanceof Stmt.For) {
+			write((Stmt.For) stmt);
+		} else if (stmt instanceof Stmt.While) {
+			write((Stmt.While) stmt);
+		} else if (stmt instanceof Stmt.Switch) {
+			write((Stmt.Switch) stmt);
+		} else if (stmt instanceof Stmt.Next) {
+			releaseHeld(caseMark);
+			code.branch(GOTO, nextTarget);
+		} else {
+			internalFailure("unknown statement encountered (" + stmt + ")",
+					file.filename, stmt);
+		}
+	}
+
+	/**
+	 * Writes a block of statements which introduces a new scope. Any values
+	 * held by variables declared in this block are released once it is
+	 * finished.
+	 */
+	private void writeBlock(List<Stmt> block) {
+		int mark = held.size();
+		for (Stmt s : block) {
+			write(s);
+		}
+		releaseHeld(mark);
+		truncateHeld(mark);
+	}
+
+	public void write(Stmt.Assign stmt) {
+		Expr.LVal lhs = stmt.getLhs();
+		if (lhs instanceof Expr.Tuple) {
+			// The tuple is kept in a local, from which each element is assigned
+			int mark = nextTemp;
+			int tuple = temp(1);
+			write(stmt.getRhs(), Kind.OBJECT);
+			code.local(ASTORE, tuple);
+			List<Expr> exprs = ((Expr.Tuple) lhs).getExprs();
+			for (int i = 0; i != exprs.size(); ++i) {
+				writeAssign(exprs.get(i), null, tuple, i);
+			}
+			nextTemp = mark;
+		} else {
+			writeAssign(lhs, stmt.getRhs(), 0, 0);
+		}
+	}
+
+	/**
+	 * Writes an assignment to a given lval. As in the reference interpreter,
+	 * the keys along the lval are evaluated first, followed by the right-hand
+	 * side; finally, the lval is unshared and updated.
+	 *
+	 * @param lval
+	 * @param rhs
+	 *            The expression being assigned, or <code>null</code> if the
+	 *            value is an element of a tuple.
+	 * @param tuple
+	 *            The local holding the tuple being assigned, if any.
+	 * @param index
+	 *            The index of the element of that tuple being assigned.
+	 */
+	private void writeAssign(Expr lval, Expr rhs, int tuple, int index) {
+		if (lval instanceof Expr.Variable) {
+			Expr.Variable v = (Expr.Variable) lval;
+			Kind kind = slotKinds[v.getSlot()];
+			writeValue(rhs, tuple, index, kind);
+			int local = local(v.getSlot());
+			if (kind == Kind.OBJECT) {
+				copy();
+				code.local(ALOAD, local);
+				release();
+			}
+			code.local(kind.store(), local);
+			return;
+		}
+
+		int mark = nextTemp;
+		ArrayList<Integer> keys = new ArrayList<Integer>();
+		writeKeys(lval, keys);
+		writeValue(rhs, tuple, index, Kind.OBJECT);
+		if (!(lval instanceof Expr.Deref)) {
+			// The value must be copied before the source is unshared,
+			// otherwise an assignment such as "xs[0] = xs" would create a
+			// cyclic value.
+			copy();
+		}
+		int value = temp(1);
+		code.local(ASTORE, value);
+
+		Iterator<Integer> iter = keys.iterator();
+		if (lval instanceof Expr.IndexOf) {
+			writeForUpdate(((Expr.IndexOf) lval).getSource(), iter);
+			code.local(ILOAD, iter.next());
+			code.local(ALOAD, value);
+			code.invoke(INVOKESTATIC, SUPPORT, "setIndex",
+					"(Ljava/lang/Object;ILjava/lang/Object;)V");
+		} else if (lval instanceof Expr.RecordAccess) {
+			Expr.RecordAccess ra = (Expr.RecordAccess) lval;
+			writeForUpdate(ra.getSource(), iter);
+			String field = writeField(ra.getSource(), ra.getName());
+			code.local(ALOAD, value);
+			code.invoke(INVOKESTATIC, SUPPORT, "setField",
+					"(Ljava/lang/Object;" + field + "Ljava/lang/Object;)V");
+		} else if (lval instanceof Expr.Deref) {
+			code.local(ALOAD, iter.next());
+			code.type(CHECKCAST, REF);
+			code.local(ALOAD, value);
+			code.invoke(INVOKEVIRTUAL, REF, "setValue", "(Ljava/lang/Object;)V");
+		} else {
+			internalFailure("unknown lval encountered (" + lval + ")",
+					file.filename, lval);
+		}
+		nextTemp = mark;
+	}
+
+	private void writeValue(Expr rhs, int tuple, int index, Kind kind) {
+		if (rhs != null) {
+			write(rhs, kind);
+		} else {
+			code.local(ALOAD, tuple);
+			code.iconst(index);
+			code.invoke(INVOKESTATIC, SUPPORT, "tupleGet",
+					"(Ljava/lang/Object;I)Ljava/lang/Object;");
+			coerce(Kind.OBJECT, kind);
+		}
+	}
+
+	/**
+	 * Evaluate the keys along a given lval into temporaries, in the order
+	 * they would be evaluated when reading it.
+	 */
+	private void writeKeys(Expr lval, List<Integer> keys) {
+		if (lval instanceof Expr.IndexOf) {
+			Expr.IndexOf io = (Expr.IndexOf) lval;
+			writeKeys(io.getSource(), keys);
+			write(io.getIndex(), Kind.INT);
+			int key = temp(1);
+			code.local(ISTORE, key);
+			keys.add(key);
+		} else if (lval instanceof Expr.RecordAccess) {
+			writeKeys(((Expr.RecordAccess) lval).getSource(), keys);
+		} else if (lval instanceof Expr.Deref) {
+			write(((Expr.Deref) lval).getExpr(), Kind.OBJECT);
+			int key = temp(1);
+			code.local(ASTORE, key);
+			keys.add(key);
+		}
+	}
+
+	/**
+	 * Push the value of a given lval so that it can be updated in place,
+	 * unsharing any compound values along its path.
+	 */
+	private void writeForUpdate(Expr lval, Iterator<Integer> keys) {
+		if (lval instanceof Expr.Variable) {
+			int local = local(((Expr.Variable) lval).getSlot());
+			code.local(ALOAD, local);
+			code.invoke(INVOKESTATIC, SUPPORT, "unshare",
+					"(Ljava/lang/Object;)Ljava/lang/Object;");
+			code.op(DUP);
+			code.local(ASTORE, local);
+		} else if (lval instanceof Expr.IndexOf) {
+			writeForUpdate(((Expr.IndexOf) lval).getSource(), keys);
+			code.type(CHECKCAST, LIST);
+			code.local(ILOAD, keys.next());
+			code.invoke(INVOKEVIRTUAL, LIST, "getForUpdate",
+					"(I)Ljava/lang/Object;");
+		} else if (lval instanceof Expr.RecordAccess) {
+			Expr.RecordAccess ra = (Expr.RecordAccess) lval;
+			writeForUpdate(ra.getSource(), keys);
+			code.type(CHECKCAST, RECORD);
+			String field = writeField(ra.getSource(), ra.getName());
+			code.invoke(INVOKEVIRTUAL, RECORD, "getForUpdate",
+					"(" + field + ")Ljava/lang/Object;");
+		} else if (lval instanceof Expr.Deref) {
+			code.local(ALOAD, keys.next());
+			code.type(CHECKCAST, REF);
+			code.invoke(INVOKEVIRTUAL, REF, "getValueForUpdate",
+					"()Ljava/lang/Object;");
+		} else {
+			internalFailure("unknown lval encountered (" + lval + ")",
+					file.filename, lval);
+		}
+	}
+
+	public void write(Stmt.Print stmt) {
+		code.field(GETSTATIC, className, VALUES_FIELD, VALUES_DESC);
+		write(stmt.getExpr(), Kind.OBJECT);
+		code.invoke(INVOKESTATIC, SUPPORT, "print", "(" + VALUES_DESC
+				+ "Ljava/lang/Object;)V");
+	}
+
+	public void write(Stmt.Return stmt) {
+		Expr e = stmt.getExpr();
+		if (e != null) {
+			write(e, returnKind);
+		} else {
+			pushDefault(returnKind);
+		}
+		// Once finished, the variables of this function no longer hold their
+		// values.
+		releaseHeld(0);
+		code.op(returnKind.ret());
+	}
+
+	public void write(Stmt.VariableDeclaration stmt) {
+		Kind kind = kindOf(stmt.getType());
+		if (stmt.getExpr() != null) {
+			write(stmt.getExpr(), kind);
+			if (kind == Kind.OBJECT) {
+				copy();
+			}
+		} else if (kind == Kind.OBJECT) {
+			// used to indicate a variable has been declared
+			code.field(GETSTATIC, "java/util/Collections", "EMPTY_SET",
+					"Ljava/util/Set;");
+		} else {
+			pushDefault(kind);
+		}
+		slotKinds[stmt.getSlot()] = kind;
+		int local = local(stmt.getSlot());
+		code.local(kind.store(), local);
+		if (kind == Kind.OBJECT) {
+			held.add(local);
+		}
+	}
+
+	public void write(Stmt.IfElse stmt) {
+		Label end = code.newLabel();
+		Label next = code.newLabel();
+		writeCondition(stmt.getCondition(), false, next);
+		writeBlock(stmt.getTrueBranch());
+		code.branch(GOTO, end);
+		code.mark(next);
+
+		for (Stmt.ElseIf alt : stmt.getAlts()) {
+			next = code.newLabel();
+			writeCondition(alt.getCondition(), false, next);
+			writeBlock(alt.getBody());
+			code.branch(GOTO, end);
+			code.mark(next);
+		}
+
+		writeBlock(stmt.getFalseBranch());
+		code.mark(end);
+	}
+
+	public void write(Stmt.While stmt) {
+		Label loop = code.newLabel();
+		Label exit = code.newLabel();
+		code.mark(loop);
+		writeCondition(stmt.getCondition(), false, exit);
+		writeBlock(stmt.getBody());
+		code.branch(GOTO, loop);
+		code.mark(exit);
+	}
+
+	public void write(Stmt.OldFor stmt) {
+		// The loop variable is declared in the enclosing scope
+		if (stmt.getDeclaration() != null) {
+			write(stmt.getDeclaration());
+		}
+		Label loop = code.newLabel();
+		Label exit = code.newLabel();
+		code.mark(loop);
+		if (stmt.getCondition() != null) {
+			writeCondition(stmt.getCondition(), false, exit);
+		}
+		writeBlock(stmt.getBody());
+		if (stmt.getIncrement() != null) {
+			write(stmt.getIncrement());
+		}
+		code.branch(GOTO, loop);
+		code.mark(exit);
+	}
+
+	public void write(Stmt.For stmt) {
+		Expr src = stmt.getSource();
+		if (src instanceof Expr.Binary
+				&& ((Expr.Binary) src).getOp() == Expr.BOp.RANGE) {
+			writeRange(stmt, (Expr.Binary) src);
+			return;
+		}
+		int tempMark = nextTemp;
+		int heldMark = held.size();
+
+		// The source list is held in a local until the loop finishes, or the
+		// method returns.
+		int source = temp(1);
+		int count = temp(1);
+		int index = temp(1);
+		write(stmt.getSource(), Kind.OBJECT);
+		copy();
+		code.local(ASTORE, source);
+		held.add(source);
+		code.local(ALOAD, source);
+		code.type(CHECKCAST, LIST);
+		code.invoke(INVOKEVIRTUAL, LIST, "size", "()I");
+		code.local(ISTORE, count);
+		code.iconst(0);
+		code.local(ISTORE, index);
+
+		Type type = typeOf(stmt.getSource());
+		int slot = stmt.getIndex().getSlot();
+		Kind kind = type instanceof Type.List ? kindOf(((Type.List) type)
+				.getElement()) : Kind.OBJECT;
+		slotKinds[slot] = kind;
+		int var = local(slot);
+		if (kind == Kind.OBJECT) {
+			code.op(ACONST_NULL);
+			code.local(ASTORE, var);
+			held.add(var);
+		}
+
+		Label loop = code.newLabel();
+		Label exit = code.newLabel();
+		code.mark(loop);
+		code.local(ILOAD, index);
+		code.local(ILOAD, count);
+		code.branch(IF_ICMPGE, exit);
+		code.local(ALOAD, source);
+		code.type(CHECKCAST, LIST);
+		code.local(ILOAD, index);
+		code.invoke(INVOKEVIRTUAL, LIST, "get", "(I)Ljava/lang/Object;");
+		if (kind == Kind.OBJECT) {
+			copy();
+			code.local(ALOAD, var);
+			release();
+		} else {
+			coerce(Kind.OBJECT, kind);
+		}
+		code.local(kind.store(), var);
+		writeBlock(stmt.getBody());
+		code.iinc(index, 1);
+		code.branch(GOTO, loop);
+		code.mark(exit);
+
+		releaseHeld(heldMark);
+		truncateHeld(heldMark);
+		nextTemp = tempMark;
+	}
+
+	/**
+	 * Writes a for loop over a range. The counter and upper bound are held in
+	 * int locals, as is the index variable, so nothing in the loop is boxed.
+	 */
+	private void writeRange(Stmt.For stmt, Expr.Binary range) {
+		int tempMark = nextTemp;
+		int index = temp(1);
+		int end = temp(1);
+		write(range.getLhs(), Kind.INT);
+		code.local(ISTORE, index);
+		write(range.getRhs(), Kind.INT);
+		code.local(ISTORE, end);
+
+		int slot = stmt.getIndex().getSlot();
+		slotKinds[slot] = Kind.INT;
+		int var = local(slot);
+
+		Label loop = code.newLabel();
+		Label exit = code.newLabel();
+		code.mark(loop);
+		code.local(ILOAD, index);
+		code.local(ILOAD, end);
+		code.branch(IF_ICMPGE, exit);
+		code.local(ILOAD, index);
+		code.local(ISTORE, var);
+		writeBlock(stmt.getBody());
+		code.iinc(index, 1);
+		code.branch(GOTO, loop);
+		code.mark(exit);
+
+		nextTemp = tempMark;
+	}
+
+	/**
+	 * Writes a switch statement. Int and char cases are compared with
+	 * IF_ICMPEQ, and any other with <code>Support.equals()</code>. The bodies
+	 * follow in order, so that a next statement is a GOTO to the following
+	 * body. A default which is not the last body is written again after them,
+	 * where a next statement branches to the end.
+	 */
+	public void write(Stmt.Switch stmt) {
+		int tempMark = nextTemp;
+		Label oldTarget = nextTarget;
+		int oldMark = caseMark;
+
+		Kind kind = kindOf(stmt.getExpr());
+		int value = temp(kind.size());
+		write(stmt.getExpr(), kind);
+		code.local(kind.store(), value);
+
+		List<Stmt.SwitchStmt> cases = stmt.cases();
+		Label[] bodies = new Label[cases.size()];
+		List<Stmt> def = null;
+		int defIndex = -1;
+		for (int i = 0; i != bodies.length; ++i) {
+			bodies[i] = code.newLabel();
+			Stmt.SwitchStmt s = cases.get(i);
+			if (s instanceof Stmt.Case) {
+				Expr constant = ((Stmt.Case) s).getConstant();
+				Kind ck = kindOf(constant);
+				if (ck == kind && (kind == Kind.INT || kind == Kind.CHAR)) {
+					write(constant, kind);
+					code.local(kind.load(), value);
+					code.branch(IF_ICMPEQ, bodies[i]);
+				} else {
+					write(constant, Kind.OBJECT);
+					code.local(kind.load(), value);
+					coerce(kind, Kind.OBJECT);
+					code.invoke(INVOKESTATIC, SUPPORT, "equals",
+							"(Ljava/lang/Object;Ljava/lang/Object;)Z");
+					code.branch(IFNE, bodies[i]);
+				}
+			} else {
+				def = ((Stmt.Default) s).getStmts();
+				defIndex = i;
+			}
+		}
+
+		Label end = code.newLabel();
+		Label fallback = code.newLabel();
+		if (def == null) {
+			code.branch(GOTO, end);
+		} else if (defIndex == bodies.length - 1) {
+			code.branch(GOTO, bodies[defIndex]);
+		} else {
+			code.branch(GOTO, fallback);
+		}
+
+		for (int i = 0; i != bodies.length; ++i) {
+			code.mark(bodies[i]);
+			nextTarget = i + 1 < bodies.length ? bodies[i + 1] : end;
+			writeCase(cases.get(i));
+			code.branch(GOTO, end);
+		}
+		if (def != null && defIndex != bodies.length - 1) {
+			code.mark(fallback);
+			nextTarget = end;
+			writeCase(cases.get(defIndex));
+			code.branch(GOTO, end);
+		}
+		code.mark(end);
+
+		nextTarget = oldTarget;
+		caseMark = oldMark;
+		nextTemp = tempMark;
+	}
+
+	private void writeCase(Stmt.SwitchStmt s) {
+		caseMark = held.size();
+		if (s instanceof Stmt.Case) {
+			writeBlock(((Stmt.Case) s).getStmts());
+		} else {
+			writeBlock(((Stmt.Default) s).getStmts());
+		}
+	}
+
+	// ======================================================================
+	// Conditions
+	// ======================================================================
+
+	/**
+	 * Writes a condition which branches to a given target when it evaluates
+	 * to a given value, and otherwise falls through.
+	 *
+	 * @param e
+	 * @param when
+	 * @param target
+	 */
+	private void writeCondition(Expr e, boolean when, Label target) {
+		if (e instanceof Expr.Unary && ((Expr.Unary) e).getOp() == Expr.UOp.NOT) {
+			writeCondition(((Expr.Unary) e).getExpr(), !when, target);
+			return;
+		} else if (!(e instanceof Expr.Binary)) {
+			write(e, Kind.BOOL);
+			code.branch(when ? IFNE : IFEQ, target);
+			return;
+		}
+
+		Expr.Binary b = (Expr.Binary) e;
+		Expr lhs = b.getLhs();
+		Expr rhs = b.getRhs();
+		Kind lk = kindOf(lhs);
+		Kind rk = kindOf(rhs);
+
+		switch (b.getOp()) {
+		case AND:
+			if (when) {
+				Label skip = code.newLabel();
+				writeCondition(lhs, false, skip);
+				writeCondition(rhs, true, target);
+				code.mark(skip);
+			} else {
+				writeCondition(lhs, false, target);
+				writeCondition(rhs, false, target);
+			}
+			return;
+		case OR:
+			if (when) {
+				writeCondition(lhs, true, target);
+				writeCondition(rhs, true, target);
+			} else {
+				Label skip = code.newLabel();
+				writeCondition(lhs, true, skip);
+				writeCondition(rhs, false, target);
+				code.mark(skip);
+			}
+			return;
+		case EQ:
+		case NEQ: {
+			boolean eq = (b.getOp() == Expr.BOp.EQ) == when;
+			if (lk == rk && (lk == Kind.INT || lk == Kind.CHAR || lk == Kind.BOOL)) {
+				write(lhs, lk);
+				write(rhs, rk);
+				code.branch(eq ? IF_ICMPEQ : IF_ICMPNE, target);
+			} else {
+				// NOTE: real values are compared as objects, since
+				// Double.equals() differs from == on NaN and -0.0
+				write(lhs, Kind.OBJECT);
+				write(rhs, Kind.OBJECT);
+				code.invoke(INVOKESTATIC, SUPPORT, "equals",
+						"(Ljava/lang/Object;Ljava/lang/Object;)Z");
+				code.branch(eq ? IFNE : IFEQ, target);
+			}
+			return;
+		}
+		case LT:
+		case LTEQ:
+		case GT:
+		case GTEQ:
+			if (lk == Kind.INT && rk == Kind.INT) {
+				write(lhs, lk);
+				write(rhs, rk);
+				code.branch(compare(b.getOp(), when, IF_ICMPEQ), target);
+			} else if (lk == Kind.REAL && rk == Kind.REAL) {
+				write(lhs, lk);
+				write(rhs, rk);
+				// Any comparison involving NaN is false, and so its negation
+				// is true.
+				boolean less = b.getOp() == Expr.BOp.LT
+						|| b.getOp() == Expr.BOp.LTEQ;
+				code.op(less ? DCMPG : DCMPL);
+				code.branch(compare(b.getOp(), when, IFEQ), target);
+			} else {
+				write(lhs, Kind.OBJECT);
+				write(rhs, Kind.OBJECT);
+				code.invoke(INVOKESTATIC, SUPPORT, b.getOp().name().toLowerCase(),
+						"(Ljava/lang/Object;Ljava/lang/Object;)Z");
+				code.branch(when ? IFNE : IFEQ, target);
+			}
+			return;
+		default:
+			write(e, Kind.BOOL);
+			code.branch(when ? IFNE : IFEQ, target);
+		}
+	}
+
+	/**
+	 * Get the branch instruction for a given comparison, or its negation.
+	 *
+	 * @param op
+	 * @param when
+	 * @param base
+	 *            Either IFEQ or IF_ICMPEQ, which determines the family of
+	 *            instructions used.
+	 * @return
+	 */
+	private static int compare(Expr.BOp op, boolean when, int base) {
+		// The instructions in each family are ordered EQ, NE, LT, GE, GT, LE
+		switch (op) {
+		case LT:
+			return base + (when ? 2 : 3);
+		case LTEQ:
+			return base + (when ? 5 : 4);
+		case GT:
+			return base + (when ? 4 : 5);
+		default:
+			return base + (when ? 3 : 2);
+		}
+	}
+
+	// ======================================================================
+	// Expressions
+	// ======================================================================
+
+	/**
+	 * Writes an expression, converting its value to a given kind.
+	 */
+	private void write(Expr expr, Kind kind) {
+		coerce(write(expr), kind);
+	}
+
+	/**
+	 * Writes an expression, leaving its value on the stack.
+	 *
+	 * @return The kind of value written, which is always that given by
+	 *         <code>kindOf()</code>.
+	 */
+	public Kind write(Expr expr) {
+		if (expr instanceof Expr.Binary) {
+			return write((Expr.Binary) expr);
+		} else if (expr instanceof Expr.Is) {
+			Expr.Is e = (Expr.Is) expr;
+			code.field(GETSTATIC, className, VALUES_FIELD, VALUES_DESC);
+			write(e.getLhs(), Kind.OBJECT);
+			writeType(e.getRhs());
+			code.invoke(INVOKEVIRTUAL, VALUES, "instanceOf",
+					"(Ljava/lang/Object;L" + TYPE + ";)Z");
+			return Kind.BOOL;
+		} else if (expr instanceof Expr.Cast) {
+			return write((Expr.Cast) expr);
+		} else if (expr instanceof Expr.Constant) {
+			return write((Expr.Constant) expr);
+		} else if (expr instanceof Expr.Invoke) {
+			return write((Expr.Invoke) expr);
+		} else if (expr instanceof Expr.IndexOf) {
+			return write((Expr.IndexOf) expr);
+		} else if (expr instanceof Expr.ListConstructor) {
+			List<Expr> args = ((Expr.ListConstructor) expr).getArguments();
+			// The storage is fixed here, from the checked element type
+			Type type = typeOf(expr);
+			ListValue.Storage storage = type instanceof Type.List ? ListValue.Storage
+					.of(resolve(((Type.List) type).getElement()))
+					: ListValue.Storage.GENERIC;
+			code.type(NEW, LIST);
+			code.op(DUP);
+			code.field(GETSTATIC, STORAGE, storage.name(), "L" + STORAGE + ";");
+			code.iconst(args.size());
+			code.invoke(INVOKESPECIAL, LIST, "<init>", "(L" + STORAGE + ";I)V");
+			for (Expr arg : args) {
+				code.op(DUP);
+				write(arg, Kind.OBJECT);
+				code.invoke(INVOKEVIRTUAL, LIST, "add", "(Ljava/lang/Object;)V");
+			}
+			return Kind.OBJECT;
+		} else if (expr instanceof Expr.RecordAccess) {
+			Expr.RecordAccess e = (Expr.RecordAccess) expr;
+			write(e.getSource(), Kind.OBJECT);
+			code.type(CHECKCAST, RECORD);
+			String field = writeField(e.getSource(), e.getName());
+			code.invoke(INVOKEVIRTUAL, RECORD, "get",
+					"(" + field + ")Ljava/lang/Object;");
+			return coerce(Kind.OBJECT, kindOf(expr));
+		} else if (expr instanceof Expr.RecordConstructor) {
+			List<Pair<String, Expr>> fields = ((Expr.RecordConstructor) expr).getFields();
+			String[] names = new String[fields.size()];
+			for (int i = 0; i != names.length; ++i) {
+				names[i] = fields.get(i).first();
+			}
+			Shape shape = Shape.of(names);
+			code.type(NEW, RECORD);
+			code.op(DUP);
+			writeShape(shape);
+			code.invoke(INVOKESPECIAL, RECORD, "<init>", "(" + SHAPE_DESC + ")V");
+			for (Pair<String, Expr> p : fields) {
+				code.op(DUP);
+				code.iconst(shape.offsetOf(p.first()));
+				write(p.second(), Kind.OBJECT);
+				code.invoke(INVOKEVIRTUAL, RECORD, "set",
+						"(ILjava/lang/Object;)V");
+			}
+			return Kind.OBJECT;
+		} else if (expr instanceof Expr.Unary) {
+			return write((Expr.Unary) expr);
+		} else if (expr instanceof Expr.Variable) {
+			Expr.Variable e = (Expr.Variable) expr;
+			Kind kind = kindOf(e);
+			if (e.isGlobal()) {
+				code.field(GETSTATIC, className, constNames.get(e.getSlot()),
+						kind.descriptor);
+			} else {
+				code.local(kind.load(), local(e.getSlot()));
+			}
+			return kind;
+		} else if (expr instanceof Expr.Deref) {
+			write(((Expr.Deref) expr).getExpr(), Kind.OBJECT);
+			code.type(CHECKCAST, REF);
+			code.invoke(INVOKEVIRTUAL, REF, "getValue", "()Ljava/lang/Object;");
+			return coerce(Kind.OBJECT, kindOf(expr));
+		} else if (expr instanceof Expr.New) {
+			code.type(NEW, REF);
+			code.op(DUP);
+			write(((Expr.New) expr).getExpr(), Kind.OBJECT);
+			code.invoke(INVOKESPECIAL, REF, "<init>", "(Ljava/lang/Object;)V");
+			return Kind.OBJECT;
+		} else if (expr instanceof Expr.Tuple) {
+			List<Expr> exprs = ((Expr.Tuple) expr).getExprs();
+			code.iconst(exprs.size());
+			code.type(ANEWARRAY, OBJECT);
+			for (int i = 0; i != exprs.size(); ++i) {
+				code.op(DUP);
+				code.iconst(i);
+				write(exprs.get(i), Kind.OBJECT);
+				code.op(AASTORE);
+			}
+			code.invoke(INVOKESTATIC, SUPPORT, "tuple",
+					"([Ljava/lang/Object;)Lwyscript/util/Tuple;");
+			return Kind.OBJECT;
+		} else {
+			internalFailure("unknown expression encountered (" + expr + ")",
+					file.filename, expr);
+			return null;
+		}
+	}
+
+	public Kind write(Expr.Binary expr) {
+		Expr lhs = expr.getLhs();
+		Expr rhs = expr.getRhs();
+		Kind kind = kindOf(expr);
+
+		switch (expr.getOp()) {
+		case ADD:
+		case SUB:
+		case MUL:
+		case DIV:
+		case REM:
+			if (kind.isPrimitive()) {
+				write(lhs, kind);
+				write(rhs, kind);
+				code.op(arithmetic(expr.getOp(), kind == Kind.REAL));
+			} else {
+				write(lhs, Kind.OBJECT);
+				write(rhs, Kind.OBJECT);
+				code.invoke(INVOKESTATIC, SUPPORT, expr.getOp().name().toLowerCase(),
+						"(Ljava/lang/Object;Ljava/lang/Object;)Ljava/lang/Object;");
+			}
+			return kind;
+		case APPEND:
+			write(lhs, Kind.OBJECT);
+			write(rhs, Kind.OBJECT);
+			code.field(GETSTATIC, className, VALUES_FIELD, VALUES_DESC);
+			code.invoke(INVOKESTATIC, SUPPORT, "append",
+					"(Ljava/lang/Object;Ljava/lang/Object;" + VALUES_DESC
+							+ ")Ljava/lang/Object;");
+			return Kind.OBJECT;
+		case RANGE:
+			write(lhs, Kind.INT);
+			write(rhs, Kind.INT);
+			code.invoke(INVOKESTATIC, SUPPORT, "range", "(II)L" + LIST + ";");
+			return Kind.OBJECT;
+		default:
+			// A condition, whose value is computed by branching on it
+			return writeBoolean(expr);
+		}
+	}
+
+	private static int arithmetic(Expr.BOp op, boolean real) {
+		int offset = real ? 3 : 0;
+		switch (op) {
+		case ADD:
+			return IADD + offset;
+		case SUB:
+			return ISUB + offset;
+		case MUL:
+			return IMUL + offset;
+		case DIV:
+			return IDIV + offset;
+		default:
+			return IREM + offset;
+		}
+	}
+
+	private Kind writeBoolean(Expr condition) {
+		Label isFalse = code.newLabel();
+		Label end = code.newLabel();
+		writeCondition(condition, false, isFalse);
+		code.iconst(1);
+		code.branch(GOTO, end);
+		code.mark(isFalse);
+		code.iconst(0);
+		code.mark(end);
+		return Kind.BOOL;
+	}
+
+	public Kind write(Expr.Unary expr) {
+		switch (expr.getOp()) {
+		case NOT:
+			return writeBoolean(expr);
+		case NEG: {
+			Kind kind = kindOf(expr);
+			if (kind == Kind.INT) {
+				write(expr.getExpr(), kind);
+				code.op(INEG);
+			} else if (kind == Kind.REAL) {
+				write(expr.getExpr(), kind);
+				code.op(DNEG);
+			} else {
+				write(expr.getExpr(), Kind.OBJECT);
+				code.invoke(INVOKESTATIC, SUPPORT, "neg",
+						"(Ljava/lang/Object;)Ljava/lang/Object;");
+			}
+			return kind;
+		}
+		default:
+			write(expr.getExpr(), Kind.OBJECT);
+			code.invoke(INVOKESTATIC, SUPPORT, "lengthOf", "(Ljava/lang/Object;)I");
+			return Kind.INT;
+		}
+	}
+
+	public Kind write(Expr.Cast expr) {
+		Kind from = kindOf(expr.getSource());
+		Kind to = kindOf(expr);
+		if (from == Kind.INT && to == Kind.REAL) {
+			write(expr.getSource(), from);
+			code.op(I2D);
+		} else if (from == to && from.isPrimitive()) {
+			write(expr.getSource(), from);
+		} else {
+			code.field(GETSTATIC, className, VALUES_FIELD, VALUES_DESC);
+			writeType(expr.getType());
+			write(expr.getSource(), Kind.OBJECT);
+			code.op(ACONST_NULL);
+			code.invoke(INVOKEVIRTUAL, VALUES, "doCast", "(L" + TYPE
+					+ ";Ljava/lang/Object;Lwyscript/util/SyntacticElement;)Ljava/lang/Object;");
+			coerce(Kind.OBJECT, to);
+		}
+		return to;
+	}
+
+	public Kind write(Expr.Constant expr) {
+		Object value = expr.getValue();
+		if (value instanceof Integer) {
+			code.iconst((Integer) value);
+		} else if (value instanceof Double) {
+			code.dconst((Double) value);
+		} else if (value instanceof Boolean) {
+			code.iconst(((Boolean) value) ? 1 : 0);
+		} else if (value instanceof Character) {
+			code.iconst((Character) value);
+		} else if (value instanceof StringBuffer) {
+			code.type(NEW, "wyscript/util/StringValue");
+			code.op(DUP);
+			code.sconst(value.toString());
+			code.invoke(INVOKESPECIAL, "wyscript/util/StringValue", "<init>",
+					"(Ljava/lang/CharSequence;)V");
+		} else {
+			code.op(ACONST_NULL);
+		}
+		return kindOf(expr);
+	}
+
+	public Kind write(Expr.Invoke expr) {
+		WyscriptFile.FunDecl fd = function(expr);
+		List<Expr> args = expr.getArguments();
+		for (int i = 0; i != args.size(); ++i) {
+			Kind kind = kindOf(fd.parameters.get(i).type);
+			write(args.get(i), kind);
+			if (kind == Kind.OBJECT) {
+				// The parameters of the callee hold their own copies of its
+				// arguments.
+				copy();
+			}
+		}
+		code.invoke(INVOKESTATIC, className, methodName(fd.name()), descriptor(fd));
+		return returnKind(fd);
+	}
+
+	public Kind write(Expr.IndexOf expr) {
+		Type type = typeOf(expr.getSource());
+		if (type instanceof Type.Strung) {
+			write(expr.getSource(), Kind.OBJECT);
+			write(expr.getIndex(), Kind.INT);
+			code.invoke(INVOKESTATIC, SUPPORT, "charAt", "(Ljava/lang/Object;I)C");
+			return Kind.CHAR;
+		} else if (type instanceof Type.List) {
+			write(expr.getSource(), Kind.OBJECT);
+			code.type(CHECKCAST, LIST);
+			write(expr.getIndex(), Kind.INT);
+			// An element whose kind is known is read without boxing it, if
+			// the list is stored unboxed. Likewise, an index known to be in
+			// bounds is not checked.
+			String get = expr.attribute(Attribute.InBounds.class) != null ? "Unchecked"
+					: "";
+			switch (kindOf(expr)) {
+			case INT:
+				code.invoke(INVOKEVIRTUAL, LIST, "getInt" + get, "(I)I");
+				return Kind.INT;
+			case REAL:
+				code.invoke(INVOKEVIRTUAL, LIST, "getReal" + get, "(I)D");
+				return Kind.REAL;
+			case BOOL:
+				code.invoke(INVOKEVIRTUAL, LIST, "getBool" + get, "(I)Z");
+				return Kind.BOOL;
+			case CHAR:
+				code.invoke(INVOKEVIRTUAL, LIST, "getChar" + get, "(I)C");
+				return Kind.CHAR;
+			}
+			code.invoke(INVOKEVIRTUAL, LIST, "get" + get, "(I)Ljava/lang/Object;");
+		} else {
+			write(expr.getSource(), Kind.OBJECT);
+			write(expr.getIndex(), Kind.INT);
+			code.invoke(INVOKESTATIC, SUPPORT, "indexOf",
+					"(Ljava/lang/Object;I)Ljava/lang/Object;");
+		}
+		return coerce(Kind.OBJECT, kindOf(expr));
+	}
+
+	/**
+	 * Push a type used by a cast or type test, which is loaded from the
+	 * <code>$types</code> field at runtime.
+	 */
+	private void writeType(Type type) {
+		code.field(GETSTATIC, className, TYPES_FIELD, TYPES_DESC);
+		code.iconst(types.size());
+		code.op(AALOAD);
+		types.add(type);
+	}
+
+	/**
+	 * Push the shape of a record being constructed, which is loaded from the
+	 * <code>$shapes</code> field at runtime.
+	 */
+	private void writeShape(Shape shape) {
+		int index = shapes.indexOf(shape);
+		if (index < 0) {
+			index = shapes.size();
+			shapes.add(shape);
+		}
+		code.field(GETSTATIC, className, SHAPES_FIELD, SHAPES_DESC);
+		code.iconst(index);
+		code.op(AALOAD);
+	}
+
+	/**
+	 * Push the field of a record to be accessed. Since records have no width
+	 * subtyping, a record of a known record type always has the same shape,
+	 * and so its field can be accessed by offset. Otherwise (e.g. for a union
+	 * of records), it must be accessed by name.
+	 *
+	 * @return The descriptor of the value pushed.
+	 */
+	private String writeField(Expr source, String name) {
+		Attribute.Type attr = source.attribute(Attribute.Type.class);
+		Type type = attr == null ? null : resolve(attr.type);
+		if (type instanceof Type.Record) {
+			Set<String> fields = ((Type.Record) type).getFields().keySet();
+			int offset = Shape.of(fields.toArray(new String[fields.size()]))
+					.offsetOf(name);
+			if (offset >= 0) {
+				code.iconst(offset);
+				return "I";
+			}
+		}
+		code.sconst(name);
+		return "Ljava/lang/String;";
+	}
+
+	// ======================================================================
+	// Kinds
+	// ======================================================================
+
+	/**
+	 * Determine the kind of value which a given expression is written as.
+	 * Arithmetic is only performed on unboxed values where both operands are
+	 * of the same primitive kind, since the type checker allows e.g. an
+	 * <code>int|real</code> operand in an <code>int</code> expression.
+	 */
+	private Kind kindOf(Expr expr) {
+		if (expr instanceof Expr.Constant) {
+			Object value = ((Expr.Constant) expr).getValue();
+			if (value instanceof Integer) {
+				return Kind.INT;
+			} else if (value instanceof Double) {
+				return Kind.REAL;
+			} else if (value instanceof Boolean) {
+				return Kind.BOOL;
+			} else if (value instanceof Character) {
+				return Kind.CHAR;
+			}
+			return Kind.OBJECT;
+		} else if (expr instanceof Expr.Variable) {
+			Expr.Variable v = (Expr.Variable) expr;
+			return v.isGlobal() ? constKinds.get(v.getSlot()) : slotKinds[v.getSlot()];
+		} else if (expr instanceof Expr.Binary) {
+			Expr.Binary b = (Expr.Binary) expr;
+			switch (b.getOp()) {
+			case ADD:
+			case SUB:
+			case MUL:
+			case DIV:
+			case REM:
+				Kind lhs = kindOf(b.getLhs());
+				Kind rhs = kindOf(b.getRhs());
+				if (lhs == rhs && (lhs == Kind.INT || lhs == Kind.REAL)) {
+					return lhs;
+				}
+				return Kind.OBJECT;
+			case APPEND:
+			case RANGE:
+				return Kind.OBJECT;
+			default:
+				return Kind.BOOL;
+			}
+		} else if (expr instanceof Expr.Unary) {
+			Expr.Unary u = (Expr.Unary) expr;
+			switch (u.getOp()) {
+			case NOT:
+				return Kind.BOOL;
+			case NEG:
+				Kind kind = kindOf(u.getExpr());
+				return kind == Kind.INT || kind == Kind.REAL ? kind : Kind.OBJECT;
+			default:
+				return Kind.INT;
+			}
+		} else if (expr instanceof Expr.Is) {
+			return Kind.BOOL;
+		} else if (expr instanceof Expr.Cast) {
+			return kindOf(((Expr.Cast) expr).getType());
+		} else if (expr instanceof Expr.Invoke) {
+			return returnKind(function((Expr.Invoke) expr));
+		} else if (expr instanceof Expr.IndexOf || expr instanceof Expr.RecordAccess
+				|| expr instanceof Expr.Deref) {
+			Attribute.Type attr = expr.attribute(Attribute.Type.class);
+			return attr == null ? Kind.OBJECT : kindOf(attr.type);
+		} else {
+			return Kind.OBJECT;
+		}
+	}
+
+	private Kind kindOf(Type type) {
+		type = resolve(type);
+		if (type instanceof Type.Int) {
+			return Kind.INT;
+		} else if (type instanceof Type.Real) {
+			return Kind.REAL;
+		} else if (type instanceof Type.Bool) {
+			return Kind.BOOL;
+		} else if (type instanceof Type.Char) {
+			return Kind.CHAR;
+		}
+		return Kind.OBJECT;
+	}
+
+	private Kind returnKind(WyscriptFile.FunDecl fd) {
+		return fd.ret instanceof Type.Void ? Kind.VOID : kindOf(fd.ret);
+	}
+
+	/**
+	 * Get the checked type of an expression, with any named type expanded.
+	 * Every expression is typed by the type checker, so a missing type is an
+	 * internal failure.
+	 */
+	private Type typeOf(Expr expr) {
+		Attribute.Type attr = expr.attribute(Attribute.Type.class);
+		if (attr == null) {
+			internalFailure("expression has no type (" + expr + ")",
+					file.filename, expr);
+		}
+		return resolve(attr.type);
+	}
+
+	/**
+	 * Expand a named type into its definition.
+	 */
+	private Type resolve(Type type) {
+		while (type instanceof Type.Named) {
+			Type t = userTypes.get(((Type.Named) type).getName());
+			if (t == null) {
+				break;
+			}
+			type = t;
+		}
+		return type;
+	}
+
+	/**
+	 * Convert the value on top of the stack from one kind to another. A
+	 * value of the wrong kind fails exactly as the interpreter would, with a
+	 * <code>ClassCastException</code>.
+	 *
+	 * @return The kind converted to.
+	 */
+	private Kind coerce(Kind from, Kind to) {
+		if (from == to) {
+			return to;
+		} else if (to == Kind.VOID) {
+			code.op(from == Kind.REAL ? POP2 : POP);
+		} else if (from == Kind.VOID) {
+			pushDefault(to);
+		} else {
+			switch (from) {
+			case INT:
+				code.invoke(INVOKESTATIC, "java/lang/Integer", "valueOf",
+						"(I)Ljava/lang/Integer;");
+				break;
+			case CHAR:
+				code.invoke(INVOKESTATIC, "java/lang/Character", "valueOf",
+						"(C)Ljava/lang/Character;");
+				break;
+			case BOOL:
+				code.invoke(INVOKESTATIC, "java/lang/Boolean", "valueOf",
+						"(Z)Ljava/lang/Boolean;");
+				break;
+			case REAL:
+				code.invoke(INVOKESTATIC, "java/lang/Double", "valueOf",
+						"(D)Ljava/lang/Double;");
+				break;
+			}
+			switch (to) {
+			case INT:
+				code.type(CHECKCAST, "java/lang/Integer");
+				code.invoke(INVOKEVIRTUAL, "java/lang/Integer", "intValue", "()I");
+				break;
+			case CHAR:
+				code.type(CHECKCAST, "java/lang/Character");
+				code.invoke(INVOKEVIRTUAL, "java/lang/Character", "charValue", "()C");
+				break;
+			case BOOL:
+				code.type(CHECKCAST, "java/lang/Boolean");
+				code.invoke(INVOKEVIRTUAL, "java/lang/Boolean", "booleanValue", "()Z");
+				break;
+			case REAL:
+				code.type(CHECKCAST, "java/lang/Double");
+				code.invoke(INVOKEVIRTUAL, "java/lang/Double", "doubleValue", "()D");
+				break;
+			}
+		}
+		return to;
+	}
+
+	private void pushDefault(Kind kind) {
+		switch (kind) {
+		case REAL:
+			code.dconst(0);
+			break;
+		case OBJECT:
+			code.op(ACONST_NULL);
+			break;
+		case VOID:
+			break;
+		default:
+			code.iconst(0);
+		}
+	}
+
+	// ======================================================================
+	// Helpers
+	// ======================================================================
+
+	private void copy() {
+		code.invoke(INVOKESTATIC, COW, "copy",
+				"(Ljava/lang/Object;)Ljava/lang/Object;");
+	}
+
+	private void release() {
+		code.invoke(INVOKESTATIC, COW, "release", "(Ljava/lang/Object;)V");
+	}
+
+	/**
+	 * Release the values held by locals, innermost first, down to a given
+	 * mark.
+	 */
+	private void releaseHeld(int mark) {
+		for (int i = held.size() - 1; i >= mark; --i) {
+			code.local(ALOAD, held.get(i));
+			release();
+		}
+	}
+
+	private void truncateHeld(int mark) {
+		while (held.size() > mark) {
+			held.remove(held.size() - 1);
+		}
+	}
+
+	/**
+	 * Get the local holding the variable in a given slot.
+	 */
+	private int local(int slot) {
+		if (slot < paramOffsets.length) {
+			return paramOffsets[slot];
+		}
+		return localsBase + 2 * (slot - paramOffsets.length);
+	}
+
+	/**
+	 * Allocate a temporary local of a given size. Temporaries are freed by
+	 * resetting <code>nextTemp</code>.
+	 */
+	private int temp(int size) {
+		int local = nextTemp;
+		nextTemp += size;
+		code.useLocals(nextTemp);
+		return local;
+	}
+
+	private WyscriptFile.FunDecl function(Expr.Invoke expr) {
+		WyscriptFile.FunDecl fd = functions.get(expr.getName());
+		if (fd == null) {
+			internalFailure("unknown function encountered (" + expr.getName()
+					+ ")", file.filename, expr);
+		}
+		return fd;
+	}
+
+	private String descriptor(WyscriptFile.FunDecl fd) {
+		StringBuilder desc = new StringBuilder("(");
+		for (WyscriptFile.Parameter p : fd.parameters) {
+			desc.append(kindOf(p.type).descriptor);
+		}
+		desc.append(")");
+		desc.append(returnKind(fd).descriptor);
+		return desc.toString();
+	}
+
+	private static String methodName(String name) {
+		for (String r : RESERVED) {
+			if (r.equals(name)) {
+				return name + "$";
+			}
+		}
+		return name;
+	}
+}
@@ -25,6 +25,7 @@ public class JavaScriptFileWriter {
 
 	private int forCount = 0;
 	private int switchCount = 0;	//Used to prevent issues with temporary variables
+	private ArrayList<Boolean> nativeSwitches = new ArrayList<Boolean>();	//Whether each enclosing switch is written as a native switch
 
 	public JavaScriptFileWriter(File file) throws IOException {
 		this.out = new PrintStream(new FileOutputStream(file));
@@ -41,6 +42,10 @@ public class JavaScriptFileWriter {
 		this.file = wf;
 		userTypes = new HashMap<String, Type>();
 
+		//Determine which values need not be cloned when they are stored
+		new VariableResolver().resolve(wf);
+		new CopyElision().analyse(wf);
+
 		//Next, sort out constants and named types
 		for (WyscriptFile.Decl declaration : wf.declarations) {
 			if (declaration instanceof WyscriptFile.ConstDecl) {
@@ -67,7 +72,7 @@ public class JavaScriptFileWriter {
 	 */
 	public void write(WyscriptFile.ConstDecl cd) {
 		Type t = cd.constant.attribute(Attribute.Type.class).type;
-		out.print("var "+ cd.name() + " = ");
+		out.print("var "+ constantName(cd.name()) + " = ");
 
 		if (t instanceof Type.Real) {
 			out.print("new Wyscript.Float(");
@@ -84,6 +89,16 @@ public class JavaScriptFileWriter {
 		out.println(";");
 	}
 
+	/**
+	 * Returns the name of the global variable holding a given constant. This differs
+	 * from the name of any local variable or parameter, so that a name which the
+	 * VariableResolver resolves to the constant is never captured by a local of the
+	 * same name.
+	 */
+	private static String constantName(String name) {
+		return "$WyConst_" + name;
+	}
+
 	/**
 	 * Writes a function - this writes an equivalent
 	 * javascript function
@@ -143,6 +158,12 @@ public class JavaScriptFileWriter {
 		//and then causes the switch's enclosing loop to repeat
 		else if (stmt instanceof Stmt.Next) {
 			indent(indent);
+
+			//In a native switch, breaking out of the case's block falls through to the next case
+			if (nativeSwitches.get(switchCount-1)) {
+				out.println("break next" + (switchCount-1) + ";");
+				return;
+			}
 			out.print("$WySwitch" + (switchCount-1) + " = ");
 
 			if (expr == null)
@@ -169,12 +190,12 @@ public class JavaScriptFileWriter {
 		indent(indent);
 		out.println("}");
 
-		for (Expr e : stmt.getAltExpressions()) {
+		for (Stmt.ElseIf alt : stmt.getAlts()) {
 			indent(indent);
 			out.print("else if(");
-			write(e);
+			write(alt.getCondition());
 			out.println(") {");
-			write(stmt.getAltBranch(e), indent+1, expr);
+			write(alt.getBody(), indent+1, expr);
 			indent(indent);
 			out.println("}");
 		}
@@ -215,6 +236,10 @@ public class JavaScriptFileWriter {
 		String name = "$WyTmp" + forCount++;
 		indent (indent);
 		out.println("var " + name + " = {}");
+		if ((stmt.getSource() instanceof Expr.Binary) && ((Expr.Binary)stmt.getSource()).getOp() == Expr.BOp.RANGE) {
+			writeRange(stmt, name, indent, expr);
+			return;
+		}
 		indent(indent);
 		out.print(name + ".list = ");
 		write(stmt.getSource());
@@ -241,6 +266,31 @@ public class JavaScriptFileWriter {
 		out.println("}");
 	}
 
+	/**
+	 * Writes a for each loop over a range, as a classical for loop whose counter
+	 * is a plain javascript number. Only the index variable is wrapped as a
+	 * Wyscript.Integer.
+	 */
+	private void writeRange(Stmt.For stmt, String name, int indent, Expr expr) {
+		Expr.Binary range = (Expr.Binary) stmt.getSource();
+		indent(indent);
+		out.print(name + ".count = ");
+		write(range.getLhs());
+		out.println(".num;");
+		indent(indent);
+		out.print(name + ".end = ");
+		write(range.getRhs());
+		out.println(".num;");
+		indent(indent);
+		out.print("for(; " + name + ".count < " + name + ".end; ");
+		out.println(name + ".count++) {");
+		indent(indent+1);
+		out.println("var " + stmt.getIndex().getName() + " = new Wyscript.Integer(" + name + ".count);");
+		write(stmt.getBody(),indent+1, expr);
+		indent(indent);
+		out.println("}");
+	}
+
 	public void write(Stmt.While stmt, int indent, Expr expr) {
 		indent(indent);
 		out.print("while(");
@@ -252,6 +302,12 @@ public class JavaScriptFileWriter {
 	}
 
 	public void write(Stmt.Switch stmt, int indent) {
+		String key = nativeSwitchKey(stmt);
+		if (key != null) {
+			writeNativeSwitch(stmt, key, indent);
+			return;
+		}
+
 		indent(indent);
 		//Need to make a labeled loop surrounding switch to simulate explicit fallthrough
 		out.print("var $WySwitch" + switchCount + " = ");
@@ -259,6 +315,7 @@ public class JavaScriptFileWriter {
 		out.println(";");
 		indent(indent);
 		out.println("label" + switchCount++ + ": while(true) {");
+		nativeSwitches.add(false);
 
 		//Now write the actual switch body
 		writeSwitchStatements(stmt.cases(), indent+1);
@@ -267,6 +324,137 @@ public class JavaScriptFileWriter {
 
 		//Reset the nested switch count, and delete the property
 		switchCount--;
+		nativeSwitches.remove(switchCount);
+	}
+
+	/**
+	 * Determines whether a switch can be written as a native JavaScript switch, which
+	 * is the case when its expression and every case constant are ints, chars or strings.
+	 *
+	 * @return The property holding the primitive value to switch on, or null if
+	 * a native switch cannot be used.
+	 */
+	private String nativeSwitchKey(Stmt.Switch stmt) {
+		String key = switchKey(stmt.getExpr());
+		if (key == null)
+			return null;
+
+		for (Stmt.SwitchStmt s : stmt.cases()) {
+			if (s instanceof Stmt.Case && !key.equals(switchKey(((Stmt.Case) s).getConstant())))
+				return null;
+		}
+		return key;
+	}
+
+	private String switchKey(Expr expr) {
+		Attribute.Type attr = expr.attribute(Attribute.Type.class);
+		if (attr == null)
+			return null;
+
+		Type t = convertNamedType(attr.type);
+		if (t instanceof Type.Int)
+			return ".num";
+		else if (t instanceof Type.Char)
+			return ".char";
+		else if (t instanceof Type.Strung)
+			return ".text";
+		return null;
+	}
+
+	/**
+	 * Writes a switch as a native JavaScript switch on the primitive value of its
+	 * expression. Each case is wrapped in a labelled block, so that a next statement
+	 * can break out of it and fall through to the following case.
+	 *
+	 * A default which is not the last case is written twice: in its place without a
+	 * label, where it is only reached by falling through from the case before it, and
+	 * again as the last clause of the switch, where it is reached when no case matches.
+	 */
+	private void writeNativeSwitch(Stmt.Switch stmt, String key, int indent) {
+		int n = switchCount++;
+		nativeSwitches.add(true);
+
+		indent(indent);
+		out.print("label" + n + ": switch(");
+		write(stmt.getExpr());
+		out.println(key + ") {");
+
+		List<Stmt.SwitchStmt> cases = stmt.cases();
+		Stmt.Default def = null;
+		for (int i = 0; i != cases.size(); ++i) {
+			Stmt.SwitchStmt s = cases.get(i);
+			if (s instanceof Stmt.Case) {
+				Stmt.Case c = (Stmt.Case) s;
+				indent(indent+1);
+				out.print("case ");
+				writeCaseConstant(c.getConstant(), key);
+				out.println(":");
+				writeCaseBlock(c.getStmts(), n, indent+2);
+			}
+			else if (i == cases.size() - 1) {
+				indent(indent+1);
+				out.println("default:");
+				writeCaseBlock(((Stmt.Default) s).getStmts(), n, indent+2);
+			}
+			else {
+				def = (Stmt.Default) s;
+				if (i != 0)
+					writeCaseBlock(def.getStmts(), n, indent+2);
+			}
+		}
+		if (def != null) {
+			indent(indent+1);
+			out.println("default:");
+			writeCaseBlock(def.getStmts(), n, indent+2);
+		}
+		indent(indent);
+		out.println("}");
+
+		switchCount--;
+		nativeSwitches.remove(switchCount);
+	}
+
+	private void writeCaseBlock(List<Stmt> body, int n, int indent) {
+		indent(indent);
+		out.println("next" + n + ": {");
+		write(body, indent+1, null);
+		indent(indent+1);
+		out.println("break label" + n + ";");
+		indent(indent);
+		out.println("}");
+	}
+
+	/**
+	 * Writes the primitive value of a case constant. Literals are written directly, so
+	 * that no object is constructed when the case is compared.
+	 */
+	private void writeCaseConstant(Expr expr, String key) {
+		if (expr instanceof Expr.Constant) {
+			Object val = ((Expr.Constant) expr).getValue();
+			if (val instanceof Integer) {
+				out.print(val);
+				return;
+			}
+			else if (val instanceof Character || val instanceof StringBuffer) {
+				out.print("'");
+				for (char c : val.toString().toCharArray()) {
+					if (c == '\\' || c == '\'')
+						out.print('\\');
+					if (c == '\n')
+						out.print("\\n");
+					else if (c == '\r')
+						out.print("\\r");
+					else if (c == '\t')
+						out.print("\\t");
+					else
+						out.print(c);
+				}
+				out.print("'");
+				return;
+			}
+		}
+		write(expr);
+		out.print(key);
 	}
 
 	/**
@@ -379,7 +567,7 @@ public class JavaScriptFileWriter {
 			out.print(".setValue(");
 			write(((Expr.IndexOf)stmt.getLhs()).getIndex());
 			out.print(", ");
-			write(stmt.getRhs());
+			writeCopy(stmt.getRhs());
 			out.println(");");
 		}
 		//Must use a library function to mutate a record
@@ -389,7 +577,7 @@ public class JavaScriptFileWriter {
 			out.print(".setValue('");
 			out.print(((Expr.RecordAccess)stmt.getLhs()).getName());
 			out.print("', ");
-			write(stmt.getRhs());
+			writeCopy(stmt.getRhs());
 			out.println(");");
 		}
 		//Must use a library function for a dereference assignment
@@ -397,7 +585,7 @@ public class JavaScriptFileWriter {
 			indent(indent);
 			write(((Expr.Deref)stmt.getLhs()).getExpr());
 			out.print(".setValue(");
-			write(stmt.getRhs());
+			writeCopy(stmt.getRhs());
 			out.println(");");
 		}
 		//Must use a library function for a tuple assignment
@@ -420,13 +608,10 @@ public class JavaScriptFileWriter {
 			indent(indent);
 			write(stmt.getLhs());
 			out.print(" = ");
-			write(stmt.getRhs());
 
 			//Handle pass by value
-			if (t instanceof Type.List || t instanceof Type.Record || t instanceof Type.Tuple)
-				out.println(".clone();");
-			else
-				out.println(";");
+			writeCopy(stmt.getRhs());
+			out.println(";");
 		}
 	}
 
@@ -451,14 +636,28 @@ public class JavaScriptFileWriter {
 		out.print("var " + stmt.getName());
 
 		if(init != null) {
-			Type t = init.attribute(Attribute.Type.class).type;
 			out.print(" = ");
-			write(init);
-			if (t instanceof Type.List || t instanceof Type.Record || t instanceof Type.Tuple)
-				out.print(".clone()");
+			writeCopy(init);
 		}
 	}
 
+	/**
+	 * Writes an expression whose value is being stored in a variable, list element,
+	 * record field or reference, or passed to a function. To preserve pass by value, lists, records and tuples are cloned,
+	 * unless the copy elision analysis has found this to be unnecessary.
+	 */
+	private void writeCopy(Expr expr) {
+		write(expr);
+		if (expr.attribute(Attribute.Move.class) != null)
+			return;
+
+		Type t = expr.attribute(Attribute.Type.class).type;
+		while (t instanceof Type.Named)
+			t = userTypes.get(((Type.Named) t).getName());
+		if (t instanceof Type.List || t instanceof Type.Record || t instanceof Type.Tuple)
+			out.print(".clone()");
+	}
+
 	public void write(Expr expr) {
 		if(expr instanceof Expr.Binary) {
 			write((Expr.Binary) expr);
@@ -507,11 +706,15 @@ public class JavaScriptFileWriter {
 			return;
 
 		case RANGE:
-			out.print("(Wyscript.range(");
+			//A for each loop over a range is handled by writeRange, so this is
+			//only reached when the range is used as a list value
+			out.print("new Wyscript.List(Wyscript.range(");
 			write(expr.getLhs());
 			out.print(", ");
 			write(expr.getRhs());
-			out.print("))");
+			out.print("), ");
+			write(expr.attribute(Attribute.Type.class).type);
+			out.print(")");
 			return;
 
 		case AND:
@@ -698,14 +901,11 @@ public class JavaScriptFileWriter {
 		out.print(expr.getName() + "(");
 		boolean firstTime=true;
 		for(Expr arg : expr.getArguments()) {
-			Type t = arg.attribute(Attribute.Type.class).type;
 			if(!firstTime) {
 				out.print(",");
 			}
 			firstTime=false;
-			write(arg);
-			if (t instanceof Type.List || t instanceof Type.Record || t instanceof Type.Tuple)
-				out.print(".clone()");
+			writeCopy(arg);
 		}
 		out.print(")");
 	}
@@ -792,7 +992,7 @@ public class JavaScriptFileWriter {
 	}
 
 	public void write(Expr.Variable expr) {
-		out.print(expr.getName());
+		out.print(expr.isGlobal() ? constantName(expr.getName()) : expr.getName());
 	}
 
 	public void write(Expr.Is expr) {
@@ -809,7 +1009,7 @@ public class JavaScriptFileWriter {
 
 	public void write(Expr.New expr) {
 		out.print("new Wyscript.Ref(");
-		write(expr.getExpr());
+		writeCopy(expr.getExpr());
 		out.print(")");
 	}
 
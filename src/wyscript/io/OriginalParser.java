@@ -298,7 +298,7 @@ public class OriginalParser {
 			}
 		}
 
-		return new Stmt.IfElse(c, tblk, new HashMap<Expr, List<Stmt>>(), fblk, sourceAttr(start, end - 1));
+		return new Stmt.IfElse(c, tblk, new ArrayList<Stmt.ElseIf>(), fblk, sourceAttr(start, end - 1));
 	}
 
 	private Stmt parseWhile() {
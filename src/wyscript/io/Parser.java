@@ -796,7 +796,7 @@ public class Parser {
 		// expression representing the condition.
 		boolean valid = true;
 		Set<Token.Kind> followSet = new HashSet<Token.Kind>(parentFollow);
-		Map<Expr, List<Stmt>> alts = new HashMap<Expr, List<Stmt>>(); //The map of else-if alternatives
+		List<Stmt.ElseIf> alts = new ArrayList<Stmt.ElseIf>(); //The else-if alternatives, in order
 		followSet.add(Colon);
 
 		Expr c = parseLogicalExpression(errors, true, followSet);
@@ -867,16 +867,16 @@ public class Parser {
 					if (tokens.get(index).kind != Else)
 						return null;
 				}
-				//Add to the map of else-if alternatives
+				//Add to the list of else-if alternatives
 				if (valid)
-					alts.put(e, blk);
+					alts.add(new Stmt.ElseIf(e, blk));
 
 				if (! parentFollow.contains(Else))
 					followSet.remove(Else);
 				if (tryAndMatch(Else, true) == null) {
 					return (valid) ? new Stmt.IfElse(c, tblk, alts, fblk, sourceAttr(start, end - 1))
 					   			   : new Stmt.IfElse(null, new ArrayList<Stmt>(),
-					   					   new HashMap<Expr, List<Stmt>>(), new ArrayList<Stmt>());
+					   					   new ArrayList<Stmt.ElseIf>(), new ArrayList<Stmt>());
 				}
 
 			}
@@ -891,7 +891,7 @@ public class Parser {
 		}
 		// Done!
 		return (valid) ? new Stmt.IfElse(c, tblk, alts, fblk, sourceAttr(start, end - 1))
-					   : new Stmt.IfElse(null, new ArrayList<Stmt>(), new HashMap<Expr, List<Stmt>>(), new ArrayList<Stmt>());
+					   : new Stmt.IfElse(null, new ArrayList<Stmt>(), new ArrayList<Stmt.ElseIf>(), new ArrayList<Stmt>());
 	}
 
 	/**
@@ -0,0 +1,86 @@
+// This file is part of the WyScript Compiler (wysc).
+//
+// The WyScript Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WyScript Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WyScript Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+//
+// Copyright 2013, David James Pearce.
+
+package wyscript.ir;
+
+import java.util.ArrayList;
+
+/**
+ * A basic block, which is a sequence of instructions executed one after the
+ * other, ending in a terminator. Any phi instructions come before the rest,
+ * and are kept separately. The operands of each phi correspond, in order, to
+ * the predecessors of the block.
+ */
+public final class Block {
+
+	/**
+	 * The number of this block within its function.
+	 */
+	public int id;
+
+	public final ArrayList<Block> predecessors = new ArrayList<Block>();
+
+	public final ArrayList<Instruction> phis = new ArrayList<Instruction>();
+
+	public final ArrayList<Instruction> instructions = new ArrayList<Instruction>();
+
+	public void add(Instruction instruction) {
+		instruction.block = this;
+		instructions.add(instruction);
+	}
+
+	public void addPhi(Instruction phi) {
+		phi.block = this;
+		phis.add(phi);
+	}
+
+	/**
+	 * Get the last instruction of this block, provided it is a terminator.
+	 */
+	public Instruction terminator() {
+		if (instructions.isEmpty()) {
+			return null;
+		}
+		Instruction last = instructions.get(instructions.size() - 1);
+		return last.op.isTerminator() ? last : null;
+	}
+
+	public Block[] successors() {
+		Instruction t = terminator();
+		return t == null ? new Block[0] : t.targets;
+	}
+
+	/**
+	 * Remove a given predecessor of this block, along with the operand of each
+	 * phi which corresponds to it.
+	 */
+	public void removePredecessor(Block pred) {
+		int k = predecessors.indexOf(pred);
+		predecessors.remove(k);
+		for (Instruction phi : phis) {
+			Instruction[] ops = new Instruction[phi.operands.length - 1];
+			System.arraycopy(phi.operands, 0, ops, 0, k);
+			System.arraycopy(phi.operands, k + 1, ops, k, ops.length - k);
+			phi.operands = ops;
+		}
+	}
+
+	public String toString() {
+		return "b" + id;
+	}
+}
@@ -0,0 +1,885 @@
+// This file is part of the WyScript Compiler (wysc).
+//
+// The WyScript Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WyScript Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WyScript Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+//
+// Copyright 2013, David James Pearce.
+
+package wyscript.ir;
+
+import static wyscript.util.SyntaxError.internalFailure;
+
+import java.util.*;
+
+import wyscript.ir.Instruction.Op;
+import wyscript.lang.*;
+import wyscript.util.Attribute;
+import wyscript.util.Pair;
+import wyscript.util.VariableResolver;
+
+/**
+ * <p>
+ * Lowers a (type-checked) WyScript program into SSA form. Every statement is
+ * translated into the basic blocks of its function, and every expression into
+ * the instructions which compute it, in the order the reference
+ * <code>Interpreter</code> evaluates them.
+ * </p>
+ * <p>
+ * SSA form is constructed as the program is lowered, using the algorithm of
+ * Braun et al. ("Simple and Efficient Construction of Static Single Assignment
+ * Form", CC 2013). The current value of each variable is recorded for each
+ * block in which it is assigned. When a variable is read in a block which
+ * does not assign it, its value is looked up in the predecessors of that
+ * block, placing a phi where they join. A block whose predecessors are not all
+ * known yet (i.e. a loop header) is left unsealed, and any phis placed in it
+ * are completed once it is sealed. This may leave behind phis which merge the
+ * same value, which are removed by <code>SimplifyCfg</code>.
+ * </p>
+ */
+public class Builder {
+	private WyscriptFile file;
+	private HashMap<String, Type> userTypes;
+	private HashMap<String, Function> functions;
+
+	// The state of the function currently being lowered
+	private Function function;
+	private Block current;
+	private HashMap<Block, HashMap<Object, Instruction>> definitions;
+	private HashMap<Block, HashMap<Object, Instruction>> incomplete;
+	private HashSet<Block> sealed;
+
+	/**
+	 * The declared type of each variable, which is given to the phis which
+	 * merge its values. A variable is identified by its slot, or by an object
+	 * of its own for the counters introduced by for loops.
+	 */
+	private HashMap<Object, Type> types;
+
+	/**
+	 * The target of a next statement in the current case body.
+	 */
+	private Block nextTarget;
+
+	public Module build(WyscriptFile wf) {
+		// First, assign every variable a slot in its enclosing stack frame,
+		// which identifies it here.
+		new VariableResolver().resolve(wf);
+
+		this.file = wf;
+		userTypes = new HashMap<String, Type>();
+		functions = new HashMap<String, Function>();
+		ArrayList<String> globals = new ArrayList<String>();
+		ArrayList<Function> fs = new ArrayList<Function>();
+
+		for (WyscriptFile.Decl decl : wf.declarations) {
+			if (decl instanceof WyscriptFile.FunDecl) {
+				WyscriptFile.FunDecl fd = (WyscriptFile.FunDecl) decl;
+				ArrayList<Type> params = new ArrayList<Type>();
+				for (WyscriptFile.Parameter p : fd.parameters) {
+					params.add(p.type);
+				}
+				Function f = new Function(fd.name(), fd.Native, params, fd.ret);
+				functions.put(fd.name(), f);
+				fs.add(f);
+			} else if (decl instanceof WyscriptFile.TypeDecl) {
+				WyscriptFile.TypeDecl td = (WyscriptFile.TypeDecl) decl;
+				userTypes.put(td.name(), td.type);
+			} else if (decl instanceof WyscriptFile.ConstDecl) {
+				globals.add(decl.name());
+			}
+		}
+
+		for (WyscriptFile.Decl decl : wf.declarations) {
+			if (decl instanceof WyscriptFile.FunDecl) {
+				WyscriptFile.FunDecl fd = (WyscriptFile.FunDecl) decl;
+				build(fd, functions.get(fd.name()));
+			}
+		}
+
+		// The constants are initialised in order of declaration
+		Function init = new Function("$init", false, new ArrayList<Type>(),
+				new Type.Void());
+		begin(init);
+		int nConstants = 0;
+		for (WyscriptFile.Decl decl : wf.declarations) {
+			if (decl instanceof WyscriptFile.ConstDecl) {
+				WyscriptFile.ConstDecl cd = (WyscriptFile.ConstDecl) decl;
+				emit(Op.SETGLOBAL, null, nConstants++, lower(cd.constant));
+			}
+		}
+		emit(Op.RETURN, null, null);
+		init.renumber();
+
+		return new Module(wf.filename, userTypes, globals, fs, init);
+	}
+
+	private void build(WyscriptFile.FunDecl fd, Function f) {
+		if (fd.Native) {
+			return;
+		}
+		begin(f);
+		// The parameters occupy the first slots
+		for (int i = 0; i != fd.parameters.size(); ++i) {
+			Type t = fd.parameters.get(i).type;
+			types.put(i, t);
+			write(i, current, emit(Op.PARAM, t, i));
+		}
+		lower(fd.statements);
+		if (current != null) {
+			// An implicit return of null ends the last block
+			emit(Op.RETURN, null, null, constant(new Type.Null(), null));
+		}
+		f.renumber();
+	}
+
+	private void begin(Function f) {
+		function = f;
+		definitions = new HashMap<Block, HashMap<Object, Instruction>>();
+		incomplete = new HashMap<Block, HashMap<Object, Instruction>>();
+		sealed = new HashSet<Block>();
+		types = new HashMap<Object, Type>();
+		nextTarget = null;
+		current = f.newBlock();
+		seal(current);
+	}
+
+	// ======================================================================
+	// Statements
+	// ======================================================================
+
+	private void lower(List<Stmt> block) {
+		for (Stmt s : block) {
+			if (current == null) {
+				// The rest of this block can never be reached
+				return;
+			}
+			lower(s);
+		}
+	}
+
+	private void lower(Stmt stmt) {
+		if (stmt instanceof Stmt.Assign) {
+			lower((Stmt.Assign) stmt);
+		} else if (stmt instanceof Stmt.Print) {
+			emit(Op.PRINT, null, null, lower(((Stmt.Print) stmt).getExpr()));
+		} else if (stmt instanceof Stmt.Return) {
+			Expr e = ((Stmt.Return) stmt).getExpr();
+			if (e != null) {
+				emit(Op.RETURN, null, null, lower(e));
+			} else {
+				emit(Op.RETURN, null, null);
+			}
+			current = null;
+		} else if (stmt instanceof Stmt.VariableDeclaration) {
+			lower((Stmt.VariableDeclaration) stmt);
+		} else if (stmt instanceof Expr.Invoke) {
+			lower((Expr.Invoke) stmt);
+		} else if (stmt instanceof Stmt.IfElse) {
+			lower((Stmt.IfElse) stmt);
+		} else if (stmt instanceof Stmt.OldFor) {
+			lower((Stmt.OldFor) stmt);
+		} else if (stmt instanceof Stmt.For) {
+			lower((Stmt.For) stmt);
+		} else if (stmt instanceof Stmt.While) {
+			lower((Stmt.While) stmt);
+		} else if (stmt instanceof Stmt.Switch) {
+			lower((Stmt.Switch) stmt);
+		} else if (stmt instanceof Stmt.Next) {
+			jump(nextTarget);
+		} else {
+			internalFailure("unknown statement encountered (" + stmt + ")",
+					file.filename, stmt);
+		}
+	}
+
+	private void lower(Stmt.Assign stmt) {
+		Expr.LVal lhs = stmt.getLhs();
+		Instruction rhs = lower(stmt.getRhs());
+		if (lhs instanceof Expr.Tuple) {
+			// Each lval is assigned a TUPLEGET of the tuple
+			List<Expr> exprs = ((Expr.Tuple) lhs).getExprs();
+			for (int i = 0; i != exprs.size(); ++i) {
+				Expr e = exprs.get(i);
+				assign(e, emit(Op.TUPLEGET, typeOf(e), i, rhs));
+			}
+		} else {
+			assign(lhs, rhs);
+		}
+	}
+
+	/**
+	 * Assign a given value to an lval. As in the <code>CodeGenerator</code>,
+	 * the keys along the lval are evaluated after the right-hand side. Every
+	 * compound value along the lval is then rebuilt with the updated value in
+	 * place of the old one, and the result assigned to its variable.
+	 */
+	private void assign(Expr lval, Instruction value) {
+		IdentityHashMap<Expr, Instruction> keys = new IdentityHashMap<Expr, Instruction>();
+		lowerKeys(lval, keys);
+		update(lval, value, keys);
+	}
+
+	private void lowerKeys(Expr lval, Map<Expr, Instruction> keys) {
+		if (lval instanceof Expr.IndexOf) {
+			Expr.IndexOf io = (Expr.IndexOf) lval;
+			lowerKeys(io.getSource(), keys);
+			keys.put(io, lower(io.getIndex()));
+		} else if (lval instanceof Expr.RecordAccess) {
+			lowerKeys(((Expr.RecordAccess) lval).getSource(), keys);
+		} else if (lval instanceof Expr.Deref) {
+			keys.put(lval, lower(((Expr.Deref) lval).getExpr()));
+		}
+	}
+
+	private void update(Expr lval, Instruction value, Map<Expr, Instruction> keys) {
+		if (lval instanceof Expr.Variable) {
+			write(((Expr.Variable) lval).getSlot(), current, value);
+		} else if (lval instanceof Expr.IndexOf) {
+			Expr src = ((Expr.IndexOf) lval).getSource();
+			update(src, emit(Op.SETINDEX, typeOf(src), null, load(src, keys),
+					keys.get(lval), value), keys);
+		} else if (lval instanceof Expr.RecordAccess) {
+			Expr.RecordAccess ra = (Expr.RecordAccess) lval;
+			Expr src = ra.getSource();
+			update(src, emit(Op.SETFIELD, typeOf(src), ra.getName(), load(src,
+					keys), value), keys);
+		} else if (lval instanceof Expr.Deref) {
+			// A reference is shared, so it is updated rather than rebuilt
+			emit(Op.SETDEREF, null, null, keys.get(lval), value);
+		} else {
+			internalFailure("unknown lval encountered (" + lval + ")",
+					file.filename, lval);
+		}
+	}
+
+	/**
+	 * Get the current value of an lval, using keys which have already been
+	 * evaluated.
+	 */
+	private Instruction load(Expr lval, Map<Expr, Instruction> keys) {
+		if (lval instanceof Expr.IndexOf) {
+			Expr.IndexOf io = (Expr.IndexOf) lval;
+			return emit(Op.INDEX, typeOf(io), null, load(io.getSource(), keys),
+					keys.get(io));
+		} else if (lval instanceof Expr.RecordAccess) {
+			Expr.RecordAccess ra = (Expr.RecordAccess) lval;
+			return emit(Op.FIELD, typeOf(ra), ra.getName(), load(ra.getSource(),
+					keys));
+		} else if (lval instanceof Expr.Deref) {
+			return emit(Op.DEREF, typeOf(lval), null, keys.get(lval));
+		} else {
+			return lower(lval);
+		}
+	}
+
+	private void lower(Stmt.VariableDeclaration stmt) {
+		Instruction value;
+		if (stmt.getExpr() != null) {
+			value = lower(stmt.getExpr());
+		} else {
+			// used to indicate a variable has been declared
+			value = constant(stmt.getType(), Collections.EMPTY_SET);
+		}
+		types.put(stmt.getSlot(), stmt.getType());
+		write(stmt.getSlot(), current, value);
+	}
+
+	private void lower(Stmt.IfElse stmt) {
+		Block end = function.newBlock();
+		Block next = function.newBlock();
+		branch(lower(stmt.getCondition()), next, end, stmt.getTrueBranch());
+
+		for (Stmt.ElseIf alt : stmt.getAlts()) {
+			current = next;
+			next = function.newBlock();
+			branch(lower(alt.getCondition()), next, end, alt.getBody());
+		}
+
+		current = next;
+		lower(stmt.getFalseBranch());
+		join(end);
+	}
+
+	/**
+	 * Branch on a given condition, lowering the block executed when it holds,
+	 * after which control continues at a given end.
+	 *
+	 * @param next
+	 *            The block to continue lowering at when the condition does
+	 *            not hold.
+	 */
+	private void branch(Instruction condition, Block next, Block end,
+			List<Stmt> body) {
+		Block taken = function.newBlock();
+		branch(condition, taken, next);
+		seal(taken);
+		seal(next);
+		current = taken;
+		lower(body);
+		if (current != null) {
+			jump(end);
+		}
+	}
+
+	private void lower(Stmt.While stmt) {
+		Block header = function.newBlock();
+		jump(header);
+		current = header;
+		Instruction condition = lower(stmt.getCondition());
+		Block body = function.newBlock();
+		Block exit = function.newBlock();
+		branch(condition, body, exit);
+		seal(body);
+		seal(exit);
+
+		current = body;
+		lower(stmt.getBody());
+		if (current != null) {
+			jump(header);
+		}
+		seal(header);
+		current = exit;
+	}
+
+	private void lower(Stmt.OldFor stmt) {
+		if (stmt.getDeclaration() != null) {
+			lower(stmt.getDeclaration());
+		}
+		Block header = function.newBlock();
+		jump(header);
+		current = header;
+		Block exit = null;
+		if (stmt.getCondition() != null) {
+			Instruction condition = lower(stmt.getCondition());
+			Block body = function.newBlock();
+			exit = function.newBlock();
+			branch(condition, body, exit);
+			seal(body);
+			seal(exit);
+			current = body;
+		}
+
+		lower(stmt.getBody());
+		if (current != null && stmt.getIncrement() != null) {
+			lower(stmt.getIncrement());
+		}
+		if (current != null) {
+			jump(header);
+		}
+		seal(header);
+		current = exit;
+	}
+
+	/**
+	 * Lowers a for loop. A counter runs from zero to the length of its source
+	 * list, and the index variable is assigned the element at it. For a range, the counter runs between its bounds and is
+	 * itself the value of the index variable.
+	 */
+	private void lower(Stmt.For stmt) {
+		Expr src = stmt.getSource();
+		Instruction list = null;
+		Instruction start;
+		Instruction end;
+		if (src instanceof Expr.Binary
+				&& ((Expr.Binary) src).getOp() == Expr.BOp.RANGE) {
+			start = lower(((Expr.Binary) src).getLhs());
+			end = lower(((Expr.Binary) src).getRhs());
+		} else {
+			list = lower(src);
+			start = constant(new Type.Int(), 0);
+			end = emit(Op.LENGTHOF, new Type.Int(), null, list);
+		}
+
+		Object counter = new Object();
+		types.put(counter, new Type.Int());
+		write(counter, current, start);
+
+		Block header = function.newBlock();
+		jump(header);
+		current = header;
+		Instruction i = read(counter, current);
+		Instruction condition = emit(Op.LT, new Type.Bool(), null, i, end);
+		Block body = function.newBlock();
+		Block exit = function.newBlock();
+		branch(condition, body, exit);
+		seal(body);
+		seal(exit);
+
+		current = body;
+		int slot = stmt.getIndex().getSlot();
+		if (list != null) {
+			Type element = elementOf(typeOf(src));
+			types.put(slot, element);
+			write(slot, current, emit(Op.INDEX, element, null, list, i));
+		} else {
+			types.put(slot, new Type.Int());
+			write(slot, current, i);
+		}
+		lower(stmt.getBody());
+		if (current != null) {
+			Instruction next = emit(Op.ADD, new Type.Int(), null, read(counter,
+					current), constant(new Type.Int(), 1));
+			write(counter, current, next);
+			jump(header);
+		}
+		seal(header);
+		current = exit;
+	}
+
+	/**
+	 * Lowers a switch statement into a chain of equality tests, each branching
+	 * to the block holding the body of its case. A next statement jumps to the
+	 * block of the following body. A default which is not the last body is
+	 * lowered into a second block, reached when no test succeeds, from which a
+	 * next statement jumps to the exit.
+	 */
+	private void lower(Stmt.Switch stmt) {
+		Block oldTarget = nextTarget;
+		Instruction value = lower(stmt.getExpr());
+
+		List<Stmt.SwitchStmt> cases = stmt.cases();
+		Block[] bodies = new Block[cases.size()];
+		int defIndex = -1;
+		for (int i = 0; i != bodies.length; ++i) {
+			bodies[i] = function.newBlock();
+		}
+		for (int i = 0; i != bodies.length; ++i) {
+			Stmt.SwitchStmt s = cases.get(i);
+			if (s instanceof Stmt.Case) {
+				Instruction c = lower(((Stmt.Case) s).getConstant());
+				Instruction test = emit(Op.EQ, new Type.Bool(), null, c, value);
+				Block next = function.newBlock();
+				branch(test, bodies[i], next);
+				seal(next);
+				current = next;
+			} else {
+				defIndex = i;
+			}
+		}
+
+		Block end = function.newBlock();
+		Block fallback = null;
+		if (defIndex < 0) {
+			jump(end);
+		} else if (defIndex == bodies.length - 1) {
+			jump(bodies[defIndex]);
+		} else {
+			fallback = function.newBlock();
+			jump(fallback);
+		}
+
+		for (int i = 0; i != bodies.length; ++i) {
+			// Every jump to this body has now been lowered
+			seal(bodies[i]);
+			if (bodies[i].predecessors.isEmpty()) {
+				function.blocks.remove(bodies[i]);
+				continue;
+			}
+			current = bodies[i];
+			nextTarget = i + 1 < bodies.length ? bodies[i + 1] : end;
+			lower(body(cases.get(i)));
+			if (current != null) {
+				jump(end);
+			}
+		}
+		if (fallback != null) {
+			seal(fallback);
+			current = fallback;
+			nextTarget = end;
+			lower(body(cases.get(defIndex)));
+			if (current != null) {
+				jump(end);
+			}
+		}
+		join(end);
+		nextTarget = oldTarget;
+	}
+
+	private static List<Stmt> body(Stmt.SwitchStmt s) {
+		if (s instanceof Stmt.Case) {
+			return ((Stmt.Case) s).getStmts();
+		} else {
+			return ((Stmt.Default) s).getStmts();
+		}
+	}
+
+	/**
+	 * Continue lowering at a block which joins several branches, once every
+	 * branch has been lowered. If none of them reach it, then neither can
+	 * anything which follows.
+	 */
+	private void join(Block end) {
+		if (current != null) {
+			jump(end);
+		}
+		seal(end);
+		if (end.predecessors.isEmpty()) {
+			function.blocks.remove(end);
+			current = null;
+		} else {
+			current = end;
+		}
+	}
+
+	// ======================================================================
+	// Expressions
+	// ======================================================================
+
+	/**
+	 * Lower a given expression.
+	 *
+	 * @return The instruction which defines its value.
+	 */
+	private Instruction lower(Expr expr) {
+		if (expr instanceof Expr.Variable) {
+			Expr.Variable v = (Expr.Variable) expr;
+			if (v.isGlobal()) {
+				return emit(Op.GLOBAL, typeOf(v), v.getSlot());
+			}
+			return read(v.getSlot(), current);
+		} else if (expr instanceof Expr.Constant) {
+			return constant(typeOf(expr), ((Expr.Constant) expr).getValue());
+		} else if (expr instanceof Expr.Binary) {
+			return lower((Expr.Binary) expr);
+		} else if (expr instanceof Expr.Unary) {
+			Expr.Unary e = (Expr.Unary) expr;
+			Instruction operand = lower(e.getExpr());
+			switch (e.getOp()) {
+			case NOT:
+				return emit(Op.NOT, typeOf(e), null, operand);
+			case NEG:
+				return emit(Op.NEG, typeOf(e), null, operand);
+			default:
+				return emit(Op.LENGTHOF, typeOf(e), null, operand);
+			}
+		} else if (expr instanceof Expr.Is) {
+			Expr.Is e = (Expr.Is) expr;
+			return emit(Op.IS, new Type.Bool(), e.getRhs(), lower(e.getLhs()));
+		} else if (expr instanceof Expr.Cast) {
+			Expr.Cast e = (Expr.Cast) expr;
+			return emit(Op.CAST, typeOf(e), e.getType(), lower(e.getSource()));
+		} else if (expr instanceof Expr.Invoke) {
+			return lower((Expr.Invoke) expr);
+		} else if (expr instanceof Expr.IndexOf) {
+			Expr.IndexOf e = (Expr.IndexOf) expr;
+			Instruction src = lower(e.getSource());
+			return emit(Op.INDEX, typeOf(e), null, src, lower(e.getIndex()));
+		} else if (expr instanceof Expr.ListConstructor) {
+			List<Expr> args = ((Expr.ListConstructor) expr).getArguments();
+			return emit(Op.LIST, typeOf(expr), elementOf(typeOf(expr)),
+					lowerAll(args));
+		} else if (expr instanceof Expr.RecordAccess) {
+			Expr.RecordAccess e = (Expr.RecordAccess) expr;
+			return emit(Op.FIELD, typeOf(e), e.getName(), lower(e.getSource()));
+		} else if (expr instanceof Expr.RecordConstructor) {
+			List<Pair<String, Expr>> fields = ((Expr.RecordConstructor) expr).getFields();
+			String[] names = new String[fields.size()];
+			ArrayList<Expr> args = new ArrayList<Expr>();
+			for (int i = 0; i != names.length; ++i) {
+				names[i] = fields.get(i).first();
+				args.add(fields.get(i).second());
+			}
+			return emit(Op.RECORD, typeOf(expr), names, lowerAll(args));
+		} else if (expr instanceof Expr.Tuple) {
+			return emit(Op.TUPLE, typeOf(expr), null,
+					lowerAll(((Expr.Tuple) expr).getExprs()));
+		} else if (expr instanceof Expr.Deref) {
+			return emit(Op.DEREF, typeOf(expr), null,
+					lower(((Expr.Deref) expr).getExpr()));
+		} else if (expr instanceof Expr.New) {
+			return emit(Op.NEW, typeOf(expr), null,
+					lower(((Expr.New) expr).getExpr()));
+		} else {
+			internalFailure("unknown expression encountered (" + expr + ")",
+					file.filename, expr);
+			return null;
+		}
+	}
+
+	private Instruction[] lowerAll(List<Expr> exprs) {
+		Instruction[] values = new Instruction[exprs.size()];
+		for (int i = 0; i != values.length; ++i) {
+			values[i] = lower(exprs.get(i));
+		}
+		return values;
+	}
+
+	private Instruction lower(Expr.Binary expr) {
+		Op op;
+		switch (expr.getOp()) {
+		case AND:
+		case OR: {
+			// These are short-circuiting, and so the right-hand side is
+			// evaluated in a block of its own.
+			Instruction lhs = lower(expr.getLhs());
+			Block rest = function.newBlock();
+			Block end = function.newBlock();
+			if (expr.getOp() == Expr.BOp.AND) {
+				branch(lhs, rest, end);
+			} else {
+				branch(lhs, end, rest);
+			}
+			seal(rest);
+			current = rest;
+			Instruction rhs = lower(expr.getRhs());
+			jump(end);
+			seal(end);
+			current = end;
+			Instruction phi = new Instruction(Op.PHI, new Type.Bool(), null,
+					lhs, rhs);
+			end.addPhi(phi);
+			return phi;
+		}
+		case ADD:
+			op = Op.ADD;
+			break;
+		case SUB:
+			op = Op.SUB;
+			break;
+		case MUL:
+			op = Op.MUL;
+			break;
+		case DIV:
+			op = Op.DIV;
+			break;
+		case REM:
+			op = Op.REM;
+			break;
+		case EQ:
+			op = Op.EQ;
+			break;
+		case NEQ:
+			op = Op.NEQ;
+			break;
+		case LT:
+			op = Op.LT;
+			break;
+		case LTEQ:
+			op = Op.LTEQ;
+			break;
+		case GT:
+			op = Op.GT;
+			break;
+		case GTEQ:
+			op = Op.GTEQ;
+			break;
+		case APPEND:
+			op = Op.APPEND;
+			break;
+		case RANGE:
+			op = Op.RANGE;
+			break;
+		default:
+			internalFailure("unknown binary expression encountered (" + expr
+					+ ")", file.filename, expr);
+			return null;
+		}
+		Instruction lhs = lower(expr.getLhs());
+		Instruction rhs = lower(expr.getRhs());
+		return emit(op, typeOf(expr), null, lhs, rhs);
+	}
+
+	private Instruction lower(Expr.Invoke expr) {
+		Function f = functions.get(expr.getName());
+		if (f == null) {
+			internalFailure("unknown function encountered (" + expr.getName()
+					+ ")", file.filename, expr);
+		}
+		Instruction[] args = lowerAll(expr.getArguments());
+		Type t = typeOf(expr);
+		return emit(Op.CALL, t != null ? t : f.ret, f, args);
+	}
+
+	// ======================================================================
+	// SSA construction
+	// ======================================================================
+
+	private void write(Object variable, Block block, Instruction value) {
+		HashMap<Object, Instruction> defs = definitions.get(block);
+		if (defs == null) {
+			defs = new HashMap<Object, Instruction>();
+			definitions.put(block, defs);
+		}
+		defs.put(variable, value);
+	}
+
+	/**
+	 * Get the value which a given variable holds on entry to the end of a
+	 * given block.
+	 */
+	private Instruction read(Object variable, Block block) {
+		HashMap<Object, Instruction> defs = definitions.get(block);
+		Instruction value = defs == null ? null : defs.get(variable);
+		if (value != null) {
+			return value;
+		}
+		if (!sealed.contains(block)) {
+			// Not every predecessor is known yet, so the phi is completed once
+			// they are.
+			value = phi(block, variable);
+			HashMap<Object, Instruction> phis = incomplete.get(block);
+			if (phis == null) {
+				phis = new HashMap<Object, Instruction>();
+				incomplete.put(block, phis);
+			}
+			phis.put(variable, value);
+		} else if (block.predecessors.size() == 1) {
+			value = read(variable, block.predecessors.get(0));
+		} else if (block.predecessors.isEmpty()) {
+			// The variable has not been assigned on this path
+			value = new Instruction(Op.CONST, types.get(variable),
+					Collections.EMPTY_SET);
+			value.block = function.entry();
+			function.entry().instructions.add(0, value);
+		} else {
+			// The phi is recorded before its operands are looked up, in case
+			// this block is reached again in doing so.
+			value = phi(block, variable);
+			write(variable, block, value);
+			addOperands(variable, value);
+		}
+		write(variable, block, value);
+		return value;
+	}
+
+	private Instruction phi(Block block, Object variable) {
+		Instruction phi = new Instruction(Op.PHI, types.get(variable), null);
+		block.addPhi(phi);
+		return phi;
+	}
+
+	private void addOperands(Object variable, Instruction phi) {
+		List<Block> preds = phi.block.predecessors;
+		Instruction[] ops = new Instruction[preds.size()];
+		for (int i = 0; i != ops.length; ++i) {
+			ops[i] = read(variable, preds.get(i));
+		}
+		phi.operands = ops;
+	}
+
+	/**
+	 * Record that every predecessor of a given block is now known.
+	 */
+	private void seal(Block block) {
+		HashMap<Object, Instruction> phis = incomplete.remove(block);
+		if (phis != null) {
+			for (Map.Entry<Object, Instruction> e : phis.entrySet()) {
+				addOperands(e.getKey(), e.getValue());
+			}
+		}
+		sealed.add(block);
+	}
+
+	// ======================================================================
+	// Helpers
+	// ======================================================================
+
+	private Instruction emit(Op op, Type type, Object constant,
+			Instruction... operands) {
+		Instruction ins = new Instruction(op, type, constant, operands);
+		current.add(ins);
+		return ins;
+	}
+
+	private Instruction constant(Type type, Object value) {
+		return emit(Op.CONST, type, value);
+	}
+
+	private void jump(Block target) {
+		Instruction ins = emit(Op.JUMP, null, null);
+		ins.targets = new Block[] { target };
+		target.predecessors.add(current);
+		current = null;
+	}
+
+	private void branch(Instruction condition, Block taken, Block notTaken) {
+		Instruction ins = emit(Op.BRANCH, null, null, condition);
+		ins.targets = new Block[] { taken, notTaken };
+		taken.predecessors.add(current);
+		notTaken.predecessors.add(current);
+		current = null;
+	}
+
+	/**
+	 * Get the type of an expression, as determined by the type checker. Not
+	 * every expression is annotated with its type (e.g. the bounds of a
+	 * range are not), in which case it is determined from the expression
+	 * itself where possible.
+	 */
+	private static Type typeOf(Expr expr) {
+		Attribute.Type attr = expr.attribute(Attribute.Type.class);
+		if (attr != null) {
+			return attr.type;
+		} else if (expr instanceof Expr.Constant) {
+			Object value = ((Expr.Constant) expr).getValue();
+			if (value instanceof Integer) {
+				return new Type.Int();
+			} else if (value instanceof Double) {
+				return new Type.Real();
+			} else if (value instanceof Boolean) {
+				return new Type.Bool();
+			} else if (value instanceof Character) {
+				return new Type.Char();
+			} else if (value instanceof StringBuffer) {
+				return new Type.Strung();
+			} else if (value == null) {
+				return new Type.Null();
+			}
+		} else if (expr instanceof Expr.Unary) {
+			Expr.Unary e = (Expr.Unary) expr;
+			switch (e.getOp()) {
+			case NOT:
+				return new Type.Bool();
+			case NEG:
+				return typeOf(e.getExpr());
+			default:
+				return new Type.Int();
+			}
+		} else if (expr instanceof Expr.Binary) {
+			Expr.Binary e = (Expr.Binary) expr;
+			switch (e.getOp()) {
+			case AND:
+			case OR:
+			case EQ:
+			case NEQ:
+			case LT:
+			case LTEQ:
+			case GT:
+			case GTEQ:
+				return new Type.Bool();
+			case RANGE:
+				return new Type.List(new Type.Int());
+			default:
+				return typeOf(e.getLhs());
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Get the element type of a given list type, as determined by the type
+	 * checker, which decides how a list is stored.
+	 */
+	private Type elementOf(Type t) {
+		while (t instanceof Type.Named) {
+			t = userTypes.get(((Type.Named) t).getName());
+		}
+		if (t instanceof Type.List) {
+			return ((Type.List) t).getElement();
+		} else if (t instanceof Type.Strung) {
+			return new Type.Char();
+		}
+		return new Type.Void();
+	}
+}
@@ -0,0 +1,58 @@
+// This file is part of the WyScript Compiler (wysc).
+//
+// The WyScript Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WyScript Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WyScript Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+//
+// Copyright 2013, David James Pearce.
+
+package wyscript.ir;
+
+import java.util.*;
+
+/**
+ * Removes the instructions whose values are never used, and which have no
+ * effect and cannot fail. An instruction is kept if it is needed by one which
+ * must be, so that a cycle of phis which only use each other is removed as a
+ * whole.
+ */
+public class DeadCodeElimination implements Pass {
+
+	public boolean apply(Function f) {
+		HashSet<Instruction> live = new HashSet<Instruction>();
+		ArrayList<Instruction> worklist = new ArrayList<Instruction>();
+		for (Block b : f.blocks) {
+			for (Instruction ins : b.instructions) {
+				if (!ins.op.isRemovable()) {
+					live.add(ins);
+					worklist.add(ins);
+				}
+			}
+		}
+		while (!worklist.isEmpty()) {
+			Instruction ins = worklist.remove(worklist.size() - 1);
+			for (Instruction op : ins.operands) {
+				if (live.add(op)) {
+					worklist.add(op);
+				}
+			}
+		}
+
+		boolean changed = false;
+		for (Block b : f.blocks) {
+			changed |= b.phis.retainAll(live);
+			changed |= b.instructions.retainAll(live);
+		}
+		return changed;
+	}
+}
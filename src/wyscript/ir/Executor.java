@@ -0,0 +1,397 @@
+// This file is part of the WyScript Compiler (wysc).
+//
+// The WyScript Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WyScript Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WyScript Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+//
+// Copyright 2013, David James Pearce.
+
+package wyscript.ir;
+
+import java.util.*;
+
+import wyscript.lang.Type;
+import wyscript.util.*;
+
+/**
+ * <p>
+ * Executes a module in SSA form. The value of every instruction is held in a
+ * register of its own, given by its number. The runtime values are those of
+ * the reference <code>Interpreter</code>, whose behaviour this must match
+ * exactly.
+ * </p>
+ * <p>
+ * Since no instruction updates a value which may be observed elsewhere, the
+ * reference counts of compound values are not needed here. An update
+ * instead copies its source, unless it has been marked as being in place
+ * (see <code>InPlaceUpdates</code>). For the same reason, strings need not be
+ * copied when they are passed around.
+ * </p>
+ */
+public class Executor {
+	private final Module module;
+	private final Values values;
+
+	/**
+	 * The value of each constant, as computed by the module's initialiser.
+	 */
+	private final Object[] globals;
+
+	/**
+	 * The shape of the records constructed by each instruction, and the
+	 * offset of each of their fields in it. These are filled in when first
+	 * needed.
+	 */
+	private final IdentityHashMap<Instruction, Shape> shapes = new IdentityHashMap<Instruction, Shape>();
+	private final IdentityHashMap<Instruction, int[]> offsets = new IdentityHashMap<Instruction, int[]>();
+
+	public Executor(Module module) {
+		this.module = module;
+		this.values = new Values(module.filename, module.userTypes);
+		this.globals = new Object[module.globals.size()];
+	}
+
+	public void run() {
+		execute(module.init, new Object[0]);
+
+		// Finally, pick the main method (if one exits) and execute it
+		Function main = module.function("main");
+		if (main != null) {
+			execute(main, new Object[0]);
+		} else {
+			System.out.println("Cannot find a main() function");
+		}
+	}
+
+	private Object execute(Function function, Object[] args) {
+		if (function.isNative) {
+			throw new RuntimeException("Can't execute native function "
+					+ function.name + " - must be run as JavaScript (-js)");
+		}
+		Object[] regs = new Object[function.values];
+		Block prev = null;
+		Block block = function.entry();
+
+		while (true) {
+			// Every phi takes its value from the edge just followed, and
+			// these are all read before any is written.
+			ArrayList<Instruction> phis = block.phis;
+			int nPhis = phis.size();
+			if (nPhis == 1) {
+				Instruction phi = phis.get(0);
+				regs[phi.id] = regs[phi.operands[block.predecessors
+						.indexOf(prev)].id];
+			} else if (nPhis > 1) {
+				int k = block.predecessors.indexOf(prev);
+				Object[] incoming = new Object[nPhis];
+				for (int i = 0; i != nPhis; ++i) {
+					incoming[i] = regs[phis.get(i).operands[k].id];
+				}
+				for (int i = 0; i != nPhis; ++i) {
+					regs[phis.get(i).id] = incoming[i];
+				}
+			}
+
+			ArrayList<Instruction> code = block.instructions;
+			int last = code.size() - 1;
+			for (int i = 0; i != last; ++i) {
+				Instruction ins = code.get(i);
+				regs[ins.id] = execute(ins, regs, args);
+			}
+
+			Instruction t = code.get(last);
+			prev = block;
+			switch (t.op) {
+			case JUMP:
+				block = t.targets[0];
+				break;
+			case BRANCH:
+				block = t.targets[(Boolean) regs[t.operands[0].id] ? 0 : 1];
+				break;
+			default:
+				if (t.operands.length == 0) {
+					return Collections.EMPTY_SET; // used to indicate a function
+													// has returned
+				}
+				return regs[t.operands[0].id];
+			}
+		}
+	}
+
+	/**
+	 * Execute an instruction which is not a terminator.
+	 *
+	 * @return Its value, if any.
+	 */
+	private Object execute(Instruction ins, Object[] regs, Object[] args) {
+		Instruction[] ops = ins.operands;
+		switch (ins.op) {
+		// Values
+		case PARAM:
+			return args[(Integer) ins.constant];
+		case CONST:
+			if (ins.constant instanceof StringBuffer) {
+				// As for a string stored in a variable, each evaluation
+				// gives a distinct string.
+				return new StringValue((StringBuffer) ins.constant);
+			}
+			return ins.constant;
+		case GLOBAL:
+			return globals[(Integer) ins.constant];
+
+		// Operators
+		case ADD: {
+			Object l = regs[ops[0].id];
+			Object r = regs[ops[1].id];
+			if (l instanceof Integer) {
+				return ((Integer) l) + ((Integer) r);
+			} else {
+				return ((Double) l) + ((Double) r);
+			}
+		}
+		case SUB: {
+			Object l = regs[ops[0].id];
+			Object r = regs[ops[1].id];
+			if (l instanceof Integer) {
+				return ((Integer) l) - ((Integer) r);
+			} else {
+				return ((Double) l) - ((Double) r);
+			}
+		}
+		case MUL: {
+			Object l = regs[ops[0].id];
+			Object r = regs[ops[1].id];
+			if (l instanceof Integer) {
+				return ((Integer) l) * ((Integer) r);
+			} else {
+				return ((Double) l) * ((Double) r);
+			}
+		}
+		case DIV: {
+			Object l = regs[ops[0].id];
+			Object r = regs[ops[1].id];
+			if (l instanceof Integer) {
+				return ((Integer) l) / ((Integer) r);
+			} else {
+				return ((Double) l) / ((Double) r);
+			}
+		}
+		case REM: {
+			Object l = regs[ops[0].id];
+			Object r = regs[ops[1].id];
+			if (l instanceof Integer) {
+				return ((Integer) l) % ((Integer) r);
+			} else {
+				return ((Double) l) % ((Double) r);
+			}
+		}
+		case EQ:
+			return regs[ops[0].id].equals(regs[ops[1].id]);
+		case NEQ:
+			return !regs[ops[0].id].equals(regs[ops[1].id]);
+		case LT: {
+			Object l = regs[ops[0].id];
+			Object r = regs[ops[1].id];
+			if (l instanceof Integer) {
+				return ((Integer) l) < ((Integer) r);
+			} else {
+				return ((Double) l) < ((Double) r);
+			}
+		}
+		case LTEQ: {
+			Object l = regs[ops[0].id];
+			Object r = regs[ops[1].id];
+			if (l instanceof Integer) {
+				return ((Integer) l) <= ((Integer) r);
+			} else {
+				return ((Double) l) <= ((Double) r);
+			}
+		}
+		case GT: {
+			Object l = regs[ops[0].id];
+			Object r = regs[ops[1].id];
+			if (l instanceof Integer) {
+				return ((Integer) l) > ((Integer) r);
+			} else {
+				return ((Double) l) > ((Double) r);
+			}
+		}
+		case GTEQ: {
+			Object l = regs[ops[0].id];
+			Object r = regs[ops[1].id];
+			if (l instanceof Integer) {
+				return ((Integer) l) >= ((Integer) r);
+			} else {
+				return ((Double) l) >= ((Double) r);
+			}
+		}
+		case APPEND: {
+			Object l = regs[ops[0].id];
+			Object r = regs[ops[1].id];
+			if (l instanceof StringValue && r instanceof StringValue) {
+				return ((StringValue) l).append((StringValue) r);
+			} else if (l instanceof StringValue) {
+				return ((StringValue) l).append(values.toString(r));
+			} else if (r instanceof StringValue) {
+				return new StringValue(values.toString(l)).append((StringValue) r);
+			} else {
+				return ((ListValue) l).append((ListValue) r);
+			}
+		}
+		case RANGE: {
+			int start = (Integer) regs[ops[0].id];
+			int end = (Integer) regs[ops[1].id];
+			ListValue result = new ListValue(ListValue.Storage.INT,
+					Math.max(end - start, 0));
+			while (start < end) {
+				result.addInt(start);
+				start = start + 1;
+			}
+			return result;
+		}
+		case NOT:
+			return !((Boolean) regs[ops[0].id]);
+		case NEG: {
+			Object value = regs[ops[0].id];
+			if (value instanceof Double) {
+				return -((Double) value);
+			} else {
+				return -((Integer) value);
+			}
+		}
+		case LENGTHOF: {
+			Object value = regs[ops[0].id];
+			if (value instanceof StringValue) {
+				return ((StringValue) value).length();
+			} else {
+				return ((ListValue) value).size();
+			}
+		}
+		case IS:
+			return values.instanceOf(regs[ops[0].id], (Type) ins.constant);
+		case CAST:
+			return values.doCast((Type) ins.constant, regs[ops[0].id], null);
+
+		// Compound values
+		case LIST: {
+			ListValue ls = values.newList((Type) ins.constant, ops.length);
+			for (Instruction op : ops) {
+				ls.add(regs[op.id]);
+			}
+			return ls;
+		}
+		case RECORD: {
+			int[] offs = offsets.get(ins);
+			if (offs == null) {
+				offs = shape(ins);
+			}
+			RecordValue rs = new RecordValue(shapes.get(ins));
+			for (int i = 0; i != offs.length; ++i) {
+				rs.set(offs[i], regs[ops[i].id]);
+			}
+			return rs;
+		}
+		case TUPLE: {
+			Object[] vals = new Object[ops.length];
+			for (int i = 0; i != ops.length; ++i) {
+				vals[i] = regs[ops[i].id];
+			}
+			return Tuple.create(vals);
+		}
+		case INDEX: {
+			Object src = regs[ops[0].id];
+			int idx = (Integer) regs[ops[1].id];
+			if (src instanceof StringValue) {
+				return ((StringValue) src).charAt(idx);
+			} else {
+				return ((ListValue) src).get(idx);
+			}
+		}
+		case FIELD:
+			return ((RecordValue) regs[ops[0].id]).get((String) ins.constant);
+		case TUPLEGET:
+			return ((Tuple) regs[ops[0].id]).get((Integer) ins.constant);
+		case DEREF:
+			return ((Ref) regs[ops[0].id]).getValue();
+		case NEW:
+			return new Ref(regs[ops[0].id]);
+
+		// Updates
+		case SETINDEX: {
+			Object src = regs[ops[0].id];
+			int idx = (Integer) regs[ops[1].id];
+			Object value = regs[ops[2].id];
+			if (src instanceof StringValue) {
+				StringValue s = (StringValue) src;
+				if (!ins.inPlace) {
+					s = (StringValue) s.duplicate();
+				}
+				s.set(idx, (Character) value);
+				return s;
+			}
+			ListValue ls = (ListValue) src;
+			if (!ins.inPlace) {
+				ls = (ListValue) ls.duplicate();
+			}
+			ls.set(idx, value);
+			return ls;
+		}
+		case SETFIELD: {
+			RecordValue rs = (RecordValue) regs[ops[0].id];
+			if (!ins.inPlace) {
+				rs = (RecordValue) rs.duplicate();
+			}
+			rs.set((String) ins.constant, regs[ops[1].id]);
+			return rs;
+		}
+		case SETDEREF:
+			((Ref) regs[ops[0].id]).setValue(regs[ops[1].id]);
+			return null;
+		case SETGLOBAL:
+			globals[(Integer) ins.constant] = regs[ops[0].id];
+			return null;
+
+		// Effects
+		case CALL: {
+			Object[] actuals = new Object[ops.length];
+			for (int i = 0; i != actuals.length; ++i) {
+				actuals[i] = regs[ops[i].id];
+			}
+			return execute((Function) ins.constant, actuals);
+		}
+		case PRINT:
+			System.out.println(values.toString(regs[ops[0].id]));
+			return null;
+		default:
+			throw new RuntimeException("invalid instruction " + ins.op
+					+ " in " + ins.block);
+		}
+	}
+
+	/**
+	 * Determine the shape of the records constructed by a given instruction.
+	 *
+	 * @return The offset of each field in that shape.
+	 */
+	private int[] shape(Instruction ins) {
+		String[] fields = (String[]) ins.constant;
+		Shape shape = Shape.of(fields);
+		int[] offs = new int[fields.length];
+		for (int i = 0; i != fields.length; ++i) {
+			offs[i] = shape.offsetOf(fields[i]);
+		}
+		shapes.put(ins, shape);
+		offsets.put(ins, offs);
+		return offs;
+	}
+}
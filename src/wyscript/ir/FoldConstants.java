@@ -0,0 +1,118 @@
+// This file is part of the WyScript Compiler (wysc).
+//
+// The WyScript Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WyScript Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WyScript Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+//
+// Copyright 2013, David James Pearce.
+
+package wyscript.ir;
+
+import java.util.HashMap;
+
+import wyscript.ir.Instruction.Op;
+import wyscript.lang.Expr;
+import wyscript.opt.ConstantFolding;
+
+/**
+ * Replaces operators whose operands are constants with the constant they
+ * evaluate to. Since SSA form makes the definition of every value explicit,
+ * this also folds operations on variables which only ever hold a constant,
+ * and on the constants propagated into a function by inlining. The same rules
+ * as for <code>ConstantFolding</code> apply, so that an operation is only
+ * folded where its value is certain to be the same in every backend.
+ */
+public class FoldConstants implements Pass {
+
+	public boolean apply(Function f) {
+		HashMap<Instruction, Instruction> replacements = new HashMap<Instruction, Instruction>();
+		for (Block b : f.blocks) {
+			for (int i = 0; i != b.instructions.size(); ++i) {
+				Instruction ins = b.instructions.get(i);
+				Object value = evaluate(ins, replacements);
+				if (value != null) {
+					Instruction c = new Instruction(Op.CONST, ins.type, value);
+					c.block = b;
+					b.instructions.set(i, c);
+					replacements.put(ins, c);
+				}
+			}
+		}
+		f.replaceUses(replacements);
+		return !replacements.isEmpty();
+	}
+
+	/**
+	 * Evaluate a given instruction, if its operands are constants.
+	 *
+	 * @return Its value, or null if it cannot be folded.
+	 */
+	private static Object evaluate(Instruction ins,
+			HashMap<Instruction, Instruction> replacements) {
+		Object[] values = new Object[ins.operands.length];
+		for (int i = 0; i != values.length; ++i) {
+			Instruction op = ins.operands[i];
+			if (replacements.containsKey(op)) {
+				op = replacements.get(op);
+			}
+			if (!op.isConstant()) {
+				return null;
+			}
+			values[i] = op.constant;
+		}
+
+		switch (ins.op) {
+		case NOT:
+			return values[0] instanceof Boolean ? !(Boolean) values[0] : null;
+		case NEG:
+			if (values[0] instanceof Integer
+					&& (Integer) values[0] != Integer.MIN_VALUE) {
+				return -(Integer) values[0];
+			} else if (values[0] instanceof Double
+					&& ConstantFolding.isFoldable(-(Double) values[0])) {
+				return -(Double) values[0];
+			}
+			return null;
+		case ADD:
+		case SUB:
+		case MUL:
+		case DIV:
+		case REM:
+		case EQ:
+		case NEQ:
+		case LT:
+		case LTEQ:
+		case GT:
+		case GTEQ: {
+			Expr.BOp bop = Expr.BOp.valueOf(ins.op.name());
+			Object l = values[0];
+			Object r = values[1];
+			if (l instanceof Integer && r instanceof Integer) {
+				return ConstantFolding.evaluate(bop, (Integer) l, (Integer) r);
+			} else if (l instanceof Double && r instanceof Double) {
+				return ConstantFolding.evaluate(bop, (Double) l, (Double) r);
+			} else if ((l instanceof Boolean && r instanceof Boolean)
+					|| (l instanceof Character && r instanceof Character)) {
+				if (bop == Expr.BOp.EQ) {
+					return l.equals(r);
+				} else if (bop == Expr.BOp.NEQ) {
+					return !l.equals(r);
+				}
+			}
+			return null;
+		}
+		default:
+			return null;
+		}
+	}
+}
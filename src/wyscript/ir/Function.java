@@ -0,0 +1,115 @@
+// This file is part of the WyScript Compiler (wysc).
+//
+// The WyScript Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WyScript Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WyScript Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+//
+// Copyright 2013, David James Pearce.
+
+package wyscript.ir;
+
+import java.util.*;
+
+import wyscript.lang.Type;
+
+/**
+ * A function in SSA form, which is made up of a control-flow graph of basic
+ * blocks. The first block is its entry, which has no predecessors.
+ */
+public final class Function {
+	public final String name;
+	public final boolean isNative;
+	public final List<Type> parameters;
+	public final Type ret;
+
+	public final ArrayList<Block> blocks = new ArrayList<Block>();
+
+	/**
+	 * The number of instructions in this function, as of the last time it was
+	 * renumbered.
+	 */
+	public int values;
+
+	public Function(String name, boolean isNative, List<Type> parameters,
+			Type ret) {
+		this.name = name;
+		this.isNative = isNative;
+		this.parameters = parameters;
+		this.ret = ret;
+	}
+
+	public Block entry() {
+		return blocks.get(0);
+	}
+
+	public Block newBlock() {
+		Block b = new Block();
+		b.id = blocks.size();
+		blocks.add(b);
+		return b;
+	}
+
+	/**
+	 * Number the blocks and instructions of this function consecutively, in
+	 * order. This must be done after a pass has changed the function, before
+	 * the numbers are relied upon again.
+	 */
+	public void renumber() {
+		int n = 0;
+		for (int i = 0; i != blocks.size(); ++i) {
+			Block b = blocks.get(i);
+			b.id = i;
+			for (Instruction phi : b.phis) {
+				phi.id = n++;
+			}
+			for (Instruction ins : b.instructions) {
+				ins.id = n++;
+			}
+		}
+		values = n;
+	}
+
+	/**
+	 * Replace every use of the instructions in a given map with their
+	 * replacements, which may themselves be replaced in turn.
+	 */
+	public void replaceUses(Map<Instruction, Instruction> replacements) {
+		if (replacements.isEmpty()) {
+			return;
+		}
+		for (Block b : blocks) {
+			for (Instruction phi : b.phis) {
+				replaceOperands(phi, replacements);
+			}
+			for (Instruction ins : b.instructions) {
+				replaceOperands(ins, replacements);
+			}
+		}
+	}
+
+	private static void replaceOperands(Instruction ins,
+			Map<Instruction, Instruction> replacements) {
+		Instruction[] ops = ins.operands;
+		for (int i = 0; i != ops.length; ++i) {
+			Instruction r = replacements.get(ops[i]);
+			while (r != null) {
+				ops[i] = r;
+				r = replacements.get(r);
+			}
+		}
+	}
+
+	public String toString() {
+		return name;
+	}
+}
@@ -0,0 +1,168 @@
+// This file is part of the WyScript Compiler (wysc).
+//
+// The WyScript Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WyScript Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WyScript Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+//
+// Copyright 2013, David James Pearce.
+
+package wyscript.ir;
+
+import java.util.*;
+
+import wyscript.ir.Instruction.Op;
+
+/**
+ * <p>
+ * Marks the updates of lists, strings and records which can be performed
+ * destructively on their source. This is the case when the source is never
+ * used again, and no other value can share it.
+ * </p>
+ * <p>
+ * A value is <i>fresh</i> when it was constructed by this function, or is the
+ * result of an update or append, and so nothing else shares it initially. It
+ * stops being fresh if it escapes, i.e. it is stored somewhere (e.g. in
+ * another compound value, or a reference), passed to a function, or cast
+ * (which may give back the same value). A phi is fresh when each of its
+ * operands is, and is no longer used once control has passed to it. In
+ * particular, a list which is updated by a loop is then updated in place
+ * throughout.
+ * </p>
+ */
+public class InPlaceUpdates implements Pass {
+
+	public boolean apply(Function f) {
+		Liveness liveness = new Liveness(f);
+		HashSet<Instruction> fresh = new HashSet<Instruction>();
+		HashSet<Instruction> escaped = new HashSet<Instruction>();
+
+		for (Block b : f.blocks) {
+			fresh.addAll(b.phis);
+			for (Instruction ins : b.instructions) {
+				switch (ins.op) {
+				case LIST:
+				case RECORD:
+				case RANGE:
+				case APPEND:
+				case SETINDEX:
+				case SETFIELD:
+					fresh.add(ins);
+					break;
+				}
+				escape(ins, escaped);
+			}
+		}
+		fresh.removeAll(escaped);
+
+		// Determine which phis are fresh, starting from the assumption that
+		// they all are.
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (Block b : f.blocks) {
+				for (Instruction phi : b.phis) {
+					if (fresh.contains(phi) && !isFresh(phi, fresh, liveness)) {
+						fresh.remove(phi);
+						changed = true;
+					}
+				}
+			}
+		}
+
+		changed = false;
+		for (Block b : f.blocks) {
+			for (int i = 0; i != b.instructions.size(); ++i) {
+				Instruction ins = b.instructions.get(i);
+				if (ins.op == Op.SETINDEX || ins.op == Op.SETFIELD) {
+					Instruction src = ins.operands[0];
+					boolean inPlace = fresh.contains(src)
+							&& !isUsedAfter(src, b, i, liveness);
+					changed |= inPlace != ins.inPlace;
+					ins.inPlace = inPlace;
+				}
+			}
+		}
+		return changed;
+	}
+
+	/**
+	 * Record the operands of a given instruction which escape, since the
+	 * value it produces (or the place it updates) may share them.
+	 */
+	private static void escape(Instruction ins, Set<Instruction> escaped) {
+		switch (ins.op) {
+		case LIST:
+		case RECORD:
+		case TUPLE:
+		case NEW:
+		case CALL:
+		case CAST:
+		case SETGLOBAL:
+			escaped.addAll(Arrays.asList(ins.operands));
+			break;
+		case SETINDEX:
+			escaped.add(ins.operands[2]);
+			break;
+		case SETFIELD:
+		case SETDEREF:
+			escaped.add(ins.operands[1]);
+			break;
+		}
+	}
+
+	/**
+	 * Check whether a phi is fresh, given which other values currently are.
+	 * Each operand must no longer be used once control has passed to the
+	 * phi, and must not be merged by any other phi there.
+	 */
+	private static boolean isFresh(Instruction phi, Set<Instruction> fresh,
+			Liveness liveness) {
+		Block b = phi.block;
+		for (int k = 0; k != phi.operands.length; ++k) {
+			Instruction op = phi.operands[k];
+			if (!fresh.contains(op) || liveness.isLiveThrough(op, b)) {
+				return false;
+			}
+			for (Instruction other : b.phis) {
+				if (other != phi && other.operands[k] == op) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Check whether a value may be used after a given instruction of a block.
+	 */
+	private static boolean isUsedAfter(Instruction value, Block b, int index,
+			Liveness liveness) {
+		if (liveness.liveOut(b).get(value.id)) {
+			return true;
+		}
+		Instruction ins = b.instructions.get(index);
+		for (int j = 1; j < ins.operands.length; ++j) {
+			if (ins.operands[j] == value) {
+				return true;
+			}
+		}
+		for (int i = index + 1; i < b.instructions.size(); ++i) {
+			for (Instruction op : b.instructions.get(i).operands) {
+				if (op == value) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+}
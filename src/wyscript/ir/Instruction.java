@@ -0,0 +1,171 @@
+// This file is part of the WyScript Compiler (wysc).
+//
+// The WyScript Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WyScript Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WyScript Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+//
+// Copyright 2013, David James Pearce.
+
+package wyscript.ir;
+
+import wyscript.lang.Type;
+
+/**
+ * <p>
+ * A single instruction of a function in SSA form. An instruction which
+ * produces a value defines it exactly once, and stands for that value
+ * wherever it is used; the operands of an instruction are therefore the
+ * instructions which define them.
+ * </p>
+ * <p>
+ * Compound values are never updated in place by the instructions themselves.
+ * Instead, an assignment such as <code>xs[i] = x</code> defines a new list,
+ * which is then the value of <code>xs</code>. Backends may still perform an
+ * update destructively when it is marked as being in place (see
+ * <code>InPlaceUpdates</code>).
+ * </p>
+ * <p>
+ * The meaning of the <code>constant</code> of an instruction depends on its
+ * opcode:
+ * </p>
+ * <ul>
+ * <li><b>PARAM</b>, <b>GLOBAL</b>, <b>SETGLOBAL</b>, <b>TUPLEGET</b>: the
+ * index of the parameter, constant or tuple element.</li>
+ * <li><b>CONST</b>: the value itself (where <code>Collections.EMPTY_SET</code>
+ * stands for a variable which has been declared without a value).</li>
+ * <li><b>IS</b>, <b>CAST</b>: the type being tested or cast to.</li>
+ * <li><b>LIST</b>: the element type of the list.</li>
+ * <li><b>RECORD</b>: the names of its fields, as a <code>String[]</code>.</li>
+ * <li><b>FIELD</b>, <b>SETFIELD</b>: the name of the field.</li>
+ * <li><b>CALL</b>: the <code>Function</code> being called.</li>
+ * </ul>
+ */
+public final class Instruction {
+
+	public enum Op {
+		// Values
+		PARAM, CONST, GLOBAL, PHI,
+		// Operators
+		ADD, SUB, MUL, DIV, REM, EQ, NEQ, LT, LTEQ, GT, GTEQ, APPEND, RANGE,
+		NOT, NEG, LENGTHOF, IS, CAST,
+		// Compound values
+		LIST, RECORD, TUPLE, INDEX, FIELD, TUPLEGET, DEREF, NEW,
+		// Updates
+		SETINDEX, SETFIELD, SETDEREF, SETGLOBAL,
+		// Effects
+		CALL, PRINT,
+		// Terminators
+		JUMP, BRANCH, RETURN;
+
+		public boolean isTerminator() {
+			return this == JUMP || this == BRANCH || this == RETURN;
+		}
+
+		/**
+		 * Check whether an instruction with this opcode can simply be removed
+		 * when its value is not used, i.e. it has no effect and cannot fail.
+		 */
+		public boolean isRemovable() {
+			switch (this) {
+			case CONST:
+			case GLOBAL:
+			case PHI:
+			case ADD:
+			case SUB:
+			case MUL:
+			case EQ:
+			case NEQ:
+			case LT:
+			case LTEQ:
+			case GT:
+			case GTEQ:
+			case APPEND:
+			case RANGE:
+			case NOT:
+			case NEG:
+			case LENGTHOF:
+			case IS:
+			case LIST:
+			case RECORD:
+			case TUPLE:
+			case FIELD:
+			case TUPLEGET:
+			case NEW:
+			case SETFIELD:
+				return true;
+			default:
+				return false;
+			}
+		}
+
+		public String toString() {
+			return name().toLowerCase();
+		}
+	}
+
+	public final Op op;
+
+	/**
+	 * The type of the value defined by this instruction, or null if it
+	 * defines no value.
+	 */
+	public Type type;
+
+	public Object constant;
+
+	public Instruction[] operands;
+
+	/**
+	 * The blocks to which a terminator may transfer control. For a branch,
+	 * the first is taken when its condition holds.
+	 */
+	public Block[] targets;
+
+	/**
+	 * The block containing this instruction.
+	 */
+	public Block block;
+
+	/**
+	 * The number of this instruction within its function. Every instruction
+	 * has a distinct number, which a backend uses to find where its value is
+	 * held (see <code>Function.renumber()</code>).
+	 */
+	public int id;
+
+	/**
+	 * Whether this update may be performed destructively on its source.
+	 */
+	public boolean inPlace;
+
+	public Instruction(Op op, Type type, Object constant,
+			Instruction... operands) {
+		this.op = op;
+		this.type = type;
+		this.constant = constant;
+		this.operands = operands;
+		this.targets = new Block[0];
+	}
+
+	public boolean hasValue() {
+		return type != null;
+	}
+
+	public boolean isConstant() {
+		return op == Op.CONST;
+	}
+
+	public String toString() {
+		return "%" + id;
+	}
+}
@@ -0,0 +1,517 @@
+// This file is part of the WyScript Compiler (wysc).
+//
+// The WyScript Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WyScript Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WyScript Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+//
+// Copyright 2013, David James Pearce.
+
+package wyscript.ir;
+
+import java.io.*;
+import java.util.*;
+
+import wyscript.ir.Instruction.Op;
+import wyscript.lang.Type;
+
+/**
+ * <p>
+ * Writes a module in SSA form as JavaScript, using the same runtime library
+ * (<code>Wyscript.js</code>) as the <code>JavaScriptFileWriter</code>. Each
+ * value is held in a variable of its own, named after its number (e.g.
+ * <code>$3</code>).
+ * </p>
+ * <p>
+ * A function made up of a single block is written as straight-line code.
+ * Otherwise, its blocks become the cases of a switch inside a loop, which
+ * dispatches on the number of the block to execute next. The phis of a block
+ * are assigned on each edge into it, just before control passes along that
+ * edge.
+ * </p>
+ * <p>
+ * Unlike the <code>JavaScriptFileWriter</code>, nothing is cloned when it is
+ * stored or passed to a function, since no instruction updates a value which
+ * may be observed elsewhere. Instead, a list or record is copied when it is
+ * updated, unless the update has been marked as being in place (see
+ * <code>InPlaceUpdates</code>).
+ * </p>
+ */
+public class JavaScriptGenerator {
+	private final PrintStream out;
+	private Module module;
+
+	public JavaScriptGenerator(File file) throws IOException {
+		this.out = new PrintStream(new FileOutputStream(file));
+	}
+
+	public void close() {
+		out.close();
+	}
+
+	public void write(Module module) {
+		this.module = module;
+		for (String name : module.globals) {
+			out.println("var " + name + ";");
+		}
+		write(module.init);
+		for (Function f : module.functions) {
+			// Native functions are (or should be) already declared
+			if (!f.isNative) {
+				write(f);
+			}
+		}
+		out.println(module.init.name + "();");
+	}
+
+	private void write(Function f) {
+		f.renumber();
+		out.print("function " + f.name + "(");
+		for (int i = 0; i != f.parameters.size(); ++i) {
+			out.print((i != 0 ? ", " : "") + "$p" + i);
+		}
+		out.println(") {");
+
+		// Declare every value up front, since any may be assigned on an edge
+		// before the block defining it is reached.
+		int temps = 0;
+		ArrayList<String> names = new ArrayList<String>();
+		for (Block b : f.blocks) {
+			for (Instruction phi : b.phis) {
+				names.add(name(phi));
+			}
+			for (Instruction ins : b.instructions) {
+				if (ins.hasValue()) {
+					names.add(name(ins));
+				}
+			}
+			temps = Math.max(temps, b.phis.size());
+		}
+		if (f.blocks.size() > 1) {
+			for (int i = 0; i != temps; ++i) {
+				names.add("$t" + i);
+			}
+		}
+		for (int i = 0; i < names.size(); i += 10) {
+			indent(1);
+			out.print("var ");
+			for (int j = i; j < Math.min(i + 10, names.size()); ++j) {
+				out.print((j != i ? ", " : "") + names.get(j));
+			}
+			out.println(";");
+		}
+
+		if (f.blocks.size() == 1) {
+			write(f.entry(), null, 1);
+		} else {
+			indent(1);
+			out.println("var $b = 0;");
+			indent(1);
+			out.println("for (;;) {");
+			indent(2);
+			out.println("switch ($b) {");
+			for (int i = 0; i != f.blocks.size(); ++i) {
+				Block b = f.blocks.get(i);
+				Block next = i + 1 < f.blocks.size() ? f.blocks.get(i + 1) : null;
+				indent(2);
+				out.println("case " + b.id + ":");
+				write(b, next, 3);
+			}
+			indent(2);
+			out.println("}");
+			indent(1);
+			out.println("}");
+		}
+		out.println("}");
+	}
+
+	/**
+	 * Write a block, given the block written after it (if any), into which
+	 * it can fall through.
+	 */
+	private void write(Block b, Block next, int indent) {
+		ArrayList<Instruction> code = b.instructions;
+		for (int i = 0; i != code.size() - 1; ++i) {
+			Instruction ins = code.get(i);
+			if ((ins.op == Op.SETINDEX && !isString(ins.operands[0].type))
+					|| ins.op == Op.SETFIELD) {
+				writeUpdate(ins, indent);
+				continue;
+			}
+			indent(indent);
+			if (ins.hasValue()) {
+				out.print(name(ins) + " = ");
+			}
+			write(ins);
+			out.println(";");
+		}
+
+		Instruction t = b.terminator();
+		switch (t.op) {
+		case JUMP: {
+			Block target = t.targets[0];
+			writeEdge(b, target, indent);
+			if (target != next) {
+				indent(indent);
+				out.println("$b = " + target.id + ";");
+				indent(indent);
+				out.println("continue;");
+			}
+			break;
+		}
+		case BRANCH:
+			indent(indent);
+			out.println("if (" + name(t.operands[0]) + ") {");
+			writeEdge(b, t.targets[0], indent + 1);
+			indent(indent + 1);
+			out.println("$b = " + t.targets[0].id + ";");
+			indent(indent);
+			out.println("} else {");
+			writeEdge(b, t.targets[1], indent + 1);
+			indent(indent + 1);
+			out.println("$b = " + t.targets[1].id + ";");
+			indent(indent);
+			out.println("}");
+			indent(indent);
+			out.println("continue;");
+			break;
+		default:
+			indent(indent);
+			if (t.operands.length == 0) {
+				out.println("return;");
+			} else {
+				out.println("return " + name(t.operands[0]) + ";");
+			}
+		}
+	}
+
+	/**
+	 * Assign the phis of a block, on the edge into it from a given
+	 * predecessor. These are assigned in parallel, and so temporaries are
+	 * needed when one is assigned from another.
+	 */
+	private void writeEdge(Block pred, Block b, int indent) {
+		if (b.phis.isEmpty()) {
+			return;
+		}
+		int k = b.predecessors.indexOf(pred);
+		boolean parallel = false;
+		for (Instruction phi : b.phis) {
+			Instruction op = phi.operands[k];
+			parallel |= op != phi && op.block == b && op.op == Op.PHI;
+		}
+		if (!parallel) {
+			for (Instruction phi : b.phis) {
+				if (phi.operands[k] != phi) {
+					indent(indent);
+					out.println(name(phi) + " = " + name(phi.operands[k]) + ";");
+				}
+			}
+			return;
+		}
+		for (int i = 0; i != b.phis.size(); ++i) {
+			indent(indent);
+			out.println("$t" + i + " = " + name(b.phis.get(i).operands[k]) + ";");
+		}
+		for (int i = 0; i != b.phis.size(); ++i) {
+			indent(indent);
+			out.println(name(b.phis.get(i)) + " = $t" + i + ";");
+		}
+	}
+
+	/**
+	 * Write the expression computing the value of an instruction, or the
+	 * statement performing its effect.
+	 */
+	private void write(Instruction ins) {
+		Instruction[] ops = ins.operands;
+		switch (ins.op) {
+		case PARAM:
+			out.print("$p" + ins.constant);
+			break;
+		case CONST:
+			writeConstant(ins.constant);
+			break;
+		case GLOBAL:
+			out.print(module.globals.get((Integer) ins.constant));
+			break;
+		case ADD:
+		case SUB:
+		case MUL:
+		case DIV:
+		case REM:
+			out.print(name(ops[0]) + "." + ins.op + "(" + name(ops[1]) + ")");
+			break;
+		case EQ:
+		case NEQ:
+			out.print("Wyscript.equals(" + name(ops[0]) + ", " + name(ops[1])
+					+ ", " + (ins.op == Op.EQ) + ")");
+			break;
+		case LT:
+		case LTEQ:
+			out.print("Wyscript.lt(" + name(ops[0]) + ", " + name(ops[1])
+					+ ", " + (ins.op == Op.LTEQ) + ")");
+			break;
+		case GT:
+		case GTEQ:
+			out.print("Wyscript.gt(" + name(ops[0]) + ", " + name(ops[1])
+					+ ", " + (ins.op == Op.GTEQ) + ")");
+			break;
+		case APPEND:
+			out.print(name(ops[0]) + ".append(" + name(ops[1]) + ")");
+			break;
+		case RANGE:
+			out.print("new Wyscript.List(Wyscript.range(" + name(ops[0]) + ", "
+					+ name(ops[1]) + "), ");
+			write(ins.type);
+			out.print(")");
+			break;
+		case NOT:
+			out.print("!" + name(ops[0]));
+			break;
+		case NEG:
+			// Both Wyscript.Integer and Wyscript.Float are constructed from a
+			// number
+			out.print("new " + name(ops[0]) + ".constructor(-(" + name(ops[0])
+					+ ".num))");
+			break;
+		case LENGTHOF:
+			out.print(name(ops[0]) + ".length()");
+			break;
+		case IS:
+			out.print("Wyscript.is(" + name(ops[0]) + ", ");
+			write((Type) ins.constant);
+			out.print(")");
+			break;
+		case CAST:
+			out.print("Wyscript.cast(");
+			write((Type) ins.constant);
+			out.print(", " + name(ops[0]) + ")");
+			break;
+		case LIST:
+			out.print("new Wyscript.List(");
+			writeArray(ops);
+			out.print(", ");
+			write(ins.type);
+			out.print(")");
+			break;
+		case RECORD: {
+			String[] fields = (String[]) ins.constant;
+			out.print("new Wyscript.Record([");
+			for (int i = 0; i != fields.length; ++i) {
+				out.print((i != 0 ? "," : "") + "'" + fields[i] + "'");
+			}
+			out.print("], ");
+			writeArray(ops);
+			out.print(", ");
+			write(ins.type);
+			out.print(")");
+			break;
+		}
+		case TUPLE:
+			out.print("new Wyscript.Tuple(");
+			writeArray(ops);
+			out.print(", ");
+			write(ins.type);
+			out.print(")");
+			break;
+		case INDEX:
+			out.print(name(ops[0]) + ".getValue(" + name(ops[1]) + ")");
+			break;
+		case FIELD:
+			out.print(name(ops[0]) + ".getValue('" + ins.constant + "')");
+			break;
+		case TUPLEGET:
+			out.print(name(ops[0]) + ".values[" + ins.constant + "]");
+			break;
+		case DEREF:
+			out.print(name(ops[0]) + ".deref()");
+			break;
+		case NEW:
+			out.print("new Wyscript.Ref(" + name(ops[0]) + ")");
+			break;
+		case SETINDEX:
+			// Strings are immutable in JavaScript
+			out.print(name(ops[0]) + ".assign(" + name(ops[1]) + ", "
+					+ name(ops[2]) + ")");
+			break;
+		case SETDEREF:
+			out.print(name(ops[0]) + ".setValue(" + name(ops[1]) + ")");
+			break;
+		case SETGLOBAL:
+			out.print(module.globals.get((Integer) ins.constant) + " = "
+					+ name(ops[0]));
+			break;
+		case CALL: {
+			Function callee = (Function) ins.constant;
+			out.print(callee.name + "(");
+			for (int i = 0; i != ops.length; ++i) {
+				out.print((i != 0 ? ", " : "") + name(ops[i]));
+				// A native function may hold on to, or update, its arguments
+				if (callee.isNative && isCompound(ops[i].type)) {
+					out.print(".clone()");
+				}
+			}
+			out.print(")");
+			break;
+		}
+		case PRINT:
+			out.print("Wyscript.print(" + name(ops[0]) + ")");
+			break;
+		default:
+			throw new RuntimeException("invalid instruction " + ins.op
+					+ " in " + ins.block);
+		}
+	}
+
+	/**
+	 * Write an update to a list or record. Its source is copied first, unless
+	 * the update is in place.
+	 */
+	private void writeUpdate(Instruction ins, int indent) {
+		String src = name(ins.operands[0]);
+		indent(indent);
+		out.print(name(ins) + " = ");
+		if (ins.inPlace) {
+			out.println(src + ";");
+		} else if (ins.op == Op.SETFIELD) {
+			out.println("new Wyscript.Record(" + src + ".names.slice(0), "
+					+ src + ".values.slice(0), " + src + ".type);");
+		} else {
+			out.println("new Wyscript.List(" + src + ".list.slice(0), " + src
+					+ ".type);");
+		}
+		indent(indent);
+		if (ins.op == Op.SETFIELD) {
+			out.println(name(ins) + ".setValue('" + ins.constant + "', "
+					+ name(ins.operands[1]) + ");");
+		} else {
+			out.println(name(ins) + ".setValue(" + name(ins.operands[1]) + ", "
+					+ name(ins.operands[2]) + ");");
+		}
+	}
+
+	private void writeArray(Instruction[] ops) {
+		out.print("[");
+		for (int i = 0; i != ops.length; ++i) {
+			out.print((i != 0 ? ", " : "") + name(ops[i]));
+		}
+		out.print("]");
+	}
+
+	private void writeConstant(Object value) {
+		if (value == Collections.EMPTY_SET) {
+			out.print("undefined");
+		} else if (value instanceof Double) {
+			out.print("new Wyscript.Float(" + value + ")");
+		} else if (value instanceof Integer) {
+			out.print("new Wyscript.Integer(" + value + ")");
+		} else if (value instanceof StringBuffer) {
+			out.print("new Wyscript.String('" + value + "')");
+		} else if (value instanceof Character) {
+			out.print("new Wyscript.Char('" + value + "')");
+		} else {
+			out.print(value);
+		}
+	}
+
+	/**
+	 * Writes a type, which is needed to construct lists, records and tuples,
+	 * and for runtime type tests.
+	 */
+	private void write(Type t) {
+		t = resolve(t);
+		if (t instanceof Type.Null) {
+			out.print("new Wyscript.Type.Null()");
+		} else if (t instanceof Type.Void) {
+			out.print("new Wyscript.Type.Void()");
+		} else if (t instanceof Type.Bool) {
+			out.print("new Wyscript.Type.Bool()");
+		} else if (t instanceof Type.Int) {
+			out.print("new Wyscript.Type.Int()");
+		} else if (t instanceof Type.Real) {
+			out.print("new Wyscript.Type.Real()");
+		} else if (t instanceof Type.Char) {
+			out.print("new Wyscript.Type.Char()");
+		} else if (t instanceof Type.Strung) {
+			out.print("new Wyscript.Type.String()");
+		} else if (t instanceof Type.List) {
+			out.print("new Wyscript.Type.List(");
+			write(((Type.List) t).getElement());
+			out.print(")");
+		} else if (t instanceof Type.Record) {
+			Map<String, Type> fields = ((Type.Record) t).getFields();
+			List<String> names = new ArrayList<String>(fields.keySet());
+			Collections.sort(names);
+			out.print("new Wyscript.Type.Record([");
+			for (int i = 0; i != names.size(); ++i) {
+				out.print((i != 0 ? ", " : "") + "'" + names.get(i) + "'");
+			}
+			out.print("], [");
+			for (int i = 0; i != names.size(); ++i) {
+				out.print(i != 0 ? ", " : "");
+				write(fields.get(names.get(i)));
+			}
+			out.print("])");
+		} else if (t instanceof Type.Union) {
+			out.print("new Wyscript.Type.Union([");
+			writeTypes(((Type.Union) t).getBounds());
+			out.print("])");
+		} else if (t instanceof Type.Reference) {
+			out.print("new Wyscript.Type.Reference(");
+			write(((Type.Reference) t).getType());
+			out.print(")");
+		} else if (t instanceof Type.Tuple) {
+			out.print("new Wyscript.Type.Tuple([");
+			writeTypes(((Type.Tuple) t).getTypes());
+			out.print("])");
+		} else {
+			throw new RuntimeException("unknown type encountered: " + t);
+		}
+	}
+
+	private void writeTypes(Collection<Type> types) {
+		boolean first = true;
+		for (Type t : types) {
+			out.print(first ? "" : ", ");
+			first = false;
+			write(t);
+		}
+	}
+
+	private Type resolve(Type t) {
+		while (t instanceof Type.Named) {
+			t = module.userTypes.get(((Type.Named) t).getName());
+		}
+		return t;
+	}
+
+	private boolean isString(Type t) {
+		return resolve(t) instanceof Type.Strung;
+	}
+
+	private boolean isCompound(Type t) {
+		t = resolve(t);
+		return t instanceof Type.List || t instanceof Type.Record
+				|| t instanceof Type.Tuple;
+	}
+
+	private static String name(Instruction ins) {
+		return "$" + ins.id;
+	}
+
+	private void indent(int indent) {
+		for (int i = 0; i != indent; ++i) {
+			out.print("    ");
+		}
+	}
+}
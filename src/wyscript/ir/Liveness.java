@@ -0,0 +1,131 @@
+// This file is part of the WyScript Compiler (wysc).
+//
+// The WyScript Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WyScript Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WyScript Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+//
+// Copyright 2013, David James Pearce.
+
+package wyscript.ir;
+
+import java.util.BitSet;
+
+/**
+ * <p>
+ * Determines which values are live at the start and end of each block of a
+ * function, i.e. which may still be used afterwards. Values are identified by
+ * their numbers, and so the function must not be changed whilst this is in
+ * use.
+ * </p>
+ * <p>
+ * A phi uses each of its operands at the end of the corresponding
+ * predecessor, rather than at the start of its own block. Hence, the values
+ * live on entry to a block include its phis, but not their operands.
+ * </p>
+ */
+public final class Liveness {
+	private final BitSet[] liveIn;
+	private final BitSet[] liveOut;
+
+	public Liveness(Function f) {
+		f.renumber();
+		int n = f.blocks.size();
+		liveIn = new BitSet[n];
+		liveOut = new BitSet[n];
+		BitSet[] uses = new BitSet[n];
+		BitSet[] defs = new BitSet[n];
+		for (Block b : f.blocks) {
+			BitSet use = new BitSet();
+			BitSet def = new BitSet();
+			for (Instruction phi : b.phis) {
+				def.set(phi.id);
+			}
+			for (Instruction ins : b.instructions) {
+				for (Instruction op : ins.operands) {
+					if (!def.get(op.id)) {
+						use.set(op.id);
+					}
+				}
+				def.set(ins.id);
+			}
+			uses[b.id] = use;
+			defs[b.id] = def;
+			liveIn[b.id] = new BitSet();
+			liveOut[b.id] = new BitSet();
+		}
+
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (int i = n - 1; i >= 0; --i) {
+				Block b = f.blocks.get(i);
+				BitSet out = new BitSet();
+				for (Block s : b.successors()) {
+					out.or(liveInAlong(s, b));
+				}
+				BitSet in = (BitSet) out.clone();
+				in.andNot(defs[i]);
+				in.or(uses[i]);
+				for (Instruction phi : b.phis) {
+					in.set(phi.id);
+				}
+				if (!out.equals(liveOut[i]) || !in.equals(liveIn[i])) {
+					liveOut[i] = out;
+					liveIn[i] = in;
+					changed = true;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Get the values which are live on entry to a block, when it is reached
+	 * from a given predecessor. These are the operands of its phis for that
+	 * predecessor, along with the values live on entry other than its phis.
+	 */
+	private BitSet liveInAlong(Block b, Block pred) {
+		BitSet live = (BitSet) liveIn[b.id].clone();
+		int k = b.predecessors.indexOf(pred);
+		for (Instruction phi : b.phis) {
+			live.clear(phi.id);
+		}
+		for (Instruction phi : b.phis) {
+			live.set(phi.operands[k].id);
+		}
+		return live;
+	}
+
+	public BitSet liveIn(Block b) {
+		return liveIn[b.id];
+	}
+
+	public BitSet liveOut(Block b) {
+		return liveOut[b.id];
+	}
+
+	/**
+	 * Check whether a given value is live on entry to a block other than
+	 * through its phis, i.e. whether it may be used there directly.
+	 */
+	public boolean isLiveThrough(Instruction value, Block b) {
+		if (!liveIn[b.id].get(value.id)) {
+			return false;
+		}
+		for (Instruction phi : b.phis) {
+			if (phi == value) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
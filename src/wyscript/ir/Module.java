@@ -0,0 +1,63 @@
+// This file is part of the WyScript Compiler (wysc).
+//
+// The WyScript Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WyScript Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WyScript Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+//
+// Copyright 2013, David James Pearce.
+
+package wyscript.ir;
+
+import java.util.*;
+
+import wyscript.lang.Type;
+
+/**
+ * A WyScript program which has been lowered into SSA form. This consists of
+ * its functions, and a function which initialises the global scope (i.e. the
+ * constants).
+ */
+public final class Module {
+	public final String filename;
+	public final Map<String, Type> userTypes;
+
+	/**
+	 * The name of each constant, in the order they are declared.
+	 */
+	public final List<String> globals;
+
+	public final List<Function> functions;
+	public final Function init;
+
+	public Module(String filename, Map<String, Type> userTypes,
+			List<String> globals, List<Function> functions, Function init) {
+		this.filename = filename;
+		this.userTypes = userTypes;
+		this.globals = globals;
+		this.functions = functions;
+		this.init = init;
+	}
+
+	/**
+	 * Find the function with a given name, or null if there is none.
+	 */
+	public Function function(String name) {
+		Function result = null;
+		for (Function f : functions) {
+			if (f.name.equals(name)) {
+				result = f;
+			}
+		}
+		return result;
+	}
+}
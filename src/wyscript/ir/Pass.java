@@ -0,0 +1,35 @@
+// This file is part of the WyScript Compiler (wysc).
+//
+// The WyScript Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WyScript Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WyScript Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+//
+// Copyright 2013, David James Pearce.
+
+package wyscript.ir;
+
+/**
+ * A transformation or analysis of functions in SSA form, which is run by a
+ * <code>PassManager</code>. A pass must leave every function it is applied to
+ * in valid SSA form (see <code>Verifier</code>).
+ */
+public interface Pass {
+
+	/**
+	 * Apply this pass to a given function.
+	 *
+	 * @param f
+	 * @return Whether the function was changed.
+	 */
+	public boolean apply(Function f);
+}
@@ -0,0 +1,87 @@
+// This file is part of the WyScript Compiler (wysc).
+//
+// The WyScript Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WyScript Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WyScript Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+//
+// Copyright 2013, David James Pearce.
+
+package wyscript.ir;
+
+import java.util.ArrayList;
+
+/**
+ * <p>
+ * Applies a sequence of passes to every function of a module, in order. The
+ * functions are checked by the <code>Verifier</code> before the first pass,
+ * and again after each pass which changes them, so that a pass which breaks
+ * the IR is caught immediately rather than by a backend.
+ * </p>
+ * <p>
+ * The standard pipeline depends on the optimisation level, as for the
+ * <code>Optimiser</code>:
+ * </p>
+ * <ul>
+ * <li><b>0</b>: redundant phis and blocks are removed (see
+ * <code>SimplifyCfg</code>).</li>
+ * <li><b>1</b> and above: in addition, operations on constants are folded
+ * (see <code>FoldConstants</code>), after which the control-flow graph is
+ * simplified again, and unused instructions are removed (see
+ * <code>DeadCodeElimination</code>).</li>
+ * </ul>
+ * <p>
+ * Finally, the updates which can be performed in place are marked (see
+ * <code>InPlaceUpdates</code>), which every backend relies upon to avoid
+ * copying compound values needlessly.
+ * </p>
+ */
+public class PassManager {
+	private final ArrayList<Pass> passes = new ArrayList<Pass>();
+	private final Verifier verifier = new Verifier();
+
+	public static PassManager standard(int level) {
+		PassManager pm = new PassManager();
+		pm.add(new SimplifyCfg());
+		if (level >= 1) {
+			pm.add(new FoldConstants());
+			pm.add(new SimplifyCfg());
+			pm.add(new DeadCodeElimination());
+		}
+		pm.add(new InPlaceUpdates());
+		return pm;
+	}
+
+	public PassManager add(Pass pass) {
+		passes.add(pass);
+		return this;
+	}
+
+	public void run(Module module) {
+		run(module.init);
+		for (Function f : module.functions) {
+			if (!f.isNative) {
+				run(f);
+			}
+		}
+	}
+
+	public void run(Function f) {
+		verifier.verify(f);
+		for (Pass pass : passes) {
+			if (pass.apply(f)) {
+				f.renumber();
+				verifier.verify(f);
+			}
+		}
+	}
+}
@@ -0,0 +1,166 @@
+// This file is part of the WyScript Compiler (wysc).
+//
+// The WyScript Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WyScript Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WyScript Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+//
+// Copyright 2013, David James Pearce.
+
+package wyscript.ir;
+
+import java.io.PrintStream;
+import java.util.Collections;
+
+import wyscript.ir.Instruction.Op;
+
+/**
+ * <p>
+ * Writes a module in a readable textual form, for inspecting what the
+ * <code>Builder</code> and the passes which follow it have produced. For
+ * example, the function:
+ * </p>
+ *
+ * <pre>
+ * function sum([int] xs) => int:
+ *     int r = 0
+ *     for x in xs:
+ *         r = r + x
+ *     return r
+ * </pre>
+ * <p>
+ * is written as follows:
+ * </p>
+ *
+ * <pre>
+ * function sum([int]) => int:
+ *   b0:
+ *     %0 = param 0 : [int]
+ *     %1 = const 0 : int
+ *     %2 = const 0 : int
+ *     %3 = lengthof %0 : int
+ *     jump b1
+ *   b1: (from b0, b2)
+ *     %5 = phi %2, %12 : int
+ *     %6 = phi %1, %10 : int
+ *     %7 = lt %5, %3 : bool
+ *     branch %7, b2, b3
+ *   ...
+ * </pre>
+ */
+public class Printer {
+	private final PrintStream out;
+
+	public Printer(PrintStream out) {
+		this.out = out;
+	}
+
+	public void print(Module module) {
+		for (int i = 0; i != module.globals.size(); ++i) {
+			out.println("constant " + i + " is " + module.globals.get(i));
+		}
+		print(module.init);
+		for (Function f : module.functions) {
+			print(f);
+		}
+	}
+
+	public void print(Function f) {
+		f.renumber();
+		out.print(f.isNative ? "native function " : "function ");
+		out.print(f.name + "(");
+		for (int i = 0; i != f.parameters.size(); ++i) {
+			if (i != 0) {
+				out.print(", ");
+			}
+			out.print(f.parameters.get(i));
+		}
+		out.println(") => " + f.ret + ":");
+		for (Block b : f.blocks) {
+			print(b);
+		}
+		out.println();
+	}
+
+	private void print(Block b) {
+		out.print("  " + b + ":");
+		if (!b.predecessors.isEmpty()) {
+			out.print(" (from ");
+			for (int i = 0; i != b.predecessors.size(); ++i) {
+				if (i != 0) {
+					out.print(", ");
+				}
+				out.print(b.predecessors.get(i));
+			}
+			out.print(")");
+		}
+		out.println();
+		for (Instruction phi : b.phis) {
+			print(phi);
+		}
+		for (Instruction ins : b.instructions) {
+			print(ins);
+		}
+	}
+
+	private void print(Instruction ins) {
+		out.print("    ");
+		if (ins.hasValue()) {
+			out.print(ins + " = ");
+		}
+		out.print(ins.op);
+		String sep = " ";
+		if (ins.op == Op.CONST) {
+			out.print(sep + constant(ins.constant));
+		} else if (ins.constant instanceof Function) {
+			out.print(sep + ((Function) ins.constant).name);
+			sep = ", ";
+		} else if (ins.constant instanceof String[]) {
+			out.print(sep + "{");
+			String[] names = (String[]) ins.constant;
+			for (int i = 0; i != names.length; ++i) {
+				out.print((i != 0 ? ", " : "") + names[i]);
+			}
+			out.print("}");
+			sep = ", ";
+		} else if (ins.constant != null) {
+			out.print(sep + ins.constant);
+			sep = ", ";
+		}
+		for (Instruction op : ins.operands) {
+			out.print(sep + op);
+			sep = ", ";
+		}
+		for (Block target : ins.targets) {
+			out.print(sep + target);
+			sep = ", ";
+		}
+		if (ins.hasValue()) {
+			out.print(" : " + ins.type);
+		}
+		if (ins.inPlace) {
+			out.print(" (in place)");
+		}
+		out.println();
+	}
+
+	private static String constant(Object value) {
+		if (value == Collections.EMPTY_SET) {
+			return "undefined";
+		} else if (value instanceof StringBuffer) {
+			return "\"" + value + "\"";
+		} else if (value instanceof Character) {
+			return "'" + value + "'";
+		}
+		return String.valueOf(value);
+	}
+}
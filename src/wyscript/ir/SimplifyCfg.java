@@ -0,0 +1,173 @@
+// This file is part of the WyScript Compiler (wysc).
+//
+// The WyScript Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WyScript Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WyScript Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+//
+// Copyright 2013, David James Pearce.
+
+package wyscript.ir;
+
+import java.util.*;
+
+import wyscript.ir.Instruction.Op;
+
+/**
+ * Simplifies the control-flow graph of a function. A branch on a constant is
+ * replaced by a jump to the block it always takes, and any block which can
+ * then no longer be reached is removed. Phis which merge only one value
+ * (other than themselves) are replaced by that value. Finally, a block whose
+ * only predecessor jumps straight to it is merged into that predecessor.
+ */
+public class SimplifyCfg implements Pass {
+
+	public boolean apply(Function f) {
+		boolean changed = foldBranches(f);
+		changed |= removeUnreachable(f);
+		changed |= removeTrivialPhis(f);
+		changed |= mergeBlocks(f);
+		return changed;
+	}
+
+	private static boolean foldBranches(Function f) {
+		boolean changed = false;
+		for (Block b : f.blocks) {
+			Instruction t = b.terminator();
+			if (t.op != Op.BRANCH || !t.operands[0].isConstant()) {
+				continue;
+			}
+			boolean condition = (Boolean) t.operands[0].constant;
+			Block taken = t.targets[condition ? 0 : 1];
+			Block other = t.targets[condition ? 1 : 0];
+			other.removePredecessor(b);
+			Instruction jump = new Instruction(Op.JUMP, null, null);
+			jump.targets = new Block[] { taken };
+			b.instructions.remove(b.instructions.size() - 1);
+			b.add(jump);
+			changed = true;
+		}
+		return changed;
+	}
+
+	private static boolean removeUnreachable(Function f) {
+		HashSet<Block> reached = new HashSet<Block>();
+		ArrayList<Block> worklist = new ArrayList<Block>();
+		worklist.add(f.entry());
+		reached.add(f.entry());
+		while (!worklist.isEmpty()) {
+			Block b = worklist.remove(worklist.size() - 1);
+			for (Block s : b.successors()) {
+				if (reached.add(s)) {
+					worklist.add(s);
+				}
+			}
+		}
+		if (reached.size() == f.blocks.size()) {
+			return false;
+		}
+
+		Iterator<Block> iter = f.blocks.iterator();
+		while (iter.hasNext()) {
+			Block b = iter.next();
+			if (reached.contains(b)) {
+				continue;
+			}
+			iter.remove();
+			for (Block s : b.successors()) {
+				while (reached.contains(s) && s.predecessors.contains(b)) {
+					s.removePredecessor(b);
+				}
+			}
+		}
+		return true;
+	}
+
+	private static boolean removeTrivialPhis(Function f) {
+		HashMap<Instruction, Instruction> replacements = new HashMap<Instruction, Instruction>();
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (Block b : f.blocks) {
+				Iterator<Instruction> iter = b.phis.iterator();
+				while (iter.hasNext()) {
+					Instruction phi = iter.next();
+					Instruction same = trivialValue(phi, replacements);
+					if (same != null) {
+						replacements.put(phi, same);
+						iter.remove();
+						changed = true;
+					}
+				}
+			}
+		}
+		f.replaceUses(replacements);
+		return !replacements.isEmpty();
+	}
+
+	/**
+	 * Determine the only value a phi merges, other than itself, allowing for
+	 * the phis which have already been replaced.
+	 *
+	 * @return That value, or null if there is more than one.
+	 */
+	private static Instruction trivialValue(Instruction phi,
+			Map<Instruction, Instruction> replacements) {
+		Instruction same = null;
+		for (Instruction op : phi.operands) {
+			Instruction r = replacements.get(op);
+			while (r != null) {
+				op = r;
+				r = replacements.get(r);
+			}
+			if (op == phi || op == same) {
+				continue;
+			} else if (same != null) {
+				return null;
+			}
+			same = op;
+		}
+		return same;
+	}
+
+	private static boolean mergeBlocks(Function f) {
+		boolean changed = false;
+		for (int i = 1; i < f.blocks.size(); ++i) {
+			Block b = f.blocks.get(i);
+			if (b.predecessors.size() != 1) {
+				continue;
+			}
+			Block pred = b.predecessors.get(0);
+			if (pred == b || pred.terminator().op != Op.JUMP) {
+				continue;
+			}
+			// With a single predecessor, every phi is trivial
+			HashMap<Instruction, Instruction> replacements = new HashMap<Instruction, Instruction>();
+			for (Instruction phi : b.phis) {
+				replacements.put(phi, phi.operands[0]);
+			}
+			b.phis.clear();
+			f.replaceUses(replacements);
+
+			pred.instructions.remove(pred.instructions.size() - 1);
+			for (Instruction ins : b.instructions) {
+				pred.add(ins);
+			}
+			for (Block s : b.successors()) {
+				Collections.replaceAll(s.predecessors, b, pred);
+			}
+			f.blocks.remove(i--);
+			changed = true;
+		}
+		return changed;
+	}
+}
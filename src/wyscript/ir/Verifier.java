@@ -0,0 +1,342 @@
+// This file is part of the WyScript Compiler (wysc).
+//
+// The WyScript Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WyScript Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WyScript Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+//
+// Copyright 2013, David James Pearce.
+
+package wyscript.ir;
+
+import java.util.*;
+
+import wyscript.ir.Instruction.Op;
+
+/**
+ * <p>
+ * Checks that a function is in valid SSA form. In particular:
+ * </p>
+ * <ul>
+ * <li>Every block ends with a terminator, and contains no other. The entry
+ * block has no predecessors, and every other block can be reached from
+ * it.</li>
+ * <li>The predecessors of each block are exactly those blocks whose
+ * terminators target it, and each of its phis has one operand for each of
+ * them.</li>
+ * <li>Every instruction has the operands its opcode requires, and each
+ * operand is a value defined in the same function.</li>
+ * <li>Every value is defined before it is used, i.e. its definition dominates
+ * each use. A phi uses its operands at the end of the corresponding
+ * predecessors.</li>
+ * </ul>
+ * <p>
+ * A failure indicates an error in the compiler itself, rather than in the
+ * program being compiled.
+ * </p>
+ */
+public class Verifier {
+	private Function function;
+
+	/**
+	 * The immediate dominator of each block, indexed by number.
+	 */
+	private Block[] idom;
+
+	public void verify(Function f) {
+		function = f;
+		f.renumber();
+		if (f.blocks.isEmpty()) {
+			fail("function has no blocks");
+		}
+		if (!f.entry().predecessors.isEmpty()) {
+			fail("entry block has predecessors");
+		}
+
+		HashSet<Instruction> defined = new HashSet<Instruction>();
+		for (Block b : f.blocks) {
+			defined.addAll(b.phis);
+			defined.addAll(b.instructions);
+		}
+		for (Block b : f.blocks) {
+			verifyStructure(b, defined);
+		}
+
+		computeDominators();
+		for (Block b : f.blocks) {
+			verifyDominance(b);
+		}
+	}
+
+	private void verifyStructure(Block b, Set<Instruction> defined) {
+		Instruction t = b.terminator();
+		if (t == null) {
+			fail(b + " does not end with a terminator");
+		}
+		for (Block s : t.targets) {
+			if (!function.blocks.contains(s)) {
+				fail(b + " jumps to a block not in this function");
+			}
+			if (count(s.predecessors, b) != count(Arrays.asList(t.targets), s)) {
+				fail(b + " is not recorded as a predecessor of " + s);
+			}
+		}
+		for (Block p : b.predecessors) {
+			if (!function.blocks.contains(p)
+					|| !Arrays.asList(p.successors()).contains(b)) {
+				fail(p + " is recorded as a predecessor of " + b
+						+ ", but does not jump to it");
+			}
+		}
+
+		for (Instruction phi : b.phis) {
+			if (phi.op != Op.PHI || phi.block != b) {
+				fail(phi + " is not a phi of " + b);
+			}
+			if (phi.operands.length != b.predecessors.size()) {
+				fail(phi + " has " + phi.operands.length + " operands, but "
+						+ b + " has " + b.predecessors.size()
+						+ " predecessors");
+			}
+			verifyOperands(phi, defined);
+		}
+		for (Instruction ins : b.instructions) {
+			if (ins.block != b) {
+				fail(ins + " is not recorded as belonging to " + b);
+			}
+			if (ins.op == Op.PHI) {
+				fail(ins + " is a phi, but not at the start of " + b);
+			}
+			if (ins.op.isTerminator() && ins != t) {
+				fail(b + " has a terminator before its end");
+			}
+			verifyOperands(ins, defined);
+		}
+	}
+
+	private void verifyOperands(Instruction ins, Set<Instruction> defined) {
+		for (Instruction op : ins.operands) {
+			if (op == null || !defined.contains(op)) {
+				fail(ins + " uses a value not defined in this function");
+			}
+			if (!op.hasValue()) {
+				fail(ins + " uses " + op + ", which defines no value");
+			}
+		}
+
+		int arity = -1;
+		boolean value = true;
+		switch (ins.op) {
+		case PARAM:
+		case CONST:
+		case GLOBAL:
+			arity = 0;
+			break;
+		case NOT:
+		case NEG:
+		case LENGTHOF:
+		case IS:
+		case CAST:
+		case FIELD:
+		case TUPLEGET:
+		case DEREF:
+		case NEW:
+			arity = 1;
+			break;
+		case ADD:
+		case SUB:
+		case MUL:
+		case DIV:
+		case REM:
+		case EQ:
+		case NEQ:
+		case LT:
+		case LTEQ:
+		case GT:
+		case GTEQ:
+		case APPEND:
+		case RANGE:
+		case INDEX:
+		case SETFIELD:
+			arity = 2;
+			break;
+		case SETINDEX:
+			arity = 3;
+			break;
+		case SETDEREF:
+			arity = 2;
+			value = false;
+			break;
+		case SETGLOBAL:
+		case PRINT:
+		case BRANCH:
+			arity = 1;
+			value = false;
+			break;
+		case JUMP:
+			arity = 0;
+			value = false;
+			break;
+		case RETURN:
+			if (ins.operands.length > 1) {
+				fail(ins + " returns more than one value");
+			}
+			value = false;
+			break;
+		}
+		if (arity >= 0 && ins.operands.length != arity) {
+			fail(ins + " (" + ins.op + ") has " + ins.operands.length
+					+ " operands, rather than " + arity);
+		}
+		if (value != ins.hasValue()) {
+			fail(ins + " (" + ins.op + ") "
+					+ (value ? "has no type" : "should not define a value"));
+		}
+		int targets = ins.op == Op.JUMP ? 1 : ins.op == Op.BRANCH ? 2 : 0;
+		if (ins.targets.length != targets) {
+			fail(ins + " (" + ins.op + ") has " + ins.targets.length
+					+ " targets, rather than " + targets);
+		}
+	}
+
+	private void verifyDominance(Block b) {
+		for (Instruction phi : b.phis) {
+			for (int k = 0; k != phi.operands.length; ++k) {
+				Block pred = b.predecessors.get(k);
+				if (!dominates(phi.operands[k].block, pred)) {
+					fail(phi + " uses " + phi.operands[k]
+							+ ", which is not defined on entry from " + pred);
+				}
+			}
+		}
+		HashSet<Instruction> earlier = new HashSet<Instruction>(b.phis);
+		for (Instruction ins : b.instructions) {
+			for (Instruction op : ins.operands) {
+				if (op.block == b ? !earlier.contains(op) : !dominates(
+						op.block, b)) {
+					fail(ins + " uses " + op + " before it is defined");
+				}
+			}
+			earlier.add(ins);
+		}
+	}
+
+	/**
+	 * Compute the immediate dominator of every block, using the iterative
+	 * algorithm of Cooper, Harvey and Kennedy ("A Simple, Fast Dominance
+	 * Algorithm").
+	 */
+	private void computeDominators() {
+		List<Block> order = reversePostorder();
+		if (order.size() != function.blocks.size()) {
+			fail("not every block can be reached");
+		}
+		int[] position = new int[function.blocks.size()];
+		for (int i = 0; i != order.size(); ++i) {
+			position[order.get(i).id] = i;
+		}
+		idom = new Block[function.blocks.size()];
+		Block entry = function.entry();
+		idom[entry.id] = entry;
+
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (Block b : order) {
+				if (b == entry) {
+					continue;
+				}
+				Block d = null;
+				for (Block p : b.predecessors) {
+					if (idom[p.id] == null) {
+						continue;
+					}
+					d = d == null ? p : intersect(p, d, position);
+				}
+				if (idom[b.id] != d) {
+					idom[b.id] = d;
+					changed = true;
+				}
+			}
+		}
+	}
+
+	private Block intersect(Block a, Block b, int[] position) {
+		while (a != b) {
+			while (position[a.id] > position[b.id]) {
+				a = idom[a.id];
+			}
+			while (position[b.id] > position[a.id]) {
+				b = idom[b.id];
+			}
+		}
+		return a;
+	}
+
+	private List<Block> reversePostorder() {
+		ArrayList<Block> order = new ArrayList<Block>();
+		HashSet<Block> visited = new HashSet<Block>();
+		// An explicit stack is used, since functions can have many blocks
+		ArrayList<Block> blocks = new ArrayList<Block>();
+		ArrayList<Integer> next = new ArrayList<Integer>();
+		blocks.add(function.entry());
+		next.add(0);
+		visited.add(function.entry());
+		while (!blocks.isEmpty()) {
+			int top = blocks.size() - 1;
+			Block b = blocks.get(top);
+			Block[] succs = b.successors();
+			int i = next.get(top);
+			if (i < succs.length) {
+				next.set(top, i + 1);
+				if (visited.add(succs[i])) {
+					blocks.add(succs[i]);
+					next.add(0);
+				}
+			} else {
+				order.add(b);
+				blocks.remove(top);
+				next.remove(top);
+			}
+		}
+		Collections.reverse(order);
+		return order;
+	}
+
+	private boolean dominates(Block a, Block b) {
+		while (true) {
+			if (a == b) {
+				return true;
+			}
+			Block d = idom[b.id];
+			if (d == b) {
+				return false;
+			}
+			b = d;
+		}
+	}
+
+	private static int count(List<?> list, Object item) {
+		int n = 0;
+		for (Object o : list) {
+			if (o == item) {
+				n++;
+			}
+		}
+		return n;
+	}
+
+	private void fail(String msg) {
+		throw new RuntimeException("invalid IR in function " + function.name
+				+ ": " + msg);
+	}
+}
@@ -0,0 +1,293 @@
+// This file is part of the WyScript Compiler (wysc).
+//
+// The WyScript Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WyScript Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WyScript Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+//
+// Copyright 2013, David James Pearce.
+
+package wyscript.jvm;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * <p>
+ * A minimal builder for JVM class files, sufficient for the classes generated
+ * by the <code>ClassFileWriter</code>. This manages the constant pool, and
+ * serialises a class made up of static fields and methods.
+ * </p>
+ * <p>
+ * Classes are written with version 49.0 (i.e. Java 5). This means the JVM
+ * verifies them by type inference, and so no <code>StackMapTable</code>
+ * attributes need to be generated.
+ * </p>
+ *
+ */
+public class ClassFile {
+	public static final int ACC_PUBLIC = 0x0001;
+	public static final int ACC_STATIC = 0x0008;
+	public static final int ACC_FINAL = 0x0010;
+	public static final int ACC_SUPER = 0x0020;
+
+	private static final int MAJOR_VERSION = 49;
+
+	private static final int CONSTANT_Utf8 = 1;
+	private static final int CONSTANT_Integer = 3;
+	private static final int CONSTANT_Double = 6;
+	private static final int CONSTANT_Class = 7;
+	private static final int CONSTANT_String = 8;
+	private static final int CONSTANT_Fieldref = 9;
+	private static final int CONSTANT_Methodref = 10;
+	private static final int CONSTANT_NameAndType = 12;
+
+	private final String name;
+	private final String superName;
+
+	/**
+	 * The serialised constant pool, along with a map from the (textual) key of
+	 * each entry to its index.
+	 */
+	private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+	private final DataOutputStream poolOut = new DataOutputStream(pool);
+	private final HashMap<String, Integer> poolIndex = new HashMap<String, Integer>();
+	private int poolSize = 1;
+
+	private final ArrayList<byte[]> fields = new ArrayList<byte[]>();
+	private final ArrayList<byte[]> methods = new ArrayList<byte[]>();
+
+	/**
+	 * Construct a class file for a given class.
+	 *
+	 * @param name
+	 *            Internal name of the class (e.g. "java/lang/Object").
+	 * @param superName
+	 *            Internal name of its superclass.
+	 */
+	public ClassFile(String name, String superName) {
+		this.name = name;
+		this.superName = superName;
+	}
+
+	public String name() {
+		return name;
+	}
+
+	// ======================================================================
+	// Constant Pool
+	// ======================================================================
+
+	public int utf8(String s) {
+		String key = "U" + s;
+		Integer index = poolIndex.get(key);
+		if (index == null) {
+			try {
+				poolOut.writeByte(CONSTANT_Utf8);
+				poolOut.writeUTF(s);
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+			index = add(key, 1);
+		}
+		return index;
+	}
+
+	public int classRef(String internalName) {
+		String key = "C" + internalName;
+		Integer index = poolIndex.get(key);
+		if (index == null) {
+			int n = utf8(internalName);
+			write(CONSTANT_Class, n);
+			index = add(key, 1);
+		}
+		return index;
+	}
+
+	public int string(String s) {
+		String key = "S" + s;
+		Integer index = poolIndex.get(key);
+		if (index == null) {
+			int n = utf8(s);
+			write(CONSTANT_String, n);
+			index = add(key, 1);
+		}
+		return index;
+	}
+
+	public int integer(int value) {
+		String key = "I" + value;
+		Integer index = poolIndex.get(key);
+		if (index == null) {
+			try {
+				poolOut.writeByte(CONSTANT_Integer);
+				poolOut.writeInt(value);
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+			index = add(key, 1);
+		}
+		return index;
+	}
+
+	public int doubleConstant(double value) {
+		String key = "D" + Double.doubleToRawLongBits(value);
+		Integer index = poolIndex.get(key);
+		if (index == null) {
+			try {
+				poolOut.writeByte(CONSTANT_Double);
+				poolOut.writeDouble(value);
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+			// Doubles occupy two entries in the constant pool
+			index = add(key, 2);
+		}
+		return index;
+	}
+
+	public int fieldRef(String owner, String name, String descriptor) {
+		return memberRef(CONSTANT_Fieldref, owner, name, descriptor);
+	}
+
+	public int methodRef(String owner, String name, String descriptor) {
+		return memberRef(CONSTANT_Methodref, owner, name, descriptor);
+	}
+
+	private int memberRef(int tag, String owner, String name, String descriptor) {
+		String key = tag + owner + "." + name + ":" + descriptor;
+		Integer index = poolIndex.get(key);
+		if (index == null) {
+			int c = classRef(owner);
+			int nt = nameAndType(name, descriptor);
+			write(tag, c, nt);
+			index = add(key, 1);
+		}
+		return index;
+	}
+
+	private int nameAndType(String name, String descriptor) {
+		String key = "N" + name + ":" + descriptor;
+		Integer index = poolIndex.get(key);
+		if (index == null) {
+			int n = utf8(name);
+			int d = utf8(descriptor);
+			write(CONSTANT_NameAndType, n, d);
+			index = add(key, 1);
+		}
+		return index;
+	}
+
+	private void write(int tag, int... indices) {
+		try {
+			poolOut.writeByte(tag);
+			for (int i : indices) {
+				poolOut.writeShort(i);
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private int add(String key, int size) {
+		int index = poolSize;
+		poolIndex.put(key, index);
+		poolSize += size;
+		return index;
+	}
+
+	// ======================================================================
+	// Members
+	// ======================================================================
+
+	public void addField(int access, String name, String descriptor) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			out.writeShort(access);
+			out.writeShort(utf8(name));
+			out.writeShort(utf8(descriptor));
+			out.writeShort(0); // attributes
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		fields.add(bytes.toByteArray());
+	}
+
+	/**
+	 * Add a method with a given body to this class. The body must have been
+	 * constructed against this class file, since it refers to entries in its
+	 * constant pool.
+	 *
+	 * @param access
+	 * @param name
+	 * @param descriptor
+	 * @param code
+	 */
+	public void addMethod(int access, String name, String descriptor, Code code) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			out.writeShort(access);
+			out.writeShort(utf8(name));
+			out.writeShort(utf8(descriptor));
+			out.writeShort(1); // attributes
+			byte[] body = code.toByteArray();
+			out.writeShort(utf8("Code"));
+			out.writeInt(12 + body.length);
+			out.writeShort(code.maxStack());
+			out.writeShort(code.maxLocals());
+			out.writeInt(body.length);
+			out.write(body);
+			out.writeShort(0); // exception table
+			out.writeShort(0); // attributes
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		methods.add(bytes.toByteArray());
+	}
+
+	public byte[] toByteArray() {
+		// NOTE: the class and superclass must be added to the constant pool
+		// before it is written.
+		int thisIndex = classRef(name);
+		int superIndex = classRef(superName);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			out.writeInt(0xCAFEBABE);
+			out.writeShort(0);
+			out.writeShort(MAJOR_VERSION);
+			out.writeShort(poolSize);
+			out.write(pool.toByteArray());
+			out.writeShort(ACC_PUBLIC | ACC_SUPER);
+			out.writeShort(thisIndex);
+			out.writeShort(superIndex);
+			out.writeShort(0); // interfaces
+			out.writeShort(fields.size());
+			for (byte[] f : fields) {
+				out.write(f);
+			}
+			out.writeShort(methods.size());
+			for (byte[] m : methods) {
+				out.write(m);
+			}
+			out.writeShort(0); // attributes
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		return bytes.toByteArray();
+	}
+}
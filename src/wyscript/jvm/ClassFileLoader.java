@@ -0,0 +1,114 @@
+// This file is part of the WyScript Compiler (wysc).
+//
+// The WyScript Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WyScript Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WyScript Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+//
+// Copyright 2013, David James Pearce.
+
+package wyscript.jvm;
+
+import java.io.File;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+import wyscript.io.ClassFileWriter;
+import wyscript.lang.WyscriptFile;
+import wyscript.util.Values;
+
+/**
+ * Compiles a (type-checked) WyScript program into a JVM class using the
+ * <code>ClassFileWriter</code>, and then loads and executes that class
+ * in-process. The generated class is given the runtime context it needs
+ * before its constants are initialised and its <code>main()</code> method is
+ * invoked.
+ *
+ */
+public class ClassFileLoader extends ClassLoader {
+
+	public ClassFileLoader() {
+		super(ClassFileLoader.class.getClassLoader());
+	}
+
+	public void run(WyscriptFile wf) {
+		String name = className(wf.filename);
+		ClassFileWriter writer = new ClassFileWriter(name);
+		byte[] bytes = writer.write(wf);
+		Class<?> program = defineClass(name, bytes, 0, bytes.length);
+
+		try {
+			program.getField(ClassFileWriter.VALUES_FIELD).set(null,
+					new Values(wf.filename, writer.userTypes()));
+			program.getField(ClassFileWriter.TYPES_FIELD).set(null,
+					writer.types());
+			program.getField(ClassFileWriter.SHAPES_FIELD).set(null,
+					writer.shapes());
+			invoke(program.getMethod(ClassFileWriter.INIT_METHOD));
+
+			// Finally, pick the main method (if one exits) and execute it
+			Method main;
+			try {
+				main = program.getMethod("main");
+			} catch (NoSuchMethodException e) {
+				System.out.println("Cannot find a main() function");
+				return;
+			}
+			invoke(main);
+		} catch (NoSuchMethodException e) {
+			throw new RuntimeException(e);
+		} catch (NoSuchFieldException e) {
+			throw new RuntimeException(e);
+		} catch (IllegalAccessException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Invoke a static method of the generated class, passing on any exception
+	 * it throws as is.
+	 */
+	private static void invoke(Method method) throws IllegalAccessException {
+		try {
+			method.invoke(null);
+		} catch (InvocationTargetException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new RuntimeException(cause);
+		}
+	}
+
+	/**
+	 * Determine the name of the class generated for a given source file,
+	 * which is its name without the extension.
+	 */
+	private static String className(String filename) {
+		String name = new File(filename).getName();
+		int dot = name.lastIndexOf('.');
+		if (dot >= 0) {
+			name = name.substring(0, dot);
+		}
+		StringBuilder r = new StringBuilder();
+		for (int i = 0; i != name.length(); ++i) {
+			char c = name.charAt(i);
+			r.append(Character.isJavaIdentifierPart(c) ? c : '_');
+		}
+		if (r.length() == 0 || !Character.isJavaIdentifierStart(r.charAt(0))) {
+			r.insert(0, '_');
+		}
+		return r.toString();
+	}
+}
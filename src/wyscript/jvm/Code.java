@@ -0,0 +1,456 @@
+// This file is part of the WyScript Compiler (wysc).
+//
+// The WyScript Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WyScript Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WyScript Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+//
+// Copyright 2013, David James Pearce.
+
+package wyscript.jvm;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+
+/**
+ * <p>
+ * A builder for the bytecode of a single method. Instructions are appended in
+ * order, and branch targets are given by <code>Label</code>s which are patched
+ * once the method is complete.
+ * </p>
+ * <p>
+ * The builder keeps track of the depth of the operand stack (in words) as
+ * instructions are appended, so that the maximum stack size can be computed.
+ * Since the code is generated in a structured fashion, the stack depth at a
+ * label is simply that at any branch to it (or at the preceding instruction,
+ * if control falls through).
+ * </p>
+ */
+public class Code {
+	// Opcodes used by the ClassFileWriter
+	public static final int ACONST_NULL = 1;
+	public static final int ICONST_0 = 3;
+	public static final int DCONST_0 = 14;
+	public static final int DCONST_1 = 15;
+	public static final int BIPUSH = 16;
+	public static final int SIPUSH = 17;
+	public static final int LDC = 18;
+	public static final int LDC_W = 19;
+	public static final int LDC2_W = 20;
+	public static final int ILOAD = 21;
+	public static final int DLOAD = 24;
+	public static final int ALOAD = 25;
+	public static final int AALOAD = 50;
+	public static final int ISTORE = 54;
+	public static final int DSTORE = 57;
+	public static final int ASTORE = 58;
+	public static final int AASTORE = 83;
+	public static final int POP = 87;
+	public static final int POP2 = 88;
+	public static final int DUP = 89;
+	public static final int DUP_X1 = 90;
+	public static final int SWAP = 95;
+	public static final int IADD = 96;
+	public static final int DADD = 99;
+	public static final int ISUB = 100;
+	public static final int DSUB = 103;
+	public static final int IMUL = 104;
+	public static final int DMUL = 107;
+	public static final int IDIV = 108;
+	public static final int DDIV = 111;
+	public static final int IREM = 112;
+	public static final int DREM = 115;
+	public static final int INEG = 116;
+	public static final int DNEG = 119;
+	public static final int IINC = 132;
+	public static final int I2D = 135;
+	public static final int DCMPL = 151;
+	public static final int DCMPG = 152;
+	public static final int IFEQ = 153;
+	public static final int IFNE = 154;
+	public static final int IFLT = 155;
+	public static final int IFGE = 156;
+	public static final int IFGT = 157;
+	public static final int IFLE = 158;
+	public static final int IF_ICMPEQ = 159;
+	public static final int IF_ICMPNE = 160;
+	public static final int IF_ICMPLT = 161;
+	public static final int IF_ICMPGE = 162;
+	public static final int IF_ICMPGT = 163;
+	public static final int IF_ICMPLE = 164;
+	public static final int GOTO = 167;
+	public static final int IRETURN = 172;
+	public static final int DRETURN = 175;
+	public static final int ARETURN = 176;
+	public static final int RETURN = 177;
+	public static final int GETSTATIC = 178;
+	public static final int PUTSTATIC = 179;
+	public static final int INVOKEVIRTUAL = 182;
+	public static final int INVOKESPECIAL = 183;
+	public static final int INVOKESTATIC = 184;
+	public static final int NEW = 187;
+	public static final int ANEWARRAY = 189;
+	public static final int ATHROW = 191;
+	public static final int CHECKCAST = 192;
+	public static final int INSTANCEOF = 193;
+	public static final int WIDE = 196;
+
+	/**
+	 * A position in the bytecode which can be the target of a branch.
+	 */
+	public static final class Label {
+		private int offset = -1;
+		private int depth = -1;
+		private final ArrayList<Integer> branches = new ArrayList<Integer>();
+	}
+
+	private final ClassFile classFile;
+	private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+	private final ArrayList<Label> labels = new ArrayList<Label>();
+	private int depth;
+	private int maxStack;
+	private int maxLocals;
+
+	public Code(ClassFile classFile, int locals) {
+		this.classFile = classFile;
+		this.maxLocals = locals;
+	}
+
+	public int maxStack() {
+		return maxStack;
+	}
+
+	public int maxLocals() {
+		return maxLocals;
+	}
+
+	/**
+	 * Indicate that local variables up to (but not including) a given index
+	 * are used by this method.
+	 *
+	 * @param locals
+	 */
+	public void useLocals(int locals) {
+		maxLocals = Math.max(maxLocals, locals);
+	}
+
+	// ======================================================================
+	// Instructions
+	// ======================================================================
+
+	/**
+	 * Append an instruction which has no operands.
+	 *
+	 * @param opcode
+	 */
+	public void op(int opcode) {
+		emit(opcode);
+		switch (opcode) {
+		case ACONST_NULL:
+		case DUP:
+		case I2D:
+			adjust(1);
+			break;
+		case DCONST_0:
+		case DCONST_1:
+			adjust(2);
+			break;
+		case POP:
+		case IADD:
+		case ISUB:
+		case IMUL:
+		case IDIV:
+		case IREM:
+		case AALOAD:
+		case IRETURN:
+		case ARETURN:
+		case ATHROW:
+			adjust(-1);
+			break;
+		case POP2:
+		case DADD:
+		case DSUB:
+		case DMUL:
+		case DDIV:
+		case DREM:
+		case DRETURN:
+			adjust(-2);
+			break;
+		case DCMPL:
+		case DCMPG:
+		case AASTORE:
+			adjust(-3);
+			break;
+		case DUP_X1:
+			adjust(1);
+			break;
+		case SWAP:
+		case INEG:
+		case DNEG:
+		case RETURN:
+			break;
+		default:
+			throw new IllegalArgumentException("unknown opcode: " + opcode);
+		}
+	}
+
+	/**
+	 * Push an integer constant onto the stack, using the shortest instruction
+	 * available.
+	 *
+	 * @param value
+	 */
+	public void iconst(int value) {
+		if (value >= -1 && value <= 5) {
+			emit(ICONST_0 + value);
+		} else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+			emit(BIPUSH);
+			emit(value);
+		} else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+			emit(SIPUSH);
+			emit2(value);
+		} else {
+			ldc(classFile.integer(value));
+			return;
+		}
+		adjust(1);
+	}
+
+	public void dconst(double value) {
+		if (Double.doubleToRawLongBits(value) == 0L) {
+			op(DCONST_0);
+		} else if (value == 1.0) {
+			op(DCONST_1);
+		} else {
+			emit(LDC2_W);
+			emit2(classFile.doubleConstant(value));
+			adjust(2);
+		}
+	}
+
+	public void sconst(String value) {
+		ldc(classFile.string(value));
+	}
+
+	private void ldc(int index) {
+		if (index < 256) {
+			emit(LDC);
+			emit(index);
+		} else {
+			emit(LDC_W);
+			emit2(index);
+		}
+		adjust(1);
+	}
+
+	/**
+	 * Load or store a local variable.
+	 *
+	 * @param opcode
+	 *            One of ILOAD, DLOAD, ALOAD, ISTORE, DSTORE or ASTORE.
+	 * @param index
+	 */
+	public void local(int opcode, int index) {
+		if (index < 256) {
+			emit(opcode);
+			emit(index);
+		} else {
+			emit(WIDE);
+			emit(opcode);
+			emit2(index);
+		}
+		switch (opcode) {
+		case ILOAD:
+		case ALOAD:
+			adjust(1);
+			useLocals(index + 1);
+			break;
+		case DLOAD:
+			adjust(2);
+			useLocals(index + 2);
+			break;
+		case ISTORE:
+		case ASTORE:
+			adjust(-1);
+			useLocals(index + 1);
+			break;
+		case DSTORE:
+			adjust(-2);
+			useLocals(index + 2);
+			break;
+		default:
+			throw new IllegalArgumentException("unknown opcode: " + opcode);
+		}
+	}
+
+	public void iinc(int index, int amount) {
+		if (index < 256 && amount >= Byte.MIN_VALUE && amount <= Byte.MAX_VALUE) {
+			emit(IINC);
+			emit(index);
+			emit(amount);
+		} else {
+			emit(WIDE);
+			emit(IINC);
+			emit2(index);
+			emit2(amount);
+		}
+		useLocals(index + 1);
+	}
+
+	/**
+	 * Append an instruction which refers to a class, i.e. NEW, ANEWARRAY,
+	 * CHECKCAST or INSTANCEOF.
+	 *
+	 * @param opcode
+	 * @param internalName
+	 */
+	public void type(int opcode, String internalName) {
+		emit(opcode);
+		emit2(classFile.classRef(internalName));
+		if (opcode == NEW) {
+			adjust(1);
+		}
+	}
+
+	/**
+	 * Append a GETSTATIC or PUTSTATIC instruction.
+	 *
+	 * @param opcode
+	 * @param owner
+	 * @param name
+	 * @param descriptor
+	 */
+	public void field(int opcode, String owner, String name, String descriptor) {
+		emit(opcode);
+		emit2(classFile.fieldRef(owner, name, descriptor));
+		int size = size(descriptor.charAt(0));
+		adjust(opcode == GETSTATIC ? size : -size);
+	}
+
+	/**
+	 * Append an INVOKEVIRTUAL, INVOKESPECIAL or INVOKESTATIC instruction.
+	 *
+	 * @param opcode
+	 * @param owner
+	 * @param name
+	 * @param descriptor
+	 */
+	public void invoke(int opcode, String owner, String name, String descriptor) {
+		emit(opcode);
+		emit2(classFile.methodRef(owner, name, descriptor));
+		int delta = opcode == INVOKESTATIC ? 0 : -1;
+		int i = 1;
+		while (descriptor.charAt(i) != ')') {
+			char c = descriptor.charAt(i);
+			delta -= size(c);
+			while (descriptor.charAt(i) == '[') {
+				i++;
+			}
+			if (descriptor.charAt(i) == 'L') {
+				i = descriptor.indexOf(';', i);
+			}
+			i++;
+		}
+		delta += size(descriptor.charAt(i + 1));
+		adjust(delta);
+	}
+
+	private static int size(char c) {
+		switch (c) {
+		case 'V':
+			return 0;
+		case 'D':
+		case 'J':
+			return 2;
+		default:
+			return 1;
+		}
+	}
+
+	// ======================================================================
+	// Branches
+	// ======================================================================
+
+	public Label newLabel() {
+		Label label = new Label();
+		labels.add(label);
+		return label;
+	}
+
+	/**
+	 * Append a branch instruction to a given label.
+	 *
+	 * @param opcode
+	 *            Either GOTO, or a conditional branch.
+	 * @param target
+	 */
+	public void branch(int opcode, Label target) {
+		int position = bytes.size();
+		emit(opcode);
+		emit2(0); // patched later
+		if (opcode >= IF_ICMPEQ && opcode <= IF_ICMPLE) {
+			adjust(-2);
+		} else if (opcode != GOTO) {
+			adjust(-1);
+		}
+		target.branches.add(position);
+		target.depth = depth;
+	}
+
+	/**
+	 * Mark the position of a given label as the next instruction.
+	 *
+	 * @param label
+	 */
+	public void mark(Label label) {
+		label.offset = bytes.size();
+		if (label.depth >= 0) {
+			depth = label.depth;
+		}
+	}
+
+	// ======================================================================
+	// Output
+	// ======================================================================
+
+	public byte[] toByteArray() {
+		byte[] code = bytes.toByteArray();
+		for (Label label : labels) {
+			for (int position : label.branches) {
+				if (label.offset < 0) {
+					throw new IllegalStateException("unmarked label");
+				}
+				int offset = label.offset - position;
+				if (offset < Short.MIN_VALUE || offset > Short.MAX_VALUE) {
+					throw new IllegalStateException("method too large");
+				}
+				code[position + 1] = (byte) (offset >> 8);
+				code[position + 2] = (byte) offset;
+			}
+		}
+		return code;
+	}
+
+	private void emit(int b) {
+		bytes.write(b);
+	}
+
+	private void emit2(int s) {
+		bytes.write(s >> 8);
+		bytes.write(s);
+	}
+
+	private void adjust(int delta) {
+		depth += delta;
+		maxStack = Math.max(maxStack, depth);
+	}
+}
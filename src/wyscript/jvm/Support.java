@@ -0,0 +1,263 @@
+// This file is part of the WyScript Compiler (wysc).
+//
+// The WyScript Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WyScript Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WyScript Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+//
+// Copyright 2013, David James Pearce.
+
+package wyscript.jvm;
+
+import wyscript.util.*;
+import static wyscript.util.CopyOnWriteValue.release;
+
+/**
+ * <p>
+ * Runtime support for the classes generated by the
+ * <code>ClassFileWriter</code>. Generated code operates directly on unboxed
+ * values wherever the types involved allow it; otherwise, it falls back to
+ * the methods here, which mirror the semantics of the reference
+ * <code>Interpreter</code> on boxed values.
+ * </p>
+ * <p>
+ * NOTE: the names and signatures of these methods are referred to by the
+ * generated bytecode, and so cannot be changed independently of the
+ * <code>ClassFileWriter</code>.
+ * </p>
+ */
+public final class Support {
+
+	private Support() {
+	}
+
+	// ======================================================================
+	// Arithmetic
+	// ======================================================================
+
+	public static Object add(Object l, Object r) {
+		if (l instanceof Integer) {
+			return ((Integer) l) + ((Integer) r);
+		} else {
+			return ((Double) l) + ((Double) r);
+		}
+	}
+
+	public static Object sub(Object l, Object r) {
+		if (l instanceof Integer) {
+			return ((Integer) l) - ((Integer) r);
+		} else {
+			return ((Double) l) - ((Double) r);
+		}
+	}
+
+	public static Object mul(Object l, Object r) {
+		if (l instanceof Integer) {
+			return ((Integer) l) * ((Integer) r);
+		} else {
+			return ((Double) l) * ((Double) r);
+		}
+	}
+
+	public static Object div(Object l, Object r) {
+		if (l instanceof Integer) {
+			return ((Integer) l) / ((Integer) r);
+		} else {
+			return ((Double) l) / ((Double) r);
+		}
+	}
+
+	public static Object rem(Object l, Object r) {
+		if (l instanceof Integer) {
+			return ((Integer) l) % ((Integer) r);
+		} else {
+			return ((Double) l) % ((Double) r);
+		}
+	}
+
+	public static Object neg(Object v) {
+		if (v instanceof Double) {
+			return -((Double) v);
+		} else {
+			return -((Integer) v);
+		}
+	}
+
+	// ======================================================================
+	// Comparisons
+	// ======================================================================
+
+	public static boolean equals(Object l, Object r) {
+		return l == null ? r == null : l.equals(r);
+	}
+
+	public static boolean lt(Object l, Object r) {
+		if (l instanceof Integer) {
+			return ((Integer) l) < ((Integer) r);
+		} else {
+			return ((Double) l) < ((Double) r);
+		}
+	}
+
+	public static boolean lteq(Object l, Object r) {
+		if (l instanceof Integer) {
+			return ((Integer) l) <= ((Integer) r);
+		} else {
+			return ((Double) l) <= ((Double) r);
+		}
+	}
+
+	public static boolean gt(Object l, Object r) {
+		if (l instanceof Integer) {
+			return ((Integer) l) > ((Integer) r);
+		} else {
+			return ((Double) l) > ((Double) r);
+		}
+	}
+
+	public static boolean gteq(Object l, Object r) {
+		if (l instanceof Integer) {
+			return ((Integer) l) >= ((Integer) r);
+		} else {
+			return ((Double) l) >= ((Double) r);
+		}
+	}
+
+	// ======================================================================
+	// Compound values
+	// ======================================================================
+
+	public static Object append(Object l, Object r, Values values) {
+		if (l instanceof StringValue && r instanceof StringValue) {
+			return ((StringValue) l).append((StringValue) r);
+		} else if (l instanceof StringValue) {
+			return ((StringValue) l).append(values.toString(r));
+		} else if (r instanceof StringValue) {
+			return new StringValue(values.toString(l)).append((StringValue) r);
+		} else {
+			return ((ListValue) l).append((ListValue) r);
+		}
+	}
+
+	public static ListValue range(int start, int end) {
+		ListValue result = new ListValue(ListValue.Storage.INT,
+				Math.max(end - start, 0));
+		while (start < end) {
+			result.addInt(start);
+			start = start + 1;
+		}
+		return result;
+	}
+
+	public static int lengthOf(Object v) {
+		if (v instanceof StringValue) {
+			return ((StringValue) v).length();
+		} else {
+			return ((ListValue) v).size();
+		}
+	}
+
+	public static Object indexOf(Object src, int index) {
+		if (src instanceof StringValue) {
+			return ((StringValue) src).charAt(index);
+		} else {
+			return ((ListValue) src).get(index);
+		}
+	}
+
+	public static char charAt(Object src, int index) {
+		return ((StringValue) src).charAt(index);
+	}
+
+	public static Tuple tuple(Object[] values) {
+		return Tuple.create(values);
+	}
+
+	public static Object tupleGet(Object tuple, int index) {
+		return ((Tuple) tuple).get(index);
+	}
+
+	// ======================================================================
+	// Updates
+	// ======================================================================
+
+	/**
+	 * Get a value held in a variable so that it can be updated in place,
+	 * replacing it with its own copy if it is shared. The (possibly new) value
+	 * must then be written back to the variable.
+	 *
+	 * @param value
+	 * @return
+	 */
+	public static Object unshare(Object value) {
+		if (value instanceof CopyOnWriteValue) {
+			return ((CopyOnWriteValue) value).unshare();
+		} else {
+			return value;
+		}
+	}
+
+	/**
+	 * Assign an element of a list or string which has already been unshared.
+	 * The value given has already been copied, and this copy is consumed.
+	 *
+	 * @param src
+	 * @param index
+	 * @param value
+	 */
+	public static void setIndex(Object src, int index, Object value) {
+		if (src instanceof ListValue) {
+			((ListValue) src).set(index, value);
+			release(value);
+		} else {
+			((StringValue) src).set(index, (Character) value);
+		}
+	}
+
+	/**
+	 * Assign a field of a record which has already been unshared. The value
+	 * given has already been copied, and this copy is consumed.
+	 *
+	 * @param src
+	 * @param field
+	 * @param value
+	 */
+	public static void setField(Object src, String field, Object value) {
+		((RecordValue) src).set(field, value);
+		release(value);
+	}
+
+	/**
+	 * Assign the field at a given offset in the shape of a record, as above.
+	 *
+	 * @param src
+	 * @param offset
+	 * @param value
+	 */
+	public static void setField(Object src, int offset, Object value) {
+		((RecordValue) src).set(offset, value);
+		release(value);
+	}
+
+	// ======================================================================
+	// Statements
+	// ======================================================================
+
+	public static void print(Values values, Object value) {
+		System.out.println(values.toString(value));
+	}
+
+	public static RuntimeException nativeFunction(String name) {
+		return new RuntimeException("Can't execute native function " + name
+				+ " - must be run as JavaScript (-js)");
+	}
+}
@@ -54,6 +54,8 @@ public interface Expr extends SyntacticElement {
 			LVal {
 
 		private String name;
+		private int slot = -1;
+		private boolean global;
 
 		/**
 		 * Construct a variable expression from a given variable name.
@@ -83,6 +85,36 @@ public interface Expr extends SyntacticElement {
 		public void setVar(String var) {
 			this.name = var;
 		}
+
+		/**
+		 * Get the index of the slot holding this variable, as assigned by the
+		 * <code>VariableResolver</code>. This indexes the stack frame for
+		 * local variables, or the global scope for constants.
+		 *
+		 * @return The slot index, or -1 if this variable has not been
+		 *         resolved.
+		 */
+		public int getSlot() {
+			return slot;
+		}
+
+		public void setSlot(int slot) {
+			this.slot = slot;
+		}
+
+		/**
+		 * Check whether this variable refers to a constant held in the global
+		 * scope, rather than to a local variable or parameter.
+		 *
+		 * @return
+		 */
+		public boolean isGlobal() {
+			return global;
+		}
+
+		public void setGlobal(boolean global) {
+			this.global = global;
+		}
 	}
 
 	/**
@@ -809,7 +841,8 @@ public interface Expr extends SyntacticElement {
 	 * Represents a function invocation, which is composed of a <i>function
 	 * name</i> and zero or more <i>argument expressions</i>. For example,
 	 * <code>f(1)</code> is an invocation expression for the function named
-	 * <code>f</code> which accepts a single argument.
+	 * <code>f</code> which accepts a single argument. An invocation may also
+	 * be used as a statement, in which case any value it returns is discarded.
 	 *
 	 * @author David J. Pearce
 	 *
@@ -819,6 +852,7 @@ public interface Expr extends SyntacticElement {
 
 		private final String name;
 		private final ArrayList<Expr> arguments;
+		private WyscriptFile.FunDecl target;
 
 		/**
 		 * Construct a function invocation expression from a given function name
@@ -859,6 +893,21 @@ public interface Expr extends SyntacticElement {
 			return arguments;
 		}
 
+		/**
+		 * Get the declaration of the function being invoked, as linked by the
+		 * <code>VariableResolver</code>.
+		 *
+		 * @return The function, or null if this invocation has not been
+		 *         resolved.
+		 */
+		public WyscriptFile.FunDecl getTarget() {
+			return target;
+		}
+
+		public void setTarget(WyscriptFile.FunDecl target) {
+			this.target = target;
+		}
+
 		public String toString() {
 			String params = "(";
 			boolean first = true;
@@ -278,6 +278,10 @@ public interface Stmt extends SyntacticElement {
 	 *   return r
 	 * </pre>
 	 *
+	 * The source expression is evaluated once, before the first iteration.
+	 * Since a list is a value, updates which the body makes to any variable
+	 * holding that list do not affect the iteration.
+	 *
 	 * @author David J. Pearce
 	 *
 	 */
@@ -502,7 +506,7 @@ public interface Stmt extends SyntacticElement {
 		private final Expr condition;
 		private final ArrayList<Stmt> trueBranch;
 		private final ArrayList<Stmt> falseBranch;
-		private final Map<Expr, List<Stmt>> alts;
+		private final List<ElseIf> alts;
 
 		/**
 		 * Construct an if-else statement from a condition, true branch and
@@ -515,8 +519,8 @@ public interface Stmt extends SyntacticElement {
 		 *            condition holds; may not be null.
 		 *
 		 * @param alts
-		 * 			A mapping from expression to the list of statements to execute
-		 * 			if the expression holds. May be empty, may not be null.
+		 *            The else-if alternatives, in the order they are checked.
+		 *            May be empty, may not be null.
 		 *
 		 * @param falseBranch
 		 *            A list of zero of more statements to be executed when the
@@ -524,12 +528,12 @@ public interface Stmt extends SyntacticElement {
 		 * @param attributes
 		 */
 		public IfElse(Expr condition, List<Stmt> trueBranch,
-				Map<Expr, List<Stmt>> alts,
+				List<ElseIf> alts,
 				List<Stmt> falseBranch, Attribute... attributes) {
 			super(attributes);
 			this.condition = condition;
 			this.trueBranch = new ArrayList<Stmt>(trueBranch);
-			this.alts = alts;
+			this.alts = Collections.unmodifiableList(new ArrayList<ElseIf>(alts));
 			this.falseBranch = new ArrayList<Stmt>(falseBranch);
 		}
 
@@ -544,8 +548,8 @@ public interface Stmt extends SyntacticElement {
 		 *            condition holds; may not be null.
 		 *
 		 * @param alts
-		 * 			A mapping from expression to the list of statements to execute
-		 * 			if the expression holds. May be empty, may not be null.
+		 *            The else-if alternatives, in the order they are checked.
+		 *            May be empty, may not be null.
 		 *
 		 * @param falseBranch
 		 *            A list of zero of more statements to be executed when the
@@ -553,12 +557,12 @@ public interface Stmt extends SyntacticElement {
 		 * @param attributes
 		 */
 		public IfElse(Expr condition, List<Stmt> trueBranch,
-				Map<Expr, List<Stmt>>alts,
+				List<ElseIf> alts,
 				List<Stmt> falseBranch, Collection<Attribute> attributes) {
 			super(attributes);
 			this.condition = condition;
 			this.trueBranch = new ArrayList<Stmt>(trueBranch);
-			this.alts = alts;
+			this.alts = Collections.unmodifiableList(new ArrayList<ElseIf>(alts));
 			this.falseBranch = new ArrayList<Stmt>(falseBranch);
 		}
 
@@ -581,33 +585,64 @@ public interface Stmt extends SyntacticElement {
 		}
 
 		/**
-		 * Get the set of else-if expressions to check
+		 * Get the else-if alternatives, in the order they are checked. This
+		 * list cannot be modified, so it can be iterated by index without
+		 * allocating anything.
 		 *
-		 * @return May not be null
+		 * @return May not be null.
 		 */
-		public Set<Expr> getAltExpressions() {
-			return new HashSet<Expr>(alts.keySet());
+		public List<ElseIf> getAlts() {
+			return alts;
 		}
 
 		/**
-		 * Get the list of statements associated with a given else-if
-		 * expression, or null if not an expression associated with this else
+		 * Get the false branch, which consists of zero or more statements.
+		 *
+		 * @return May not be null.
 		 */
-		public List<Stmt> getAltBranch(Expr e) {
-			List<Stmt> tmp = alts.get(e);
+		public List<Stmt> getFalseBranch() {
+			return falseBranch;
+		}
+	}
 
-			if (e == null)
-				return null;
+	/**
+	 * Represents an else-if alternative of an if-else statement, which consists
+	 * of a condition and the block of statements executed when it holds (and
+	 * no earlier condition did).
+	 */
+	public static final class ElseIf {
+		private final Expr condition;
+		private final ArrayList<Stmt> body;
 
-			return new ArrayList<Stmt>(tmp);
+		/**
+		 * Construct an else-if alternative from a condition and a block.
+		 *
+		 * @param condition
+		 *            May not be null.
+		 * @param body
+		 *            A list of zero or more statements; may not be null.
+		 */
+		public ElseIf(Expr condition, List<Stmt> body) {
+			this.condition = condition;
+			this.body = new ArrayList<Stmt>(body);
 		}
+
 		/**
-		 * Get the false branch, which consists of zero or more statements.
+		 * Get the condition of this alternative.
 		 *
 		 * @return May not be null.
 		 */
-		public List<Stmt> getFalseBranch() {
-			return falseBranch;
+		public Expr getCondition() {
+			return condition;
+		}
+
+		/**
+		 * Get the block executed when this alternative is taken.
+		 *
+		 * @return May not be null.
+		 */
+		public List<Stmt> getBody() {
+			return body;
 		}
 	}
 
@@ -692,6 +727,7 @@ public interface Stmt extends SyntacticElement {
 		private final Type type;
 		private final String name;
 		private final Expr expr;
+		private int slot = -1;
 
 		/**
 		 * Construct a variable declaration from a given type, variable name and
@@ -768,6 +804,21 @@ public interface Stmt extends SyntacticElement {
 		public Expr getExpr() {
 			return expr;
 		}
+
+		/**
+		 * Get the index of the stack frame slot holding the declared variable,
+		 * as assigned by the <code>VariableResolver</code>.
+		 *
+		 * @return The slot index, or -1 if this declaration has not been
+		 *         resolved.
+		 */
+		public int getSlot() {
+			return slot;
+		}
+
+		public void setSlot(int slot) {
+			this.slot = slot;
+		}
 	}
 
 	/**
@@ -781,6 +832,14 @@ public interface Stmt extends SyntacticElement {
 	 * 		default:
 	 * 			stmt
 	 *
+	 * The case constants are compared with the value of the expression in
+	 * order, and execution begins at the first which matches. A case which
+	 * ends with a next statement falls through into the case after it. If no
+	 * case matches, the default is executed on its own, and a next statement
+	 * within it then leaves the switch. Only when the default is reached by
+	 * falling through does a next statement within it continue into the case
+	 * after it.
+	 *
 	 */
 	public static final class Switch extends SyntacticElement.Impl implements
 		Stmt {
@@ -243,6 +243,8 @@ public class WyscriptFile {
 		public final ArrayList<Parameter> parameters;
 		public final ArrayList<Stmt> statements;
 
+		private int frameSize = -1;
+
 		/**
 		 * Construct an object representing a Whiley function.
 		 *
@@ -270,6 +272,22 @@ public class WyscriptFile {
 			return name;
 		}
 
+		/**
+		 * Get the number of stack frame slots needed to execute this function,
+		 * as computed by the <code>VariableResolver</code>. The parameters
+		 * occupy the first slots.
+		 *
+		 * @return The frame size, or -1 if this function has not been
+		 *         resolved.
+		 */
+		public int getFrameSize() {
+			return frameSize;
+		}
+
+		public void setFrameSize(int frameSize) {
+			this.frameSize = frameSize;
+		}
+
 		public String toString() {
 			String params = "(";
 			boolean first = true;
@@ -0,0 +1,249 @@
+// This file is part of the WyScript Compiler (wysc).
+//
+// The WyScript Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WyScript Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WyScript Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+//
+// Copyright 2013, David James Pearce.
+
+package wyscript.opt;
+
+import wyscript.lang.Expr;
+import wyscript.lang.Type;
+
+/**
+ * <p>
+ * Replaces binary, unary and cast expressions whose operands are constants
+ * with the constant they evaluate to. The conjunction or disjunction of a
+ * constant with some other expression is also simplified, where that constant
+ * alone determines its value or otherwise leaves it as the other expression.
+ * </p>
+ * <p>
+ * An expression is only folded where its value is certain to be the same in
+ * every backend. Integer arithmetic which would overflow, integer division by
+ * zero and real arithmetic producing infinity, NaN or negative zero are
+ * therefore left for the backend to evaluate. Likewise, strings are never
+ * folded, since their equality differs between backends.
+ * </p>
+ */
+public class ConstantFolding extends Rewriter {
+
+	public Expr rewrite(Expr.Binary expr) {
+		Expr e = super.rewrite(expr);
+		if (!(e instanceof Expr.Binary)) {
+			return e;
+		}
+		expr = (Expr.Binary) e;
+		Expr lhs = expr.getLhs();
+		Expr rhs = expr.getRhs();
+
+		// First, simplify short-circuiting operators. Only the left-hand side
+		// can be eliminated, since the right-hand side may have effects which
+		// must still occur.
+		if (lhs instanceof Expr.Constant
+				&& ((Expr.Constant) lhs).getValue() instanceof Boolean) {
+			boolean l = (Boolean) ((Expr.Constant) lhs).getValue();
+			if (expr.getOp() == Expr.BOp.AND) {
+				return l ? rhs : constant(false, expr);
+			} else if (expr.getOp() == Expr.BOp.OR) {
+				return l ? constant(true, expr) : rhs;
+			}
+		}
+
+		if (!(lhs instanceof Expr.Constant && rhs instanceof Expr.Constant)) {
+			return expr;
+		}
+		Object l = ((Expr.Constant) lhs).getValue();
+		Object r = ((Expr.Constant) rhs).getValue();
+		Object value = null;
+		if (l instanceof Integer && r instanceof Integer) {
+			value = evaluate(expr.getOp(), (Integer) l, (Integer) r);
+		} else if (l instanceof Double && r instanceof Double) {
+			value = evaluate(expr.getOp(), (Double) l, (Double) r);
+		} else if ((l instanceof Boolean && r instanceof Boolean)
+				|| (l instanceof Character && r instanceof Character)) {
+			if (expr.getOp() == Expr.BOp.EQ) {
+				value = l.equals(r);
+			} else if (expr.getOp() == Expr.BOp.NEQ) {
+				value = !l.equals(r);
+			}
+		}
+		return value == null ? expr : constant(value, expr);
+	}
+
+	public Expr rewrite(Expr.Unary expr) {
+		Expr e = super.rewrite(expr);
+		if (!(e instanceof Expr.Unary)) {
+			return e;
+		}
+		expr = (Expr.Unary) e;
+		if (!(expr.getExpr() instanceof Expr.Constant)) {
+			return expr;
+		}
+		Object value = ((Expr.Constant) expr.getExpr()).getValue();
+
+		switch (expr.getOp()) {
+		case NOT:
+			if (value instanceof Boolean) {
+				return constant(!(Boolean) value, expr);
+			}
+			break;
+		case NEG:
+			if (value instanceof Integer && (Integer) value != Integer.MIN_VALUE) {
+				return constant(-(Integer) value, expr);
+			} else if (value instanceof Double && isFoldable(-(Double) value)) {
+				return constant(-(Double) value, expr);
+			}
+			break;
+		}
+		return expr;
+	}
+
+	public Expr rewrite(Expr.Cast expr) {
+		Expr e = super.rewrite(expr);
+		if (!(e instanceof Expr.Cast)) {
+			return e;
+		}
+		expr = (Expr.Cast) e;
+		if (!(expr.getSource() instanceof Expr.Constant)) {
+			return expr;
+		}
+		Type type = expr.getType();
+		Object value = ((Expr.Constant) expr.getSource()).getValue();
+
+		if (type instanceof Type.Real && value instanceof Integer) {
+			return constant(((Integer) value).doubleValue(), expr);
+		} else if ((type instanceof Type.Int && value instanceof Integer)
+				|| (type instanceof Type.Real && value instanceof Double)
+				|| (type instanceof Type.Bool && value instanceof Boolean)
+				|| (type instanceof Type.Char && value instanceof Character)) {
+			return constant(value, expr);
+		}
+		return expr;
+	}
+
+	/**
+	 * Evaluate a binary operator on two integer constants.
+	 *
+	 * @return The result, or <code>null</code> if it should not be folded.
+	 */
+	public static Object evaluate(Expr.BOp op, int l, int r) {
+		long result;
+		switch (op) {
+		case ADD:
+			result = (long) l + r;
+			break;
+		case SUB:
+			result = (long) l - r;
+			break;
+		case MUL:
+			result = (long) l * r;
+			break;
+		case DIV:
+			if (r == 0) {
+				return null;
+			}
+			result = (long) l / r;
+			break;
+		case REM:
+			if (r == 0) {
+				return null;
+			}
+			result = (long) l % r;
+			break;
+		case EQ:
+			return l == r;
+		case NEQ:
+			return l != r;
+		case LT:
+			return l < r;
+		case LTEQ:
+			return l <= r;
+		case GT:
+			return l > r;
+		case GTEQ:
+			return l >= r;
+		default:
+			return null;
+		}
+		if (result < Integer.MIN_VALUE || result > Integer.MAX_VALUE) {
+			return null;
+		}
+		return (int) result;
+	}
+
+	/**
+	 * Evaluate a binary operator on two real constants.
+	 *
+	 * @return The result, or <code>null</code> if it should not be folded.
+	 */
+	public static Object evaluate(Expr.BOp op, double l, double r) {
+		double result;
+		switch (op) {
+		case ADD:
+			result = l + r;
+			break;
+		case SUB:
+			result = l - r;
+			break;
+		case MUL:
+			result = l * r;
+			break;
+		case DIV:
+			result = l / r;
+			break;
+		case REM:
+			result = l % r;
+			break;
+		case EQ:
+			return isFoldable(l) && isFoldable(r) ? l == r : null;
+		case NEQ:
+			return isFoldable(l) && isFoldable(r) ? l != r : null;
+		case LT:
+			return l < r;
+		case LTEQ:
+			return l <= r;
+		case GT:
+			return l > r;
+		case GTEQ:
+			return l >= r;
+		default:
+			return null;
+		}
+		return isFoldable(result) ? result : null;
+	}
+
+	/**
+	 * Check whether a real value can be written as a constant, and will behave
+	 * identically in every backend.
+	 *
+	 * @param value
+	 * @return
+	 */
+	public static boolean isFoldable(double value) {
+		return !Double.isNaN(value) && !Double.isInfinite(value)
+				&& Double.doubleToLongBits(value) != Double.doubleToLongBits(-0.0);
+	}
+
+	/**
+	 * Construct the constant which replaces a given expression, carrying its
+	 * attributes.
+	 *
+	 * @param value
+	 * @param expr
+	 * @return
+	 */
+	protected static Expr.Constant constant(Object value, Expr expr) {
+		return new Expr.Constant(value, attributes(expr));
+	}
+}
@@ -0,0 +1,167 @@
+// This file is part of the WyScript Compiler (wysc).
+//
+// The WyScript Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WyScript Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WyScript Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+//
+// Copyright 2013, David James Pearce.
+
+package wyscript.opt;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+import wyscript.lang.*;
+import wyscript.util.Attribute;
+
+/**
+ * <p>
+ * Extends constant folding by replacing every use of a constant declaration
+ * with its value, so that expressions involving named constants can be folded
+ * as well. Only constants whose value folds to a primitive value are
+ * propagated; strings, lists and records are left as they are, since each use
+ * would otherwise construct a new value.
+ * </p>
+ * <p>
+ * Conditional statements whose conditions have become constant are then
+ * simplified. Branches which can never be taken are removed, and a branch
+ * which is always taken replaces the statement altogether. Likewise, loops
+ * whose condition is always false are removed.
+ * </p>
+ * <p>
+ * <b>NOTE:</b> uses of constants are identified as those variables marked
+ * global by the <code>VariableResolver</code>, which must therefore have been
+ * run on the file beforehand.
+ * </p>
+ */
+public class ConstantPropagation extends ConstantFolding {
+	private final HashMap<String, Expr.Constant> constants = new HashMap<String, Expr.Constant>();
+
+	public void rewrite(WyscriptFile wf) {
+		constants.clear();
+		super.rewrite(wf);
+	}
+
+	public WyscriptFile.ConstDecl rewrite(WyscriptFile.ConstDecl cd) {
+		// NOTE: constants may only refer to those declared before them, and so
+		// these are always known by this point.
+		cd = super.rewrite(cd);
+		if (cd.constant instanceof Expr.Constant
+				&& !(((Expr.Constant) cd.constant).getValue() instanceof StringBuffer)) {
+			constants.put(cd.name, (Expr.Constant) cd.constant);
+		}
+		return cd;
+	}
+
+	public Expr rewrite(Expr.Variable expr) {
+		Expr.Constant constant = constants.get(expr.getName());
+		if (expr.isGlobal() && constant != null) {
+			return constant(constant.getValue(), expr);
+		}
+		return expr;
+	}
+
+	public void rewrite(Stmt stmt, List<Stmt> block) {
+		Stmt r = rewrite(stmt);
+		if (r instanceof Stmt.IfElse) {
+			simplify((Stmt.IfElse) r, block);
+		} else if (r instanceof Stmt.While
+				&& Boolean.FALSE.equals(valueOf(((Stmt.While) r).getCondition()))) {
+			// the loop body is never executed
+		} else {
+			block.add(r);
+		}
+	}
+
+	/**
+	 * Remove any branch of a conditional statement whose condition is always
+	 * false. The first branch whose condition is always true becomes the
+	 * false branch, and any branches after it are removed.
+	 *
+	 * @param stmt
+	 * @param block
+	 */
+	private void simplify(Stmt.IfElse stmt, List<Stmt> block) {
+		ArrayList<Stmt.ElseIf> arms = new ArrayList<Stmt.ElseIf>();
+		arms.add(new Stmt.ElseIf(stmt.getCondition(), stmt.getTrueBranch()));
+		arms.addAll(stmt.getAlts());
+
+		ArrayList<Stmt.ElseIf> remaining = new ArrayList<Stmt.ElseIf>();
+		List<Stmt> falseBranch = stmt.getFalseBranch();
+		boolean changed = false;
+		for (Stmt.ElseIf arm : arms) {
+			Boolean condition = valueOf(arm.getCondition());
+			if (condition == null) {
+				remaining.add(arm);
+			} else {
+				changed = true;
+				if (condition) {
+					falseBranch = arm.getBody();
+					break;
+				}
+			}
+		}
+
+		if (!changed) {
+			block.add(stmt);
+		} else if (remaining.isEmpty()) {
+			inline(falseBranch, stmt, block);
+		} else {
+			Stmt.ElseIf first = remaining.remove(0);
+			block.add(new Stmt.IfElse(first.getCondition(), first.getBody(),
+					remaining, falseBranch, attributes(stmt)));
+		}
+	}
+
+	/**
+	 * Add the branch which a conditional statement always takes to the
+	 * enclosing block. If the branch declares any variables, it must keep its
+	 * own scope, and so is left inside a conditional whose condition is
+	 * simply true.
+	 *
+	 * @param branch
+	 * @param stmt
+	 * @param block
+	 */
+	private void inline(List<Stmt> branch, Stmt.IfElse stmt, List<Stmt> block) {
+		for (Stmt s : branch) {
+			if (s instanceof Stmt.VariableDeclaration
+					|| (s instanceof Stmt.OldFor && ((Stmt.OldFor) s)
+							.getDeclaration() != null)) {
+				Expr condition = new Expr.Constant(true, new Attribute.Type(
+						new Type.Bool()));
+				block.add(new Stmt.IfElse(condition, branch, Collections
+						.<Stmt.ElseIf> emptyList(), Collections
+						.<Stmt> emptyList(), attributes(stmt)));
+				return;
+			}
+		}
+		block.addAll(branch);
+	}
+
+	/**
+	 * Get the value of a condition, if it is constant.
+	 *
+	 * @param condition
+	 * @return The value, or <code>null</code> if it is not known.
+	 */
+	private static Boolean valueOf(Expr condition) {
+		if (condition instanceof Expr.Constant
+				&& ((Expr.Constant) condition).getValue() instanceof Boolean) {
+			return (Boolean) ((Expr.Constant) condition).getValue();
+		}
+		return null;
+	}
+}
@@ -0,0 +1,657 @@
+// This file is part of the WyScript Compiler (wysc).
+//
+// The WyScript Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WyScript Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WyScript Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+//
+// Copyright 2013, David James Pearce.
+
+package wyscript.opt;
+
+import java.util.*;
+
+import wyscript.lang.*;
+import wyscript.util.Attribute;
+import wyscript.util.CallGraph;
+import wyscript.util.Pair;
+import wyscript.util.SyntacticElement;
+import wyscript.util.VariableResolver;
+
+/**
+ * <p>
+ * Replaces calls to small functions with the body of the function being
+ * called. Only functions which are neither native nor recursive (according to
+ * the <code>CallGraph</code>) are inlined, and only where their body is no
+ * larger than <code>MAX_SIZE</code> nodes. Calls are inlined in one of two
+ * ways:
+ * </p>
+ * <ul>
+ * <li>Where a function simply returns an expression, a call to it anywhere may
+ * be replaced by that expression, with its arguments substituted for its
+ * parameters. This is only done where each argument has exactly the type of
+ * its parameter, and is either a constant or variable, or an expression free
+ * of invocations which is used exactly once (and unconditionally).</li>
+ * <li>Otherwise, a call which is the whole of an assignment to a variable,
+ * variable declaration, return, print statement, invocation statement, or
+ * condition of an if statement or switch is replaced by a declaration of each
+ * parameter initialised with its argument, followed by the function's body.
+ * Since the body is no longer a function, each of its return statements is
+ * replaced with an assignment to a variable holding the result, and the
+ * statements following a conditional which returns are moved into its
+ * branches. Functions returning from within a loop or switch are not inlined
+ * in this way.</li>
+ * </ul>
+ * <p>
+ * In both cases, the parameters and local variables of the function are given
+ * fresh names which cannot clash with any in the calling function. Since
+ * parameters are declared as variables, their arguments are copied exactly as
+ * they would be for the call. Inlined bodies may themselves contain calls
+ * which can be inlined, up to a depth of <code>MAX_DEPTH</code>. No function
+ * is allowed to grow by more than <code>MAX_GROWTH</code> nodes.
+ * </p>
+ */
+public class Inliner extends Rewriter {
+
+	/**
+	 * The largest function body, counted in statements and expressions
+	 * before anything is inlined into it, which will be inlined.
+	 */
+	public static final int MAX_SIZE = 40;
+
+	/**
+	 * The greatest depth to which calls within inlined bodies are themselves
+	 * inlined.
+	 */
+	public static final int MAX_DEPTH = 3;
+
+	/**
+	 * The most any one function can grow by through inlining, counted in
+	 * statements and expressions.
+	 */
+	public static final int MAX_GROWTH = 200;
+
+	private WyscriptFile file;
+	private CallGraph callGraph;
+	private HashMap<WyscriptFile.FunDecl, Integer> sizes;
+	private int budget;
+	private int fresh;
+	private boolean changed;
+
+	public void rewrite(WyscriptFile wf) {
+		this.file = wf;
+		this.sizes = new HashMap<WyscriptFile.FunDecl, Integer>();
+		for (WyscriptFile.Decl d : wf.declarations) {
+			if (d instanceof WyscriptFile.FunDecl) {
+				WyscriptFile.FunDecl fd = (WyscriptFile.FunDecl) d;
+				sizes.put(fd, size(fd.statements));
+			}
+		}
+
+		// Each round inlines those calls which are present at its start, and
+		// so the calls within bodies inlined by one round are considered by
+		// the next.
+		for (int depth = 0; depth != MAX_DEPTH; ++depth) {
+			VariableResolver resolver = new VariableResolver();
+			resolver.resolve(wf);
+			callGraph = resolver.callGraph();
+			changed = false;
+			super.rewrite(wf);
+			if (!changed) {
+				break;
+			}
+		}
+	}
+
+	public WyscriptFile.ConstDecl rewrite(WyscriptFile.ConstDecl cd) {
+		// constants are not evaluated within any function
+		return cd;
+	}
+
+	public void rewrite(WyscriptFile.FunDecl fd) {
+		budget = sizes.get(fd) + MAX_GROWTH - size(fd.statements);
+		super.rewrite(fd);
+	}
+
+	// =========================================================================
+	// Statements
+	// =========================================================================
+
+	public void rewrite(Stmt stmt, List<Stmt> block) {
+		stmt = rewrite(stmt);
+		if (stmt instanceof Expr.Invoke) {
+			if (!inline((Expr.Invoke) stmt, block)) {
+				block.add(stmt);
+			}
+			return;
+		}
+		Expr.Invoke call = call(stmt);
+		if (call != null && inline(call, block)) {
+			Expr.Variable result = new Expr.Variable(resultOf(call),
+					attributes(call));
+			block.add(replace(stmt, result));
+		} else {
+			block.add(stmt);
+		}
+	}
+
+	/**
+	 * Get the invocation which makes up the whole of a given statement's
+	 * expression, where it is the first thing evaluated by that statement.
+	 *
+	 * @param stmt
+	 * @return The invocation, or <code>null</code> if there is none.
+	 */
+	private static Expr.Invoke call(Stmt stmt) {
+		Expr e = null;
+		if (stmt instanceof Stmt.Assign) {
+			Stmt.Assign s = (Stmt.Assign) stmt;
+			if (s.getLhs() instanceof Expr.Variable) {
+				e = s.getRhs();
+			}
+		} else if (stmt instanceof Stmt.VariableDeclaration) {
+			e = ((Stmt.VariableDeclaration) stmt).getExpr();
+		} else if (stmt instanceof Stmt.Return) {
+			e = ((Stmt.Return) stmt).getExpr();
+		} else if (stmt instanceof Stmt.Print) {
+			e = ((Stmt.Print) stmt).getExpr();
+		} else if (stmt instanceof Stmt.IfElse) {
+			e = ((Stmt.IfElse) stmt).getCondition();
+		} else if (stmt instanceof Stmt.Switch) {
+			e = ((Stmt.Switch) stmt).getExpr();
+		}
+		return e instanceof Expr.Invoke ? (Expr.Invoke) e : null;
+	}
+
+	/**
+	 * Replace the invocation found by <code>call()</code> in a given statement
+	 * with the variable holding its result.
+	 *
+	 * @param stmt
+	 * @param result
+	 * @return
+	 */
+	private static Stmt replace(Stmt stmt, Expr.Variable result) {
+		if (stmt instanceof Stmt.Assign) {
+			Stmt.Assign s = (Stmt.Assign) stmt;
+			return new Stmt.Assign(s.getLhs(), result, attributes(s));
+		} else if (stmt instanceof Stmt.VariableDeclaration) {
+			Stmt.VariableDeclaration s = (Stmt.VariableDeclaration) stmt;
+			return new Stmt.VariableDeclaration(s.getType(), s.getName(),
+					result, attributes(s));
+		} else if (stmt instanceof Stmt.Return) {
+			return new Stmt.Return(result, attributes(stmt));
+		} else if (stmt instanceof Stmt.Print) {
+			return new Stmt.Print(result, attributes(stmt));
+		} else if (stmt instanceof Stmt.IfElse) {
+			Stmt.IfElse s = (Stmt.IfElse) stmt;
+			return new Stmt.IfElse(result, s.getTrueBranch(), s.getAlts(),
+					s.getFalseBranch(), attributes(s));
+		} else {
+			Stmt.Switch s = (Stmt.Switch) stmt;
+			return new Stmt.Switch(result, s.cases(), attributes(s));
+		}
+	}
+
+	/**
+	 * Add the body of the function called by a given invocation to a block,
+	 * in place of that invocation. If the function returns a value, this is
+	 * assigned to a variable named by <code>resultOf()</code>.
+	 *
+	 * @param call
+	 * @param block
+	 * @return False if the invocation cannot be inlined, in which case nothing
+	 *         is added to the block.
+	 */
+	private boolean inline(Expr.Invoke call, List<Stmt> block) {
+		WyscriptFile.FunDecl fd = callee(call);
+		if (fd == null) {
+			return false;
+		}
+
+		// First, give the parameters and local variables fresh names
+		HashMap<String, String> names = new HashMap<String, String>();
+		int id = ++fresh;
+		for (WyscriptFile.Parameter p : fd.parameters) {
+			names.put(p.name(), p.name() + "$" + id);
+		}
+		for (String name : declarations(fd.statements)) {
+			names.put(name, name + "$" + id);
+		}
+		List<Stmt> body = new Renamer(names, null).rewrite(fd.statements);
+
+		// Second, replace return statements
+		Attribute[] attributes = new Attribute[] { new Attribute.Type(fd.ret) };
+		String result = fd.ret instanceof Type.Void ? null : resultOf(call);
+		body = returns(body, result, attributes);
+		if (body == null) {
+			return false;
+		}
+
+		// Third, declare the result and parameters
+		ArrayList<Stmt> stmts = new ArrayList<Stmt>();
+		if (result != null) {
+			stmts.add(new Stmt.VariableDeclaration(fd.ret, result, null,
+					source(call)));
+		}
+		for (int i = 0; i != fd.parameters.size(); ++i) {
+			WyscriptFile.Parameter p = fd.parameters.get(i);
+			stmts.add(new Stmt.VariableDeclaration(p.type, names.get(p.name()),
+					call.getArguments().get(i), source(call)));
+		}
+		stmts.addAll(body);
+
+		int size = size(stmts);
+		if (size > budget) {
+			return false;
+		}
+		budget -= size;
+		changed = true;
+		block.addAll(stmts);
+		return true;
+	}
+
+	/**
+	 * Replace every return statement in a block with an assignment to the
+	 * variable holding the result, such that control then reaches the end of
+	 * the block. To do this, any statements following a conditional which
+	 * returns are moved into each of its branches.
+	 *
+	 * @param block
+	 * @param result
+	 *            The variable holding the result, or <code>null</code> if there
+	 *            is none.
+	 * @param attributes
+	 *            The attributes of the variable holding the result.
+	 * @return The new block, or <code>null</code> if a return statement is
+	 *         nested within a loop or switch.
+	 */
+	private List<Stmt> returns(List<Stmt> block, String result,
+			Attribute[] attributes) {
+		ArrayList<Stmt> r = new ArrayList<Stmt>();
+		for (int i = 0; i != block.size(); ++i) {
+			Stmt s = block.get(i);
+			if (s instanceof Stmt.Return) {
+				Expr e = ((Stmt.Return) s).getExpr();
+				if (result != null && e != null) {
+					r.add(new Stmt.Assign(
+							new Expr.Variable(result, attributes), e,
+							attributes(s)));
+				}
+				// anything which follows is unreachable
+				return r;
+			} else if (!hasReturn(s)) {
+				r.add(s);
+			} else if (s instanceof Stmt.IfElse) {
+				Stmt.IfElse ie = (Stmt.IfElse) s;
+				List<Stmt> rest = block.subList(i + 1, block.size());
+				List<Stmt> trueBranch = returns(concat(ie.getTrueBranch(), rest),
+						result, attributes);
+				List<Stmt> falseBranch = returns(
+						concat(ie.getFalseBranch(), rest), result, attributes);
+				if (trueBranch == null || falseBranch == null) {
+					return null;
+				}
+				ArrayList<Stmt.ElseIf> alts = new ArrayList<Stmt.ElseIf>();
+				for (Stmt.ElseIf alt : ie.getAlts()) {
+					List<Stmt> body = returns(concat(alt.getBody(), rest),
+							result, attributes);
+					if (body == null) {
+						return null;
+					}
+					alts.add(new Stmt.ElseIf(alt.getCondition(), body));
+				}
+				r.add(new Stmt.IfElse(ie.getCondition(), trueBranch, alts,
+						falseBranch, attributes(ie)));
+				return r;
+			} else {
+				return null;
+			}
+		}
+		return r;
+	}
+
+	// =========================================================================
+	// Expressions
+	// =========================================================================
+
+	public Expr rewrite(Expr.Invoke expr) {
+		Expr e = super.rewrite(expr);
+		if (!(e instanceof Expr.Invoke)) {
+			return e;
+		}
+		expr = (Expr.Invoke) e;
+		WyscriptFile.FunDecl fd = callee(expr);
+		if (fd == null || fd.statements.size() != 1
+				|| !(fd.statements.get(0) instanceof Stmt.Return)) {
+			return expr;
+		}
+		Expr body = ((Stmt.Return) fd.statements.get(0)).getExpr();
+		if (body == null || !isSame(fd.ret, typeOf(body))) {
+			return expr;
+		}
+
+		// Determine which arguments can be substituted for their parameters
+		HashMap<String, Expr> arguments = new HashMap<String, Expr>();
+		for (int i = 0; i != fd.parameters.size(); ++i) {
+			WyscriptFile.Parameter p = fd.parameters.get(i);
+			Expr argument = expr.getArguments().get(i);
+			if (!isSame(p.type, typeOf(argument))) {
+				return expr;
+			} else if (!(argument instanceof Expr.Constant || argument instanceof Expr.Variable)) {
+				if (hasInvoke(argument) || uses(body, p.name(), true) != 1) {
+					return expr;
+				}
+			}
+			arguments.put(p.name(), argument);
+		}
+
+		Expr r = new Renamer(new HashMap<String, String>(), arguments)
+				.rewrite(body);
+		int size = size(r);
+		if (size > budget) {
+			return expr;
+		}
+		budget -= size;
+		changed = true;
+		return r;
+	}
+
+	// =========================================================================
+	// Helpers
+	// =========================================================================
+
+	/**
+	 * Get the function called by a given invocation, if it may be inlined.
+	 *
+	 * @param call
+	 * @return The function, or <code>null</code> if it may not be inlined.
+	 */
+	private WyscriptFile.FunDecl callee(Expr.Invoke call) {
+		List<WyscriptFile.FunDecl> fds = file.functions(call.getName());
+		if (fds.size() != 1) {
+			return null;
+		}
+		WyscriptFile.FunDecl fd = fds.get(0);
+		// NOTE: the size of a function is taken before anything is inlined
+		// into it, so that a small function calling other small functions
+		// can still be inlined.
+		if (fd.Native || callGraph.isRecursive(fd) || sizes.get(fd) > MAX_SIZE) {
+			return null;
+		}
+		return fd;
+	}
+
+	private String resultOf(Expr.Invoke call) {
+		return call.getName() + "$" + fresh;
+	}
+
+	private static Attribute[] source(SyntacticElement element) {
+		Attribute.Source source = element.attribute(Attribute.Source.class);
+		return source == null ? new Attribute[0] : new Attribute[] { source };
+	}
+
+	/**
+	 * Check whether two types are the same, once any names are expanded.
+	 */
+	private boolean isSame(Type t1, Type t2) {
+		return t1 != null && t2 != null && expand(t1).equals(expand(t2));
+	}
+
+	private Type expand(Type type) {
+		while (type instanceof Type.Named) {
+			WyscriptFile.TypeDecl td = file.type(((Type.Named) type).getName());
+			if (td == null) {
+				break;
+			}
+			type = td.type;
+		}
+		return type;
+	}
+
+	private static Type typeOf(Expr expr) {
+		Attribute.Type t = expr.attribute(Attribute.Type.class);
+		return t == null ? null : t.type;
+	}
+
+	private static List<Stmt> concat(List<Stmt> a, List<Stmt> b) {
+		ArrayList<Stmt> r = new ArrayList<Stmt>(a);
+		r.addAll(b);
+		return r;
+	}
+
+	/**
+	 * Get the names of all variables declared in a block, including those
+	 * within nested blocks.
+	 *
+	 * @param block
+	 * @return
+	 */
+	private static Set<String> declarations(List<Stmt> block) {
+		final HashSet<String> names = new HashSet<String>();
+		new Rewriter() {
+			public Stmt.VariableDeclaration rewrite(Stmt.VariableDeclaration s) {
+				names.add(s.getName());
+				return super.rewrite(s);
+			}
+
+			public Stmt rewrite(Stmt.For s) {
+				names.add(s.getIndex().getName());
+				return super.rewrite(s);
+			}
+		}.rewrite(block);
+		return names;
+	}
+
+	private static boolean hasReturn(Stmt stmt) {
+		final boolean[] found = new boolean[1];
+		new Rewriter() {
+			public Stmt rewrite(Stmt.Return s) {
+				found[0] = true;
+				return s;
+			}
+		}.rewrite(stmt);
+		return found[0];
+	}
+
+	private static boolean hasInvoke(Expr expr) {
+		final boolean[] found = new boolean[1];
+		new Rewriter() {
+			public Expr rewrite(Expr.Invoke e) {
+				found[0] = true;
+				return e;
+			}
+		}.rewrite(expr);
+		return found[0];
+	}
+
+	/**
+	 * Count the uses of a given variable within an expression.
+	 *
+	 * @param expr
+	 * @param name
+	 * @param always
+	 *            Whether the expression is always evaluated. If not, any use
+	 *            is counted more than once, so that it is never substituted.
+	 * @return
+	 */
+	private static int uses(Expr expr, String name, boolean always) {
+		if (expr instanceof Expr.Variable) {
+			Expr.Variable v = (Expr.Variable) expr;
+			return !v.isGlobal() && v.getName().equals(name) ? (always ? 1 : 2)
+					: 0;
+		} else if (expr instanceof Expr.Binary) {
+			Expr.Binary e = (Expr.Binary) expr;
+			boolean conditional = e.getOp() == Expr.BOp.AND
+					|| e.getOp() == Expr.BOp.OR;
+			return uses(e.getLhs(), name, always)
+					+ uses(e.getRhs(), name, always && !conditional);
+		}
+		int count = 0;
+		for (Expr e : children(expr)) {
+			count += uses(e, name, always);
+		}
+		return count;
+	}
+
+	private static List<Expr> children(Expr expr) {
+		if (expr instanceof Expr.Cast) {
+			return Collections.singletonList(((Expr.Cast) expr).getSource());
+		} else if (expr instanceof Expr.IndexOf) {
+			Expr.IndexOf e = (Expr.IndexOf) expr;
+			return Arrays.asList(e.getSource(), e.getIndex());
+		} else if (expr instanceof Expr.Invoke) {
+			return ((Expr.Invoke) expr).getArguments();
+		} else if (expr instanceof Expr.ListConstructor) {
+			return ((Expr.ListConstructor) expr).getArguments();
+		} else if (expr instanceof Expr.RecordAccess) {
+			return Collections.singletonList(((Expr.RecordAccess) expr)
+					.getSource());
+		} else if (expr instanceof Expr.RecordConstructor) {
+			ArrayList<Expr> r = new ArrayList<Expr>();
+			for (Pair<String, Expr> p : ((Expr.RecordConstructor) expr)
+					.getFields()) {
+				r.add(p.second());
+			}
+			return r;
+		} else if (expr instanceof Expr.Unary) {
+			return Collections.singletonList(((Expr.Unary) expr).getExpr());
+		} else if (expr instanceof Expr.Is) {
+			return Collections.singletonList(((Expr.Is) expr).getLhs());
+		} else if (expr instanceof Expr.Deref) {
+			return Collections.singletonList(((Expr.Deref) expr).getExpr());
+		} else if (expr instanceof Expr.New) {
+			return Collections.singletonList(((Expr.New) expr).getExpr());
+		} else if (expr instanceof Expr.Tuple) {
+			return ((Expr.Tuple) expr).getExprs();
+		}
+		return Collections.emptyList();
+	}
+
+	/**
+	 * Count the statements and expressions making up a block.
+	 */
+	private static int size(List<Stmt> block) {
+		Counter counter = new Counter();
+		counter.rewrite(block);
+		return counter.size;
+	}
+
+	private static int size(Expr expr) {
+		Counter counter = new Counter();
+		counter.rewrite(expr);
+		return counter.size;
+	}
+
+	private static final class Counter extends Rewriter {
+		private int size;
+
+		public Stmt rewrite(Stmt stmt) {
+			size++;
+			return super.rewrite(stmt);
+		}
+
+		public Expr rewrite(Expr expr) {
+			size++;
+			return super.rewrite(expr);
+		}
+	}
+
+	/**
+	 * Copies a function body or expression so it can be placed within
+	 * another function. Every variable is renamed as given, or replaced with
+	 * the expression given for it. Every node which may be annotated by later
+	 * stages is copied, so that no node appears more than once in the tree.
+	 */
+	private static final class Renamer extends Rewriter {
+		private final Map<String, String> names;
+		private final Map<String, Expr> substitutions;
+
+		public Renamer(Map<String, String> names, Map<String, Expr> substitutions) {
+			this.names = names;
+			this.substitutions = substitutions == null ? Collections
+					.<String, Expr> emptyMap() : substitutions;
+		}
+
+		public Expr rewrite(Expr.Variable expr) {
+			if (expr.isGlobal()) {
+				return variable(expr.getName(), expr);
+			}
+			Expr e = substitutions.get(expr.getName());
+			if (e != null) {
+				// the substituted expression is copied in turn
+				return new Renamer(Collections.<String, String> emptyMap(), null)
+						.rewrite(e);
+			}
+			String name = names.get(expr.getName());
+			return variable(name == null ? expr.getName() : name, expr);
+		}
+
+		public Expr.LVal rewrite(Expr.LVal lval) {
+			// variables being assigned are renamed as well
+			return (Expr.LVal) rewrite((Expr) lval);
+		}
+
+		public Expr rewrite(Expr.Constant expr) {
+			return new Expr.Constant(expr.getValue(), attributes(expr));
+		}
+
+		public Expr rewrite(Expr.ListConstructor expr) {
+			return new Expr.ListConstructor(rewriteAll(expr.getArguments()),
+					attributes(expr));
+		}
+
+		public Expr rewrite(Expr.RecordConstructor expr) {
+			ArrayList<Pair<String, Expr>> fields = new ArrayList<Pair<String, Expr>>();
+			for (Pair<String, Expr> p : expr.getFields()) {
+				fields.add(new Pair<String, Expr>(p.first(), rewrite(p.second())));
+			}
+			return new Expr.RecordConstructor(fields, attributes(expr));
+		}
+
+		public Expr rewrite(Expr.Invoke expr) {
+			return new Expr.Invoke(expr.getName(),
+					rewriteAll(expr.getArguments()), attributes(expr));
+		}
+
+		public Stmt.VariableDeclaration rewrite(Stmt.VariableDeclaration stmt) {
+			Expr e = stmt.getExpr() == null ? null : rewrite(stmt.getExpr());
+			String name = names.get(stmt.getName());
+			return new Stmt.VariableDeclaration(stmt.getType(),
+					name == null ? stmt.getName() : name, e, attributes(stmt));
+		}
+
+		public Stmt rewrite(Stmt.For stmt) {
+			Expr.Variable index = (Expr.Variable) rewrite(stmt.getIndex());
+			return new Stmt.For(index, rewrite(stmt.getSource()),
+					rewrite(stmt.getBody()), attributes(stmt));
+		}
+
+		public Stmt rewrite(Stmt.Return stmt) {
+			Expr e = stmt.getExpr() == null ? null : rewrite(stmt.getExpr());
+			return new Stmt.Return(e, attributes(stmt));
+		}
+
+		public Stmt rewrite(Stmt stmt) {
+			if (stmt instanceof Stmt.Next) {
+				return new Stmt.Next(attributes(stmt));
+			}
+			return super.rewrite(stmt);
+		}
+
+		private static Expr.Variable variable(String name, Expr.Variable expr) {
+			Expr.Variable v = new Expr.Variable(name, attributes(expr));
+			v.setGlobal(expr.isGlobal());
+			return v;
+		}
+	}
+}
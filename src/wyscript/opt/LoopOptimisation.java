@@ -0,0 +1,810 @@
+// This file is part of the WyScript Compiler (wysc).
+//
+// The WyScript Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WyScript Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WyScript Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+//
+// Copyright 2013, David James Pearce.
+
+package wyscript.opt;
+
+import java.util.*;
+
+import wyscript.lang.*;
+import wyscript.util.Attribute;
+import wyscript.util.Pair;
+import wyscript.util.SyntacticElement;
+
+/**
+ * <p>
+ * Optimises the loops of a file in two ways. Firstly, expressions within a
+ * loop whose value cannot change from one iteration to the next are
+ * <i>hoisted</i> out of it, by evaluating them once into a variable declared
+ * before the loop. Since such an expression is then evaluated even if the loop
+ * body never is, it must have no effects and be unable to fail. For example,
+ * the length of a list which is not reassigned within the loop (although its
+ * elements may be) is hoisted, as is arithmetic over variables which are not
+ * assigned within it. Only expressions producing an int, real, bool or char are
+ * hoisted, so that no value need be copied.
+ * </p>
+ * <p>
+ * Secondly, index expressions which must lie within the bounds of the list or
+ * string they index are marked with an <code>Attribute.InBounds</code>, so
+ * that backends can read the element without checking the index. The
+ * following patterns are recognised:
+ * </p>
+ * <ul>
+ * <li><code>for i in c..|xs|</code>, where <code>c</code> is a non-negative
+ * constant and neither <code>i</code> nor <code>xs</code> is assigned within
+ * the loop (the elements of <code>xs</code> may be). Then, every
+ * <code>xs[i]</code> within the loop is in bounds.</li>
+ * <li><code>while i < |xs|</code>, possibly conjoined with other conditions,
+ * where <code>i</code> is initialised with a non-negative constant before the
+ * loop, and is only ever incremented by one within it (and not from within a
+ * nested loop). Then, <code>xs[i]</code> is in bounds in the remainder of the
+ * condition, and in the body up to the first statement which assigns either
+ * <code>i</code> or <code>xs</code>. Likewise for the condition and body of a
+ * <code>for(;;)</code> loop.</li>
+ * </ul>
+ * <p>
+ * <b>NOTE:</b> uses of constants are identified as those variables marked
+ * global by the <code>VariableResolver</code>, which must therefore have been
+ * run on the file beforehand.
+ * </p>
+ */
+public class LoopOptimisation extends Rewriter {
+	private WyscriptFile file;
+
+	/**
+	 * The variables of the function being optimised which are declared
+	 * without being initialised, and so may hold no value before a loop.
+	 */
+	private Set<String> uninitialised;
+
+	/**
+	 * The variables declared to hold hoisted expressions.
+	 */
+	private HashSet<String> temporaries = new HashSet<String>();
+
+	private int fresh;
+
+	public void rewrite(WyscriptFile wf) {
+		this.file = wf;
+		super.rewrite(wf);
+	}
+
+	public WyscriptFile.ConstDecl rewrite(WyscriptFile.ConstDecl cd) {
+		// constants contain no loops
+		return cd;
+	}
+
+	public void rewrite(WyscriptFile.FunDecl fd) {
+		uninitialised = uninitialised(fd.statements);
+		super.rewrite(fd);
+	}
+
+	public void rewrite(Stmt stmt, List<Stmt> block) {
+		// NOTE: the loops nested within a loop are optimised first, so that
+		// the expressions hoisted out of them may be hoisted further.
+		stmt = rewrite(stmt);
+		if (stmt instanceof Stmt.For) {
+			stmt = hoist(bounds((Stmt.For) stmt), block);
+		} else if (stmt instanceof Stmt.While || stmt instanceof Stmt.OldFor) {
+			stmt = hoist(bounds(stmt, block), block);
+		}
+		block.add(stmt);
+	}
+
+	// =========================================================================
+	// Bounds
+	// =========================================================================
+
+	/**
+	 * Mark those index expressions within a for loop over the range
+	 * <code>c..|xs|</code> which are in bounds.
+	 *
+	 * @param loop
+	 * @return
+	 */
+	private Stmt.For bounds(Stmt.For loop) {
+		if (!(loop.getSource() instanceof Expr.Binary)) {
+			return loop;
+		}
+		Expr.Binary range = (Expr.Binary) loop.getSource();
+		String list = lengthOf(range.getRhs());
+		if (range.getOp() != Expr.BOp.RANGE || !isNatural(range.getLhs())
+				|| list == null) {
+			return loop;
+		}
+		String index = loop.getIndex().getName();
+		HashSet<String> assigned = new HashSet<String>();
+		HashSet<String> resized = new HashSet<String>();
+		modified(loop.getBody(), assigned, resized);
+		if (assigned.contains(index) || resized.contains(list)) {
+			return loop;
+		}
+
+		HashSet<Pair<String, String>> checks = new HashSet<Pair<String, String>>();
+		checks.add(new Pair<String, String>(index, list));
+		List<Stmt> body = new Marker(checks).rewrite(loop.getBody());
+		if (body == loop.getBody()) {
+			return loop;
+		}
+		return new Stmt.For(loop.getIndex(), loop.getSource(), body,
+				attributes(loop));
+	}
+
+	/**
+	 * Mark those index expressions within a while or for(;;) loop which are in
+	 * bounds, because of a check made by the loop condition.
+	 *
+	 * @param loop
+	 * @param block
+	 *            The statements preceding the loop in its enclosing block.
+	 * @return
+	 */
+	private Stmt bounds(Stmt loop, List<Stmt> block) {
+		Stmt.VariableDeclaration declaration = null;
+		Expr condition;
+		Stmt increment = null;
+		List<Stmt> body;
+		if (loop instanceof Stmt.While) {
+			Stmt.While s = (Stmt.While) loop;
+			condition = s.getCondition();
+			body = s.getBody();
+		} else {
+			Stmt.OldFor s = (Stmt.OldFor) loop;
+			declaration = s.getDeclaration();
+			condition = s.getCondition();
+			increment = s.getIncrement();
+			body = s.getBody();
+			if (condition == null) {
+				return loop;
+			}
+		}
+
+		// First, find the indices checked against the length of a list by the
+		// condition, which can never be negative.
+		HashSet<Pair<String, String>> checks = new HashSet<Pair<String, String>>();
+		checks(condition, checks);
+		List<Stmt> updates = body;
+		if (increment != null) {
+			updates = new ArrayList<Stmt>(body);
+			updates.add(increment);
+		}
+		Iterator<Pair<String, String>> iter = checks.iterator();
+		while (iter.hasNext()) {
+			String index = iter.next().first();
+			if (!isNatural(index, declaration, block)
+					|| !isIncremented(updates, index)) {
+				iter.remove();
+			}
+		}
+		if (checks.isEmpty()) {
+			return loop;
+		}
+
+		// Second, mark the index expressions evaluated whilst those checks
+		// still hold.
+		Marker marker = new Marker(checks);
+		Expr c = guard(condition, checks);
+		ArrayList<Stmt> b = new ArrayList<Stmt>();
+		boolean checked = true;
+		for (Stmt s : body) {
+			if (checked && isChanged(s, checks)) {
+				checked = false;
+				if (s instanceof Stmt.Assign
+						&& ((Stmt.Assign) s).getLhs() instanceof Expr.Variable) {
+					// the rhs is evaluated before the variable is assigned
+					Stmt.Assign a = (Stmt.Assign) s;
+					Expr rhs = marker.rewrite(a.getRhs());
+					if (rhs != a.getRhs()) {
+						s = new Stmt.Assign(a.getLhs(), rhs, attributes(a));
+					}
+				}
+			} else if (checked) {
+				s = marker.rewrite(s);
+			}
+			b.add(s);
+		}
+		if (c == condition && b.equals(body)) {
+			return loop;
+		}
+
+		if (loop instanceof Stmt.While) {
+			return new Stmt.While(c, b, attributes(loop));
+		} else {
+			return new Stmt.OldFor(declaration, c, increment, b,
+					attributes(loop));
+		}
+	}
+
+	/**
+	 * Find the checks <code>i < |xs|</code> which must hold whenever a given
+	 * condition does.
+	 *
+	 * @param condition
+	 * @param checks
+	 *            The pairs of index and list variables checked.
+	 */
+	private static void checks(Expr condition, Set<Pair<String, String>> checks) {
+		if (!(condition instanceof Expr.Binary)) {
+			return;
+		}
+		Expr.Binary e = (Expr.Binary) condition;
+		Expr index = null;
+		String list = null;
+		if (e.getOp() == Expr.BOp.AND) {
+			checks(e.getLhs(), checks);
+			checks(e.getRhs(), checks);
+		} else if (e.getOp() == Expr.BOp.LT) {
+			index = e.getLhs();
+			list = lengthOf(e.getRhs());
+		} else if (e.getOp() == Expr.BOp.GT) {
+			index = e.getRhs();
+			list = lengthOf(e.getLhs());
+		}
+		if (list != null && index instanceof Expr.Variable
+				&& !((Expr.Variable) index).isGlobal()) {
+			checks.add(new Pair<String, String>(
+					((Expr.Variable) index).getName(), list));
+		}
+	}
+
+	/**
+	 * Mark the index expressions within a loop condition which are evaluated
+	 * only once one of the given checks has succeeded.
+	 *
+	 * @param condition
+	 * @param checks
+	 * @return
+	 */
+	private static Expr guard(Expr condition, Set<Pair<String, String>> checks) {
+		if (!(condition instanceof Expr.Binary)
+				|| ((Expr.Binary) condition).getOp() != Expr.BOp.AND) {
+			return condition;
+		}
+		Expr.Binary e = (Expr.Binary) condition;
+		Expr lhs = guard(e.getLhs(), checks);
+		HashSet<Pair<String, String>> held = new HashSet<Pair<String, String>>();
+		checks(e.getLhs(), held);
+		held.retainAll(checks);
+		Expr rhs = e.getRhs();
+		if (!held.isEmpty()) {
+			rhs = new Marker(held).rewrite(rhs);
+		}
+		rhs = guard(rhs, checks);
+		if (lhs == e.getLhs() && rhs == e.getRhs()) {
+			return e;
+		}
+		return new Expr.Binary(e.getOp(), lhs, rhs, attributes(e));
+	}
+
+	/**
+	 * Check whether a given index variable holds a non-negative constant on
+	 * entry to a loop. Only the loop's own declaration (if any) and the
+	 * statements preceding it in the same block are considered.
+	 *
+	 * @param index
+	 * @param declaration
+	 * @param block
+	 * @return
+	 */
+	private static boolean isNatural(String index,
+			Stmt.VariableDeclaration declaration, List<Stmt> block) {
+		if (declaration != null && declaration.getName().equals(index)) {
+			return isNatural(declaration.getExpr());
+		}
+		for (int i = block.size() - 1; i >= 0; --i) {
+			Stmt s = block.get(i);
+			if (s instanceof Stmt.VariableDeclaration
+					&& ((Stmt.VariableDeclaration) s).getName().equals(index)) {
+				return isNatural(((Stmt.VariableDeclaration) s).getExpr());
+			} else if (s instanceof Stmt.Assign
+					&& isVariable(((Stmt.Assign) s).getLhs(), index)) {
+				return isNatural(((Stmt.Assign) s).getRhs());
+			} else if (isChanged(s, index, null)) {
+				return false;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Check whether a given index variable is only ever incremented by one
+	 * within the body of a loop, and never from within a nested loop. Since
+	 * it is below the length of some list before each iteration, it then
+	 * cannot overflow.
+	 *
+	 * @param body
+	 * @param index
+	 * @return
+	 */
+	private static boolean isIncremented(List<Stmt> body, final String index) {
+		final boolean[] ok = { true };
+		new Rewriter() {
+			private int depth;
+
+			public Stmt rewrite(Stmt.Assign s) {
+				if (isChanged(s, index, null)
+						&& (depth != 0 || !isIncrement(s, index))) {
+					ok[0] = false;
+				}
+				return s;
+			}
+
+			public Stmt.VariableDeclaration rewrite(Stmt.VariableDeclaration s) {
+				if (s.getName().equals(index)) {
+					ok[0] = false;
+				}
+				return s;
+			}
+
+			public Stmt rewrite(Stmt.For s) {
+				if (s.getIndex().getName().equals(index)) {
+					ok[0] = false;
+				}
+				depth++;
+				super.rewrite(s);
+				depth--;
+				return s;
+			}
+
+			public Stmt rewrite(Stmt.While s) {
+				depth++;
+				super.rewrite(s);
+				depth--;
+				return s;
+			}
+
+			public Stmt rewrite(Stmt.OldFor s) {
+				depth++;
+				super.rewrite(s);
+				depth--;
+				return s;
+			}
+		}.rewrite(body);
+		return ok[0];
+	}
+
+	private static boolean isIncrement(Stmt.Assign s, String index) {
+		if (!isVariable(s.getLhs(), index)
+				|| !(s.getRhs() instanceof Expr.Binary)) {
+			return false;
+		}
+		Expr.Binary e = (Expr.Binary) s.getRhs();
+		return e.getOp() == Expr.BOp.ADD
+				&& ((isVariable(e.getLhs(), index) && isOne(e.getRhs())) || (isOne(e
+						.getLhs()) && isVariable(e.getRhs(), index)));
+	}
+
+	/**
+	 * Check whether a statement may assign any of the index variables, or
+	 * change the length of any of the lists, in a given set of checks.
+	 */
+	private static boolean isChanged(Stmt stmt, Set<Pair<String, String>> checks) {
+		for (Pair<String, String> p : checks) {
+			if (isChanged(stmt, p.first(), p.second())) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static boolean isChanged(Stmt stmt, String index, String list) {
+		HashSet<String> assigned = new HashSet<String>();
+		HashSet<String> resized = new HashSet<String>();
+		modified(Collections.singletonList(stmt), assigned, resized);
+		return assigned.contains(index) || resized.contains(list);
+	}
+
+	/**
+	 * Marks the index expressions <code>xs[i]</code> for each index and list
+	 * variable in a given set of checks.
+	 */
+	private static final class Marker extends Rewriter {
+		private final Set<Pair<String, String>> checks;
+
+		public Marker(Set<Pair<String, String>> checks) {
+			this.checks = checks;
+		}
+
+		public Expr rewrite(Expr.IndexOf expr) {
+			expr = (Expr.IndexOf) super.rewrite(expr);
+			if (expr.attribute(Attribute.InBounds.class) != null
+					|| !(expr.getSource() instanceof Expr.Variable)
+					|| !(expr.getIndex() instanceof Expr.Variable)) {
+				return expr;
+			}
+			Expr.Variable list = (Expr.Variable) expr.getSource();
+			Expr.Variable index = (Expr.Variable) expr.getIndex();
+			if (list.isGlobal()
+					|| index.isGlobal()
+					|| !checks.contains(new Pair<String, String>(index
+							.getName(), list.getName()))) {
+				return expr;
+			}
+			ArrayList<Attribute> attributes = new ArrayList<Attribute>(
+					expr.attributes());
+			attributes.add(new Attribute.InBounds());
+			return new Expr.IndexOf(list, index, attributes);
+		}
+	}
+
+	// =========================================================================
+	// Hoisting
+	// =========================================================================
+
+	/**
+	 * Hoist the invariant expressions of a loop into variables declared
+	 * before it in the enclosing block.
+	 *
+	 * @param loop
+	 * @param block
+	 * @return The loop, with the hoisted expressions replaced.
+	 */
+	private Stmt hoist(Stmt loop, List<Stmt> block) {
+		HashSet<String> assigned = new HashSet<String>();
+		HashSet<String> resized = new HashSet<String>();
+		modified(Collections.singletonList(loop), assigned, resized);
+		Hoister hoister = new Hoister(assigned, resized);
+
+		List<Stmt> body;
+		if (loop instanceof Stmt.While) {
+			body = ((Stmt.While) loop).getBody();
+		} else if (loop instanceof Stmt.For) {
+			body = ((Stmt.For) loop).getBody();
+		} else {
+			body = ((Stmt.OldFor) loop).getBody();
+		}
+
+		// First, move out the variables hoisted from loops nested directly
+		// within the body, where these are invariant here as well.
+		List<Stmt> rest = new ArrayList<Stmt>();
+		for (Stmt s : body) {
+			if (s instanceof Stmt.VariableDeclaration
+					&& temporaries.contains(((Stmt.VariableDeclaration) s)
+							.getName())
+					&& hoister.isInvariant(((Stmt.VariableDeclaration) s)
+							.getExpr())) {
+				Stmt.VariableDeclaration d = (Stmt.VariableDeclaration) s;
+				block.add(d);
+				hoister.hoisted.add(new Pair<Expr, String>(d.getExpr(), d
+						.getName()));
+				assigned.remove(d.getName());
+				resized.remove(d.getName());
+			} else {
+				rest.add(s);
+			}
+		}
+		if (rest.size() == body.size()) {
+			rest = body;
+		}
+
+		// Second, hoist the expressions evaluated on every iteration. Those
+		// evaluated only once on entry to the loop are left alone.
+		Stmt r;
+		if (loop instanceof Stmt.While) {
+			Stmt.While s = (Stmt.While) loop;
+			Expr condition = hoister.rewrite(s.getCondition());
+			List<Stmt> b = hoister.rewrite(rest);
+			if (condition == s.getCondition() && b == body) {
+				return loop;
+			}
+			r = new Stmt.While(condition, b, attributes(s));
+		} else if (loop instanceof Stmt.For) {
+			Stmt.For s = (Stmt.For) loop;
+			List<Stmt> b = hoister.rewrite(rest);
+			if (b == body) {
+				return loop;
+			}
+			r = new Stmt.For(s.getIndex(), s.getSource(), b, attributes(s));
+		} else {
+			Stmt.OldFor s = (Stmt.OldFor) loop;
+			Expr condition = s.getCondition();
+			if (condition != null) {
+				condition = hoister.rewrite(condition);
+			}
+			Stmt increment = s.getIncrement();
+			if (increment != null) {
+				increment = hoister.rewrite(increment);
+			}
+			List<Stmt> b = hoister.rewrite(rest);
+			if (condition == s.getCondition()
+					&& increment == s.getIncrement() && b == body) {
+				return loop;
+			}
+			r = new Stmt.OldFor(s.getDeclaration(), condition, increment, b,
+					attributes(s));
+		}
+		block.addAll(hoister.declarations);
+		return r;
+	}
+
+	/**
+	 * Replaces the invariant expressions of a loop with variables holding
+	 * their values, which are declared before it.
+	 */
+	private final class Hoister extends Rewriter {
+		private final Set<String> assigned;
+		private final Set<String> resized;
+		private final ArrayList<Pair<Expr, String>> hoisted = new ArrayList<Pair<Expr, String>>();
+		private final ArrayList<Stmt> declarations = new ArrayList<Stmt>();
+
+		/**
+		 * @param assigned
+		 *            The variables assigned within the loop, including those
+		 *            whose elements or fields are.
+		 * @param resized
+		 *            The variables which are assigned as a whole within the
+		 *            loop, and so may change length.
+		 */
+		public Hoister(Set<String> assigned, Set<String> resized) {
+			this.assigned = assigned;
+			this.resized = resized;
+		}
+
+		public Expr rewrite(Expr expr) {
+			if (expr instanceof Expr.Variable || expr instanceof Expr.Constant
+					|| !isPrimitive(typeOf(expr)) || !isInvariant(expr)) {
+				return super.rewrite(expr);
+			}
+			for (Pair<Expr, String> p : hoisted) {
+				if (isSame(p.first(), expr)) {
+					return new Expr.Variable(p.second(), attributes(expr));
+				}
+			}
+			String name = "$" + (++fresh);
+			temporaries.add(name);
+			hoisted.add(new Pair<Expr, String>(expr, name));
+			declarations.add(new Stmt.VariableDeclaration(typeOf(expr), name,
+					expr, source(expr)));
+			return new Expr.Variable(name, attributes(expr));
+		}
+
+		/**
+		 * Check whether an expression has the same value on every iteration
+		 * of the loop, has no effects and cannot fail.
+		 */
+		public boolean isInvariant(Expr expr) {
+			if (expr instanceof Expr.Constant) {
+				return true;
+			} else if (expr instanceof Expr.Variable) {
+				Expr.Variable v = (Expr.Variable) expr;
+				return v.isGlobal()
+						|| (!assigned.contains(v.getName()) && !uninitialised
+								.contains(v.getName()));
+			} else if (expr instanceof Expr.Unary) {
+				Expr.Unary e = (Expr.Unary) expr;
+				if (e.getOp() == Expr.UOp.LENGTHOF
+						&& e.getExpr() instanceof Expr.Variable) {
+					// the elements of a list may change, but not its length
+					Expr.Variable v = (Expr.Variable) e.getExpr();
+					return v.isGlobal()
+							|| (!resized.contains(v.getName()) && !uninitialised
+									.contains(v.getName()));
+				}
+				return isInvariant(e.getExpr());
+			} else if (expr instanceof Expr.Binary) {
+				Expr.Binary e = (Expr.Binary) expr;
+				switch (e.getOp()) {
+				case APPEND:
+				case RANGE:
+					// these construct new values
+					return false;
+				case DIV:
+				case REM:
+					// integer division fails on zero
+					if (!(expand(typeOf(e)) instanceof Type.Real)
+							&& !isNonZero(e.getRhs())) {
+						return false;
+					}
+				}
+				return isInvariant(e.getLhs()) && isInvariant(e.getRhs());
+			} else if (expr instanceof Expr.Cast) {
+				Expr.Cast e = (Expr.Cast) expr;
+				return expand(e.getType()) instanceof Type.Real
+						&& expand(typeOf(e.getSource())) instanceof Type.Int
+						&& isInvariant(e.getSource());
+			} else if (expr instanceof Expr.RecordAccess) {
+				return isInvariant(((Expr.RecordAccess) expr).getSource());
+			} else if (expr instanceof Expr.Is) {
+				return isInvariant(((Expr.Is) expr).getLhs());
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * Check whether two expressions, which have been found invariant, are
+	 * structurally identical.
+	 */
+	private static boolean isSame(Expr e1, Expr e2) {
+		if (e1 instanceof Expr.Constant && e2 instanceof Expr.Constant) {
+			return ((Expr.Constant) e1).getValue().equals(
+					((Expr.Constant) e2).getValue());
+		} else if (e1 instanceof Expr.Variable && e2 instanceof Expr.Variable) {
+			Expr.Variable v1 = (Expr.Variable) e1;
+			Expr.Variable v2 = (Expr.Variable) e2;
+			return v1.getName().equals(v2.getName())
+					&& v1.isGlobal() == v2.isGlobal();
+		} else if (e1 instanceof Expr.Unary && e2 instanceof Expr.Unary) {
+			Expr.Unary u1 = (Expr.Unary) e1;
+			Expr.Unary u2 = (Expr.Unary) e2;
+			return u1.getOp() == u2.getOp() && isSame(u1.getExpr(), u2.getExpr());
+		} else if (e1 instanceof Expr.Binary && e2 instanceof Expr.Binary) {
+			Expr.Binary b1 = (Expr.Binary) e1;
+			Expr.Binary b2 = (Expr.Binary) e2;
+			return b1.getOp() == b2.getOp() && isSame(b1.getLhs(), b2.getLhs())
+					&& isSame(b1.getRhs(), b2.getRhs());
+		} else if (e1 instanceof Expr.Cast && e2 instanceof Expr.Cast) {
+			Expr.Cast c1 = (Expr.Cast) e1;
+			Expr.Cast c2 = (Expr.Cast) e2;
+			return c1.getType().equals(c2.getType())
+					&& isSame(c1.getSource(), c2.getSource());
+		} else if (e1 instanceof Expr.RecordAccess
+				&& e2 instanceof Expr.RecordAccess) {
+			Expr.RecordAccess r1 = (Expr.RecordAccess) e1;
+			Expr.RecordAccess r2 = (Expr.RecordAccess) e2;
+			return r1.getName().equals(r2.getName())
+					&& isSame(r1.getSource(), r2.getSource());
+		} else if (e1 instanceof Expr.Is && e2 instanceof Expr.Is) {
+			Expr.Is i1 = (Expr.Is) e1;
+			Expr.Is i2 = (Expr.Is) e2;
+			return i1.getRhs().equals(i2.getRhs())
+					&& isSame(i1.getLhs(), i2.getLhs());
+		}
+		return false;
+	}
+
+	// =========================================================================
+	// Helpers
+	// =========================================================================
+
+	/**
+	 * Find the variables which may be assigned by a block of statements. A
+	 * variable is <i>resized</i> if it is assigned as a whole (and so may
+	 * change length), rather than only some element or field of it.
+	 *
+	 * @param block
+	 * @param assigned
+	 * @param resized
+	 */
+	private static void modified(List<Stmt> block, final Set<String> assigned,
+			final Set<String> resized) {
+		new Rewriter() {
+			public Stmt rewrite(Stmt.Assign s) {
+				modified(s.getLhs(), assigned, resized);
+				return s;
+			}
+
+			public Stmt.VariableDeclaration rewrite(Stmt.VariableDeclaration s) {
+				assigned.add(s.getName());
+				resized.add(s.getName());
+				return s;
+			}
+
+			public Stmt rewrite(Stmt.For s) {
+				assigned.add(s.getIndex().getName());
+				resized.add(s.getIndex().getName());
+				return super.rewrite(s);
+			}
+		}.rewrite(block);
+	}
+
+	private static void modified(Expr.LVal lhs, Set<String> assigned,
+			Set<String> resized) {
+		if (lhs instanceof Expr.Variable) {
+			assigned.add(((Expr.Variable) lhs).getName());
+			resized.add(((Expr.Variable) lhs).getName());
+		} else if (lhs instanceof Expr.Tuple) {
+			for (Expr e : ((Expr.Tuple) lhs).getExprs()) {
+				modified((Expr.LVal) e, assigned, resized);
+			}
+		} else {
+			Expr e = lhs;
+			while (!(e instanceof Expr.Variable)) {
+				if (e instanceof Expr.IndexOf) {
+					e = ((Expr.IndexOf) e).getSource();
+				} else if (e instanceof Expr.RecordAccess) {
+					e = ((Expr.RecordAccess) e).getSource();
+				} else if (e instanceof Expr.Deref) {
+					e = ((Expr.Deref) e).getExpr();
+				} else {
+					return;
+				}
+			}
+			assigned.add(((Expr.Variable) e).getName());
+		}
+	}
+
+	private static Set<String> uninitialised(List<Stmt> block) {
+		final HashSet<String> names = new HashSet<String>();
+		new Rewriter() {
+			public Stmt.VariableDeclaration rewrite(Stmt.VariableDeclaration s) {
+				if (s.getExpr() == null) {
+					names.add(s.getName());
+				}
+				return s;
+			}
+		}.rewrite(block);
+		return names;
+	}
+
+	/**
+	 * Get the local variable whose length is given by an expression.
+	 *
+	 * @param expr
+	 * @return The variable's name, or <code>null</code> if the expression is
+	 *         not of the form <code>|xs|</code>.
+	 */
+	private static String lengthOf(Expr expr) {
+		if (expr instanceof Expr.Unary
+				&& ((Expr.Unary) expr).getOp() == Expr.UOp.LENGTHOF
+				&& ((Expr.Unary) expr).getExpr() instanceof Expr.Variable) {
+			Expr.Variable v = (Expr.Variable) ((Expr.Unary) expr).getExpr();
+			return v.isGlobal() ? null : v.getName();
+		}
+		return null;
+	}
+
+	private static boolean isVariable(Expr expr, String name) {
+		return expr instanceof Expr.Variable
+				&& !((Expr.Variable) expr).isGlobal()
+				&& ((Expr.Variable) expr).getName().equals(name);
+	}
+
+	private static boolean isNatural(Expr expr) {
+		return expr instanceof Expr.Constant
+				&& ((Expr.Constant) expr).getValue() instanceof Integer
+				&& (Integer) ((Expr.Constant) expr).getValue() >= 0;
+	}
+
+	private static boolean isOne(Expr expr) {
+		return expr instanceof Expr.Constant
+				&& Integer.valueOf(1).equals(((Expr.Constant) expr).getValue());
+	}
+
+	private static boolean isNonZero(Expr expr) {
+		return expr instanceof Expr.Constant
+				&& ((Expr.Constant) expr).getValue() instanceof Integer
+				&& (Integer) ((Expr.Constant) expr).getValue() != 0;
+	}
+
+	private boolean isPrimitive(Type type) {
+		type = expand(type);
+		return type instanceof Type.Int || type instanceof Type.Real
+				|| type instanceof Type.Bool || type instanceof Type.Char;
+	}
+
+	private Type expand(Type type) {
+		while (type instanceof Type.Named) {
+			WyscriptFile.TypeDecl td = file.type(((Type.Named) type).getName());
+			if (td == null) {
+				break;
+			}
+			type = td.type;
+		}
+		return type;
+	}
+
+	private static Type typeOf(Expr expr) {
+		Attribute.Type t = expr.attribute(Attribute.Type.class);
+		return t == null ? null : t.type;
+	}
+
+	private static Attribute[] source(SyntacticElement element) {
+		Attribute.Source source = element.attribute(Attribute.Source.class);
+		return source == null ? new Attribute[0] : new Attribute[] { source };
+	}
+}
@@ -0,0 +1,76 @@
+// This file is part of the WyScript Compiler (wysc).
+//
+// The WyScript Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WyScript Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WyScript Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+//
+// Copyright 2013, David James Pearce.
+
+package wyscript.opt;
+
+import wyscript.lang.WyscriptFile;
+import wyscript.util.VariableResolver;
+
+/**
+ * <p>
+ * Responsible for simplifying a file once it has been type checked, and before
+ * it is executed or compiled. The passes which are applied depend on the
+ * optimisation level:
+ * </p>
+ * <ul>
+ * <li><b>0</b>: the file is left as it is.</li>
+ * <li><b>1</b>: expressions over constants are folded (see
+ * <code>ConstantFolding</code>).</li>
+ * <li><b>2</b>: in addition, constant declarations are propagated into the
+ * functions which use them, and conditionals over constants are simplified
+ * (see <code>ConstantPropagation</code>). Calls to small functions are then
+ * inlined (see <code>Inliner</code>), after which constants are propagated
+ * again into the inlined bodies. Finally, invariant expressions are hoisted
+ * out of loops, and index expressions which are certain to be in bounds are
+ * marked (see <code>LoopOptimisation</code>).</li>
+ * </ul>
+ * <p>
+ * Every pass preserves the attributes given to the file by the type checker,
+ * so later stages see the same types and source positions as before.
+ * </p>
+ */
+public class Optimiser {
+
+	/**
+	 * The highest optimisation level supported.
+	 */
+	public static final int MAX_LEVEL = 2;
+
+	private final int level;
+
+	public Optimiser(int level) {
+		if (level < 0 || level > MAX_LEVEL) {
+			throw new IllegalArgumentException("invalid optimisation level: "
+					+ level);
+		}
+		this.level = level;
+	}
+
+	public void optimise(WyscriptFile wf) {
+		if (level >= 2) {
+			new VariableResolver().resolve(wf);
+			new ConstantPropagation().rewrite(wf);
+			new Inliner().rewrite(wf);
+			new VariableResolver().resolve(wf);
+			new ConstantPropagation().rewrite(wf);
+			new LoopOptimisation().rewrite(wf);
+		} else if (level >= 1) {
+			new ConstantFolding().rewrite(wf);
+		}
+	}
+}
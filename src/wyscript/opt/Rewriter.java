@@ -0,0 +1,488 @@
+// This file is part of the WyScript Compiler (wysc).
+//
+// The WyScript Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WyScript Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WyScript Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+//
+// Copyright 2013, David James Pearce.
+
+package wyscript.opt;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import wyscript.lang.*;
+import wyscript.util.Attribute;
+import wyscript.util.Pair;
+import wyscript.util.SyntacticElement;
+import static wyscript.util.SyntaxError.*;
+
+/**
+ * <p>
+ * The base of every optimisation pass, which rebuilds the abstract syntax tree
+ * of a file from the bottom up. Since the nodes of the tree are immutable, a
+ * node is rebuilt whenever any of its children is. Otherwise, the original
+ * node is kept, so that the tree is only copied where it actually changes.
+ * </p>
+ * <p>
+ * By default, every node is rebuilt exactly as it was. A pass overrides the
+ * method for those nodes it wishes to transform, which is called once their
+ * children have been rewritten. Rebuilt nodes carry the attributes of the
+ * original, so that source positions and types are preserved for later
+ * stages. A statement is rewritten into the block which encloses it, and so
+ * can be replaced by any number of statements (including none).
+ * </p>
+ */
+public abstract class Rewriter {
+	protected String filename;
+
+	public void rewrite(WyscriptFile wf) {
+		this.filename = wf.filename;
+
+		for (int i = 0; i != wf.declarations.size(); ++i) {
+			WyscriptFile.Decl declaration = wf.declarations.get(i);
+			if (declaration instanceof WyscriptFile.ConstDecl) {
+				wf.declarations.set(i,
+						rewrite((WyscriptFile.ConstDecl) declaration));
+			} else if (declaration instanceof WyscriptFile.FunDecl) {
+				rewrite((WyscriptFile.FunDecl) declaration);
+			}
+		}
+	}
+
+	public WyscriptFile.ConstDecl rewrite(WyscriptFile.ConstDecl cd) {
+		Expr constant = rewrite(cd.constant);
+		if (constant == cd.constant) {
+			return cd;
+		}
+		return new WyscriptFile.ConstDecl(constant, cd.name, attributes(cd));
+	}
+
+	public void rewrite(WyscriptFile.FunDecl fd) {
+		List<Stmt> statements = rewrite(fd.statements);
+		if (statements != fd.statements) {
+			fd.statements.clear();
+			fd.statements.addAll(statements);
+		}
+	}
+
+	// =========================================================================
+	// Statements
+	// =========================================================================
+
+	/**
+	 * Rewrite a block of statements.
+	 *
+	 * @param statements
+	 * @return The original block if none of its statements changed.
+	 */
+	public List<Stmt> rewrite(List<Stmt> statements) {
+		ArrayList<Stmt> block = new ArrayList<Stmt>();
+		for (Stmt s : statements) {
+			rewrite(s, block);
+		}
+		if (block.size() == statements.size()) {
+			for (int i = 0; i != block.size(); ++i) {
+				if (block.get(i) != statements.get(i)) {
+					return block;
+				}
+			}
+			return statements;
+		}
+		return block;
+	}
+
+	/**
+	 * Rewrite a statement, adding whatever replaces it to the enclosing block.
+	 *
+	 * @param stmt
+	 * @param block
+	 */
+	public void rewrite(Stmt stmt, List<Stmt> block) {
+		block.add(rewrite(stmt));
+	}
+
+	public Stmt rewrite(Stmt stmt) {
+		if (stmt instanceof Stmt.Assign) {
+			return rewrite((Stmt.Assign) stmt);
+		} else if (stmt instanceof Stmt.Print) {
+			return rewrite((Stmt.Print) stmt);
+		} else if (stmt instanceof Stmt.Return) {
+			return rewrite((Stmt.Return) stmt);
+		} else if (stmt instanceof Stmt.VariableDeclaration) {
+			return rewrite((Stmt.VariableDeclaration) stmt);
+		} else if (stmt instanceof Expr.Invoke) {
+			// The result of an invocation statement is discarded, and so it is
+			// never replaced by another expression; only its arguments are
+			// rewritten.
+			Expr.Invoke e = (Expr.Invoke) stmt;
+			List<Expr> arguments = rewriteAll(e.getArguments());
+			if (arguments == e.getArguments()) {
+				return e;
+			}
+			return new Expr.Invoke(e.getName(), arguments, attributes(e));
+		} else if (stmt instanceof Stmt.IfElse) {
+			return rewrite((Stmt.IfElse) stmt);
+		} else if (stmt instanceof Stmt.OldFor) {
+			return rewrite((Stmt.OldFor) stmt);
+		} else if (stmt instanceof Stmt.For) {
+			return rewrite((Stmt.For) stmt);
+		} else if (stmt instanceof Stmt.While) {
+			return rewrite((Stmt.While) stmt);
+		} else if (stmt instanceof Stmt.Switch) {
+			return rewrite((Stmt.Switch) stmt);
+		} else if (stmt instanceof Stmt.Next) {
+			return stmt;
+		} else {
+			internalFailure("unknown statement encountered (" + stmt + ")",
+					filename, stmt);
+			return null; // dead code
+		}
+	}
+
+	public Stmt rewrite(Stmt.Assign stmt) {
+		Expr.LVal lhs = rewrite(stmt.getLhs());
+		Expr rhs = rewrite(stmt.getRhs());
+		if (lhs == stmt.getLhs() && rhs == stmt.getRhs()) {
+			return stmt;
+		}
+		return new Stmt.Assign(lhs, rhs, attributes(stmt));
+	}
+
+	public Stmt rewrite(Stmt.Print stmt) {
+		Expr expr = rewrite(stmt.getExpr());
+		if (expr == stmt.getExpr()) {
+			return stmt;
+		}
+		return new Stmt.Print(expr, attributes(stmt));
+	}
+
+	public Stmt rewrite(Stmt.Return stmt) {
+		if (stmt.getExpr() == null) {
+			return stmt;
+		}
+		Expr expr = rewrite(stmt.getExpr());
+		if (expr == stmt.getExpr()) {
+			return stmt;
+		}
+		return new Stmt.Return(expr, attributes(stmt));
+	}
+
+	public Stmt.VariableDeclaration rewrite(Stmt.VariableDeclaration stmt) {
+		if (stmt.getExpr() == null) {
+			return stmt;
+		}
+		Expr expr = rewrite(stmt.getExpr());
+		if (expr == stmt.getExpr()) {
+			return stmt;
+		}
+		return new Stmt.VariableDeclaration(stmt.getType(), stmt.getName(),
+				expr, attributes(stmt));
+	}
+
+	public Stmt rewrite(Stmt.IfElse stmt) {
+		Expr condition = rewrite(stmt.getCondition());
+		List<Stmt> trueBranch = rewrite(stmt.getTrueBranch());
+		boolean changed = condition != stmt.getCondition()
+				|| trueBranch != stmt.getTrueBranch();
+
+		ArrayList<Stmt.ElseIf> alts = new ArrayList<Stmt.ElseIf>();
+		for (Stmt.ElseIf alt : stmt.getAlts()) {
+			Expr c = rewrite(alt.getCondition());
+			List<Stmt> body = rewrite(alt.getBody());
+			if (c != alt.getCondition() || body != alt.getBody()) {
+				alt = new Stmt.ElseIf(c, body);
+				changed = true;
+			}
+			alts.add(alt);
+		}
+
+		List<Stmt> falseBranch = rewrite(stmt.getFalseBranch());
+		if (!changed && falseBranch == stmt.getFalseBranch()) {
+			return stmt;
+		}
+		return new Stmt.IfElse(condition, trueBranch, alts, falseBranch,
+				attributes(stmt));
+	}
+
+	public Stmt rewrite(Stmt.OldFor stmt) {
+		Stmt.VariableDeclaration declaration = stmt.getDeclaration();
+		if (declaration != null) {
+			declaration = rewrite(declaration);
+		}
+		Expr condition = stmt.getCondition();
+		if (condition != null) {
+			condition = rewrite(condition);
+		}
+		Stmt increment = stmt.getIncrement();
+		if (increment != null) {
+			increment = rewrite(increment);
+		}
+		List<Stmt> body = rewrite(stmt.getBody());
+		if (declaration == stmt.getDeclaration()
+				&& condition == stmt.getCondition()
+				&& increment == stmt.getIncrement() && body == stmt.getBody()) {
+			return stmt;
+		}
+		return new Stmt.OldFor(declaration, condition, increment, body,
+				attributes(stmt));
+	}
+
+	public Stmt rewrite(Stmt.For stmt) {
+		Expr source = rewrite(stmt.getSource());
+		List<Stmt> body = rewrite(stmt.getBody());
+		if (source == stmt.getSource() && body == stmt.getBody()) {
+			return stmt;
+		}
+		return new Stmt.For(stmt.getIndex(), source, body, attributes(stmt));
+	}
+
+	public Stmt rewrite(Stmt.While stmt) {
+		Expr condition = rewrite(stmt.getCondition());
+		List<Stmt> body = rewrite(stmt.getBody());
+		if (condition == stmt.getCondition() && body == stmt.getBody()) {
+			return stmt;
+		}
+		return new Stmt.While(condition, body, attributes(stmt));
+	}
+
+	public Stmt rewrite(Stmt.Switch stmt) {
+		Expr expr = rewrite(stmt.getExpr());
+		boolean changed = expr != stmt.getExpr();
+
+		ArrayList<Stmt.SwitchStmt> cases = new ArrayList<Stmt.SwitchStmt>();
+		for (Stmt.SwitchStmt s : stmt.cases()) {
+			if (s instanceof Stmt.Case) {
+				Stmt.Case c = (Stmt.Case) s;
+				Expr constant = rewrite(c.getConstant());
+				List<Stmt> body = rewrite(c.getStmts());
+				if (constant != c.getConstant() || body != c.getStmts()) {
+					s = new Stmt.Case(constant, body, attributes(c));
+					changed = true;
+				}
+			} else {
+				Stmt.Default d = (Stmt.Default) s;
+				List<Stmt> body = rewrite(d.getStmts());
+				if (body != d.getStmts()) {
+					s = new Stmt.Default(body, attributes(d));
+					changed = true;
+				}
+			}
+			cases.add(s);
+		}
+
+		if (!changed) {
+			return stmt;
+		}
+		return new Stmt.Switch(expr, cases, attributes(stmt));
+	}
+
+	// =========================================================================
+	// Expressions
+	// =========================================================================
+
+	public Expr rewrite(Expr expr) {
+		if (expr instanceof Expr.Binary) {
+			return rewrite((Expr.Binary) expr);
+		} else if (expr instanceof Expr.Cast) {
+			return rewrite((Expr.Cast) expr);
+		} else if (expr instanceof Expr.Constant) {
+			return rewrite((Expr.Constant) expr);
+		} else if (expr instanceof Expr.IndexOf) {
+			return rewrite((Expr.IndexOf) expr);
+		} else if (expr instanceof Expr.Invoke) {
+			return rewrite((Expr.Invoke) expr);
+		} else if (expr instanceof Expr.ListConstructor) {
+			return rewrite((Expr.ListConstructor) expr);
+		} else if (expr instanceof Expr.RecordAccess) {
+			return rewrite((Expr.RecordAccess) expr);
+		} else if (expr instanceof Expr.RecordConstructor) {
+			return rewrite((Expr.RecordConstructor) expr);
+		} else if (expr instanceof Expr.Unary) {
+			return rewrite((Expr.Unary) expr);
+		} else if (expr instanceof Expr.Variable) {
+			return rewrite((Expr.Variable) expr);
+		} else if (expr instanceof Expr.Is) {
+			return rewrite((Expr.Is) expr);
+		} else if (expr instanceof Expr.Deref) {
+			return rewrite((Expr.Deref) expr);
+		} else if (expr instanceof Expr.New) {
+			return rewrite((Expr.New) expr);
+		} else if (expr instanceof Expr.Tuple) {
+			return rewrite((Expr.Tuple) expr);
+		} else {
+			internalFailure("unknown expression encountered (" + expr + ")",
+					filename, expr);
+			return null; // dead code
+		}
+	}
+
+	/**
+	 * Rewrite the left-hand side of an assignment. The variable being assigned
+	 * is never itself replaced, although any expressions within the
+	 * left-hand side (e.g. list indices) are rewritten as normal.
+	 *
+	 * @param lval
+	 * @return
+	 */
+	public Expr.LVal rewrite(Expr.LVal lval) {
+		if (lval instanceof Expr.Variable) {
+			return lval;
+		}
+		return (Expr.LVal) rewrite((Expr) lval);
+	}
+
+	public Expr rewrite(Expr.Binary expr) {
+		Expr lhs = rewrite(expr.getLhs());
+		Expr rhs = rewrite(expr.getRhs());
+		if (lhs == expr.getLhs() && rhs == expr.getRhs()) {
+			return expr;
+		}
+		return new Expr.Binary(expr.getOp(), lhs, rhs, attributes(expr));
+	}
+
+	public Expr rewrite(Expr.Cast expr) {
+		Expr source = rewrite(expr.getSource());
+		if (source == expr.getSource()) {
+			return expr;
+		}
+		return new Expr.Cast(expr.getType(), source, attributes(expr));
+	}
+
+	public Expr rewrite(Expr.Constant expr) {
+		return expr;
+	}
+
+	public Expr rewrite(Expr.IndexOf expr) {
+		Expr source = rewrite(expr.getSource());
+		Expr index = rewrite(expr.getIndex());
+		if (source == expr.getSource() && index == expr.getIndex()) {
+			return expr;
+		}
+		return new Expr.IndexOf(source, index, attributes(expr));
+	}
+
+	public Expr rewrite(Expr.Invoke expr) {
+		List<Expr> arguments = rewriteAll(expr.getArguments());
+		if (arguments == expr.getArguments()) {
+			return expr;
+		}
+		return new Expr.Invoke(expr.getName(), arguments, attributes(expr));
+	}
+
+	public Expr rewrite(Expr.ListConstructor expr) {
+		List<Expr> arguments = rewriteAll(expr.getArguments());
+		if (arguments == expr.getArguments()) {
+			return expr;
+		}
+		return new Expr.ListConstructor(arguments, attributes(expr));
+	}
+
+	public Expr rewrite(Expr.RecordAccess expr) {
+		Expr source = rewrite(expr.getSource());
+		if (source == expr.getSource()) {
+			return expr;
+		}
+		return new Expr.RecordAccess(source, expr.getName(), attributes(expr));
+	}
+
+	public Expr rewrite(Expr.RecordConstructor expr) {
+		ArrayList<Pair<String, Expr>> fields = new ArrayList<Pair<String, Expr>>();
+		boolean changed = false;
+		for (Pair<String, Expr> p : expr.getFields()) {
+			Expr e = rewrite(p.second());
+			if (e != p.second()) {
+				p = new Pair<String, Expr>(p.first(), e);
+				changed = true;
+			}
+			fields.add(p);
+		}
+		if (!changed) {
+			return expr;
+		}
+		return new Expr.RecordConstructor(fields, attributes(expr));
+	}
+
+	public Expr rewrite(Expr.Unary expr) {
+		Expr e = rewrite(expr.getExpr());
+		if (e == expr.getExpr()) {
+			return expr;
+		}
+		return new Expr.Unary(expr.getOp(), e, attributes(expr));
+	}
+
+	public Expr rewrite(Expr.Variable expr) {
+		return expr;
+	}
+
+	public Expr rewrite(Expr.Is expr) {
+		Expr lhs = rewrite(expr.getLhs());
+		if (lhs == expr.getLhs()) {
+			return expr;
+		}
+		return new Expr.Is(lhs, expr.getRhs(), attributes(expr));
+	}
+
+	public Expr rewrite(Expr.Deref expr) {
+		Expr e = rewrite(expr.getExpr());
+		if (e == expr.getExpr()) {
+			return expr;
+		}
+		return new Expr.Deref(e, attributes(expr));
+	}
+
+	public Expr rewrite(Expr.New expr) {
+		Expr e = rewrite(expr.getExpr());
+		if (e == expr.getExpr()) {
+			return expr;
+		}
+		return new Expr.New(e, attributes(expr));
+	}
+
+	public Expr rewrite(Expr.Tuple expr) {
+		List<Expr> exprs = rewriteAll(expr.getExprs());
+		if (exprs == expr.getExprs()) {
+			return expr;
+		}
+		return new Expr.Tuple(exprs, attributes(expr));
+	}
+
+	/**
+	 * Rewrite a list of expressions.
+	 *
+	 * @param exprs
+	 * @return The original list if none of its expressions changed.
+	 */
+	protected List<Expr> rewriteAll(List<Expr> exprs) {
+		ArrayList<Expr> r = new ArrayList<Expr>();
+		boolean changed = false;
+		for (Expr e : exprs) {
+			Expr ne = rewrite(e);
+			changed |= ne != e;
+			r.add(ne);
+		}
+		return changed ? r : exprs;
+	}
+
+	/**
+	 * Get the attributes of a node, so that they can be given to the node
+	 * which replaces it.
+	 *
+	 * @param element
+	 * @return
+	 */
+	protected static Attribute[] attributes(SyntacticElement element) {
+		List<Attribute> attributes = element.attributes();
+		return attributes.toArray(new Attribute[attributes.size()]);
+	}
+}
@@ -0,0 +1,12 @@
+package wyscript.testing;
+
+/**
+ * Runs every test in <code>InterpreterValidTests</code> using the compiled
+ * engine, rather than the reference interpreter.
+ */
+public class CompiledInterpreterValidTests extends InterpreterValidTests {
+	@Override
+	protected String[] flags() {
+		return new String[] { "-engine=compiled" };
+	}
+}
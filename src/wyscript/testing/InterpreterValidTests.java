@@ -15,6 +15,14 @@ public class InterpreterValidTests {
 	// Test Harness
 	// ======================================================================
 
+	/**
+	 * Get the command-line flags with which each test is run. Subclasses
+	 * override this to run every test on another engine.
+	 */
+	protected String[] flags() {
+		return new String[0];
+	}
+
 	protected void runInterpreterTest(String name) {
 		// The name of the file which contains the output for this test
 		String sampleOutputFile = testdir + File.separatorChar + name
@@ -23,7 +31,11 @@ public class InterpreterValidTests {
 		String classPath = "../../src";
 
 		// First, execute the While program using the interpreter
-		String output = TestUtils.exec(classPath, testdir, "wyscript.Main", name + ".wys");
+		String[] flags = flags();
+		String[] args = new String[flags.length + 1];
+		System.arraycopy(flags, 0, args, 0, flags.length);
+		args[flags.length] = name + ".wys";
+		String output = TestUtils.exec(classPath, testdir, "wyscript.Main", args);
 
 		// Second, compare the output!
 		TestUtils.compare(output, sampleOutputFile);
@@ -114,6 +126,11 @@ public class InterpreterValidTests {
 		runInterpreterTest("Cast_Valid_5");
 	}
 
+	@Test
+	public void Cast_Valid_6() {
+		runInterpreterTest("Cast_Valid_6");
+	}
+
 	@Test
 	public void Char_Valid_1() {
 		runInterpreterTest("Char_Valid_1");
@@ -149,6 +166,11 @@ public class InterpreterValidTests {
 		runInterpreterTest("Const_Valid_4");
 	}
 
+	@Test
+	public void Const_Valid_5() {
+		runInterpreterTest("Const_Valid_5");
+	}
+
 	@Test
 	public void Define_Valid_1() {
 		runInterpreterTest("Define_Valid_1");
@@ -184,6 +206,11 @@ public class InterpreterValidTests {
 		runInterpreterTest("Equality_Valid_5");
 	}
 
+	@Test
+	public void Equality_Valid_6() {
+		runInterpreterTest("Equality_Valid_6");
+	}
+
 	@Test
 	public void Function_Valid_1() {
 		runInterpreterTest("Function_Valid_1");
@@ -194,11 +221,21 @@ public class InterpreterValidTests {
 		runInterpreterTest("Function_Valid_2");
 	}
 
+	@Test
+	public void Function_Valid_3() {
+		runInterpreterTest("Function_Valid_3");
+	}
+
 	@Test
 	public void Function_Valid_4() {
 		runInterpreterTest("Function_Valid_4");
 	}
 
+	@Test
+	public void Function_Valid_5() {
+		runInterpreterTest("Function_Valid_5");
+	}
+
 	@Test
 	public void IfElse_Valid_1() {
 		runInterpreterTest("IfElse_Valid_1");
@@ -214,6 +251,11 @@ public class InterpreterValidTests {
 		runInterpreterTest("IfElse_Valid_3");
 	}
 
+	@Test
+	public void IfElse_Valid_4() {
+		runInterpreterTest("IfElse_Valid_4");
+	}
+
 	@Test
 	public void Includes_Valid_1() {
 		runInterpreterTest("Includes_Valid_1");
@@ -269,6 +311,16 @@ public class InterpreterValidTests {
 		runInterpreterTest("ListAccess_Valid_4");
 	}
 
+	@Test
+	public void ListAccess_Valid_5() {
+		runInterpreterTest("ListAccess_Valid_5");
+	}
+
+	@Test
+	public void ListAccess_Valid_6() {
+		runInterpreterTest("ListAccess_Valid_6");
+	}
+
 	@Test
 	public void ListAppend_Valid_1() {
 		runInterpreterTest("ListAppend_Valid_1");
@@ -334,11 +386,26 @@ public class InterpreterValidTests {
 		runInterpreterTest("ListAssign_Valid_6");
 	}
 
+	@Test
+	public void ListAssign_Valid_8() {
+		runInterpreterTest("ListAssign_Valid_8");
+	}
+
 	@Test
 	public void ListAssign_Valid_10() {
 		runInterpreterTest("ListAssign_Valid_10");
 	}
 
+	@Test
+	public void ListAssign_Valid_11() {
+		runInterpreterTest("ListAssign_Valid_11");
+	}
+
+	@Test
+	public void ListAssign_Valid_12() {
+		runInterpreterTest("ListAssign_Valid_12");
+	}
+
 	@Test
 	public void ListConversion_Valid_1() {
 		runInterpreterTest("ListConversion_Valid_1");
@@ -444,6 +511,11 @@ public class InterpreterValidTests {
 		runInterpreterTest("RealDiv_Valid_4");
 	}
 
+	@Test
+	public void RealDiv_Valid_5() {
+		runInterpreterTest("RealDiv_Valid_5");
+	}
+
 	@Test
 	public void RealNeg_Valid_1() {
 		runInterpreterTest("RealNeg_Valid_1");
@@ -504,6 +576,11 @@ public class InterpreterValidTests {
 		runInterpreterTest("RecordDefine_Valid_1");
 	}
 
+	@Test
+	public void Recursion_Valid_3() {
+		runInterpreterTest("Recursion_Valid_3");
+	}
+
 	@Test
 	public void References_Valid_1() {
 		runInterpreterTest("References_Valid_1");
@@ -564,6 +641,11 @@ public class InterpreterValidTests {
 		runInterpreterTest("String_Valid_4");
 	}
 
+	@Test
+	public void String_Valid_5() {
+		runInterpreterTest("String_Valid_5");
+	}
+
 	@Test
 	public void Switch_Valid_1() {
 		runInterpreterTest("Switch_Valid_1");
@@ -599,6 +681,11 @@ public class InterpreterValidTests {
 		runInterpreterTest("Switch_Valid_9");
 	}
 
+	@Test
+	public void Switch_Valid_11() {
+		runInterpreterTest("Switch_Valid_11");
+	}
+
 	@Test
 	public void Tuple_Valid_1() {
 		runInterpreterTest("Tuple_Valid_1");
@@ -614,6 +701,11 @@ public class InterpreterValidTests {
 		runInterpreterTest("Tuple_Valid_3");
 	}
 
+	@Test
+	public void Tuple_Valid_4() {
+		runInterpreterTest("Tuple_Valid_4");
+	}
+
 	@Test
 	public void TupleTypes_Valid_1() {
 		runInterpreterTest("TupleTypes_Valid_1");
@@ -684,6 +776,21 @@ public class InterpreterValidTests {
 		runInterpreterTest("UnionType_Valid_1");
 	}
 
+	@Test
+	public void UnionType_Valid_10() {
+		runInterpreterTest("UnionType_Valid_10");
+	}
+
+	@Test
+	public void UnionType_Valid_11() {
+		runInterpreterTest("UnionType_Valid_11");
+	}
+
+	@Test
+	public void UnionType_Valid_12() {
+		runInterpreterTest("UnionType_Valid_12");
+	}
+
 	@Test
 	public void UnionType_Valid_2() {
 		runInterpreterTest("UnionType_Valid_2");
@@ -738,4 +845,9 @@ public class InterpreterValidTests {
 	public void While_Valid_6() {
 		runInterpreterTest("While_Valid_6");
 	}
+
+	@Test
+	public void While_Valid_7() {
+		runInterpreterTest("While_Valid_7");
+	}
 }
@@ -0,0 +1,12 @@
+package wyscript.testing;
+
+/**
+ * Runs every test in <code>InterpreterValidTests</code> by lowering it into
+ * SSA form and executing that, rather than using the reference interpreter.
+ */
+public class IrValidTests extends InterpreterValidTests {
+	@Override
+	protected String[] flags() {
+		return new String[] { "-engine=ir" };
+	}
+}
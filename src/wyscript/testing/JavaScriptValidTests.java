@@ -24,7 +24,7 @@ public class JavaScriptValidTests {
 	// Test Harness
 	// ======================================================================
 
-	private void runTest(String name) {
+	private void runTest(String name, String... flags) {
 		// The name of the file which contains the output for this test
 		String generatedJavaScriptFile = testdir + File.separatorChar + name
 				+ ".js";
@@ -36,7 +36,11 @@ public class JavaScriptValidTests {
 		String classPath = "../../src";
 
 		// First, we need to compile the given test into javascript
-		String errors = TestUtils.exec(classPath, testdir, "wyscript.Main", "-js", name + ".wys");
+		String[] args = new String[flags.length + 2];
+		args[0] = "-js";
+		System.arraycopy(flags, 0, args, 1, flags.length);
+		args[flags.length + 1] = name + ".wys";
+		String errors = TestUtils.exec(classPath, testdir, "wyscript.Main", args);
 
 		if(!errors.equals("")) {
 			System.err.println(errors);
@@ -187,6 +191,11 @@ public class JavaScriptValidTests {
 		runTest("Cast_Valid_5");
 	}
 
+	@Test
+	public void Cast_Valid_6() {
+		runTest("Cast_Valid_6");
+	}
+
 	@Test
 	public void Char_Valid_1() {
 		runTest("Char_Valid_1");
@@ -222,6 +231,13 @@ public class JavaScriptValidTests {
 		runTest("Const_Valid_4");
 	}
 
+	@Test
+	public void Const_Valid_5() {
+		// Without optimisation, so that the constants are not substituted
+		// before the JavaScript is written.
+		runTest("Const_Valid_5", "-O0");
+	}
+
 	@Test
 	public void Define_Valid_1() {
 		runTest("Define_Valid_1");
@@ -267,11 +283,21 @@ public class JavaScriptValidTests {
 		runTest("Function_Valid_2");
 	}
 
+	@Test
+	public void Function_Valid_3() {
+		runTest("Function_Valid_3");
+	}
+
 	@Test
 	public void Function_Valid_4() {
 		runTest("Function_Valid_4");
 	}
 
+	@Test
+	public void Function_Valid_5() {
+		runTest("Function_Valid_5");
+	}
+
 	@Test
 	public void IfElse_Valid_1() {
 		runTest("IfElse_Valid_1");
@@ -287,6 +313,11 @@ public class JavaScriptValidTests {
 		runTest("IfElse_Valid_3");
 	}
 
+	@Test
+	public void IfElse_Valid_4() {
+		runTest("IfElse_Valid_4");
+	}
+
 	@Test
 	public void Includes_Valid_1() {
 		runTest("Includes_Valid_1");
@@ -342,6 +373,16 @@ public class JavaScriptValidTests {
 		runTest("ListAccess_Valid_4");
 	}
 
+	@Test
+	public void ListAccess_Valid_5() {
+		runTest("ListAccess_Valid_5");
+	}
+
+	@Test
+	public void ListAccess_Valid_6() {
+		runTest("ListAccess_Valid_6");
+	}
+
 	@Test
 	public void ListAppend_Valid_1() {
 		runTest("ListAppend_Valid_1");
@@ -407,11 +448,26 @@ public class JavaScriptValidTests {
 		runTest("ListAssign_Valid_6");
 	}
 
+	@Test
+	public void ListAssign_Valid_8() {
+		runTest("ListAssign_Valid_8");
+	}
+
 	@Test
 	public void ListAssign_Valid_10() {
 		runTest("ListAssign_Valid_10");
 	}
 
+	@Test
+	public void ListAssign_Valid_11() {
+		runTest("ListAssign_Valid_11");
+	}
+
+	@Test
+	public void ListAssign_Valid_12() {
+		runTest("ListAssign_Valid_12");
+	}
+
 	@Test
 	public void ListConversion_Valid_1() {
 		runTest("ListConversion_Valid_1");
@@ -583,6 +639,11 @@ public class JavaScriptValidTests {
 		runTest("Recursion_Valid_2");
 	}
 
+	@Test
+	public void Recursion_Valid_3() {
+		runTest("Recursion_Valid_3");
+	}
+
 	@Test
 	public void References_Valid_1() {
 		runTest("References_Valid_1");
@@ -643,6 +704,11 @@ public class JavaScriptValidTests {
 		runTest("String_Valid_4");
 	}
 
+	@Test
+	public void String_Valid_5() {
+		runTest("String_Valid_5");
+	}
+
 	@Test
 	public void Switch_Valid_1() {
 		runTest("Switch_Valid_1");
@@ -688,6 +754,11 @@ public class JavaScriptValidTests {
 		runTest("Switch_Valid_10");
 	}
 
+	@Test
+	public void Switch_Valid_11() {
+		runTest("Switch_Valid_11");
+	}
+
 	@Test
 	public void Tuple_Valid_1() {
 		runTest("Tuple_Valid_1");
@@ -773,6 +844,11 @@ public class JavaScriptValidTests {
 		runTest("UnionType_Valid_1");
 	}
 
+	@Test
+	public void UnionType_Valid_10() {
+		runTest("UnionType_Valid_10");
+	}
+
 	@Test
 	public void UnionType_Valid_2() {
 		runTest("UnionType_Valid_2");
@@ -827,4 +903,9 @@ public class JavaScriptValidTests {
 	public void While_Valid_6() {
 		runTest("While_Valid_6");
 	}
+
+	@Test
+	public void While_Valid_7() {
+		runTest("While_Valid_7");
+	}
 }
@@ -0,0 +1,12 @@
+package wyscript.testing;
+
+/**
+ * Runs every test in <code>InterpreterValidTests</code> by compiling it to JVM
+ * bytecode, rather than using the reference interpreter.
+ */
+public class JvmValidTests extends InterpreterValidTests {
+	@Override
+	protected String[] flags() {
+		return new String[] { "-jvm" };
+	}
+}
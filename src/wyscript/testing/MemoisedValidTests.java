@@ -0,0 +1,12 @@
+package wyscript.testing;
+
+/**
+ * Runs every test in <code>InterpreterValidTests</code> using the reference
+ * interpreter, with calls to pure recursive functions memoised.
+ */
+public class MemoisedValidTests extends InterpreterValidTests {
+	@Override
+	protected String[] flags() {
+		return new String[] { "-memo" };
+	}
+}
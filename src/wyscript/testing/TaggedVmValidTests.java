@@ -0,0 +1,14 @@
+package wyscript.testing;
+
+/**
+ * Runs every test in <code>InterpreterValidTests</code> by compiling it to
+ * register bytecode for the virtual machine which holds primitive values
+ * unboxed (see <code>TaggedVirtualMachine</code>), rather than using the
+ * reference interpreter.
+ */
+public class TaggedVmValidTests extends InterpreterValidTests {
+	@Override
+	protected String[] flags() {
+		return new String[] { "-vm=tagged" };
+	}
+}
@@ -0,0 +1,13 @@
+package wyscript.testing;
+
+/**
+ * Runs every test in <code>InterpreterValidTests</code> by compiling it to
+ * register bytecode for the virtual machine, rather than using the reference
+ * interpreter.
+ */
+public class VmValidTests extends InterpreterValidTests {
+	@Override
+	protected String[] flags() {
+		return new String[] { "-vm" };
+	}
+}
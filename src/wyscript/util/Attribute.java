@@ -47,4 +47,17 @@ public interface Attribute {
    * Used to store whether an expression was originally in parentheses
    */
   public static class Parentheses implements Attribute {}
+
+  /**
+   * Used to mark an expression whose value can be stored without being
+   * copied, as determined by the <code>CopyElision</code> analysis.
+   */
+  public static class Move implements Attribute {}
+
+  /**
+   * Used to mark an index expression which is known to lie within the bounds
+   * of the list or string it indexes, as determined by the
+   * <code>LoopOptimisation</code> pass. Its index need not be checked.
+   */
+  public static class InBounds implements Attribute {}
 }
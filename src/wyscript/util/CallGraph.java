@@ -0,0 +1,95 @@
+// This file is part of the WyScript Compiler (wysc).
+//
+// The WyScript Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WyScript Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WyScript Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+//
+// Copyright 2013, David James Pearce.
+
+package wyscript.util;
+
+import java.util.*;
+
+import wyscript.lang.WyscriptFile;
+
+/**
+ * Records which functions each function of a file calls, as linked by the
+ * <code>VariableResolver</code>. Calls made whilst initialising constants are
+ * not included, since they are not made from any function.
+ */
+public final class CallGraph {
+	private final HashMap<WyscriptFile.FunDecl, Set<WyscriptFile.FunDecl>> callees = new HashMap<WyscriptFile.FunDecl, Set<WyscriptFile.FunDecl>>();
+	private final HashMap<WyscriptFile.FunDecl, Set<WyscriptFile.FunDecl>> callers = new HashMap<WyscriptFile.FunDecl, Set<WyscriptFile.FunDecl>>();
+
+	void add(WyscriptFile.FunDecl caller, WyscriptFile.FunDecl callee) {
+		edges(callees, caller).add(callee);
+		edges(callers, callee).add(caller);
+	}
+
+	/**
+	 * Get the functions called directly by a given function.
+	 *
+	 * @param fd
+	 * @return
+	 */
+	public Set<WyscriptFile.FunDecl> callees(WyscriptFile.FunDecl fd) {
+		Set<WyscriptFile.FunDecl> r = callees.get(fd);
+		return r == null ? Collections.<WyscriptFile.FunDecl> emptySet()
+				: Collections.unmodifiableSet(r);
+	}
+
+	/**
+	 * Get the functions which call a given function directly.
+	 *
+	 * @param fd
+	 * @return
+	 */
+	public Set<WyscriptFile.FunDecl> callers(WyscriptFile.FunDecl fd) {
+		Set<WyscriptFile.FunDecl> r = callers.get(fd);
+		return r == null ? Collections.<WyscriptFile.FunDecl> emptySet()
+				: Collections.unmodifiableSet(r);
+	}
+
+	/**
+	 * Check whether a given function can call itself, either directly or
+	 * through other functions.
+	 *
+	 * @param fd
+	 * @return
+	 */
+	public boolean isRecursive(WyscriptFile.FunDecl fd) {
+		HashSet<WyscriptFile.FunDecl> visited = new HashSet<WyscriptFile.FunDecl>();
+		ArrayList<WyscriptFile.FunDecl> worklist = new ArrayList<WyscriptFile.FunDecl>(
+				callees(fd));
+		while (!worklist.isEmpty()) {
+			WyscriptFile.FunDecl f = worklist.remove(worklist.size() - 1);
+			if (f == fd) {
+				return true;
+			} else if (visited.add(f)) {
+				worklist.addAll(callees(f));
+			}
+		}
+		return false;
+	}
+
+	private static Set<WyscriptFile.FunDecl> edges(
+			HashMap<WyscriptFile.FunDecl, Set<WyscriptFile.FunDecl>> map,
+			WyscriptFile.FunDecl fd) {
+		Set<WyscriptFile.FunDecl> r = map.get(fd);
+		if (r == null) {
+			r = new LinkedHashSet<WyscriptFile.FunDecl>();
+			map.put(fd, r);
+		}
+		return r;
+	}
+}
@@ -0,0 +1,949 @@
+// This file is part of the WyScript Compiler (wysc).
+//
+// The WyScript Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WyScript Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WyScript Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+//
+// Copyright 2013, David James Pearce.
+
+package wyscript.util;
+
+import java.util.*;
+
+import wyscript.lang.*;
+import static wyscript.util.SyntaxError.*;
+
+/**
+ * <p>
+ * Responsible for determining where a value can be stored without first being
+ * copied. WyScript has value semantics, so storing a list, record, tuple or
+ * string in a variable (or passing it to a function) must behave as though it
+ * was copied. However, the copy is unnecessary when nothing else can observe
+ * the original value afterwards. This is the case when the value is
+ * <i>fresh</i> (e.g. it was just constructed, or it was returned from a
+ * function which only ever returns fresh values), or when it is held in a
+ * variable which is never read again (i.e. which is dead), and so can simply
+ * be moved.
+ * </p>
+ * <p>
+ * Such expressions are marked with an <code>Attribute.Move</code>. Only the
+ * initialiser of a variable declaration, the rhs of an assignment to a
+ * variable and the arguments of an invocation are considered, since these are
+ * where every backend copies a value. A variable is only moved from if it
+ * <i>owns</i> its value, meaning that every value stored in it is copied, and
+ * that it is never read somewhere which might keep hold of (part of) its value
+ * without copying it (e.g. as an element of a list constructor).
+ * </p>
+ * <p>
+ * Liveness is determined per slot, and so the file must first have been
+ * processed by the <code>VariableResolver</code>.
+ * </p>
+ */
+public class CopyElision {
+
+	private String filename;
+	private HashMap<String, Type> userTypes;
+
+	/**
+	 * The functions which only ever return fresh values.
+	 */
+	private HashSet<WyscriptFile.FunDecl> fresh;
+
+	/**
+	 * The slots of each function which own their values.
+	 */
+	private HashMap<WyscriptFile.FunDecl, BitSet> owned;
+
+	/**
+	 * The parameters of each function which are passed values that are not
+	 * copied at some invocation.
+	 */
+	private HashMap<WyscriptFile.FunDecl, BitSet> aliased;
+
+	/**
+	 * The function being analysed.
+	 */
+	private WyscriptFile.FunDecl function;
+
+	/**
+	 * Whether the liveness information currently being computed is final, and
+	 * so can be used to mark expressions. This is not the case whilst
+	 * iterating a loop to a fixed point.
+	 */
+	private boolean record;
+
+	public void analyse(WyscriptFile wf) {
+		this.filename = wf.filename;
+		this.userTypes = new HashMap<String, Type>();
+		this.owned = new HashMap<WyscriptFile.FunDecl, BitSet>();
+		this.aliased = new HashMap<WyscriptFile.FunDecl, BitSet>();
+		this.fresh = new HashSet<WyscriptFile.FunDecl>();
+
+		ArrayList<WyscriptFile.FunDecl> functions = new ArrayList<WyscriptFile.FunDecl>();
+		for (WyscriptFile.Decl declaration : wf.declarations) {
+			if (declaration instanceof WyscriptFile.TypeDecl) {
+				WyscriptFile.TypeDecl td = (WyscriptFile.TypeDecl) declaration;
+				userTypes.put(td.name(), td.type);
+			} else if (declaration instanceof WyscriptFile.FunDecl) {
+				WyscriptFile.FunDecl fd = (WyscriptFile.FunDecl) declaration;
+				functions.add(fd);
+				aliased.put(fd, new BitSet());
+			}
+		}
+
+		// First, determine which parameters are passed values which are not
+		// copied, from every invocation in the file.
+		ArrayList<Expr.Invoke> invokes = new ArrayList<Expr.Invoke>();
+		for (WyscriptFile.Decl declaration : wf.declarations) {
+			if (declaration instanceof WyscriptFile.ConstDecl) {
+				invokes(((WyscriptFile.ConstDecl) declaration).constant, invokes);
+			} else if (declaration instanceof WyscriptFile.FunDecl) {
+				invokes((WyscriptFile.FunDecl) declaration, invokes);
+			}
+		}
+		for (Expr.Invoke invoke : invokes) {
+			List<Expr> arguments = invoke.getArguments();
+			for (int i = 0; i != arguments.size(); ++i) {
+				if (!isCopied(arguments.get(i))) {
+					aliased.get(invoke.getTarget()).set(i);
+				}
+			}
+		}
+
+		// Second, determine which slots of each function own their values.
+		for (WyscriptFile.FunDecl fd : functions) {
+			owned.put(fd, owned(fd));
+		}
+
+		// Third, determine which functions only return fresh values. This
+		// starts by assuming they all do, and removes those with a return
+		// statement which does not until nothing changes.
+		for (WyscriptFile.FunDecl fd : functions) {
+			if (!fd.Native) {
+				fresh.add(fd);
+			}
+		}
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (WyscriptFile.FunDecl fd : functions) {
+				if (fresh.contains(fd) && !returnsFresh(fd)) {
+					fresh.remove(fd);
+					changed = true;
+				}
+			}
+		}
+
+		// Finally, determine liveness within each function and mark those
+		// expressions which need not be copied.
+		for (WyscriptFile.FunDecl fd : functions) {
+			if (!fd.Native) {
+				function = fd;
+				record = true;
+				live(fd.statements, new BitSet(), null);
+			}
+		}
+	}
+
+	// =========================================================================
+	// Ownership
+	// =========================================================================
+
+	/**
+	 * Determine the slots of a given function which own their values. A slot
+	 * does not own its value if a value is stored in it without being copied,
+	 * or if it is read somewhere which may keep hold of its value.
+	 */
+	private BitSet owned(WyscriptFile.FunDecl fd) {
+		BitSet disowned = new BitSet();
+		disowned.or(aliased.get(fd));
+		disown(fd.statements, disowned);
+		BitSet r = new BitSet();
+		r.set(0, fd.getFrameSize());
+		r.andNot(disowned);
+		return r;
+	}
+
+	private void disown(List<Stmt> block, BitSet disowned) {
+		for (Stmt s : block) {
+			disown(s, disowned);
+		}
+	}
+
+	private void disown(Stmt stmt, BitSet disowned) {
+		if (stmt instanceof Stmt.Assign) {
+			Stmt.Assign s = (Stmt.Assign) stmt;
+			Expr.LVal lhs = s.getLhs();
+			if (lhs instanceof Expr.Variable) {
+				boolean copied = isCopied(s.getRhs());
+				if (!copied) {
+					disowned.set(((Expr.Variable) lhs).getSlot());
+				}
+				disown(s.getRhs(), !copied, disowned);
+			} else if (lhs instanceof Expr.Tuple) {
+				for (Expr e : ((Expr.Tuple) lhs).getExprs()) {
+					if (e instanceof Expr.Variable) {
+						disowned.set(((Expr.Variable) e).getSlot());
+					} else {
+						disown(e, false, disowned);
+					}
+				}
+				disown(s.getRhs(), true, disowned);
+			} else {
+				// Values stored into part of a compound value, or into a
+				// reference, are not copied by every backend.
+				disown(lhs, false, disowned);
+				disown(s.getRhs(), true, disowned);
+			}
+		} else if (stmt instanceof Stmt.VariableDeclaration) {
+			Stmt.VariableDeclaration s = (Stmt.VariableDeclaration) stmt;
+			if (s.getExpr() != null) {
+				boolean copied = isCopied(s.getExpr());
+				if (!copied) {
+					disowned.set(s.getSlot());
+				}
+				disown(s.getExpr(), !copied, disowned);
+			}
+		} else if (stmt instanceof Stmt.Return) {
+			Expr e = ((Stmt.Return) stmt).getExpr();
+			if (e != null) {
+				disown(e, false, disowned);
+			}
+		} else if (stmt instanceof Stmt.Print) {
+			disown(((Stmt.Print) stmt).getExpr(), false, disowned);
+		} else if (stmt instanceof Expr.Invoke) {
+			disown((Expr.Invoke) stmt, false, disowned);
+		} else if (stmt instanceof Stmt.IfElse) {
+			Stmt.IfElse s = (Stmt.IfElse) stmt;
+			disown(s.getCondition(), false, disowned);
+			disown(s.getTrueBranch(), disowned);
+			for (Stmt.ElseIf alt : s.getAlts()) {
+				disown(alt.getCondition(), false, disowned);
+				disown(alt.getBody(), disowned);
+			}
+			disown(s.getFalseBranch(), disowned);
+		} else if (stmt instanceof Stmt.OldFor) {
+			Stmt.OldFor s = (Stmt.OldFor) stmt;
+			if (s.getDeclaration() != null) {
+				disown(s.getDeclaration(), disowned);
+			}
+			if (s.getCondition() != null) {
+				disown(s.getCondition(), false, disowned);
+			}
+			if (s.getIncrement() != null) {
+				disown(s.getIncrement(), disowned);
+			}
+			disown(s.getBody(), disowned);
+		} else if (stmt instanceof Stmt.For) {
+			// The index variable holds elements of the source list, and the
+			// loop may hold onto the source list itself whilst iterating it.
+			Stmt.For s = (Stmt.For) stmt;
+			disowned.set(s.getIndex().getSlot());
+			disown(s.getSource(), true, disowned);
+			disown(s.getBody(), disowned);
+		} else if (stmt instanceof Stmt.While) {
+			Stmt.While s = (Stmt.While) stmt;
+			disown(s.getCondition(), false, disowned);
+			disown(s.getBody(), disowned);
+		} else if (stmt instanceof Stmt.Switch) {
+			Stmt.Switch s = (Stmt.Switch) stmt;
+			disown(s.getExpr(), false, disowned);
+			for (Stmt.SwitchStmt c : s.cases()) {
+				disown(body(c), disowned);
+			}
+		} else if (stmt instanceof Stmt.Next) {
+			// nothing to do
+		} else {
+			internalFailure("unknown statement encountered (" + stmt + ")", filename, stmt);
+		}
+	}
+
+	/**
+	 * Find the variables read by a given expression which do not own their
+	 * values.
+	 *
+	 * @param expr
+	 * @param held
+	 *            Whether the value of this expression may be held onto
+	 *            without being copied.
+	 * @param disowned
+	 */
+	private void disown(Expr expr, boolean held, BitSet disowned) {
+		if (expr instanceof Expr.Variable) {
+			Expr.Variable v = (Expr.Variable) expr;
+			if (held && !v.isGlobal()) {
+				disowned.set(v.getSlot());
+			}
+		} else if (expr instanceof Expr.Binary) {
+			// An appended list shares the elements of its operands
+			Expr.Binary e = (Expr.Binary) expr;
+			boolean h = held && e.getOp() == Expr.BOp.APPEND;
+			disown(e.getLhs(), h, disowned);
+			disown(e.getRhs(), h, disowned);
+		} else if (expr instanceof Expr.Cast) {
+			disown(((Expr.Cast) expr).getSource(), held, disowned);
+		} else if (expr instanceof Expr.IndexOf) {
+			Expr.IndexOf e = (Expr.IndexOf) expr;
+			disown(e.getSource(), held, disowned);
+			disown(e.getIndex(), false, disowned);
+		} else if (expr instanceof Expr.RecordAccess) {
+			disown(((Expr.RecordAccess) expr).getSource(), held, disowned);
+		} else if (expr instanceof Expr.ListConstructor) {
+			for (Expr e : ((Expr.ListConstructor) expr).getArguments()) {
+				disown(e, held, disowned);
+			}
+		} else if (expr instanceof Expr.RecordConstructor) {
+			for (Pair<String, Expr> p : ((Expr.RecordConstructor) expr).getFields()) {
+				disown(p.second(), held, disowned);
+			}
+		} else if (expr instanceof Expr.Tuple) {
+			for (Expr e : ((Expr.Tuple) expr).getExprs()) {
+				disown(e, held, disowned);
+			}
+		} else if (expr instanceof Expr.Invoke) {
+			for (Expr e : ((Expr.Invoke) expr).getArguments()) {
+				disown(e, !isCopied(e), disowned);
+			}
+		} else if (expr instanceof Expr.New) {
+			disown(((Expr.New) expr).getExpr(), true, disowned);
+		} else if (expr instanceof Expr.Unary) {
+			disown(((Expr.Unary) expr).getExpr(), false, disowned);
+		} else if (expr instanceof Expr.Is) {
+			disown(((Expr.Is) expr).getLhs(), false, disowned);
+		} else if (expr instanceof Expr.Deref) {
+			disown(((Expr.Deref) expr).getExpr(), false, disowned);
+		} else if (expr instanceof Expr.Constant) {
+			// nothing to do
+		} else {
+			internalFailure("unknown expression encountered (" + expr + ")", filename, expr);
+		}
+	}
+
+	// =========================================================================
+	// Freshness
+	// =========================================================================
+
+	/**
+	 * Check whether every value returned by a given function is fresh.
+	 */
+	private boolean returnsFresh(WyscriptFile.FunDecl fd) {
+		ArrayList<Stmt.Return> returns = new ArrayList<Stmt.Return>();
+		returns(fd.statements, returns);
+		BitSet slots = owned.get(fd);
+		for (Stmt.Return r : returns) {
+			Expr e = r.getExpr();
+			if (e == null || isFresh(e)) {
+				continue;
+			} else if (e instanceof Expr.Variable) {
+				// A variable which owns its value gives it up on returning
+				Expr.Variable v = (Expr.Variable) e;
+				if (!v.isGlobal() && slots.get(v.getSlot()) && isCopied(e)) {
+					continue;
+				}
+			}
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Check whether a given expression always evaluates to a fresh value,
+	 * which nothing else holds (any part of).
+	 */
+	private boolean isFresh(Expr expr) {
+		if (expr instanceof Expr.ListConstructor) {
+			return isFresh(((Expr.ListConstructor) expr).getArguments());
+		} else if (expr instanceof Expr.Tuple) {
+			return isFresh(((Expr.Tuple) expr).getExprs());
+		} else if (expr instanceof Expr.RecordConstructor) {
+			for (Pair<String, Expr> p : ((Expr.RecordConstructor) expr).getFields()) {
+				if (!isFlat(type(p.second())) && !isFresh(p.second())) {
+					return false;
+				}
+			}
+			return true;
+		} else if (expr instanceof Expr.Binary) {
+			Expr.Binary e = (Expr.Binary) expr;
+			if (e.getOp() == Expr.BOp.RANGE) {
+				return true;
+			} else if (e.getOp() == Expr.BOp.APPEND) {
+				// An appended list shares the elements of its operands
+				Type t = expand(type(e));
+				return t instanceof Type.Strung
+						|| (t instanceof Type.List && isFlat(((Type.List) t)
+								.getElement()));
+			}
+			return false;
+		} else if (expr instanceof Expr.Invoke) {
+			return fresh.contains(((Expr.Invoke) expr).getTarget());
+		}
+		return false;
+	}
+
+	private boolean isFresh(List<Expr> elements) {
+		for (Expr e : elements) {
+			if (!isFlat(type(e)) && !isFresh(e)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	// =========================================================================
+	// Liveness
+	// =========================================================================
+
+	/**
+	 * Determine the slots which are live before a block of statements.
+	 *
+	 * @param block
+	 * @param out
+	 *            The slots live after the block.
+	 * @param next
+	 *            The slots live after a next statement within the block, or
+	 *            null if it is not within a switch.
+	 * @return
+	 */
+	private BitSet live(List<Stmt> block, BitSet out, BitSet next) {
+		out = (BitSet) out.clone();
+		for (int i = block.size() - 1; i >= 0; --i) {
+			out = live(block.get(i), out, next);
+		}
+		return out;
+	}
+
+	private BitSet live(Stmt stmt, BitSet out, BitSet next) {
+		if (stmt instanceof Stmt.Assign) {
+			return live((Stmt.Assign) stmt, out);
+		} else if (stmt instanceof Stmt.VariableDeclaration) {
+			Stmt.VariableDeclaration s = (Stmt.VariableDeclaration) stmt;
+			BitSet in = (BitSet) out.clone();
+			in.clear(s.getSlot());
+			if (s.getExpr() != null) {
+				elide(s.getExpr(), s.getExpr(), out, s.getSlot());
+				uses(s.getExpr(), in);
+			}
+			return in;
+		} else if (stmt instanceof Stmt.Return) {
+			BitSet in = new BitSet();
+			Expr e = ((Stmt.Return) stmt).getExpr();
+			if (e != null) {
+				elide(e, null, in, -1);
+				uses(e, in);
+			}
+			return in;
+		} else if (stmt instanceof Stmt.Print) {
+			return live(((Stmt.Print) stmt).getExpr(), out);
+		} else if (stmt instanceof Expr.Invoke) {
+			return live((Expr.Invoke) stmt, out);
+		} else if (stmt instanceof Stmt.IfElse) {
+			return live((Stmt.IfElse) stmt, out, next);
+		} else if (stmt instanceof Stmt.OldFor) {
+			return live((Stmt.OldFor) stmt, out, next);
+		} else if (stmt instanceof Stmt.For) {
+			return live((Stmt.For) stmt, out, next);
+		} else if (stmt instanceof Stmt.While) {
+			return live((Stmt.While) stmt, out, next);
+		} else if (stmt instanceof Stmt.Switch) {
+			return live((Stmt.Switch) stmt, out);
+		} else if (stmt instanceof Stmt.Next) {
+			return (BitSet) (next == null ? out : next).clone();
+		} else {
+			internalFailure("unknown statement encountered (" + stmt + ")", filename, stmt);
+			return null;
+		}
+	}
+
+	private BitSet live(Stmt.Assign stmt, BitSet out) {
+		Expr.LVal lhs = stmt.getLhs();
+		BitSet in = (BitSet) out.clone();
+		if (lhs instanceof Expr.Variable) {
+			int slot = ((Expr.Variable) lhs).getSlot();
+			elide(stmt.getRhs(), stmt.getRhs(), out, slot);
+			in.clear(slot);
+		} else {
+			elide(stmt, out);
+			if (lhs instanceof Expr.Tuple) {
+				for (Expr e : ((Expr.Tuple) lhs).getExprs()) {
+					if (e instanceof Expr.Variable) {
+						in.clear(((Expr.Variable) e).getSlot());
+					} else {
+						uses(e, in);
+					}
+				}
+			} else {
+				// The variable being updated is also read
+				uses(lhs, in);
+			}
+		}
+		uses(stmt.getRhs(), in);
+		return in;
+	}
+
+	/**
+	 * Determine the slots live before an expression which is evaluated on its
+	 * own (e.g. the condition of a loop).
+	 */
+	private BitSet live(Expr expr, BitSet out) {
+		elide(expr, null, out, -1);
+		BitSet in = (BitSet) out.clone();
+		uses(expr, in);
+		return in;
+	}
+
+	private BitSet live(Stmt.IfElse stmt, BitSet out, BitSet next) {
+		BitSet in = live(stmt.getFalseBranch(), out, next);
+		List<Stmt.ElseIf> alts = stmt.getAlts();
+		for (int i = alts.size() - 1; i >= 0; --i) {
+			Stmt.ElseIf alt = alts.get(i);
+			BitSet after = live(alt.getBody(), out, next);
+			after.or(in);
+			in = live(alt.getCondition(), after);
+		}
+		BitSet after = live(stmt.getTrueBranch(), out, next);
+		after.or(in);
+		return live(stmt.getCondition(), after);
+	}
+
+	private BitSet live(Stmt.While stmt, BitSet out, BitSet next) {
+		// First, iterate the loop until its live slots are known
+		boolean r = record;
+		record = false;
+		BitSet head = (BitSet) out.clone();
+		BitSet after;
+		do {
+			after = live(stmt.getBody(), head, next);
+			after.or(out);
+			BitSet nhead = live(stmt.getCondition(), after);
+			if (nhead.equals(head)) {
+				break;
+			}
+			head = nhead;
+		} while (true);
+		record = r;
+
+		// Second, go around once more using the final information
+		after = live(stmt.getBody(), head, next);
+		after.or(out);
+		return live(stmt.getCondition(), after);
+	}
+
+	private BitSet live(Stmt.OldFor stmt, BitSet out, BitSet next) {
+		boolean r = record;
+		record = false;
+		BitSet head = (BitSet) out.clone();
+		BitSet nhead;
+		do {
+			nhead = head;
+			head = oldForHead(stmt, head, out, next);
+		} while (!nhead.equals(head));
+		record = r;
+
+		head = oldForHead(stmt, head, out, next);
+		if (stmt.getDeclaration() != null) {
+			return live(stmt.getDeclaration(), head, next);
+		}
+		return head;
+	}
+
+	/**
+	 * Determine the slots live before the condition of a for loop, given
+	 * those live there on the previous iteration.
+	 */
+	private BitSet oldForHead(Stmt.OldFor stmt, BitSet head, BitSet out, BitSet next) {
+		BitSet after = head;
+		if (stmt.getIncrement() != null) {
+			after = live(stmt.getIncrement(), after, next);
+		}
+		after = live(stmt.getBody(), after, next);
+		after.or(out);
+		if (stmt.getCondition() != null) {
+			return live(stmt.getCondition(), after);
+		}
+		return after;
+	}
+
+	private BitSet live(Stmt.For stmt, BitSet out, BitSet next) {
+		int index = stmt.getIndex().getSlot();
+		boolean r = record;
+		record = false;
+		BitSet head = (BitSet) out.clone();
+		while (true) {
+			BitSet nhead = live(stmt.getBody(), head, next);
+			nhead.clear(index);
+			nhead.or(out);
+			if (nhead.equals(head)) {
+				break;
+			}
+			head = nhead;
+		}
+		record = r;
+
+		BitSet after = live(stmt.getBody(), head, next);
+		after.clear(index);
+		after.or(out);
+		return live(stmt.getSource(), after);
+	}
+
+	private BitSet live(Stmt.Switch stmt, BitSet out) {
+		// A next statement may be followed by any case, which is safe since
+		// this only overestimates the live slots.
+		List<Stmt.SwitchStmt> cases = stmt.cases();
+		boolean r = record;
+		record = false;
+		BitSet next = (BitSet) out.clone();
+		while (true) {
+			BitSet nnext = cases(cases, out, next);
+			if (nnext.equals(next)) {
+				break;
+			}
+			next = nnext;
+		}
+		record = r;
+		return live(stmt.getExpr(), cases(cases, out, next));
+	}
+
+	private BitSet cases(List<Stmt.SwitchStmt> cases, BitSet out, BitSet next) {
+		BitSet in = (BitSet) out.clone();
+		for (Stmt.SwitchStmt s : cases) {
+			in.or(live(body(s), out, next));
+		}
+		return in;
+	}
+
+	private static List<Stmt> body(Stmt.SwitchStmt s) {
+		if (s instanceof Stmt.Case) {
+			return ((Stmt.Case) s).getStmts();
+		} else {
+			return ((Stmt.Default) s).getStmts();
+		}
+	}
+
+	/**
+	 * Add the slots read by a given expression to a set.
+	 */
+	private static void uses(Expr expr, BitSet slots) {
+		if (expr instanceof Expr.Variable) {
+			Expr.Variable v = (Expr.Variable) expr;
+			if (!v.isGlobal()) {
+				slots.set(v.getSlot());
+			}
+			return;
+		}
+		ArrayList<Expr> children = new ArrayList<Expr>();
+		children(expr, children);
+		for (Expr e : children) {
+			uses(e, slots);
+		}
+	}
+
+	// =========================================================================
+	// Elision
+	// =========================================================================
+
+	/**
+	 * Mark those invocation arguments within an assignment to something other
+	 * than a variable which need not be copied.
+	 */
+	private void elide(Stmt.Assign stmt, BitSet out) {
+		if (!record) {
+			return;
+		}
+		ArrayList<Expr.Invoke> invokes = new ArrayList<Expr.Invoke>();
+		invokes(stmt.getLhs(), invokes);
+		invokes(stmt.getRhs(), invokes);
+		HashMap<Integer, Integer> reads = new HashMap<Integer, Integer>();
+		reads(stmt.getLhs(), reads);
+		reads(stmt.getRhs(), reads);
+		for (Expr.Invoke invoke : invokes) {
+			for (Expr e : invoke.getArguments()) {
+				mark(e, reads, out, -1);
+			}
+		}
+	}
+
+	/**
+	 * Mark those expressions evaluated as part of a given expression which
+	 * need not be copied.
+	 *
+	 * @param expr
+	 *            The expression being evaluated.
+	 * @param stored
+	 *            The expression itself, if its value is stored in a variable,
+	 *            or null.
+	 * @param out
+	 *            The slots live once it has been evaluated.
+	 * @param killed
+	 *            The slot being assigned by its evaluation, or -1.
+	 */
+	private void elide(Expr expr, Expr stored, BitSet out, int killed) {
+		if (!record) {
+			return;
+		}
+		ArrayList<Expr.Invoke> invokes = new ArrayList<Expr.Invoke>();
+		invokes(expr, invokes);
+		HashMap<Integer, Integer> reads = new HashMap<Integer, Integer>();
+		reads(expr, reads);
+		if (stored != null) {
+			mark(stored, reads, out, killed);
+		}
+		for (Expr.Invoke invoke : invokes) {
+			for (Expr e : invoke.getArguments()) {
+				mark(e, reads, out, killed);
+			}
+		}
+	}
+
+	/**
+	 * Mark an expression whose value is stored in a variable or passed to a
+	 * function, if it need not be copied.
+	 */
+	private void mark(Expr expr, Map<Integer, Integer> reads, BitSet out, int killed) {
+		if (expr.attribute(Attribute.Move.class) != null || !isCopied(expr)) {
+			return;
+		} else if (isFresh(expr)) {
+			expr.attributes().add(new Attribute.Move());
+		} else if (expr instanceof Expr.Variable) {
+			// A variable can be moved from if this is the only place it is
+			// read, and it is not read again afterwards.
+			Expr.Variable v = (Expr.Variable) expr;
+			int slot = v.getSlot();
+			if (!v.isGlobal() && owned.get(function).get(slot)
+					&& reads.get(slot) == 1 && (slot == killed || !out.get(slot))) {
+				expr.attributes().add(new Attribute.Move());
+			}
+		}
+	}
+
+	/**
+	 * Count the number of times each slot is read by a given expression.
+	 */
+	private static void reads(Expr expr, Map<Integer, Integer> reads) {
+		if (expr instanceof Expr.Variable) {
+			Expr.Variable v = (Expr.Variable) expr;
+			if (!v.isGlobal()) {
+				Integer n = reads.get(v.getSlot());
+				reads.put(v.getSlot(), n == null ? 1 : n + 1);
+			}
+			return;
+		}
+		ArrayList<Expr> children = new ArrayList<Expr>();
+		children(expr, children);
+		for (Expr e : children) {
+			reads(e, reads);
+		}
+	}
+
+	// =========================================================================
+	// Helpers
+	// =========================================================================
+
+	/**
+	 * Check whether the value of a given expression is copied by every backend
+	 * when it is stored in a variable or passed to a function. Values which
+	 * are not are instead held directly.
+	 */
+	private boolean isCopied(Expr expr) {
+		Type t = expand(type(expr));
+		return t instanceof Type.List || t instanceof Type.Record
+				|| t instanceof Type.Tuple || t instanceof Type.Strung;
+	}
+
+	/**
+	 * Check whether the values of a given type never contain a list, record
+	 * or tuple, and so can be shared freely as part of another value.
+	 */
+	private boolean isFlat(Type type) {
+		return isFlat(type, new HashSet<String>());
+	}
+
+	private boolean isFlat(Type type, HashSet<String> visited) {
+		if (type == null || type instanceof Type.List
+				|| type instanceof Type.Record || type instanceof Type.Tuple) {
+			return false;
+		} else if (type instanceof Type.Named) {
+			String name = ((Type.Named) type).getName();
+			return !visited.add(name) || isFlat(userTypes.get(name), visited);
+		} else if (type instanceof Type.Union) {
+			for (Type t : ((Type.Union) type).getBounds()) {
+				if (!isFlat(t, visited)) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Expand a named type into its definition, if it is one.
+	 */
+	private Type expand(Type type) {
+		HashSet<String> visited = new HashSet<String>();
+		while (type instanceof Type.Named) {
+			String name = ((Type.Named) type).getName();
+			if (!visited.add(name)) {
+				return null;
+			}
+			type = userTypes.get(name);
+		}
+		return type;
+	}
+
+	private static Type type(Expr expr) {
+		Attribute.Type t = expr.attribute(Attribute.Type.class);
+		return t == null ? null : t.type;
+	}
+
+	private static void returns(List<Stmt> block, List<Stmt.Return> returns) {
+		for (Stmt s : block) {
+			if (s instanceof Stmt.Return) {
+				returns.add((Stmt.Return) s);
+			} else if (s instanceof Stmt.IfElse) {
+				Stmt.IfElse e = (Stmt.IfElse) s;
+				returns(e.getTrueBranch(), returns);
+				for (Stmt.ElseIf alt : e.getAlts()) {
+					returns(alt.getBody(), returns);
+				}
+				returns(e.getFalseBranch(), returns);
+			} else if (s instanceof Stmt.OldFor) {
+				returns(((Stmt.OldFor) s).getBody(), returns);
+			} else if (s instanceof Stmt.For) {
+				returns(((Stmt.For) s).getBody(), returns);
+			} else if (s instanceof Stmt.While) {
+				returns(((Stmt.While) s).getBody(), returns);
+			} else if (s instanceof Stmt.Switch) {
+				for (Stmt.SwitchStmt c : ((Stmt.Switch) s).cases()) {
+					returns(body(c), returns);
+				}
+			}
+		}
+	}
+
+	private static void invokes(WyscriptFile.FunDecl fd, List<Expr.Invoke> invokes) {
+		ArrayList<Expr> exprs = new ArrayList<Expr>();
+		expressions(fd.statements, exprs);
+		for (Expr e : exprs) {
+			invokes(e, invokes);
+		}
+	}
+
+	private static void invokes(Expr expr, List<Expr.Invoke> invokes) {
+		if (expr instanceof Expr.Invoke) {
+			invokes.add((Expr.Invoke) expr);
+		}
+		ArrayList<Expr> children = new ArrayList<Expr>();
+		children(expr, children);
+		for (Expr e : children) {
+			invokes(e, invokes);
+		}
+	}
+
+	/**
+	 * Find the expressions which occur directly within a block of statements
+	 * (i.e. not as part of another expression).
+	 */
+	private static void expressions(List<Stmt> block, List<Expr> exprs) {
+		for (Stmt s : block) {
+			expressions(s, exprs);
+		}
+	}
+
+	private static void expressions(Stmt stmt, List<Expr> exprs) {
+		if (stmt instanceof Stmt.Assign) {
+			exprs.add(((Stmt.Assign) stmt).getLhs());
+			exprs.add(((Stmt.Assign) stmt).getRhs());
+		} else if (stmt instanceof Stmt.VariableDeclaration) {
+			Expr e = ((Stmt.VariableDeclaration) stmt).getExpr();
+			if (e != null) {
+				exprs.add(e);
+			}
+		} else if (stmt instanceof Stmt.Return) {
+			Expr e = ((Stmt.Return) stmt).getExpr();
+			if (e != null) {
+				exprs.add(e);
+			}
+		} else if (stmt instanceof Stmt.Print) {
+			exprs.add(((Stmt.Print) stmt).getExpr());
+		} else if (stmt instanceof Expr.Invoke) {
+			exprs.add((Expr.Invoke) stmt);
+		} else if (stmt instanceof Stmt.IfElse) {
+			Stmt.IfElse s = (Stmt.IfElse) stmt;
+			exprs.add(s.getCondition());
+			expressions(s.getTrueBranch(), exprs);
+			for (Stmt.ElseIf alt : s.getAlts()) {
+				exprs.add(alt.getCondition());
+				expressions(alt.getBody(), exprs);
+			}
+			expressions(s.getFalseBranch(), exprs);
+		} else if (stmt instanceof Stmt.OldFor) {
+			Stmt.OldFor s = (Stmt.OldFor) stmt;
+			if (s.getDeclaration() != null) {
+				expressions(s.getDeclaration(), exprs);
+			}
+			if (s.getCondition() != null) {
+				exprs.add(s.getCondition());
+			}
+			if (s.getIncrement() != null) {
+				expressions(s.getIncrement(), exprs);
+			}
+			expressions(s.getBody(), exprs);
+		} else if (stmt instanceof Stmt.For) {
+			exprs.add(((Stmt.For) stmt).getSource());
+			expressions(((Stmt.For) stmt).getBody(), exprs);
+		} else if (stmt instanceof Stmt.While) {
+			exprs.add(((Stmt.While) stmt).getCondition());
+			expressions(((Stmt.While) stmt).getBody(), exprs);
+		} else if (stmt instanceof Stmt.Switch) {
+			Stmt.Switch s = (Stmt.Switch) stmt;
+			exprs.add(s.getExpr());
+			for (Stmt.SwitchStmt c : s.cases()) {
+				expressions(body(c), exprs);
+			}
+		}
+	}
+
+	/**
+	 * Find the subexpressions which occur directly within a given expression.
+	 */
+	private static void children(Expr expr, List<Expr> children) {
+		if (expr instanceof Expr.Binary) {
+			children.add(((Expr.Binary) expr).getLhs());
+			children.add(((Expr.Binary) expr).getRhs());
+		} else if (expr instanceof Expr.Cast) {
+			children.add(((Expr.Cast) expr).getSource());
+		} else if (expr instanceof Expr.IndexOf) {
+			children.add(((Expr.IndexOf) expr).getSource());
+			children.add(((Expr.IndexOf) expr).getIndex());
+		} else if (expr instanceof Expr.Invoke) {
+			children.addAll(((Expr.Invoke) expr).getArguments());
+		} else if (expr instanceof Expr.ListConstructor) {
+			children.addAll(((Expr.ListConstructor) expr).getArguments());
+		} else if (expr instanceof Expr.RecordAccess) {
+			children.add(((Expr.RecordAccess) expr).getSource());
+		} else if (expr instanceof Expr.RecordConstructor) {
+			for (Pair<String, Expr> p : ((Expr.RecordConstructor) expr).getFields()) {
+				children.add(p.second());
+			}
+		} else if (expr instanceof Expr.Unary) {
+			children.add(((Expr.Unary) expr).getExpr());
+		} else if (expr instanceof Expr.Is) {
+			children.add(((Expr.Is) expr).getLhs());
+		} else if (expr instanceof Expr.Deref) {
+			children.add(((Expr.Deref) expr).getExpr());
+		} else if (expr instanceof Expr.New) {
+			children.add(((Expr.New) expr).getExpr());
+		} else if (expr instanceof Expr.Tuple) {
+			children.addAll(((Expr.Tuple) expr).getExprs());
+		}
+	}
+}
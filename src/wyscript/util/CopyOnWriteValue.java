@@ -0,0 +1,131 @@
+package wyscript.util;
+
+import wyscript.lang.Type;
+
+/**
+ * <p>
+ * Base class for the compound values used in the interpreter (i.e. lists,
+ * records and strings). WyScript has value semantics, meaning that assigning a compound
+ * value to a variable (or passing it to a function, etc) must behave as though
+ * the value was copied. Rather than eagerly copying the whole value, these
+ * values are shared and only copied when they are updated.
+ * </p>
+ * <p>
+ * To do this, every value maintains a count of the number of places
+ * (variables, list elements, record fields, etc) currently holding it. A holder
+ * may update a value in place only when it is the sole holder; otherwise, it
+ * must first take its own copy using <code>unshare()</code>. Counts may
+ * overestimate the true number of holders (e.g. when a stack frame is simply
+ * discarded), which only results in an unnecessary copy; however, they must
+ * never underestimate it.
+ * </p>
+ */
+public abstract class CopyOnWriteValue {
+
+	private int references;
+
+	/**
+	 * The type against which this value was last tested, and the outcome (see
+	 * <code>Values.instanceOf()</code>). Only a single outcome is held, and it
+	 * is forgotten whenever this value is updated, including when one of its
+	 * elements is obtained for update.
+	 */
+	Type testedType;
+	boolean testedResult;
+
+	/**
+	 * Check whether this value is currently held in more than one place, and
+	 * hence cannot be updated in place.
+	 *
+	 * @return
+	 */
+	public boolean isShared() {
+		return references > 1;
+	}
+
+	/**
+	 * Record that this value is now held in one more place. This is the
+	 * constant-time equivalent of copying the value.
+	 *
+	 * @return This value.
+	 */
+	public CopyOnWriteValue acquire() {
+		references++;
+		return this;
+	}
+
+	/**
+	 * Record that one of the places holding this value no longer does.
+	 */
+	public void release() {
+		if (references > 0) {
+			references--;
+		}
+	}
+
+	/**
+	 * Get a version of this value which the caller may update in place. The
+	 * caller must be one of the holders of this value. If this value is not
+	 * shared then it is returned as is; otherwise, a fresh copy is returned
+	 * which the caller must store in place of this value.
+	 *
+	 * @return
+	 */
+	public CopyOnWriteValue unshare() {
+		if (references <= 1) {
+			return this;
+		}
+		references--;
+		CopyOnWriteValue copy = duplicate();
+		copy.references = 1;
+		copy.testedType = testedType;
+		copy.testedResult = testedResult;
+		return copy;
+	}
+
+	/**
+	 * Create a shallow copy of this value, which is not held anywhere. Any
+	 * values contained within this value must be copied using
+	 * <code>copy()</code>, since they will now be held by both.
+	 *
+	 * @return
+	 */
+	public abstract CopyOnWriteValue duplicate();
+
+	/**
+	 * Record that this value is about to be updated in place, and hence its
+	 * type may change.
+	 */
+	protected void updated() {
+		testedType = null;
+	}
+
+	/**
+	 * Copy a value which is about to be stored somewhere (e.g. in a variable,
+	 * or as a list element). For compound values this takes constant time,
+	 * since it simply records that the value is held in one more place.
+	 * Everything else is immutable, and can be safely shared as is.
+	 *
+	 * @param value
+	 * @return The value to be stored.
+	 */
+	public static Object copy(Object value) {
+		if (value instanceof CopyOnWriteValue) {
+			return ((CopyOnWriteValue) value).acquire();
+		} else {
+			return value;
+		}
+	}
+
+	/**
+	 * Record that a value previously stored somewhere has been overwritten or
+	 * discarded.
+	 *
+	 * @param value
+	 */
+	public static void release(Object value) {
+		if (value instanceof CopyOnWriteValue) {
+			((CopyOnWriteValue) value).release();
+		}
+	}
+}
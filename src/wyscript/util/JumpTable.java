@@ -0,0 +1,125 @@
+// This file is part of the WyScript Compiler (wysc).
+//
+// The WyScript Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WyScript Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WyScript Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+//
+// Copyright 2013, David James Pearce.
+
+package wyscript.util;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * <p>
+ * Selects the case of a switch statement for a given value, without comparing
+ * that value against each case constant in turn. Since case constants are
+ * required to be constant, the table is built once from their values.
+ * </p>
+ * <p>
+ * Where every case constant is an int, and they are reasonably close
+ * together, the table is simply an array indexed by value. Otherwise, it is a
+ * hash table. In both cases, a value matches a constant exactly when it would
+ * be <code>equals()</code> to it.
+ * </p>
+ */
+public final class JumpTable {
+	private final HashMap<Object, Integer> targets;
+	private final int[] dense;
+	private final int min;
+	private final int otherwise;
+
+	/**
+	 * Construct a jump table for the cases of a switch statement.
+	 *
+	 * @param constants
+	 *            The value of each case constant, in order. The entry at the
+	 *            index of the default case is ignored.
+	 * @param otherwise
+	 *            The index of the default case, or -1 if there is none.
+	 */
+	public JumpTable(Object[] constants, int otherwise) {
+		this.otherwise = otherwise;
+
+		// First, determine whether a dense table can be used
+		boolean ints = true;
+		int lo = Integer.MAX_VALUE;
+		int hi = Integer.MIN_VALUE;
+		for (int i = 0; i != constants.length; ++i) {
+			if (i == otherwise) {
+				continue;
+			} else if (constants[i] instanceof Integer) {
+				int v = (Integer) constants[i];
+				lo = Math.min(lo, v);
+				hi = Math.max(hi, v);
+			} else {
+				ints = false;
+			}
+		}
+		long span = (long) hi - lo + 1;
+
+		// NOTE: where two constants are equal (e.g. a named constant and a
+		// literal), the first of them is selected.
+		if (ints && span > 0 && span <= Math.max(16, 4 * constants.length)) {
+			targets = null;
+			min = lo;
+			dense = new int[(int) span];
+			Arrays.fill(dense, otherwise);
+			for (int i = constants.length - 1; i >= 0; --i) {
+				if (i != otherwise) {
+					dense[(Integer) constants[i] - lo] = i;
+				}
+			}
+		} else {
+			dense = null;
+			min = 0;
+			targets = new HashMap<Object, Integer>();
+			for (int i = constants.length - 1; i >= 0; --i) {
+				if (i != otherwise) {
+					targets.put(constants[i], i);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Get the index of the default case.
+	 *
+	 * @return The index, or -1 if there is no default case.
+	 */
+	public int otherwise() {
+		return otherwise;
+	}
+
+	/**
+	 * Get the index of the case selected by a given value.
+	 *
+	 * @param value
+	 * @return The index of the matching case, or of the default case if there
+	 *         is none (which is -1 if there is no default case).
+	 */
+	public int lookup(Object value) {
+		if (dense != null) {
+			if (value instanceof Integer) {
+				long index = (long) (Integer) value - min;
+				if (index >= 0 && index < dense.length) {
+					return dense[(int) index];
+				}
+			}
+			return otherwise;
+		}
+		Integer target = targets.get(value);
+		return target == null ? otherwise : target;
+	}
+}
@@ -0,0 +1,678 @@
+package wyscript.util;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import wyscript.lang.Type;
+
+/**
+ * <p>
+ * Used in the interpreter to represent a list value. Lists are copy-on-write
+ * (see <code>CopyOnWriteValue</code>), so any update must be made through a
+ * holder which has first called <code>unshare()</code>.
+ * </p>
+ * <p>
+ * A list whose elements are all ints, reals, bools or chars can be stored
+ * unboxed, in an array of the corresponding primitive type (or a bitset, for
+ * bools). The storage is chosen when the list is created, usually from its
+ * static element type. Should an element of any other kind be stored in such
+ * a list (e.g. a real into a list of type <code>[int|real]</code> which began
+ * as a list of ints) then it falls back to generic storage.
+ * </p>
+ * <p>
+ * Casting a list of ints to a list of reals gives a <i>view</i> of the
+ * original (see <code>widen()</code>), whose elements are each converted when
+ * read. The reals are only stored once the view is itself updated, so a cast
+ * which is only read from costs nothing up front.
+ * </p>
+ */
+public final class ListValue extends CopyOnWriteValue implements Iterable<Object> {
+
+	/**
+	 * The ways in which the elements of a list can be stored.
+	 */
+	public enum Storage {
+		GENERIC, INT, REAL, BOOL, CHAR;
+
+		/**
+		 * Determine the storage for a list with a given element type, which
+		 * must already have been expanded if it is a named type.
+		 *
+		 * @param element
+		 * @return
+		 */
+		public static Storage of(Type element) {
+			if (element instanceof Type.Int) {
+				return INT;
+			} else if (element instanceof Type.Real) {
+				return REAL;
+			} else if (element instanceof Type.Bool) {
+				return BOOL;
+			} else if (element instanceof Type.Char) {
+				return CHAR;
+			}
+			return GENERIC;
+		}
+	}
+
+	private Storage storage;
+
+	// Exactly one of these holds the elements, depending on the storage
+	// (except in a view, where the ints are read as reals)
+	private Object[] items;
+	private int[] ints;
+	private double[] reals;
+	private long[] bits;
+	private char[] chars;
+
+	private int size;
+
+	/**
+	 * The list of ints which this list of reals is a view of, or null if it
+	 * holds its own elements. That list is held by this one, and so cannot be
+	 * updated in place whilst this view exists.
+	 */
+	private ListValue source;
+
+	public ListValue() {
+		this(4);
+	}
+
+	public ListValue(int capacity) {
+		this(Storage.GENERIC, capacity);
+	}
+
+	public ListValue(Storage storage, int capacity) {
+		this.storage = storage;
+		capacity = Math.max(capacity, 1);
+		switch (storage) {
+		case INT:
+			ints = new int[capacity];
+			break;
+		case REAL:
+			reals = new double[capacity];
+			break;
+		case BOOL:
+			bits = new long[(capacity + 63) >> 6];
+			break;
+		case CHAR:
+			chars = new char[capacity];
+			break;
+		default:
+			items = new Object[capacity];
+		}
+	}
+
+	private ListValue(ListValue source) {
+		this.storage = Storage.REAL;
+		this.source = source;
+		this.ints = source.ints;
+		this.size = source.size;
+		source.acquire();
+	}
+
+	/**
+	 * Construct a list of reals whose elements are those of a given list of
+	 * ints, which must be stored unboxed. This takes constant time, since
+	 * each element is only converted when read.
+	 *
+	 * @param ints
+	 * @return
+	 */
+	public static ListValue widen(ListValue ints) {
+		return new ListValue(ints);
+	}
+
+	public Storage storage() {
+		return storage;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public Object get(int index) {
+		checkIndex(index);
+		// NOTE: this is kept small, so that it can be inlined
+		if (storage == Storage.GENERIC) {
+			return items[index];
+		}
+		return box(index);
+	}
+
+	/**
+	 * Box an element of a list which is stored unboxed.
+	 */
+	private Object box(int index) {
+		switch (storage) {
+		case INT:
+			return ints[index];
+		case REAL:
+			return real(index);
+		case BOOL:
+			return bit(index);
+		case CHAR:
+			return chars[index];
+		default:
+			return items[index];
+		}
+	}
+
+	/**
+	 * Get an element which is known to be an int, without boxing it if this
+	 * list is stored unboxed.
+	 *
+	 * @param index
+	 * @return
+	 */
+	public int getInt(int index) {
+		if (storage == Storage.INT) {
+			checkIndex(index);
+			return ints[index];
+		}
+		return (Integer) get(index);
+	}
+
+	/**
+	 * Get an element which is known to be a real.
+	 *
+	 * @param index
+	 * @return
+	 */
+	public double getReal(int index) {
+		if (storage == Storage.REAL) {
+			checkIndex(index);
+			return real(index);
+		}
+		return (Double) get(index);
+	}
+
+	/**
+	 * Get an element which is known to be a bool.
+	 *
+	 * @param index
+	 * @return
+	 */
+	public boolean getBool(int index) {
+		if (storage == Storage.BOOL) {
+			checkIndex(index);
+			return bit(index);
+		}
+		return (Boolean) get(index);
+	}
+
+	/**
+	 * Get an element which is known to be a char.
+	 *
+	 * @param index
+	 * @return
+	 */
+	public char getChar(int index) {
+		if (storage == Storage.CHAR) {
+			checkIndex(index);
+			return chars[index];
+		}
+		return (Character) get(index);
+	}
+
+	// NOTE: the following are used where an index is already known to be
+	// within bounds (see <code>Attribute.InBounds</code>), and so need not be
+	// checked again.
+
+	public Object getUnchecked(int index) {
+		if (storage == Storage.GENERIC) {
+			return items[index];
+		}
+		return box(index);
+	}
+
+	public int getIntUnchecked(int index) {
+		if (storage == Storage.INT) {
+			return ints[index];
+		}
+		return (Integer) getUnchecked(index);
+	}
+
+	public double getRealUnchecked(int index) {
+		if (storage == Storage.REAL) {
+			return real(index);
+		}
+		return (Double) getUnchecked(index);
+	}
+
+	public boolean getBoolUnchecked(int index) {
+		if (storage == Storage.BOOL) {
+			return bit(index);
+		}
+		return (Boolean) getUnchecked(index);
+	}
+
+	public char getCharUnchecked(int index) {
+		if (storage == Storage.CHAR) {
+			return chars[index];
+		}
+		return (Character) getUnchecked(index);
+	}
+
+	/**
+	 * Get the element at a given index, so that it can be updated in place.
+	 * If that element is a shared compound value, it is first replaced with
+	 * its own copy. This list must not itself be shared.
+	 *
+	 * @param index
+	 * @return
+	 */
+	public Object getForUpdate(int index) {
+		updated();
+		if (storage != Storage.GENERIC) {
+			return get(index);
+		}
+		checkIndex(index);
+		Object item = items[index];
+		if (item instanceof CopyOnWriteValue) {
+			item = ((CopyOnWriteValue) item).unshare();
+			items[index] = item;
+		}
+		return item;
+	}
+
+	/**
+	 * Replace the element at a given index. This list must not be shared.
+	 *
+	 * @param index
+	 * @param value
+	 */
+	public void set(int index, Object value) {
+		checkIndex(index);
+		updated();
+		materialise();
+		if (!accepts(value)) {
+			generalise();
+		}
+		switch (storage) {
+		case INT:
+			ints[index] = (Integer) value;
+			break;
+		case REAL:
+			reals[index] = (Double) value;
+			break;
+		case BOOL:
+			setBit(index, (Boolean) value);
+			break;
+		case CHAR:
+			chars[index] = (Character) value;
+			break;
+		default:
+			Object old = items[index];
+			items[index] = copy(value);
+			release(old);
+		}
+	}
+
+	/**
+	 * Append an element onto the end of this list. This is used when
+	 * constructing a new list, and this list must not be shared.
+	 *
+	 * @param value
+	 */
+	public void add(Object value) {
+		updated();
+		materialise();
+		if (!accepts(value)) {
+			generalise();
+		}
+		ensureCapacity(size + 1);
+		switch (storage) {
+		case INT:
+			ints[size] = (Integer) value;
+			break;
+		case REAL:
+			reals[size] = (Double) value;
+			break;
+		case BOOL:
+			setBit(size, (Boolean) value);
+			break;
+		case CHAR:
+			chars[size] = (Character) value;
+			break;
+		default:
+			items[size] = copy(value);
+		}
+		size++;
+	}
+
+	/**
+	 * Append an int onto the end of this list, without boxing it if this list
+	 * is stored unboxed.
+	 *
+	 * @param value
+	 */
+	public void addInt(int value) {
+		if (storage != Storage.INT) {
+			add(value);
+			return;
+		}
+		updated();
+		ensureCapacity(size + 1);
+		ints[size++] = value;
+	}
+
+	/**
+	 * Append a real onto the end of this list, without boxing it if this list
+	 * is stored unboxed.
+	 *
+	 * @param value
+	 */
+	public void addReal(double value) {
+		if (storage != Storage.REAL) {
+			add(value);
+			return;
+		}
+		updated();
+		materialise();
+		ensureCapacity(size + 1);
+		reals[size++] = value;
+	}
+
+	/**
+	 * Replace the element at a given index with an int, without boxing it if
+	 * this list is stored unboxed. This list must not be shared.
+	 *
+	 * @param index
+	 * @param value
+	 */
+	public void setInt(int index, int value) {
+		if (storage != Storage.INT) {
+			set(index, value);
+			return;
+		}
+		checkIndex(index);
+		updated();
+		ints[index] = value;
+	}
+
+	/**
+	 * Replace the element at a given index with a real, without boxing it if
+	 * this list is stored unboxed. This list must not be shared.
+	 *
+	 * @param index
+	 * @param value
+	 */
+	public void setReal(int index, double value) {
+		if (storage != Storage.REAL) {
+			set(index, value);
+			return;
+		}
+		checkIndex(index);
+		updated();
+		materialise();
+		reals[index] = value;
+	}
+
+	/**
+	 * Construct a new list made up of the elements of this list, followed by
+	 * those of another.
+	 *
+	 * @param other
+	 * @return
+	 */
+	public ListValue append(ListValue other) {
+		if (storage == other.storage && storage != Storage.GENERIC) {
+			ListValue r = new ListValue(storage, size + other.size);
+			r.copyFrom(this, 0);
+			r.copyFrom(other, size);
+			r.size = size + other.size;
+			return r;
+		}
+		// NOTE: an empty list is generic, but should not force a list of
+		// primitives appended to it to become so.
+		Storage s = size == 0 ? other.storage : storage;
+		ListValue r = new ListValue(s, size + other.size);
+		for (int i = 0; i != size; ++i) {
+			r.add(get(i));
+		}
+		for (int i = 0; i != other.size; ++i) {
+			r.add(other.get(i));
+		}
+		return r;
+	}
+
+	public CopyOnWriteValue duplicate() {
+		if (source != null) {
+			return new ListValue(source);
+		}
+		ListValue r = new ListValue(storage, size);
+		if (storage == Storage.GENERIC) {
+			for (int i = 0; i != size; ++i) {
+				r.add(items[i]);
+			}
+		} else {
+			r.copyFrom(this, 0);
+			r.size = size;
+		}
+		return r;
+	}
+
+	/**
+	 * Copy the elements of a list with the same (primitive) storage as this
+	 * into this list, starting at a given position. There must be sufficient
+	 * capacity for them.
+	 */
+	private void copyFrom(ListValue l, int start) {
+		switch (storage) {
+		case INT:
+			System.arraycopy(l.ints, 0, ints, start, l.size);
+			break;
+		case REAL:
+			if (l.source == null) {
+				System.arraycopy(l.reals, 0, reals, start, l.size);
+			} else {
+				for (int i = 0; i != l.size; ++i) {
+					reals[start + i] = l.ints[i];
+				}
+			}
+			break;
+		case CHAR:
+			System.arraycopy(l.chars, 0, chars, start, l.size);
+			break;
+		default:
+			for (int i = 0; i != l.size; ++i) {
+				setBit(start + i, l.bit(i));
+			}
+		}
+	}
+
+	/**
+	 * Check whether a given value can be stored in this list, as it is
+	 * currently represented.
+	 */
+	private boolean accepts(Object value) {
+		switch (storage) {
+		case INT:
+			return value instanceof Integer;
+		case REAL:
+			return value instanceof Double;
+		case BOOL:
+			return value instanceof Boolean;
+		case CHAR:
+			return value instanceof Character;
+		default:
+			return true;
+		}
+	}
+
+	/**
+	 * Convert this list to generic storage, boxing every element.
+	 */
+	private void generalise() {
+		Object[] nitems = new Object[Math.max(size, 1)];
+		for (int i = 0; i != size; ++i) {
+			nitems[i] = get(i);
+		}
+		items = nitems;
+		ints = null;
+		reals = null;
+		bits = null;
+		chars = null;
+		storage = Storage.GENERIC;
+		if (source != null) {
+			source.release();
+			source = null;
+		}
+	}
+
+	/**
+	 * Convert this list from a view to one holding its own reals, so that
+	 * they can be updated. This list must not be shared.
+	 */
+	private void materialise() {
+		if (source != null) {
+			reals = new double[Math.max(size, 1)];
+			for (int i = 0; i != size; ++i) {
+				reals[i] = ints[i];
+			}
+			ints = null;
+			source.release();
+			source = null;
+		}
+	}
+
+	private double real(int index) {
+		return source == null ? reals[index] : ints[index];
+	}
+
+	private void ensureCapacity(int capacity) {
+		switch (storage) {
+		case INT:
+			if (capacity > ints.length) {
+				ints = Arrays.copyOf(ints, capacity * 2);
+			}
+			break;
+		case REAL:
+			if (capacity > reals.length) {
+				reals = Arrays.copyOf(reals, capacity * 2);
+			}
+			break;
+		case BOOL:
+			if (capacity > bits.length << 6) {
+				bits = Arrays.copyOf(bits, bits.length * 2);
+			}
+			break;
+		case CHAR:
+			if (capacity > chars.length) {
+				chars = Arrays.copyOf(chars, capacity * 2);
+			}
+			break;
+		default:
+			if (capacity > items.length) {
+				items = Arrays.copyOf(items, capacity * 2);
+			}
+		}
+	}
+
+	private boolean bit(int index) {
+		return (bits[index >> 6] & (1L << index)) != 0;
+	}
+
+	private void setBit(int index, boolean value) {
+		if (value) {
+			bits[index >> 6] |= 1L << index;
+		} else {
+			bits[index >> 6] &= ~(1L << index);
+		}
+	}
+
+	private void checkIndex(int index) {
+		if (index < 0 || index >= size) {
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+		}
+	}
+
+	public Iterator<Object> iterator() {
+		return new Iterator<Object>() {
+			private int index = 0;
+
+			public boolean hasNext() {
+				return index < size;
+			}
+
+			public Object next() {
+				if (index >= size) {
+					throw new NoSuchElementException();
+				}
+				return get(index++);
+			}
+
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	public boolean equals(Object o) {
+		if (!(o instanceof ListValue)) {
+			return false;
+		}
+		ListValue l = (ListValue) o;
+		if (size != l.size) {
+			return false;
+		}
+		if (storage == l.storage) {
+			switch (storage) {
+			case INT:
+				for (int i = 0; i != size; ++i) {
+					if (ints[i] != l.ints[i]) {
+						return false;
+					}
+				}
+				return true;
+			case REAL:
+				// NOTE: this matches Double.equals(), rather than ==
+				for (int i = 0; i != size; ++i) {
+					if (Double.doubleToLongBits(real(i)) != Double
+							.doubleToLongBits(l.real(i))) {
+						return false;
+					}
+				}
+				return true;
+			case CHAR:
+				for (int i = 0; i != size; ++i) {
+					if (chars[i] != l.chars[i]) {
+						return false;
+					}
+				}
+				return true;
+			}
+		}
+		for (int i = 0; i != size; ++i) {
+			Object a = get(i);
+			Object b = l.get(i);
+			if (a == null ? b != null : !a.equals(b)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public int hashCode() {
+		// NOTE: this must be the same for equal lists, regardless of how they
+		// are stored.
+		int hash = 1;
+		for (int i = 0; i != size; ++i) {
+			Object item = get(i);
+			hash = 31 * hash + (item == null ? 0 : item.hashCode());
+		}
+		return hash;
+	}
+
+	public String toString() {
+		String s = "[";
+		for (int i = 0; i != size; ++i) {
+			if (i != 0)
+				s += ", ";
+			s += get(i);
+		}
+		return s + "]";
+	}
+}
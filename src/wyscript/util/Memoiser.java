@@ -0,0 +1,189 @@
+// This file is part of the WyScript Compiler (wysc).
+//
+// The WyScript Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WyScript Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WyScript Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+//
+// Copyright 2013, David James Pearce.
+
+package wyscript.util;
+
+import java.io.PrintStream;
+import java.util.*;
+
+import wyscript.lang.WyscriptFile;
+
+/**
+ * <p>
+ * Records the results of calls to pure functions (see <code>Purity</code>),
+ * so that a later call with the same arguments can reuse the result rather
+ * than executing the function again. The results for each function are held
+ * in a cache of bounded size, from which the least recently used result is
+ * evicted when it is full.
+ * </p>
+ * <p>
+ * The cache holds its own copies of the arguments and results, following the
+ * rules of <code>CopyOnWriteValue</code>. Hence, neither the function being
+ * called nor its caller can update them in place afterwards.
+ * </p>
+ */
+public final class Memoiser {
+
+	/**
+	 * Returned by <code>lookup()</code> when no result has been recorded,
+	 * since <code>null</code> is itself a valid result.
+	 */
+	public static final Object NONE = new Object();
+
+	private final int capacity;
+	private final LinkedHashMap<WyscriptFile.FunDecl, Cache> caches = new LinkedHashMap<WyscriptFile.FunDecl, Cache>();
+
+	/**
+	 * Construct a memoiser which holds at most a given number of results for
+	 * each function.
+	 *
+	 * @param capacity
+	 */
+	public Memoiser(int capacity) {
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Construct the key identifying a call to a given function with given
+	 * arguments. This must be done before the function is called, since it
+	 * may update its arguments.
+	 *
+	 * @param function
+	 * @param arguments
+	 * @return
+	 */
+	public Key key(WyscriptFile.FunDecl function, Object[] arguments) {
+		return new Key(function, arguments);
+	}
+
+	/**
+	 * Get the result recorded for a given call, or <code>NONE</code> if there
+	 * is none. The result can be stored without being copied, as with the
+	 * result of any other call.
+	 *
+	 * @param key
+	 * @return
+	 */
+	public Object lookup(Key key) {
+		Cache cache = cache(key.function);
+		Object result = cache.get(key);
+		if (result == null && !cache.containsKey(key)) {
+			cache.misses++;
+			return NONE;
+		}
+		cache.hits++;
+		key.release();
+		return result;
+	}
+
+	/**
+	 * Record the result of a given call.
+	 *
+	 * @param key
+	 * @param result
+	 */
+	public void store(Key key, Object result) {
+		cache(key.function).put(key, CopyOnWriteValue.copy(result));
+	}
+
+	/**
+	 * Print the number of hits and misses for each function called, and the
+	 * resulting hit rate.
+	 *
+	 * @param out
+	 */
+	public void report(PrintStream out) {
+		for (Map.Entry<WyscriptFile.FunDecl, Cache> e : caches.entrySet()) {
+			Cache cache = e.getValue();
+			long calls = cache.hits + cache.misses;
+			out.printf("memoised %s: %d calls, %d hits (%.1f%%), %d results held%n",
+					e.getKey().name, calls, cache.hits,
+					calls == 0 ? 0.0 : 100.0 * cache.hits / calls, cache.size());
+		}
+	}
+
+	private Cache cache(WyscriptFile.FunDecl function) {
+		Cache cache = caches.get(function);
+		if (cache == null) {
+			cache = new Cache();
+			caches.put(function, cache);
+		}
+		return cache;
+	}
+
+	/**
+	 * Identifies a call by the function called, and the values of its
+	 * arguments.
+	 */
+	public static final class Key {
+		private final WyscriptFile.FunDecl function;
+		private final Object[] arguments;
+		private final int hashCode;
+
+		private Key(WyscriptFile.FunDecl function, Object[] arguments) {
+			this.function = function;
+			this.arguments = new Object[arguments.length];
+			for (int i = 0; i != arguments.length; ++i) {
+				this.arguments[i] = CopyOnWriteValue.copy(arguments[i]);
+			}
+			this.hashCode = function.hashCode() ^ Arrays.hashCode(this.arguments);
+		}
+
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) {
+				return false;
+			}
+			Key k = (Key) o;
+			return function == k.function && hashCode == k.hashCode
+					&& Arrays.equals(arguments, k.arguments);
+		}
+
+		public int hashCode() {
+			return hashCode;
+		}
+
+		private void release() {
+			for (Object value : arguments) {
+				CopyOnWriteValue.release(value);
+			}
+		}
+	}
+
+	/**
+	 * The results recorded for one function, in order of use.
+	 */
+	private final class Cache extends LinkedHashMap<Key, Object> {
+		private static final long serialVersionUID = 1L;
+
+		private long hits;
+		private long misses;
+
+		public Cache() {
+			super(16, 0.75f, true);
+		}
+
+		protected boolean removeEldestEntry(Map.Entry<Key, Object> eldest) {
+			if (size() <= capacity) {
+				return false;
+			}
+			eldest.getKey().release();
+			CopyOnWriteValue.release(eldest.getValue());
+			return true;
+		}
+	}
+}
@@ -0,0 +1,205 @@
+// This file is part of the WyScript Compiler (wysc).
+//
+// The WyScript Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WyScript Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WyScript Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+//
+// Copyright 2013, David James Pearce.
+
+package wyscript.util;
+
+import java.util.*;
+
+import wyscript.lang.*;
+import static wyscript.util.SyntaxError.*;
+
+/**
+ * <p>
+ * Responsible for determining which functions are <i>pure</i>, meaning that
+ * the value each returns depends only on its arguments, and that calling it
+ * has no other effect. Hence, a call to a pure function can be replaced by
+ * the result of an earlier call with the same arguments.
+ * </p>
+ * <p>
+ * A function is pure if its body contains no print statement, never creates,
+ * reads or assigns through a reference (since a reference is a mutable
+ * location, which may be shared), and only calls pure functions. Native
+ * functions are never pure, as nothing is known about them.
+ * </p>
+ * <p>
+ * The calls made by each function are taken from the <code>CallGraph</code>,
+ * and so the file must first have been processed by the
+ * <code>VariableResolver</code>.
+ * </p>
+ */
+public class Purity {
+
+	private String filename;
+
+	/**
+	 * Determine the pure functions of a given file.
+	 *
+	 * @param wf
+	 * @param callGraph
+	 *            The calls between the functions of this file.
+	 * @return
+	 */
+	public Set<WyscriptFile.FunDecl> analyse(WyscriptFile wf,
+			CallGraph callGraph) {
+		this.filename = wf.filename;
+
+		// First, determine which functions have no effects of their own.
+		HashSet<WyscriptFile.FunDecl> pure = new HashSet<WyscriptFile.FunDecl>();
+		for (WyscriptFile.Decl declaration : wf.declarations) {
+			if (declaration instanceof WyscriptFile.FunDecl) {
+				WyscriptFile.FunDecl fd = (WyscriptFile.FunDecl) declaration;
+				if (!fd.Native && isPure(fd.statements)) {
+					pure.add(fd);
+				}
+			}
+		}
+
+		// Second, remove those which call a function which is not pure, until
+		// nothing changes.
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			Iterator<WyscriptFile.FunDecl> iter = pure.iterator();
+			while (iter.hasNext()) {
+				if (!pure.containsAll(callGraph.callees(iter.next()))) {
+					iter.remove();
+					changed = true;
+				}
+			}
+		}
+		return pure;
+	}
+
+	private boolean isPure(List<Stmt> block) {
+		for (Stmt s : block) {
+			if (!isPure(s)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private boolean isPure(Stmt stmt) {
+		if (stmt instanceof Stmt.Assign) {
+			Stmt.Assign s = (Stmt.Assign) stmt;
+			return isPure(s.getLhs()) && isPure(s.getRhs());
+		} else if (stmt instanceof Stmt.VariableDeclaration) {
+			Expr e = ((Stmt.VariableDeclaration) stmt).getExpr();
+			return e == null || isPure(e);
+		} else if (stmt instanceof Stmt.Return) {
+			Expr e = ((Stmt.Return) stmt).getExpr();
+			return e == null || isPure(e);
+		} else if (stmt instanceof Stmt.Print) {
+			return false;
+		} else if (stmt instanceof Expr.Invoke) {
+			return isPure((Expr.Invoke) stmt);
+		} else if (stmt instanceof Stmt.IfElse) {
+			Stmt.IfElse s = (Stmt.IfElse) stmt;
+			for (Stmt.ElseIf alt : s.getAlts()) {
+				if (!isPure(alt.getCondition()) || !isPure(alt.getBody())) {
+					return false;
+				}
+			}
+			return isPure(s.getCondition()) && isPure(s.getTrueBranch())
+					&& isPure(s.getFalseBranch());
+		} else if (stmt instanceof Stmt.OldFor) {
+			Stmt.OldFor s = (Stmt.OldFor) stmt;
+			return (s.getDeclaration() == null || isPure(s.getDeclaration()))
+					&& (s.getCondition() == null || isPure(s.getCondition()))
+					&& (s.getIncrement() == null || isPure(s.getIncrement()))
+					&& isPure(s.getBody());
+		} else if (stmt instanceof Stmt.For) {
+			Stmt.For s = (Stmt.For) stmt;
+			return isPure(s.getSource()) && isPure(s.getBody());
+		} else if (stmt instanceof Stmt.While) {
+			Stmt.While s = (Stmt.While) stmt;
+			return isPure(s.getCondition()) && isPure(s.getBody());
+		} else if (stmt instanceof Stmt.Switch) {
+			Stmt.Switch s = (Stmt.Switch) stmt;
+			for (Stmt.SwitchStmt c : s.cases()) {
+				if (c instanceof Stmt.Case && !isPure(((Stmt.Case) c).getStmts())) {
+					return false;
+				} else if (c instanceof Stmt.Default
+						&& !isPure(((Stmt.Default) c).getStmts())) {
+					return false;
+				}
+			}
+			return isPure(s.getExpr());
+		} else if (stmt instanceof Stmt.Next) {
+			return true;
+		} else {
+			internalFailure("unknown statement encountered (" + stmt + ")", filename, stmt);
+			return false; // dead code
+		}
+	}
+
+	private boolean isPure(Expr expr) {
+		if (expr instanceof Expr.Variable || expr instanceof Expr.Constant) {
+			return true;
+		} else if (expr instanceof Expr.Binary) {
+			Expr.Binary e = (Expr.Binary) expr;
+			return isPure(e.getLhs()) && isPure(e.getRhs());
+		} else if (expr instanceof Expr.Unary) {
+			return isPure(((Expr.Unary) expr).getExpr());
+		} else if (expr instanceof Expr.Cast) {
+			return isPure(((Expr.Cast) expr).getSource());
+		} else if (expr instanceof Expr.Is) {
+			return isPure(((Expr.Is) expr).getLhs());
+		} else if (expr instanceof Expr.IndexOf) {
+			Expr.IndexOf e = (Expr.IndexOf) expr;
+			return isPure(e.getSource()) && isPure(e.getIndex());
+		} else if (expr instanceof Expr.RecordAccess) {
+			return isPure(((Expr.RecordAccess) expr).getSource());
+		} else if (expr instanceof Expr.ListConstructor) {
+			return isPureExprs(((Expr.ListConstructor) expr).getArguments());
+		} else if (expr instanceof Expr.RecordConstructor) {
+			for (Pair<String, Expr> p : ((Expr.RecordConstructor) expr).getFields()) {
+				if (!isPure(p.second())) {
+					return false;
+				}
+			}
+			return true;
+		} else if (expr instanceof Expr.Tuple) {
+			return isPureExprs(((Expr.Tuple) expr).getExprs());
+		} else if (expr instanceof Expr.Invoke) {
+			return isPure((Expr.Invoke) expr);
+		} else if (expr instanceof Expr.New || expr instanceof Expr.Deref) {
+			return false;
+		} else {
+			internalFailure("unknown expression encountered (" + expr + ")", filename, expr);
+			return false; // dead code
+		}
+	}
+
+	/**
+	 * Check whether the arguments of an invocation have no effects. Whether
+	 * the function being called is pure is determined separately.
+	 */
+	private boolean isPure(Expr.Invoke expr) {
+		return !expr.getTarget().Native && isPureExprs(expr.getArguments());
+	}
+
+	private boolean isPureExprs(List<Expr> exprs) {
+		for (Expr e : exprs) {
+			if (!isPure(e)) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
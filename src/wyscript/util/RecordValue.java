@@ -0,0 +1,162 @@
+package wyscript.util;
+
+import java.util.HashMap;
+import java.util.Set;
+
+/**
+ * <p>
+ * Used in the interpreter to represent a record value. Records are
+ * copy-on-write (see <code>CopyOnWriteValue</code>), so any update must be made
+ * through a holder which has first called <code>unshare()</code>.
+ * </p>
+ * <p>
+ * The values of a record's fields are stored in an array, laid out according
+ * to its <code>Shape</code>. A field can be accessed by name, or more quickly
+ * by its offset within the shape, which callers may cache for as long as they
+ * see records of that shape.
+ * </p>
+ */
+public final class RecordValue extends CopyOnWriteValue {
+
+	private Shape shape;
+	private Object[] values;
+
+	public RecordValue() {
+		this(Shape.EMPTY);
+	}
+
+	public RecordValue(Shape shape) {
+		this.shape = shape;
+		this.values = new Object[shape.size()];
+	}
+
+	public Shape shape() {
+		return shape;
+	}
+
+	public Set<String> fields() {
+		return shape.fields();
+	}
+
+	public Object get(String field) {
+		int offset = shape.offsetOf(field);
+		return offset < 0 ? null : values[offset];
+	}
+
+	/**
+	 * Get the value of the field at a given offset in this record's shape.
+	 *
+	 * @param offset
+	 * @return
+	 */
+	public Object get(int offset) {
+		return values[offset];
+	}
+
+	/**
+	 * Get the value of a given field, so that it can be updated in place. If
+	 * that value is a shared compound value, it is first replaced with its own
+	 * copy. This record must not itself be shared.
+	 *
+	 * @param field
+	 * @return
+	 */
+	public Object getForUpdate(String field) {
+		int offset = shape.offsetOf(field);
+		return offset < 0 ? null : getForUpdate(offset);
+	}
+
+	public Object getForUpdate(int offset) {
+		updated();
+		Object value = values[offset];
+		if (value instanceof CopyOnWriteValue) {
+			value = ((CopyOnWriteValue) value).unshare();
+			values[offset] = value;
+		}
+		return value;
+	}
+
+	/**
+	 * Set the value of a given field, adding it to this record if it is not
+	 * already present. This record must not be shared.
+	 *
+	 * @param field
+	 * @param value
+	 */
+	public void set(String field, Object value) {
+		int offset = shape.offsetOf(field);
+		if (offset < 0) {
+			offset = extend(field);
+		}
+		set(offset, value);
+	}
+
+	public void set(int offset, Object value) {
+		updated();
+		Object old = values[offset];
+		values[offset] = copy(value);
+		release(old);
+	}
+
+	/**
+	 * Add a field to this record, changing its shape.
+	 *
+	 * @return The offset of the new field.
+	 */
+	private int extend(String field) {
+		Shape nshape = shape.with(field);
+		Object[] nvalues = new Object[nshape.size()];
+		for (int i = 0; i != values.length; ++i) {
+			nvalues[nshape.offsetOf(shape.name(i))] = values[i];
+		}
+		shape = nshape;
+		values = nvalues;
+		return nshape.offsetOf(field);
+	}
+
+	public CopyOnWriteValue duplicate() {
+		RecordValue r = new RecordValue(shape);
+		for (int i = 0; i != values.length; ++i) {
+			r.values[i] = copy(values[i]);
+		}
+		return r;
+	}
+
+	public boolean equals(Object o) {
+		if (!(o instanceof RecordValue)) {
+			return false;
+		}
+		RecordValue r = (RecordValue) o;
+		if (shape != r.shape) {
+			return false;
+		}
+		for (int i = 0; i != values.length; ++i) {
+			Object a = values[i];
+			Object b = r.values[i];
+			if (a == null ? b != null : !a.equals(b)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public int hashCode() {
+		// NOTE: this is the same as the hashCode of a map from field names to
+		// values.
+		int hash = 0;
+		for (int i = 0; i != values.length; ++i) {
+			Object value = values[i];
+			hash += shape.name(i).hashCode()
+					^ (value == null ? 0 : value.hashCode());
+		}
+		return hash;
+	}
+
+	public String toString() {
+		HashMap<String, Object> map = new HashMap<String, Object>();
+		for (int i = 0; i != values.length; ++i) {
+			map.put(shape.name(i), values[i]);
+		}
+		return map.toString();
+	}
+}
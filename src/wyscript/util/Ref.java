@@ -9,15 +9,30 @@ public class Ref {
 	private Object value;
 
 	public Ref(Object value) {
-		this.value = value;
+		this.value = CopyOnWriteValue.copy(value);
 	}
 
 	public Object getValue() {
 		return value;
 	}
 
+	/**
+	 * Get the referenced value, so that it can be updated in place. If it is a
+	 * shared compound value, it is first replaced with its own copy.
+	 *
+	 * @return
+	 */
+	public Object getValueForUpdate() {
+		if (value instanceof CopyOnWriteValue) {
+			value = ((CopyOnWriteValue) value).unshare();
+		}
+		return value;
+	}
+
 	public void setValue(Object v) {
-		value = v;
+		Object old = value;
+		value = CopyOnWriteValue.copy(v);
+		CopyOnWriteValue.release(old);
 	}
 
 	public String toString() {
@@ -0,0 +1,114 @@
+package wyscript.util;
+
+import java.util.*;
+
+/**
+ * <p>
+ * The layout of a record value, which maps each of its field names to an
+ * offset in the array holding its values. Fields are laid out in sorted order
+ * of their names.
+ * </p>
+ * <p>
+ * Shapes are canonical: there is exactly one shape for any given set of field
+ * names, and so two records have the same fields if and only if they have the
+ * same shape. This means that the offset of a field can be looked up once,
+ * and then reused for any other record with the same shape.
+ * </p>
+ */
+public final class Shape {
+	private static final HashMap<List<String>, Shape> shapes = new HashMap<List<String>, Shape>();
+
+	/**
+	 * The shape of a record with no fields.
+	 */
+	public static final Shape EMPTY = of();
+
+	private final String[] names;
+	private final HashMap<String, Integer> offsets;
+	private final Set<String> fields;
+
+	/**
+	 * The shapes which result from adding a field to this one, which are
+	 * remembered to avoid looking them up again.
+	 */
+	private final HashMap<String, Shape> transitions = new HashMap<String, Shape>();
+
+	private Shape(String[] names) {
+		this.names = names;
+		this.offsets = new HashMap<String, Integer>();
+		for (int i = 0; i != names.length; ++i) {
+			offsets.put(names[i], i);
+		}
+		this.fields = Collections.unmodifiableSet(new LinkedHashSet<String>(
+				Arrays.asList(names)));
+	}
+
+	/**
+	 * Get the shape of a record with a given set of fields, in any order.
+	 *
+	 * @param names
+	 * @return
+	 */
+	public static synchronized Shape of(String... names) {
+		TreeSet<String> sorted = new TreeSet<String>(Arrays.asList(names));
+		List<String> key = new ArrayList<String>(sorted);
+		Shape shape = shapes.get(key);
+		if (shape == null) {
+			shape = new Shape(key.toArray(new String[key.size()]));
+			shapes.put(key, shape);
+		}
+		return shape;
+	}
+
+	/**
+	 * Get the shape which results from adding a field to this one.
+	 *
+	 * @param name
+	 * @return
+	 */
+	public Shape with(String name) {
+		synchronized (Shape.class) {
+			Shape shape = transitions.get(name);
+			if (shape == null) {
+				String[] nnames = Arrays.copyOf(names, names.length + 1);
+				nnames[names.length] = name;
+				shape = of(nnames);
+				transitions.put(name, shape);
+			}
+			return shape;
+		}
+	}
+
+	public int size() {
+		return names.length;
+	}
+
+	/**
+	 * Get the name of the field at a given offset.
+	 *
+	 * @param offset
+	 * @return
+	 */
+	public String name(int offset) {
+		return names[offset];
+	}
+
+	/**
+	 * Get the offset of a given field.
+	 *
+	 * @param name
+	 * @return The offset, or -1 if there is no such field.
+	 */
+	public int offsetOf(String name) {
+		Integer offset = offsets.get(name);
+		return offset == null ? -1 : offset;
+	}
+
+	public Set<String> fields() {
+		return fields;
+	}
+
+	public String toString() {
+		return fields.toString();
+	}
+}
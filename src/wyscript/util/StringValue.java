@@ -0,0 +1,160 @@
+package wyscript.util;
+
+/**
+ * <p>
+ * Used by every engine to represent a string value at run time. Strings are
+ * copy-on-write (see <code>CopyOnWriteValue</code>), so any update must be
+ * made through a holder which has first called <code>unshare()</code>.
+ * </p>
+ * <p>
+ * The characters of a string are held in a buffer which may be shared with
+ * other strings, each of which sees only a prefix of it. Appending to a
+ * string whose characters end exactly where those of its buffer do simply
+ * writes the new characters after them, and gives a string sharing that
+ * buffer. Hence, building a string by repeatedly appending to it takes
+ * amortised constant time per append, rather than copying the whole string
+ * each time. An update only copies the buffer if it may be shared.
+ * </p>
+ */
+public final class StringValue extends CopyOnWriteValue implements CharSequence {
+
+	/**
+	 * A buffer of characters, of which the first <code>used</code> belong to
+	 * at least one string.
+	 */
+	private static final class Buffer {
+		private char[] chars;
+		private int used;
+
+		/**
+		 * Set once this buffer is held by more than one string, after which
+		 * it can no longer be updated in place.
+		 */
+		private boolean shared;
+
+		private Buffer(char[] chars, int used) {
+			this.chars = chars;
+			this.used = used;
+		}
+	}
+
+	private Buffer buffer;
+	private final int length;
+
+	public StringValue(CharSequence s) {
+		this.length = s.length();
+		char[] chars = new char[Math.max(length, 4)];
+		for (int i = 0; i != length; ++i) {
+			chars[i] = s.charAt(i);
+		}
+		this.buffer = new Buffer(chars, length);
+	}
+
+	private StringValue(Buffer buffer, int length) {
+		buffer.shared = true;
+		this.buffer = buffer;
+		this.length = length;
+	}
+
+	public int length() {
+		return length;
+	}
+
+	public char charAt(int index) {
+		checkIndex(index);
+		return buffer.chars[index];
+	}
+
+	/**
+	 * Replace the character at a given index. This string must not be shared.
+	 *
+	 * @param index
+	 * @param c
+	 */
+	public void set(int index, char c) {
+		checkIndex(index);
+		if (buffer.shared) {
+			buffer = new Buffer(copyOf(buffer.chars, length, length), length);
+		}
+		buffer.chars[index] = c;
+	}
+
+	/**
+	 * Create the string formed by appending a given string to this one. This
+	 * string is left unchanged, and may be shared.
+	 *
+	 * @param s
+	 * @return
+	 */
+	public StringValue append(CharSequence s) {
+		int n = s.length();
+		int total = length + n;
+		Buffer b = buffer;
+		if (b.used != length || total > b.chars.length) {
+			// Either another string already continues from this one, or there
+			// is no room left, so the characters must be copied.
+			b = new Buffer(copyOf(b.chars, length, Math.max(2 * total, 16)), length);
+		}
+		if (s instanceof StringValue) {
+			System.arraycopy(((StringValue) s).buffer.chars, 0, b.chars, length, n);
+		} else {
+			for (int i = 0; i != n; ++i) {
+				b.chars[length + i] = s.charAt(i);
+			}
+		}
+		b.used = total;
+		return new StringValue(b, total);
+	}
+
+	public CopyOnWriteValue duplicate() {
+		return new StringValue(buffer, length);
+	}
+
+	public CharSequence subSequence(int start, int end) {
+		return toString().subSequence(start, end);
+	}
+
+	public boolean equals(Object o) {
+		if (!(o instanceof StringValue)) {
+			return false;
+		}
+		StringValue s = (StringValue) o;
+		if (s.length != length) {
+			return false;
+		}
+		char[] mine = buffer.chars;
+		char[] theirs = s.buffer.chars;
+		for (int i = 0; i != length; ++i) {
+			if (mine[i] != theirs[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public int hashCode() {
+		// NOTE: this matches the hash code of the equivalent java String
+		int h = 0;
+		char[] chars = buffer.chars;
+		for (int i = 0; i != length; ++i) {
+			h = 31 * h + chars[i];
+		}
+		return h;
+	}
+
+	public String toString() {
+		return new String(buffer.chars, 0, length);
+	}
+
+	private void checkIndex(int index) {
+		if (index < 0 || index >= length) {
+			throw new StringIndexOutOfBoundsException(index);
+		}
+	}
+
+	private static char[] copyOf(char[] chars, int length, int capacity) {
+		char[] r = new char[Math.max(capacity, 4)];
+		System.arraycopy(chars, 0, r, 0, length);
+		return r;
+	}
+}
@@ -1,31 +1,71 @@
 package wyscript.util;
 
-import java.util.ArrayList;
-import java.util.List;
-
 /**
+ * <p>
  * Used in the interpreter to represent a Tuple type variable.
+ * </p>
+ * <p>
+ * Since a tuple is never updated in place, and its arity is fixed by its
+ * type, it is represented by a class specialised to the number of values it
+ * holds. Pairs and triples, which are by far the most common (e.g. a
+ * function returning <code>(int, int)</code>), hold their values in fields,
+ * and so cost only a single object. Larger tuples hold an array of values.
+ * </p>
  */
-public class Tuple {
-
-	private List<Object> values;
+public abstract class Tuple {
 
-	public Tuple(List<Object> vals) {
-		this.values = new ArrayList<Object>(vals);
+	/**
+	 * Construct a pair. This avoids the array needed to pass the values to
+	 * <code>create(Object...)</code>.
+	 *
+	 * @param first
+	 * @param second
+	 * @return
+	 */
+	public static Tuple create(Object first, Object second) {
+		return new Tuple2(first, second);
 	}
 
-	public List<Object> getValues() {
-		return values;
+	/**
+	 * Construct a tuple holding a given array of values. The array may be
+	 * taken over by the tuple, and so must not be used by the caller
+	 * afterwards.
+	 *
+	 * @param values
+	 * @return
+	 */
+	public static Tuple create(Object... values) {
+		switch (values.length) {
+		case 2:
+			return new Tuple2(values[0], values[1]);
+		case 3:
+			return new Tuple3(values[0], values[1], values[2]);
+		default:
+			return new TupleN(values);
+		}
 	}
 
+	/**
+	 * Get the number of values held in this tuple.
+	 *
+	 * @return
+	 */
+	public abstract int size();
+
+	/**
+	 * Get the value at a given position in this tuple.
+	 *
+	 * @param index
+	 * @return
+	 */
+	public abstract Object get(int index);
+
 	public String toString() {
 		String s = "(";
-		boolean first = true;
-		for (Object o : values) {
-			if (!first)
+		for (int i = 0; i != size(); ++i) {
+			if (i != 0)
 				s += ", ";
-			first = false;
-			s += o.toString();
+			s += get(i);
 		}
 		return s + ")";
 	}
@@ -35,17 +75,100 @@ public class Tuple {
 			return false;
 
 		Tuple t = (Tuple) o;
-		if (values.size() != t.values.size())
+		if (size() != t.size())
 			return false;
-		for (int i = 0; i < values.size(); i++) {
-			if (values.get(i) == null && t.values.get(i) != null)
-				return false;
-			if (values.get(i) != null && t.values.get(i) == null)
-				return false;
-			if (!(values.get(i).equals(t.values.get(i))))
+		for (int i = 0; i != size(); i++) {
+			Object mine = get(i);
+			Object theirs = t.get(i);
+			if (mine == null ? theirs != null : !mine.equals(theirs))
 				return false;
 		}
 		return true;
 	}
 
+	public int hashCode() {
+		int hash = 0;
+		for (int i = 0; i != size(); ++i) {
+			Object o = get(i);
+			hash = 31 * hash + (o == null ? 0 : o.hashCode());
+		}
+		return hash;
+	}
+
+	// Tuples are never updated in place, so they can be freely shared.
+	// However, the values they contain are now held in one more place, and so
+	// each is copied on the way in.
+
+	private static final class Tuple2 extends Tuple {
+		private final Object first;
+		private final Object second;
+
+		private Tuple2(Object first, Object second) {
+			this.first = CopyOnWriteValue.copy(first);
+			this.second = CopyOnWriteValue.copy(second);
+		}
+
+		public int size() {
+			return 2;
+		}
+
+		public Object get(int index) {
+			switch (index) {
+			case 0:
+				return first;
+			case 1:
+				return second;
+			default:
+				throw new IndexOutOfBoundsException("Index: " + index + ", Size: 2");
+			}
+		}
+	}
+
+	private static final class Tuple3 extends Tuple {
+		private final Object first;
+		private final Object second;
+		private final Object third;
+
+		private Tuple3(Object first, Object second, Object third) {
+			this.first = CopyOnWriteValue.copy(first);
+			this.second = CopyOnWriteValue.copy(second);
+			this.third = CopyOnWriteValue.copy(third);
+		}
+
+		public int size() {
+			return 3;
+		}
+
+		public Object get(int index) {
+			switch (index) {
+			case 0:
+				return first;
+			case 1:
+				return second;
+			case 2:
+				return third;
+			default:
+				throw new IndexOutOfBoundsException("Index: " + index + ", Size: 3");
+			}
+		}
+	}
+
+	private static final class TupleN extends Tuple {
+		private final Object[] values;
+
+		private TupleN(Object[] values) {
+			for (int i = 0; i != values.length; ++i) {
+				values[i] = CopyOnWriteValue.copy(values[i]);
+			}
+			this.values = values;
+		}
+
+		public int size() {
+			return values.length;
+		}
+
+		public Object get(int index) {
+			return values[index];
+		}
+	}
 }
@@ -131,8 +131,32 @@ public class TypeChecker {
 				if (!(e instanceof Expr.LVal))
 					errors.add(new TypeErrorData(filename, stmt.getLhs(), e,
 							lhs.attribute(Attribute.Source.class), ErrorType.BAD_TUPLE_ASSIGN));
+				else
+					checkNotConstant(e);
 			}
 		}
+		else checkNotConstant(stmt.getLhs());
+	}
+
+	/**
+	 * Check that an assignment does not write to a constant, either directly
+	 * or through one of its fields or elements. Constants are shared by every
+	 * function, so they must be read-only.
+	 */
+	private void checkNotConstant(Expr lval) {
+		Expr root = lval;
+		while (true) {
+			if (root instanceof Expr.RecordAccess)
+				root = ((Expr.RecordAccess)root).getSource();
+			else if (root instanceof Expr.IndexOf)
+				root = ((Expr.IndexOf)root).getSource();
+			else break;
+		}
+
+		if (root instanceof Expr.Variable && constants.containsKey(((Expr.Variable)root).getName())) {
+			errors.add(new TypeErrorData(filename, lval, null,
+					lval.attribute(Attribute.Source.class), ErrorType.BAD_CONSTANT_ASSIGN));
+		}
 	}
 
 	public void check(Stmt.Print stmt, Map<String,Type> environment) {
@@ -171,9 +195,10 @@ public class TypeChecker {
 		check(stmt.getTrueBranch(), new HashMap<String,Type>(environment));
 
 		//Check else-if branches
-		for (Expr e : stmt.getAltExpressions()) {
+		for (Stmt.ElseIf alt : stmt.getAlts()) {
+			Expr e = alt.getCondition();
 			checkSubtype(new Type.Bool(), check(e, environment), false, e);
-			check(stmt.getAltBranch(e), new HashMap<String, Type>(environment));
+			check(alt.getBody(), new HashMap<String, Type>(environment));
 		}
 
 		check(stmt.getFalseBranch(), new HashMap<String,Type>(environment));
@@ -361,7 +386,7 @@ public class TypeChecker {
 
 		case RANGE:
 			checkSubtype(new Type.Int(), check(expr.getLhs(), environment), false, expr.getLhs());
-			checkSubtype(new Type.Int(), check(expr.getLhs(), environment), false, expr.getRhs());
+			checkSubtype(new Type.Int(), check(expr.getRhs(), environment), false, expr.getRhs());
 			return new Type.List(new Type.Int());
 
 		case REM:
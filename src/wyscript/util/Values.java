@@ -0,0 +1,420 @@
+// This file is part of the WyScript Compiler (wysc).
+//
+// The WyScript Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WyScript Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WyScript Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+//
+// Copyright 2013, David James Pearce.
+
+package wyscript.util;
+
+import java.util.*;
+
+import wyscript.lang.Type;
+import static wyscript.util.SyntaxError.*;
+
+/**
+ * Operations on the runtime values used to execute WyScript programs, which
+ * are shared by the reference interpreter and the compiled engine. These cover
+ * printing values, runtime type tests and casts. The latter two need to expand
+ * user-defined types, and hence are specific to a given file.
+ */
+public class Values {
+	private final String filename;
+	private final Map<String, Type> userTypes;
+
+	/**
+	 * Counts the references and tuples looked inside by
+	 * <code>instanceOf()</code>, to determine whether its outcome can be
+	 * recorded.
+	 */
+	private int unstable;
+
+	public Values(String filename, Map<String, Type> userTypes) {
+		this.filename = filename;
+		this.userTypes = userTypes;
+	}
+
+	/**
+	 * Method that passes cast execution to the appropriate method
+	 * for the type of the cast
+	 */
+	public Object doCast(Type t, Object o, SyntacticElement elem) {
+
+		if ((o instanceof ListValue || o instanceof RecordValue)
+				&& instanceOf(o, t)) {
+			// The value already has the required type, so the cast would
+			// simply rebuild it as is. NOTE: a list of ints is not an instance
+			// of a list of reals, and so is always converted.
+			return o;
+		}
+		else if (t instanceof Type.List)
+			return doListCast((Type.List)t, (ListValue)o, elem);
+
+		else if(t instanceof Type.Record) {
+			return doRecordCast((Type.Record)t, (RecordValue)o, elem);
+		}
+		else if(t instanceof Type.Union) {
+			//We trust the type checker has done its job
+			return o;
+		}
+		else if(t instanceof Type.Named) {
+			return doCast(userTypes.get(t.toString()), o, elem);
+		}
+		else if(t instanceof Type.Tuple) {
+			return doTupleCast((Type.Tuple)t, (Tuple)o, elem);
+		}
+
+		else return doPrimitiveCast(t, o, elem);
+	}
+
+	private Object doTupleCast(Type.Tuple type, Tuple obj, SyntacticElement elem) {
+
+		List<Type> types = type.getTypes();
+		Object[] values = new Object[types.size()];
+		for (int i = 0; i < types.size(); i++) {
+			values[i] = doCast(types.get(i), obj.get(i), elem);
+		}
+		return Tuple.create(values);
+	}
+
+	private Object doRecordCast(Type.Record t, RecordValue o, SyntacticElement elem) {
+		Shape shape = o.shape();
+		RecordValue result = new RecordValue(shape);
+
+		for(int i = 0; i != shape.size(); ++i) {
+			Object casted = null;
+			casted = doCast(t.getFields().get(shape.name(i)), o.get(i), elem);
+
+			result.set(i, casted);
+		}
+
+		return result;
+	}
+
+	/**
+	 * Casts a non-list object to the java equivalent of the given type,
+	 * and returns the resulting object.
+	 */
+	private Object doPrimitiveCast(Type t, Object o, SyntacticElement elem) {
+		Class c = getJavaClass(t);
+
+		//Need to handle the case where casting a null - just return null
+		if (c == null) {
+			return null;
+		}
+
+		//Need to have explicit conversions for the number types
+		//As Double cannot be cast to Integer, and vice versa
+		if (c.equals(Double.class)) {
+			Double d = 0.0;
+
+			if (o instanceof Integer) {
+				d = ((Integer)o).doubleValue();
+				return d;
+			}
+
+			else if (o instanceof Double) {
+				d = (Double)o;
+				return d;
+			}
+
+			else {
+				//Shouldn't happen, indicates a type failure
+				internalFailure("Casting error - cannot cast between types", filename, elem);
+				return null;
+			}
+		}
+
+		else if(c.equals(Integer.class)) {
+
+				Integer i = 0;
+
+				if (o instanceof Integer) {
+					i = (Integer)o;
+					return i;
+				}
+				else {
+					//Shouldn't happen, indicates a type checking failure
+					internalFailure("Casting error - cannot cast between types", filename, elem);
+					return null;
+				}
+		}
+
+		//In all other cases, type checker should have paved the way for us
+		return c.cast(o);
+	}
+
+	/**
+	 * Casts all elements in a list to the given type of the list class.
+	 * Recursively deals with nested lists.
+	 *
+	 * @param t 	- The type of the cast
+	 * @param list	- The list being casted
+	 * @return
+	 */
+	private ListValue doListCast(Type.List t, ListValue list, SyntacticElement elem) {
+
+		Type element = t.getElement();
+		while (element instanceof Type.Named) {
+			element = userTypes.get(element.toString());
+		}
+		if (list.storage() == ListValue.Storage.INT && element instanceof Type.Real) {
+			// The ints are converted as they are read
+			return ListValue.widen(list);
+		}
+
+		ListValue newList = newList(element, list.size());
+
+		for (Object o : list)
+			newList.add(doCast(t.getElement(), o, elem));
+
+		return newList;
+	}
+
+
+	/**
+	 * Construct an empty list with a given element type, which is stored
+	 * unboxed where that type allows it.
+	 *
+	 * @param element
+	 * @param capacity
+	 * @return
+	 */
+	public ListValue newList(Type element, int capacity) {
+		while (element instanceof Type.Named) {
+			element = userTypes.get(element.toString());
+		}
+		return new ListValue(ListValue.Storage.of(element), capacity);
+	}
+
+	/**
+	 * Convert the given object value to a string. This is either a
+	 * <code>Boolean</code>, <code>Integer</code>, <code>Double</code>,
+	 * <code>Character</code>, <code>String</code>, <code>ListValue</code> (for
+	 * lists) or <code>RecordValue</code> (for records). The latter two must be
+	 * treated recursively.
+	 *
+	 * @param o
+	 * @return
+	 */
+	public String toString(Object o) {
+		if (o instanceof ListValue) {
+			ListValue l = (ListValue) o;
+			String r = "[";
+			for (int i = 0; i != l.size(); ++i) {
+				if(i != 0) {
+					r = r + ", ";
+				}
+				r += toString(l.get(i));
+			}
+			return r + "]";
+		} else if (o instanceof RecordValue) {
+			RecordValue m = (RecordValue) o;
+			String r = "{";
+			boolean firstTime = true;
+			ArrayList<String> fields = new ArrayList<String>(m.fields());
+			Collections.sort(fields);
+			for (String field : fields) {
+				if(!firstTime) {
+					r += ",";
+				}
+				firstTime=false;
+				r += field + ":" + toString(m.get(field));
+			}
+			return r + "}";
+		} else if (o instanceof Tuple) {
+			Tuple t = (Tuple) o;
+			String r = "(";
+			boolean first = true;
+			for (int i = 0; i != t.size(); ++i) {
+				if (!first)
+					r += ", ";
+				first = false;
+				r += toString(t.get(i));
+			}
+			return r + ")";
+		}
+
+		else if(o != null) {
+			// other cases can use their default toString methods.
+			return o.toString();
+		} else {
+			return "null";
+		}
+	}
+
+	/**
+	 * <p>
+	 * Determine whether a given value is an instanceof a given type. This is
+	 * done by recursively exploring the type and the value together, until we
+	 * can safely conclude that the value does (or does not) match the required
+	 * type.
+	 * </p>
+	 * <p>
+	 * Since this takes time proportional to the size of a list or record, the
+	 * outcome is recorded in the value itself, and reused when the value is
+	 * next tested against the same type (e.g. by the same <code>is</code>
+	 * expression in a loop). This is not done where the outcome depends on the
+	 * contents of a reference or a tuple, since these may change without the
+	 * list or record holding them being updated.
+	 * </p>
+	 * <p>
+	 * Only the most recent outcome is recorded, and any update to the value
+	 * forgets it, however small. Hence, a loop which updates a list and then
+	 * tests it still walks the whole list on every iteration, as does one which
+	 * tests a value against two different types in turn.
+	 * </p>
+	 *
+	 * @param value
+	 * @param type
+	 * @return
+	 */
+	public boolean instanceOf(Object value, Type type) {
+		if (!(value instanceof ListValue || value instanceof RecordValue)) {
+			return test(value, type);
+		}
+		CopyOnWriteValue v = (CopyOnWriteValue) value;
+		if (v.testedType == type) {
+			return v.testedResult;
+		}
+		int before = unstable;
+		boolean result = test(value, type);
+		if (unstable == before) {
+			v.testedType = type;
+			v.testedResult = result;
+		}
+		return result;
+	}
+
+	private boolean test(Object value, Type type) {
+		if(type instanceof Type.Void) {
+			return false;
+		}else if (type instanceof Type.Null) {
+			return value == null;
+		}else if(type instanceof Type.Bool) {
+			return value instanceof Boolean;
+		} else if(type instanceof Type.Char) {
+			return value instanceof Character;
+		} else if(type instanceof Type.Int) {
+			return value instanceof Integer;
+		} else if(type instanceof Type.Real) {
+			return value instanceof Double;
+		} else if(type instanceof Type.Strung) {
+			return value instanceof StringValue;
+		} else if (type instanceof Type.List) {
+			if (value instanceof ListValue) {
+				Type.List lt = (Type.List) type;
+				ListValue al = (ListValue) value;
+				if (al.storage() != ListValue.Storage.GENERIC) {
+					// Every element of a list stored unboxed has the same
+					// primitive type, so only one need be checked.
+					return al.size() == 0 || instanceOf(al.get(0), lt.getElement());
+				}
+				for (Object o : al) {
+					if (!instanceOf(o, lt.getElement())) {
+						return false;
+					}
+				}
+				return true;
+			}
+			return false;
+		} else if(type instanceof Type.Record) {
+			Type.Record ut = (Type.Record) type;
+			if(value instanceof RecordValue) {
+				RecordValue m = (RecordValue) value;
+				for(Map.Entry<String,Type> p : ut.getFields().entrySet()) {
+					if (!instanceOf(m.get(p.getKey()), p.getValue())) {
+						return false;
+					}
+				}
+				return true;
+			}
+			return false;
+		} else if(type instanceof Type.Named) {
+			return instanceOf(value, userTypes.get(type.toString()));
+		} else if (type instanceof Type.Union){
+			Type.Union ut = (Type.Union) type;
+			for (Type bt : ut.getBounds()) {
+				if (instanceOf(value, bt)) {
+					return true;
+				}
+			}
+			return false;
+		} else if (type instanceof Type.Reference) {
+			Type.Reference ref = (Type.Reference) type;
+			if (value instanceof Ref) {
+				unstable++;
+			}
+			return (value instanceof Ref && instanceOf(((Ref)value).getValue(), ref.getType()));
+		} else if (type instanceof Type.Tuple) {
+			if (!(value instanceof Tuple)) return false;
+			unstable++;
+			Tuple t = (Tuple) value;
+			if (t.size() != ((Type.Tuple)type).getTypes().size())
+				return false;
+			for (int i = 0; i < t.size(); i++) {
+				if (!(instanceOf(t.get(i), ((Type.Tuple)type).getTypes().get(i))))
+					return false;
+			}
+			return true;
+		}
+
+		else {
+			internalFailure("Unknown type encountered", filename, type);
+			return false;
+		}
+	}
+
+	/**
+	 * The inverse of the above method - given a WyScript type, return
+	 * the corresponding java class. Used for type casting.
+	 * Returns null if the type is a union - in this case, no
+	 * Java cast is required
+	 */
+	private Class getJavaClass(Type t) {
+
+		if (t instanceof Type.Bool)
+			return Boolean.class;
+
+		else if (t instanceof Type.Int)
+			return Integer.class;
+
+		else if (t instanceof Type.Real)
+			return Double.class;
+
+		else if (t instanceof Type.Strung)
+			return StringValue.class;
+
+		else if (t instanceof Type.Char)
+			return Character.class;
+
+		else if (t instanceof Type.List) {
+			return ListValue.class;
+		}
+
+		else if (t instanceof Type.Record) {
+			return RecordValue.class;
+		}
+
+		else if (t instanceof Type.Reference) {
+			return Ref.class;
+		}
+
+		else if (t instanceof Type.Tuple) {
+			return Tuple.class;
+		}
+		else return null;
+
+	}
+}
@@ -0,0 +1,341 @@
+// This file is part of the WyScript Compiler (wysc).
+//
+// The WyScript Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WyScript Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WyScript Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+//
+// Copyright 2013, David James Pearce.
+
+package wyscript.util;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import wyscript.lang.*;
+import static wyscript.util.SyntaxError.*;
+
+/**
+ * <p>
+ * Responsible for assigning every variable a fixed slot in the stack frame of
+ * its enclosing function. This allows the interpreter to represent a stack
+ * frame as a flat <code>Object[]</code>, rather than a map from variable names
+ * to their values.
+ * </p>
+ * <p>
+ * Every parameter and local variable declaration is given its own slot index,
+ * and every variable use is annotated with the index of the declaration it
+ * refers to. Slots are reused once the scope of a variable has ended, so the
+ * frame size of a function is the maximum number of variables live in any one
+ * scope. The scoping rules follow those used by the <code>TypeChecker</code>.
+ * </p>
+ * <p>
+ * Constants are not stored in stack frames. Instead, they are given a slot in
+ * a separate global scope which is shared by every function, and variables
+ * referring to them are marked as global. Since the type checker ensures
+ * constants are never assigned, the global scope is read-only once it has been
+ * initialised.
+ * </p>
+ * <p>
+ * Finally, every function invocation is linked to the declaration of the
+ * function it calls, so that this need not be looked up by name each time it
+ * is executed. The calls between functions are recorded in a
+ * <code>CallGraph</code>.
+ * </p>
+ */
+public class VariableResolver {
+
+	private String filename;
+	private HashMap<String, Integer> constants;
+	private HashMap<String, WyscriptFile.FunDecl> functions;
+	private CallGraph callGraph;
+
+	/**
+	 * The function being resolved, or null whilst resolving constants.
+	 */
+	private WyscriptFile.FunDecl function;
+
+	/**
+	 * The next free slot in the stack frame of the function being resolved.
+	 */
+	private int nextSlot;
+
+	/**
+	 * The largest number of slots in use at any point in the function being
+	 * resolved.
+	 */
+	private int frameSize;
+
+	public void resolve(WyscriptFile wf) {
+		this.filename = wf.filename;
+		this.constants = new HashMap<String, Integer>();
+		this.functions = new HashMap<String, WyscriptFile.FunDecl>();
+		this.callGraph = new CallGraph();
+		this.function = null;
+
+		for (WyscriptFile.Decl declaration : wf.declarations) {
+			if (declaration instanceof WyscriptFile.FunDecl) {
+				WyscriptFile.FunDecl fd = (WyscriptFile.FunDecl) declaration;
+				functions.put(fd.name(), fd);
+			}
+		}
+
+		for (WyscriptFile.Decl declaration : wf.declarations) {
+			if (declaration instanceof WyscriptFile.ConstDecl) {
+				WyscriptFile.ConstDecl cd = (WyscriptFile.ConstDecl) declaration;
+				resolve(cd.constant, new HashMap<String, Integer>());
+				constants.put(cd.name(), constants.size());
+			}
+		}
+
+		for (WyscriptFile.Decl declaration : wf.declarations) {
+			if (declaration instanceof WyscriptFile.FunDecl) {
+				resolve((WyscriptFile.FunDecl) declaration);
+			}
+		}
+	}
+
+	/**
+	 * Get the number of constants declared in the most recently resolved file.
+	 * These occupy slots <code>0</code> to <code>n-1</code> of the global
+	 * scope, in order of declaration.
+	 *
+	 * @return
+	 */
+	public int numberOfConstants() {
+		return constants.size();
+	}
+
+	/**
+	 * Get the calls between the functions of the most recently resolved file.
+	 *
+	 * @return
+	 */
+	public CallGraph callGraph() {
+		return callGraph;
+	}
+
+	public void resolve(WyscriptFile.FunDecl fd) {
+		// First, initialise the environment. As with the type checker,
+		// constants take precedence over parameters of the same name, so such
+		// parameters are given a slot but are never visible.
+		HashMap<String, Integer> environment = new HashMap<String, Integer>();
+		function = fd;
+		nextSlot = 0;
+		for (WyscriptFile.Parameter p : fd.parameters) {
+			int slot = nextSlot++;
+			if (!constants.containsKey(p.name())) {
+				environment.put(p.name(), slot);
+			}
+		}
+		frameSize = nextSlot;
+
+		// Second, resolve all statements in the function body
+		resolve(fd.statements, environment);
+		fd.setFrameSize(frameSize);
+	}
+
+	/**
+	 * Resolve a block of statements which introduces a new scope. Any slots
+	 * allocated within this block are released again once it is finished.
+	 */
+	private void resolveScope(List<Stmt> statements, Map<String, Integer> environment) {
+		int mark = nextSlot;
+		resolve(statements, new HashMap<String, Integer>(environment));
+		nextSlot = mark;
+	}
+
+	public void resolve(List<Stmt> statements, Map<String, Integer> environment) {
+		for (Stmt s : statements) {
+			resolve(s, environment);
+		}
+	}
+
+	public void resolve(Stmt stmt, Map<String, Integer> environment) {
+		if (stmt instanceof Stmt.Assign) {
+			resolve((Stmt.Assign) stmt, environment);
+		} else if (stmt instanceof Stmt.Print) {
+			resolve(((Stmt.Print) stmt).getExpr(), environment);
+		} else if (stmt instanceof Stmt.Return) {
+			Expr e = ((Stmt.Return) stmt).getExpr();
+			if (e != null) {
+				resolve(e, environment);
+			}
+		} else if (stmt instanceof Stmt.VariableDeclaration) {
+			resolve((Stmt.VariableDeclaration) stmt, environment);
+		} else if (stmt instanceof Expr.Invoke) {
+			resolve((Expr.Invoke) stmt, environment);
+		} else if (stmt instanceof Stmt.IfElse) {
+			resolve((Stmt.IfElse) stmt, environment);
+		} else if (stmt instanceof Stmt.OldFor) {
+			resolve((Stmt.OldFor) stmt, environment);
+		} else if (stmt instanceof Stmt.For) {
+			resolve((Stmt.For) stmt, environment);
+		} else if (stmt instanceof Stmt.While) {
+			resolve((Stmt.While) stmt, environment);
+		} else if (stmt instanceof Stmt.Switch) {
+			resolve((Stmt.Switch) stmt, environment);
+		} else if (stmt instanceof Stmt.Next) {
+			// nothing to do
+		} else {
+			internalFailure("unknown statement encountered (" + stmt + ")", filename, stmt);
+		}
+	}
+
+	public void resolve(Stmt.Assign stmt, Map<String, Integer> environment) {
+		resolve(stmt.getLhs(), environment);
+		resolve(stmt.getRhs(), environment);
+	}
+
+	public void resolve(Stmt.VariableDeclaration stmt, Map<String, Integer> environment) {
+		if (stmt.getExpr() != null) {
+			resolve(stmt.getExpr(), environment);
+		}
+		int slot = nextSlot++;
+		frameSize = Math.max(frameSize, nextSlot);
+		stmt.setSlot(slot);
+		environment.put(stmt.getName(), slot);
+	}
+
+	public void resolve(Stmt.IfElse stmt, Map<String, Integer> environment) {
+		resolve(stmt.getCondition(), environment);
+		resolveScope(stmt.getTrueBranch(), environment);
+		for (Stmt.ElseIf alt : stmt.getAlts()) {
+			resolve(alt.getCondition(), environment);
+			resolveScope(alt.getBody(), environment);
+		}
+		resolveScope(stmt.getFalseBranch(), environment);
+	}
+
+	public void resolve(Stmt.OldFor stmt, Map<String, Integer> environment) {
+		// As with the type checker, the loop variable is declared in the
+		// enclosing scope.
+		if (stmt.getDeclaration() != null) {
+			resolve(stmt.getDeclaration(), environment);
+		}
+		if (stmt.getCondition() != null) {
+			resolve(stmt.getCondition(), environment);
+		}
+		if (stmt.getIncrement() != null) {
+			resolve(stmt.getIncrement(), environment);
+		}
+		resolveScope(stmt.getBody(), environment);
+	}
+
+	public void resolve(Stmt.For stmt, Map<String, Integer> environment) {
+		resolve(stmt.getSource(), environment);
+
+		int mark = nextSlot;
+		HashMap<String, Integer> newEnv = new HashMap<String, Integer>(environment);
+		int slot = nextSlot++;
+		frameSize = Math.max(frameSize, nextSlot);
+		stmt.getIndex().setSlot(slot);
+		newEnv.put(stmt.getIndex().getName(), slot);
+		resolve(stmt.getBody(), newEnv);
+		nextSlot = mark;
+	}
+
+	public void resolve(Stmt.While stmt, Map<String, Integer> environment) {
+		resolve(stmt.getCondition(), environment);
+		resolveScope(stmt.getBody(), environment);
+	}
+
+	public void resolve(Stmt.Switch stmt, Map<String, Integer> environment) {
+		resolve(stmt.getExpr(), environment);
+
+		// As with the type checker, case bodies share the enclosing scope.
+		for (Stmt.SwitchStmt s : stmt.cases()) {
+			if (s instanceof Stmt.Case) {
+				Stmt.Case c = (Stmt.Case) s;
+				resolve(c.getConstant(), environment);
+				resolve(c.getStmts(), environment);
+			} else {
+				resolve(((Stmt.Default) s).getStmts(), environment);
+			}
+		}
+	}
+
+	public void resolve(Expr expr, Map<String, Integer> environment) {
+		if (expr instanceof Expr.Binary) {
+			Expr.Binary e = (Expr.Binary) expr;
+			resolve(e.getLhs(), environment);
+			resolve(e.getRhs(), environment);
+		} else if (expr instanceof Expr.Cast) {
+			resolve(((Expr.Cast) expr).getSource(), environment);
+		} else if (expr instanceof Expr.Constant) {
+			// nothing to do
+		} else if (expr instanceof Expr.IndexOf) {
+			Expr.IndexOf e = (Expr.IndexOf) expr;
+			resolve(e.getSource(), environment);
+			resolve(e.getIndex(), environment);
+		} else if (expr instanceof Expr.Invoke) {
+			resolve((Expr.Invoke) expr, environment);
+		} else if (expr instanceof Expr.ListConstructor) {
+			for (Expr e : ((Expr.ListConstructor) expr).getArguments()) {
+				resolve(e, environment);
+			}
+		} else if (expr instanceof Expr.RecordAccess) {
+			resolve(((Expr.RecordAccess) expr).getSource(), environment);
+		} else if (expr instanceof Expr.RecordConstructor) {
+			for (Pair<String, Expr> p : ((Expr.RecordConstructor) expr).getFields()) {
+				resolve(p.second(), environment);
+			}
+		} else if (expr instanceof Expr.Unary) {
+			resolve(((Expr.Unary) expr).getExpr(), environment);
+		} else if (expr instanceof Expr.Variable) {
+			resolve((Expr.Variable) expr, environment);
+		} else if (expr instanceof Expr.Is) {
+			resolve(((Expr.Is) expr).getLhs(), environment);
+		} else if (expr instanceof Expr.Deref) {
+			resolve(((Expr.Deref) expr).getExpr(), environment);
+		} else if (expr instanceof Expr.New) {
+			resolve(((Expr.New) expr).getExpr(), environment);
+		} else if (expr instanceof Expr.Tuple) {
+			for (Expr e : ((Expr.Tuple) expr).getExprs()) {
+				resolve(e, environment);
+			}
+		} else {
+			internalFailure("unknown expression encountered (" + expr + ")", filename, expr);
+		}
+	}
+
+	public void resolve(Expr.Invoke expr, Map<String, Integer> environment) {
+		for (Expr e : expr.getArguments()) {
+			resolve(e, environment);
+		}
+		WyscriptFile.FunDecl target = functions.get(expr.getName());
+		if (target == null) {
+			internalFailure("unknown function encountered (" + expr.getName() + ")", filename, expr);
+		}
+		expr.setTarget(target);
+		if (function != null) {
+			callGraph.add(function, target);
+		}
+	}
+
+	public void resolve(Expr.Variable expr, Map<String, Integer> environment) {
+		// Local variables are looked up first, falling back to the global
+		// scope for constants.
+		Integer slot = environment.get(expr.getName());
+		boolean global = false;
+		if (slot == null) {
+			slot = constants.get(expr.getName());
+			global = true;
+		}
+		if (slot == null) {
+			internalFailure("unknown variable encountered (" + expr + ")", filename, expr);
+		}
+		expr.setSlot(slot);
+		expr.setGlobal(global);
+	}
+}
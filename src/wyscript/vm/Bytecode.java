@@ -0,0 +1,166 @@
+// This file is part of the WyScript Compiler (wysc).
+//
+// The WyScript Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WyScript Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WyScript Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+//
+// Copyright 2013, David James Pearce.
+
+package wyscript.vm;
+
+/**
+ * <p>
+ * The instruction set of the register-based virtual machine. Each instruction
+ * is an opcode followed by a fixed number of integer operands, stored inline
+ * in a function's code array. Operands are one of: a register
+ * (<code>d</code> for the destination, <code>a</code>, <code>b</code>,
+ * etc. for sources); an index into the constant pool (<code>k</code>); an
+ * index into the global scope (<code>g</code>) or the module's functions
+ * (<code>f</code>); an immediate integer (<code>n</code>); or an absolute
+ * offset into the code array (<code>L</code>).
+ * </p>
+ * <p>
+ * A function's registers begin with the slots of its stack frame, as
+ * assigned by the <code>VariableResolver</code>, so a variable is operated
+ * on directly in its own register. These are followed by registers used to
+ * hold the lists iterated by for loops, and finally by temporaries.
+ * </p>
+ */
+public final class Bytecode {
+
+	private Bytecode() {
+	}
+
+	// Loads and stores
+
+	/** CONST d k: <code>d = pool[k]</code> */
+	public static final int CONST = 0;
+	/** GLOBAL d g: <code>d = globals[g]</code> */
+	public static final int GLOBAL = 1;
+	/** SETGLOBAL g a: <code>globals[g] = copy(a)</code> */
+	public static final int SETGLOBAL = 2;
+	/** MOVE d a: <code>d = a</code> */
+	public static final int MOVE = 3;
+	/** STORE d a: assign a copy of <code>a</code> to variable <code>d</code> */
+	public static final int STORE = 4;
+	/** COPY d a: <code>d = copy(a)</code> */
+	public static final int COPY = 5;
+	/** RELEASE a: release the value held by <code>a</code> and clear it */
+	public static final int RELEASE = 6;
+
+	// Operators, all of the form OP d a b or OP d a
+
+	public static final int ADD = 7;
+	public static final int SUB = 8;
+	public static final int MUL = 9;
+	public static final int DIV = 10;
+	public static final int REM = 11;
+	public static final int EQ = 12;
+	public static final int NEQ = 13;
+	public static final int LT = 14;
+	public static final int LTEQ = 15;
+	public static final int GT = 16;
+	public static final int GTEQ = 17;
+	public static final int APPEND = 18;
+	public static final int RANGE = 19;
+	public static final int NOT = 20;
+	public static final int NEG = 21;
+	public static final int LENGTHOF = 22;
+	/** IS d a k: <code>d = a is pool[k]</code> */
+	public static final int IS = 23;
+	/** CAST d a k: <code>d = (pool[k]) a</code> */
+	public static final int CAST = 24;
+
+	// Control flow
+
+	/** JMP L */
+	public static final int JMP = 25;
+	/** JMPF a L: jump if <code>a</code> is false */
+	public static final int JMPF = 26;
+	/** JMPT a L: jump if <code>a</code> is true */
+	public static final int JMPT = 27;
+	/** JEQ a b L: jump if <code>a.equals(b)</code> */
+	public static final int JEQ = 28;
+	/** CALL d f a n: call function f with arguments in registers a..a+n-1 */
+	public static final int CALL = 29;
+	/** RET a */
+	public static final int RET = 30;
+	/** RETV: return from a function with no value */
+	public static final int RETV = 31;
+	/**
+	 * FORNEXT d a b L: assign element <code>b</code> of list <code>a</code>
+	 * to variable <code>d</code> and increment <code>b</code>, or jump once
+	 * the list is exhausted.
+	 */
+	public static final int FORNEXT = 32;
+	/** PRINT a */
+	public static final int PRINT = 33;
+
+	// Compound values
+
+	/**
+	 * LIST d k a n: construct a list with element type pool[k] from
+	 * registers a..a+n-1
+	 */
+	public static final int LIST = 34;
+	/** RECORD d k a n: construct a record with fields pool[k] */
+	public static final int RECORD = 35;
+	/** TUPLE d a n */
+	public static final int TUPLE = 36;
+	/** INDEX d a b: <code>d = a[b]</code> */
+	public static final int INDEX = 37;
+	/** FIELD d a k: <code>d = a.pool[k]</code> */
+	public static final int FIELD = 38;
+	/** TUPLEGET d a n: <code>d = element n of tuple a</code> */
+	public static final int TUPLEGET = 39;
+	/** DEREF d a: <code>d = *a</code> */
+	public static final int DEREF = 40;
+	/** NEW d a: <code>d = new a</code> */
+	public static final int NEW = 41;
+
+	// Updates, which mirror those of the reference interpreter
+
+	/** UNSHARE d a: unshare the value of variable <code>a</code> into d */
+	public static final int UNSHARE = 42;
+	/** INDEXU d a b: <code>d = a[b]</code>, unsharing it */
+	public static final int INDEXU = 43;
+	/** FIELDU d a k: <code>d = a.pool[k]</code>, unsharing it */
+	public static final int FIELDU = 44;
+	/** DEREFU d a: <code>d = *a</code>, unsharing it */
+	public static final int DEREFU = 45;
+	/** SETINDEX a b c: <code>a[b] = c</code>, consuming the copy in c */
+	public static final int SETINDEX = 46;
+	/** SETFIELD a k c: <code>a.pool[k] = c</code>, consuming the copy in c */
+	public static final int SETFIELD = 47;
+	/** SETDEREF a b: <code>*a = b</code> */
+	public static final int SETDEREF = 48;
+
+	/**
+	 * FORRANGE d a b L: assign the int <code>a</code> to variable
+	 * <code>d</code> and increment <code>a</code>, or jump once
+	 * <code>a</code> reaches <code>b</code>.
+	 */
+	public static final int FORRANGE = 49;
+
+	/**
+	 * The number of operands taken by each instruction, indexed by opcode.
+	 */
+	public static final int[] OPERANDS = {
+		2, 2, 2, 2, 2, 2, 1, // loads and stores
+		3, 3, 3, 3, 3, 3, 3, 3, 3, 3, 3, 3, 3, 2, 2, 2, 3, 3, // operators
+		1, 2, 2, 3, 4, 1, 0, 4, 1, // control flow
+		4, 4, 3, 3, 3, 3, 2, 2, // compound values
+		2, 3, 3, 2, 3, 3, 2, // updates
+		4 // range loops
+	};
+}
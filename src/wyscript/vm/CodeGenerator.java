@@ -0,0 +1,801 @@
+// This file is part of the WyScript Compiler (wysc).
+//
+// The WyScript Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WyScript Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WyScript Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+//
+// Copyright 2013, David James Pearce.
+
+package wyscript.vm;
+
+import static wyscript.util.SyntaxError.internalFailure;
+import static wyscript.vm.Bytecode.*;
+
+import java.util.*;
+
+import wyscript.lang.*;
+import wyscript.util.Attribute;
+import wyscript.util.Pair;
+import wyscript.util.VariableResolver;
+
+/**
+ * <p>
+ * Lowers a (type-checked) WyScript program into a <code>Module</code> of
+ * register-based bytecode. Every statement and expression is translated into
+ * a sequence of instructions, which operate on the same runtime values as the
+ * reference <code>Interpreter</code> and must behave exactly as it does.
+ * </p>
+ * <p>
+ * The value of an expression is computed into a register, which is a fresh
+ * temporary unless the expression is simply a variable, in which case its own
+ * register is used. Temporaries are allocated afresh for every statement.
+ * </p>
+ */
+public class CodeGenerator {
+	private WyscriptFile file;
+	private HashMap<String, Integer> functions;
+
+	// The constant pool
+	private ArrayList<Object> pool;
+	private HashMap<Object, Integer> poolIndex;
+
+	// The state of the function currently being lowered
+	private int[] code;
+	private int length;
+	private int nextTemp;
+	private int registers;
+	private int holders;
+	private int depth;
+
+	/**
+	 * The target of a next statement in the current case body.
+	 */
+	private Label nextTarget;
+
+	/**
+	 * The depth of nested for loops at the enclosing switch statement. A next
+	 * statement must release the lists held by any loops it jumps out of.
+	 */
+	private int nextDepth;
+
+	public Module generate(WyscriptFile wf) {
+		// First, assign every variable a slot in its enclosing stack frame,
+		// which is also its register.
+		VariableResolver resolver = new VariableResolver();
+		resolver.resolve(wf);
+
+		this.file = wf;
+		functions = new HashMap<String, Integer>();
+		pool = new ArrayList<Object>();
+		poolIndex = new HashMap<Object, Integer>();
+		HashMap<String, Type> userTypes = new HashMap<String, Type>();
+
+		ArrayList<WyscriptFile.FunDecl> decls = new ArrayList<WyscriptFile.FunDecl>();
+		for (WyscriptFile.Decl decl : wf.declarations) {
+			if (decl instanceof WyscriptFile.FunDecl) {
+				WyscriptFile.FunDecl fd = (WyscriptFile.FunDecl) decl;
+				functions.put(fd.name(), decls.size());
+				decls.add(fd);
+			} else if (decl instanceof WyscriptFile.TypeDecl) {
+				WyscriptFile.TypeDecl td = (WyscriptFile.TypeDecl) decl;
+				userTypes.put(td.name(), td.type);
+			}
+		}
+
+		Function[] fs = new Function[decls.size()];
+		for (int i = 0; i != fs.length; ++i) {
+			fs[i] = generate(decls.get(i));
+		}
+
+		// The constants are initialised in order of declaration
+		begin(0, 0);
+		int nConstants = 0;
+		for (WyscriptFile.Decl decl : wf.declarations) {
+			if (decl instanceof WyscriptFile.ConstDecl) {
+				WyscriptFile.ConstDecl cd = (WyscriptFile.ConstDecl) decl;
+				int r = generate(cd.constant);
+				emit(SETGLOBAL, nConstants++, r);
+				nextTemp = holders;
+			}
+		}
+		emit(RETV);
+		Function init = end("$init", false, 0, 0);
+
+		return new Module(wf.filename, userTypes, pool.toArray(), nConstants,
+				fs, init);
+	}
+
+	private Function generate(WyscriptFile.FunDecl fd) {
+		int nParams = fd.parameters.size();
+		int frameSize = Math.max(fd.getFrameSize(), nParams);
+		int forDepth = forDepth(fd.statements);
+		begin(frameSize, forDepth);
+		if (!fd.Native) {
+			for (Stmt s : fd.statements) {
+				generate(s);
+			}
+			// Falling off the end of the body returns null
+			int r = temp();
+			emit(CONST, r, constant(null));
+			emit(RET, r);
+		}
+		return end(fd.name(), fd.Native, nParams, frameSize + forDepth);
+	}
+
+	/**
+	 * Determine the maximum depth to which for loops are nested in a given
+	 * block, which is the number of registers needed to hold their lists.
+	 */
+	private static int forDepth(List<Stmt> block) {
+		int max = 0;
+		for (Stmt s : block) {
+			if (s instanceof Stmt.For) {
+				max = Math.max(max, 1 + forDepth(((Stmt.For) s).getBody()));
+			} else if (s instanceof Stmt.While) {
+				max = Math.max(max, forDepth(((Stmt.While) s).getBody()));
+			} else if (s instanceof Stmt.OldFor) {
+				max = Math.max(max, forDepth(((Stmt.OldFor) s).getBody()));
+			} else if (s instanceof Stmt.IfElse) {
+				Stmt.IfElse ie = (Stmt.IfElse) s;
+				max = Math.max(max, forDepth(ie.getTrueBranch()));
+				for (Stmt.ElseIf alt : ie.getAlts()) {
+					max = Math.max(max, forDepth(alt.getBody()));
+				}
+				max = Math.max(max, forDepth(ie.getFalseBranch()));
+			} else if (s instanceof Stmt.Switch) {
+				for (Stmt.SwitchStmt c : ((Stmt.Switch) s).cases()) {
+					List<Stmt> body = c instanceof Stmt.Case ? ((Stmt.Case) c)
+							.getStmts() : ((Stmt.Default) c).getStmts();
+					max = Math.max(max, forDepth(body));
+				}
+			}
+		}
+		return max;
+	}
+
+	private void begin(int frameSize, int forDepth) {
+		code = new int[16];
+		length = 0;
+		depth = 0;
+		holders = frameSize;
+		nextTemp = frameSize + forDepth;
+		registers = nextTemp;
+		nextTarget = null;
+		nextDepth = 0;
+	}
+
+	private Function end(String name, boolean isNative, int nParams, int locals) {
+		return new Function(name, isNative, nParams, locals, registers,
+				Arrays.copyOf(code, length));
+	}
+
+	// ======================================================================
+	// Statements
+	// ======================================================================
+
+	private void generate(List<Stmt> block) {
+		for (Stmt s : block) {
+			generate(s);
+		}
+	}
+
+	private void generate(Stmt stmt) {
+		int mark = nextTemp;
+		if (stmt instanceof Stmt.Assign) {
+			generate((Stmt.Assign) stmt);
+		} else if (stmt instanceof Stmt.Print) {
+			emit(PRINT, generate(((Stmt.Print) stmt).getExpr()));
+		} else if (stmt instanceof Stmt.Return) {
+			Expr e = ((Stmt.Return) stmt).getExpr();
+			if (e != null) {
+				emit(RET, generate(e));
+			} else {
+				emit(RETV);
+			}
+		} else if (stmt instanceof Stmt.VariableDeclaration) {
+			generate((Stmt.VariableDeclaration) stmt);
+		} else if (stmt instanceof Expr.Invoke) {
+			generate((Expr.Invoke) stmt);
+		} else if (stmt instanceof Stmt.IfElse) {
+			generate((Stmt.IfElse) stmt);
+		} else if (stmt instanceof Stmt.OldFor) {
+			generate((Stmt.OldFor) stmt);
+		} else if (stmt instanceof Stmt.For) {
+			generate((Stmt.For) stmt);
+		} else if (stmt instanceof Stmt.While) {
+			generate((Stmt.While) stmt);
+		} else if (stmt instanceof Stmt.Switch) {
+			generate((Stmt.Switch) stmt);
+		} else if (stmt instanceof Stmt.Next) {
+			for (int i = nextDepth; i < depth; ++i) {
+				emit(RELEASE, holders + i);
+			}
+			jump(JMP, nextTarget);
+		} else {
+			internalFailure("unknown statement encountered (" + stmt + ")",
+					file.filename, stmt);
+		}
+		nextTemp = mark;
+	}
+
+	private void generate(Stmt.Assign stmt) {
+		Expr.LVal lhs = stmt.getLhs();
+		int rhs = generate(stmt.getRhs());
+		if (lhs instanceof Expr.Tuple) {
+			// Each element is read into a temporary, which is then assigned
+			List<Expr> exprs = ((Expr.Tuple) lhs).getExprs();
+			for (int i = 0; i != exprs.size(); ++i) {
+				int mark = nextTemp;
+				int value = temp();
+				emit(TUPLEGET, value, rhs, i);
+				assign(exprs.get(i), value);
+				nextTemp = mark;
+			}
+		} else {
+			assign(lhs, rhs);
+		}
+	}
+
+	/**
+	 * Assign the value in a given register to an lval. As in the reference
+	 * interpreter, the keys along the lval are evaluated first; the lval is
+	 * then unshared and updated.
+	 *
+	 * NOTE: the keys are evaluated after the right-hand side here, which is
+	 * safe since evaluating an expression cannot change any variable.
+	 */
+	private void assign(Expr lval, int value) {
+		if (lval instanceof Expr.Variable) {
+			emit(STORE, ((Expr.Variable) lval).getSlot(), value);
+			return;
+		}
+
+		ArrayList<Integer> keys = new ArrayList<Integer>();
+		generateKeys(lval, keys);
+		Iterator<Integer> iter = keys.iterator();
+
+		if (lval instanceof Expr.Deref) {
+			emit(SETDEREF, iter.next(), value);
+			return;
+		}
+
+		// The value must be copied before the source is unshared, otherwise an
+		// assignment such as "xs[0] = xs" would create a cyclic value.
+		int copy = temp();
+		emit(COPY, copy, value);
+		if (lval instanceof Expr.IndexOf) {
+			int src = generateForUpdate(((Expr.IndexOf) lval).getSource(), iter);
+			emit(SETINDEX, src, iter.next(), copy);
+		} else if (lval instanceof Expr.RecordAccess) {
+			Expr.RecordAccess ra = (Expr.RecordAccess) lval;
+			int src = generateForUpdate(ra.getSource(), iter);
+			emit(SETFIELD, src, constant(ra.getName()), copy);
+		} else {
+			internalFailure("unknown lval encountered (" + lval + ")",
+					file.filename, lval);
+		}
+	}
+
+	/**
+	 * Evaluate the keys along a given lval, in the order they would be
+	 * evaluated when reading it.
+	 */
+	private void generateKeys(Expr lval, List<Integer> keys) {
+		if (lval instanceof Expr.IndexOf) {
+			Expr.IndexOf io = (Expr.IndexOf) lval;
+			generateKeys(io.getSource(), keys);
+			keys.add(generate(io.getIndex()));
+		} else if (lval instanceof Expr.RecordAccess) {
+			generateKeys(((Expr.RecordAccess) lval).getSource(), keys);
+		} else if (lval instanceof Expr.Deref) {
+			keys.add(generate(((Expr.Deref) lval).getExpr()));
+		}
+	}
+
+	/**
+	 * Get the value of a given lval so that it can be updated in place,
+	 * unsharing any compound values along its path.
+	 *
+	 * @return The register holding the value.
+	 */
+	private int generateForUpdate(Expr lval, Iterator<Integer> keys) {
+		int r = temp();
+		if (lval instanceof Expr.Variable) {
+			emit(UNSHARE, r, ((Expr.Variable) lval).getSlot());
+		} else if (lval instanceof Expr.IndexOf) {
+			int src = generateForUpdate(((Expr.IndexOf) lval).getSource(), keys);
+			emit(INDEXU, r, src, keys.next());
+		} else if (lval instanceof Expr.RecordAccess) {
+			Expr.RecordAccess ra = (Expr.RecordAccess) lval;
+			int src = generateForUpdate(ra.getSource(), keys);
+			emit(FIELDU, r, src, constant(ra.getName()));
+		} else if (lval instanceof Expr.Deref) {
+			emit(DEREFU, r, keys.next());
+		} else {
+			internalFailure("unknown lval encountered (" + lval + ")",
+					file.filename, lval);
+		}
+		return r;
+	}
+
+	private void generate(Stmt.VariableDeclaration stmt) {
+		int value;
+		if (stmt.getExpr() != null) {
+			value = generate(stmt.getExpr());
+		} else {
+			// used to indicate a variable has been declared
+			value = temp();
+			emit(CONST, value, constant(Collections.EMPTY_SET));
+		}
+		emit(STORE, stmt.getSlot(), value);
+	}
+
+	private void generate(Stmt.IfElse stmt) {
+		Label end = new Label();
+		Label next = new Label();
+		jump(JMPF, generate(stmt.getCondition()), next);
+		generate(stmt.getTrueBranch());
+		jump(JMP, end);
+		mark(next);
+
+		for (Stmt.ElseIf alt : stmt.getAlts()) {
+			next = new Label();
+			int mark = nextTemp;
+			jump(JMPF, generate(alt.getCondition()), next);
+			nextTemp = mark;
+			generate(alt.getBody());
+			jump(JMP, end);
+			mark(next);
+		}
+
+		generate(stmt.getFalseBranch());
+		mark(end);
+	}
+
+	private void generate(Stmt.While stmt) {
+		Label loop = new Label();
+		Label exit = new Label();
+		mark(loop);
+		int mark = nextTemp;
+		jump(JMPF, generate(stmt.getCondition()), exit);
+		nextTemp = mark;
+		generate(stmt.getBody());
+		jump(JMP, loop);
+		mark(exit);
+	}
+
+	private void generate(Stmt.OldFor stmt) {
+		if (stmt.getDeclaration() != null) {
+			generate(stmt.getDeclaration());
+		}
+		Label loop = new Label();
+		Label exit = new Label();
+		mark(loop);
+		if (stmt.getCondition() != null) {
+			int mark = nextTemp;
+			jump(JMPF, generate(stmt.getCondition()), exit);
+			nextTemp = mark;
+		}
+		generate(stmt.getBody());
+		if (stmt.getIncrement() != null) {
+			generate(stmt.getIncrement());
+		}
+		jump(JMP, loop);
+		mark(exit);
+	}
+
+	private void generate(Stmt.For stmt) {
+		Expr src = stmt.getSource();
+		if (src instanceof Expr.Binary
+				&& ((Expr.Binary) src).getOp() == Expr.BOp.RANGE) {
+			generateRange(stmt, (Expr.Binary) src);
+			return;
+		}
+		// The source list is held in the register reserved for this loop
+		// depth, and is released when the loop finishes or the function returns.
+		int holder = holders + depth;
+		int source = generate(stmt.getSource());
+		emit(COPY, holder, source);
+		int index = temp();
+		emit(CONST, index, constant(0));
+
+		Label loop = new Label();
+		Label exit = new Label();
+		mark(loop);
+		jump(FORNEXT, stmt.getIndex().getSlot(), holder, index, exit);
+		depth++;
+		generate(stmt.getBody());
+		depth--;
+		jump(JMP, loop);
+		mark(exit);
+		emit(RELEASE, holder);
+	}
+
+	/**
+	 * Lowers a for loop over a range. A FORRANGE instruction at the head of the
+	 * loop assigns the counter to the index variable and advances it, or exits
+	 * once it reaches the upper bound.
+	 */
+	private void generateRange(Stmt.For stmt, Expr.Binary range) {
+		int start = generate(range.getLhs());
+		int end = generate(range.getRhs());
+		// The bounds are copied, since either could be a variable which the
+		// body of the loop assigns.
+		int index = temp();
+		int limit = temp();
+		emit(MOVE, index, start);
+		emit(MOVE, limit, end);
+
+		Label loop = new Label();
+		Label exit = new Label();
+		mark(loop);
+		jump(FORRANGE, stmt.getIndex().getSlot(), index, limit, exit);
+		generate(stmt.getBody());
+		jump(JMP, loop);
+		mark(exit);
+	}
+
+	/**
+	 * Lowers a switch statement into a JEQ for each case, followed by the
+	 * bodies in order, so that a next statement is a jump to the label of the
+	 * following body. A default which is not the last body is generated again
+	 * after them, where a next statement jumps to the end.
+	 */
+	private void generate(Stmt.Switch stmt) {
+		Label oldTarget = nextTarget;
+		int oldDepth = nextDepth;
+		nextDepth = depth;
+		int value = generate(stmt.getExpr());
+
+		List<Stmt.SwitchStmt> cases = stmt.cases();
+		Label[] bodies = new Label[cases.size()];
+		int defIndex = -1;
+		for (int i = 0; i != bodies.length; ++i) {
+			bodies[i] = new Label();
+			Stmt.SwitchStmt s = cases.get(i);
+			if (s instanceof Stmt.Case) {
+				int mark = nextTemp;
+				int c = generate(((Stmt.Case) s).getConstant());
+				jump(JEQ, c, value, bodies[i]);
+				nextTemp = mark;
+			} else {
+				defIndex = i;
+			}
+		}
+
+		Label end = new Label();
+		Label fallback = new Label();
+		if (defIndex < 0) {
+			jump(JMP, end);
+		} else if (defIndex == bodies.length - 1) {
+			jump(JMP, bodies[defIndex]);
+		} else {
+			jump(JMP, fallback);
+		}
+
+		for (int i = 0; i != bodies.length; ++i) {
+			mark(bodies[i]);
+			nextTarget = i + 1 < bodies.length ? bodies[i + 1] : end;
+			generate(body(cases.get(i)));
+			jump(JMP, end);
+		}
+		if (defIndex >= 0 && defIndex != bodies.length - 1) {
+			mark(fallback);
+			nextTarget = end;
+			generate(body(cases.get(defIndex)));
+			jump(JMP, end);
+		}
+		mark(end);
+		nextTarget = oldTarget;
+		nextDepth = oldDepth;
+	}
+
+	private static List<Stmt> body(Stmt.SwitchStmt s) {
+		if (s instanceof Stmt.Case) {
+			return ((Stmt.Case) s).getStmts();
+		} else {
+			return ((Stmt.Default) s).getStmts();
+		}
+	}
+
+	// ======================================================================
+	// Expressions
+	// ======================================================================
+
+	/**
+	 * Lower a given expression.
+	 *
+	 * @return The register holding its value.
+	 */
+	private int generate(Expr expr) {
+		if (expr instanceof Expr.Variable) {
+			Expr.Variable v = (Expr.Variable) expr;
+			if (!v.isGlobal()) {
+				return v.getSlot();
+			}
+			int r = temp();
+			emit(GLOBAL, r, v.getSlot());
+			return r;
+		} else if (expr instanceof Expr.Constant) {
+			int r = temp();
+			emit(CONST, r, constant(((Expr.Constant) expr).getValue()));
+			return r;
+		} else if (expr instanceof Expr.Binary) {
+			return generate((Expr.Binary) expr);
+		} else if (expr instanceof Expr.Unary) {
+			Expr.Unary e = (Expr.Unary) expr;
+			int operand = generate(e.getExpr());
+			int r = temp();
+			switch (e.getOp()) {
+			case NOT:
+				emit(NOT, r, operand);
+				break;
+			case NEG:
+				emit(NEG, r, operand);
+				break;
+			default:
+				emit(LENGTHOF, r, operand);
+			}
+			return r;
+		} else if (expr instanceof Expr.Is) {
+			Expr.Is e = (Expr.Is) expr;
+			int operand = generate(e.getLhs());
+			int r = temp();
+			emit(IS, r, operand, constant(e.getRhs()));
+			return r;
+		} else if (expr instanceof Expr.Cast) {
+			Expr.Cast e = (Expr.Cast) expr;
+			int operand = generate(e.getSource());
+			int r = temp();
+			emit(CAST, r, operand, constant(e.getType()));
+			return r;
+		} else if (expr instanceof Expr.Invoke) {
+			return generate((Expr.Invoke) expr);
+		} else if (expr instanceof Expr.IndexOf) {
+			Expr.IndexOf e = (Expr.IndexOf) expr;
+			int src = generate(e.getSource());
+			int index = generate(e.getIndex());
+			int r = temp();
+			emit(INDEX, r, src, index);
+			return r;
+		} else if (expr instanceof Expr.ListConstructor) {
+			List<Expr> args = ((Expr.ListConstructor) expr).getArguments();
+			int base = generateArguments(args);
+			int r = temp();
+			emit(LIST, r, constant(elementType(expr)), base, args.size());
+			return r;
+		} else if (expr instanceof Expr.RecordAccess) {
+			Expr.RecordAccess e = (Expr.RecordAccess) expr;
+			int src = generate(e.getSource());
+			int r = temp();
+			emit(FIELD, r, src, constant(e.getName()));
+			return r;
+		} else if (expr instanceof Expr.RecordConstructor) {
+			List<Pair<String, Expr>> fields = ((Expr.RecordConstructor) expr).getFields();
+			String[] names = new String[fields.size()];
+			ArrayList<Expr> args = new ArrayList<Expr>();
+			for (int i = 0; i != names.length; ++i) {
+				names[i] = fields.get(i).first();
+				args.add(fields.get(i).second());
+			}
+			int base = generateArguments(args);
+			int r = temp();
+			emit(RECORD, r, constant(names), base, args.size());
+			return r;
+		} else if (expr instanceof Expr.Tuple) {
+			List<Expr> args = ((Expr.Tuple) expr).getExprs();
+			int base = generateArguments(args);
+			int r = temp();
+			emit(TUPLE, r, base, args.size());
+			return r;
+		} else if (expr instanceof Expr.Deref) {
+			int operand = generate(((Expr.Deref) expr).getExpr());
+			int r = temp();
+			emit(DEREF, r, operand);
+			return r;
+		} else if (expr instanceof Expr.New) {
+			int operand = generate(((Expr.New) expr).getExpr());
+			int r = temp();
+			emit(NEW, r, operand);
+			return r;
+		} else {
+			internalFailure("unknown expression encountered (" + expr + ")",
+					file.filename, expr);
+			return -1;
+		}
+	}
+
+	/**
+	 * Get the element type of a list constructor, as determined by the type
+	 * checker, which decides how the list is stored.
+	 */
+	private static Type elementType(Expr expr) {
+		Attribute.Type attr = expr.attribute(Attribute.Type.class);
+		if (attr != null && attr.type instanceof Type.List) {
+			return ((Type.List) attr.type).getElement();
+		}
+		return new Type.Void();
+	}
+
+	private int generate(Expr.Binary expr) {
+		int opcode;
+		switch (expr.getOp()) {
+		case AND:
+		case OR: {
+			// These are short-circuiting
+			int r = temp();
+			Label end = new Label();
+			emit(MOVE, r, generate(expr.getLhs()));
+			jump(expr.getOp() == Expr.BOp.AND ? JMPF : JMPT, r, end);
+			emit(MOVE, r, generate(expr.getRhs()));
+			mark(end);
+			return r;
+		}
+		case ADD:
+			opcode = ADD;
+			break;
+		case SUB:
+			opcode = SUB;
+			break;
+		case MUL:
+			opcode = MUL;
+			break;
+		case DIV:
+			opcode = DIV;
+			break;
+		case REM:
+			opcode = REM;
+			break;
+		case EQ:
+			opcode = EQ;
+			break;
+		case NEQ:
+			opcode = NEQ;
+			break;
+		case LT:
+			opcode = LT;
+			break;
+		case LTEQ:
+			opcode = LTEQ;
+			break;
+		case GT:
+			opcode = GT;
+			break;
+		case GTEQ:
+			opcode = GTEQ;
+			break;
+		case APPEND:
+			opcode = APPEND;
+			break;
+		case RANGE:
+			opcode = RANGE;
+			break;
+		default:
+			internalFailure("unknown binary expression encountered (" + expr
+					+ ")", file.filename, expr);
+			return -1;
+		}
+		int lhs = generate(expr.getLhs());
+		int rhs = generate(expr.getRhs());
+		int r = temp();
+		emit(opcode, r, lhs, rhs);
+		return r;
+	}
+
+	private int generate(Expr.Invoke expr) {
+		Integer f = functions.get(expr.getName());
+		if (f == null) {
+			internalFailure("unknown function encountered (" + expr.getName()
+					+ ")", file.filename, expr);
+		}
+		List<Expr> args = expr.getArguments();
+		int base = generateArguments(args);
+		int r = temp();
+		emit(CALL, r, f, base, args.size());
+		return r;
+	}
+
+	/**
+	 * Lower a list of expressions into consecutive registers.
+	 *
+	 * @return The first of those registers.
+	 */
+	private int generateArguments(List<Expr> args) {
+		int[] values = new int[args.size()];
+		for (int i = 0; i != values.length; ++i) {
+			values[i] = generate(args.get(i));
+		}
+		int base = nextTemp;
+		for (int i = 0; i != values.length; ++i) {
+			emit(MOVE, temp(), values[i]);
+		}
+		return base;
+	}
+
+	// ======================================================================
+	// Helpers
+	// ======================================================================
+
+	/**
+	 * Get the index of a given value in the constant pool, adding it if
+	 * necessary.
+	 */
+	private int constant(Object value) {
+		Object key = value;
+		if (value instanceof StringBuffer) {
+			// String constants are mutable, and so have no useful notion of
+			// equality.
+			key = Arrays.asList("string", value.toString());
+		} else if (value instanceof String[]) {
+			key = Arrays.asList((Object[]) value);
+		} else if (value == null) {
+			key = Collections.EMPTY_LIST;
+		}
+		Integer index = poolIndex.get(key);
+		if (index == null) {
+			index = pool.size();
+			pool.add(value);
+			poolIndex.put(key, index);
+		}
+		return index;
+	}
+
+	private int temp() {
+		int r = nextTemp++;
+		registers = Math.max(registers, nextTemp);
+		return r;
+	}
+
+	private void emit(int... instruction) {
+		if (length + instruction.length > code.length) {
+			code = Arrays.copyOf(code, (code.length + instruction.length) * 2);
+		}
+		System.arraycopy(instruction, 0, code, length, instruction.length);
+		length += instruction.length;
+	}
+
+	/**
+	 * A position in the code which is the target of a jump.
+	 */
+	private static final class Label {
+		private int offset = -1;
+		private final ArrayList<Integer> uses = new ArrayList<Integer>();
+	}
+
+	/**
+	 * Emit a jump instruction whose final operand is a given label.
+	 */
+	private void jump(int opcode, Object... operands) {
+		int[] instruction = new int[operands.length + 1];
+		instruction[0] = opcode;
+		for (int i = 0; i != operands.length - 1; ++i) {
+			instruction[i + 1] = (Integer) operands[i];
+		}
+		Label label = (Label) operands[operands.length - 1];
+		emit(instruction);
+		int position = length - 1;
+		if (label.offset >= 0) {
+			code[position] = label.offset;
+		} else {
+			label.uses.add(position);
+		}
+	}
+
+	private void mark(Label label) {
+		label.offset = length;
+		for (int use : label.uses) {
+			code[use] = length;
+		}
+		label.uses.clear();
+	}
+}
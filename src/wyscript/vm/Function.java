@@ -0,0 +1,57 @@
+// This file is part of the WyScript Compiler (wysc).
+//
+// The WyScript Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WyScript Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WyScript Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+//
+// Copyright 2013, David James Pearce.
+
+package wyscript.vm;
+
+/**
+ * A function which has been lowered to register-based bytecode.
+ *
+ */
+public final class Function {
+	public final String name;
+	public final boolean isNative;
+
+	/**
+	 * The number of parameters, which are passed in the first registers.
+	 */
+	public final int parameters;
+
+	/**
+	 * The number of registers which hold values that must be released when
+	 * the function returns, i.e. its variables and the lists held by its for
+	 * loops.
+	 */
+	public final int locals;
+
+	/**
+	 * The total number of registers, including temporaries.
+	 */
+	public final int registers;
+
+	public final int[] code;
+
+	public Function(String name, boolean isNative, int parameters,
+			int locals, int registers, int[] code) {
+		this.name = name;
+		this.isNative = isNative;
+		this.parameters = parameters;
+		this.locals = locals;
+		this.registers = registers;
+		this.code = code;
+	}
+}
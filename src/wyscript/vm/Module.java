@@ -0,0 +1,389 @@
+// This file is part of the WyScript Compiler (wysc).
+//
+// The WyScript Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WyScript Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WyScript Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+//
+// Copyright 2013, David James Pearce.
+
+package wyscript.vm;
+
+import java.io.*;
+import java.util.*;
+
+import wyscript.lang.Type;
+
+/**
+ * <p>
+ * A WyScript program which has been lowered to register-based bytecode. This
+ * consists of a constant pool shared by all functions, the functions
+ * themselves, and a function which initialises the global scope (i.e. the
+ * constants).
+ * </p>
+ * <p>
+ * A module can be saved to disk, and loaded again later, so that it can be
+ * executed without lexing, parsing and type checking the original program.
+ * </p>
+ */
+public final class Module {
+	private static final int MAGIC = 0x57594331; // "WYC1"
+
+	// Tags for entries in the constant pool
+	private static final int NULL = 0;
+	private static final int INT = 1;
+	private static final int REAL = 2;
+	private static final int BOOL = 3;
+	private static final int CHAR = 4;
+	private static final int STRING = 5;
+	private static final int NAME = 6;
+	private static final int NAMES = 7;
+	private static final int TYPE = 8;
+	private static final int EMPTY = 9;
+
+	// Tags for types
+	private static final int T_VOID = 0;
+	private static final int T_NULL = 1;
+	private static final int T_BOOL = 2;
+	private static final int T_INT = 3;
+	private static final int T_REAL = 4;
+	private static final int T_CHAR = 5;
+	private static final int T_STRING = 6;
+	private static final int T_REFERENCE = 7;
+	private static final int T_NAMED = 8;
+	private static final int T_TUPLE = 9;
+	private static final int T_LIST = 10;
+	private static final int T_RECORD = 11;
+	private static final int T_UNION = 12;
+
+	public final String filename;
+	public final Map<String, Type> userTypes;
+
+	/**
+	 * The constant pool, which holds the value of every constant expression,
+	 * as well as the field names and types referred to by instructions.
+	 */
+	public final Object[] pool;
+
+	/**
+	 * The number of slots in the global scope.
+	 */
+	public final int globals;
+
+	public final Function[] functions;
+
+	/**
+	 * Initialises the global scope, in order of declaration.
+	 */
+	public final Function init;
+
+	public Module(String filename, Map<String, Type> userTypes, Object[] pool,
+			int globals, Function[] functions, Function init) {
+		this.filename = filename;
+		this.userTypes = userTypes;
+		this.pool = pool;
+		this.globals = globals;
+		this.functions = functions;
+		this.init = init;
+	}
+
+	/**
+	 * Get the function with a given name.
+	 *
+	 * @param name
+	 * @return The function, or <code>null</code> if there is none.
+	 */
+	public Function function(String name) {
+		for (Function f : functions) {
+			if (f.name.equals(name)) {
+				return f;
+			}
+		}
+		return null;
+	}
+
+	// ======================================================================
+	// Saving
+	// ======================================================================
+
+	public void save(File file) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(file)));
+		try {
+			out.writeInt(MAGIC);
+			out.writeUTF(filename);
+			out.writeInt(userTypes.size());
+			for (Map.Entry<String, Type> e : userTypes.entrySet()) {
+				out.writeUTF(e.getKey());
+				write(e.getValue(), out);
+			}
+			out.writeInt(pool.length);
+			for (Object o : pool) {
+				writeConstant(o, out);
+			}
+			out.writeInt(globals);
+			out.writeInt(functions.length);
+			for (Function f : functions) {
+				write(f, out);
+			}
+			write(init, out);
+		} finally {
+			out.close();
+		}
+	}
+
+	private static void write(Function f, DataOutputStream out)
+			throws IOException {
+		out.writeUTF(f.name);
+		out.writeBoolean(f.isNative);
+		out.writeInt(f.parameters);
+		out.writeInt(f.locals);
+		out.writeInt(f.registers);
+		out.writeInt(f.code.length);
+		for (int i : f.code) {
+			out.writeInt(i);
+		}
+	}
+
+	private static void writeConstant(Object o, DataOutputStream out)
+			throws IOException {
+		if (o == null) {
+			out.writeByte(NULL);
+		} else if (o instanceof Integer) {
+			out.writeByte(INT);
+			out.writeInt((Integer) o);
+		} else if (o instanceof Double) {
+			out.writeByte(REAL);
+			out.writeDouble((Double) o);
+		} else if (o instanceof Boolean) {
+			out.writeByte(BOOL);
+			out.writeBoolean((Boolean) o);
+		} else if (o instanceof Character) {
+			out.writeByte(CHAR);
+			out.writeChar((Character) o);
+		} else if (o instanceof StringBuffer) {
+			out.writeByte(STRING);
+			out.writeUTF(o.toString());
+		} else if (o instanceof String) {
+			out.writeByte(NAME);
+			out.writeUTF((String) o);
+		} else if (o instanceof String[]) {
+			String[] names = (String[]) o;
+			out.writeByte(NAMES);
+			out.writeInt(names.length);
+			for (String n : names) {
+				out.writeUTF(n);
+			}
+		} else if (o instanceof Type) {
+			out.writeByte(TYPE);
+			write((Type) o, out);
+		} else if (o == Collections.EMPTY_SET) {
+			out.writeByte(EMPTY);
+		} else {
+			throw new IllegalArgumentException("unknown constant: " + o);
+		}
+	}
+
+	private static void write(Type t, DataOutputStream out) throws IOException {
+		if (t instanceof Type.Void) {
+			out.writeByte(T_VOID);
+		} else if (t instanceof Type.Null) {
+			out.writeByte(T_NULL);
+		} else if (t instanceof Type.Bool) {
+			out.writeByte(T_BOOL);
+		} else if (t instanceof Type.Int) {
+			out.writeByte(T_INT);
+		} else if (t instanceof Type.Real) {
+			out.writeByte(T_REAL);
+		} else if (t instanceof Type.Char) {
+			out.writeByte(T_CHAR);
+		} else if (t instanceof Type.Strung) {
+			out.writeByte(T_STRING);
+		} else if (t instanceof Type.Reference) {
+			out.writeByte(T_REFERENCE);
+			write(((Type.Reference) t).getType(), out);
+		} else if (t instanceof Type.Named) {
+			out.writeByte(T_NAMED);
+			out.writeUTF(((Type.Named) t).getName());
+		} else if (t instanceof Type.Tuple) {
+			out.writeByte(T_TUPLE);
+			write(((Type.Tuple) t).getTypes(), out);
+		} else if (t instanceof Type.List) {
+			out.writeByte(T_LIST);
+			write(((Type.List) t).getElement(), out);
+		} else if (t instanceof Type.Record) {
+			Map<String, Type> fields = ((Type.Record) t).getFields();
+			out.writeByte(T_RECORD);
+			out.writeInt(fields.size());
+			for (Map.Entry<String, Type> e : fields.entrySet()) {
+				out.writeUTF(e.getKey());
+				write(e.getValue(), out);
+			}
+		} else if (t instanceof Type.Union) {
+			out.writeByte(T_UNION);
+			write(((Type.Union) t).getBounds(), out);
+		} else {
+			throw new IllegalArgumentException("unknown type: " + t);
+		}
+	}
+
+	private static void write(List<Type> types, DataOutputStream out)
+			throws IOException {
+		out.writeInt(types.size());
+		for (Type t : types) {
+			write(t, out);
+		}
+	}
+
+	// ======================================================================
+	// Loading
+	// ======================================================================
+
+	public static Module load(File file) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(file)));
+		try {
+			if (in.readInt() != MAGIC) {
+				throw new IOException("invalid module file: " + file);
+			}
+			String filename = in.readUTF();
+			HashMap<String, Type> userTypes = new HashMap<String, Type>();
+			int nTypes = in.readInt();
+			for (int i = 0; i != nTypes; ++i) {
+				String name = in.readUTF();
+				userTypes.put(name, readType(in));
+			}
+			Object[] pool = new Object[in.readInt()];
+			for (int i = 0; i != pool.length; ++i) {
+				pool[i] = readConstant(in);
+			}
+			int globals = in.readInt();
+			Function[] functions = new Function[in.readInt()];
+			for (int i = 0; i != functions.length; ++i) {
+				functions[i] = readFunction(in);
+			}
+			Function init = readFunction(in);
+			return new Module(filename, userTypes, pool, globals, functions,
+					init);
+		} finally {
+			in.close();
+		}
+	}
+
+	private static Function readFunction(DataInputStream in) throws IOException {
+		String name = in.readUTF();
+		boolean isNative = in.readBoolean();
+		int parameters = in.readInt();
+		int locals = in.readInt();
+		int registers = in.readInt();
+		int[] code = new int[in.readInt()];
+		for (int i = 0; i != code.length; ++i) {
+			code[i] = in.readInt();
+		}
+		// Check every instruction is complete, so that the virtual machine
+		// can never run off the end of the code.
+		int pc = 0;
+		while (pc < code.length) {
+			if (code[pc] < 0 || code[pc] >= Bytecode.OPERANDS.length) {
+				throw new IOException("invalid instruction in " + name);
+			}
+			pc += 1 + Bytecode.OPERANDS[code[pc]];
+		}
+		if (pc != code.length) {
+			throw new IOException("invalid instruction in " + name);
+		}
+		return new Function(name, isNative, parameters, locals, registers, code);
+	}
+
+	private static Object readConstant(DataInputStream in) throws IOException {
+		int tag = in.readByte();
+		switch (tag) {
+		case NULL:
+			return null;
+		case INT:
+			return in.readInt();
+		case REAL:
+			return in.readDouble();
+		case BOOL:
+			return in.readBoolean();
+		case CHAR:
+			return in.readChar();
+		case STRING:
+			return new StringBuffer(in.readUTF());
+		case NAME:
+			return in.readUTF();
+		case NAMES: {
+			String[] names = new String[in.readInt()];
+			for (int i = 0; i != names.length; ++i) {
+				names[i] = in.readUTF();
+			}
+			return names;
+		}
+		case TYPE:
+			return readType(in);
+		case EMPTY:
+			return Collections.EMPTY_SET;
+		default:
+			throw new IOException("invalid constant in module file");
+		}
+	}
+
+	private static Type readType(DataInputStream in) throws IOException {
+		int tag = in.readByte();
+		switch (tag) {
+		case T_VOID:
+			return new Type.Void();
+		case T_NULL:
+			return new Type.Null();
+		case T_BOOL:
+			return new Type.Bool();
+		case T_INT:
+			return new Type.Int();
+		case T_REAL:
+			return new Type.Real();
+		case T_CHAR:
+			return new Type.Char();
+		case T_STRING:
+			return new Type.Strung();
+		case T_REFERENCE:
+			return new Type.Reference(readType(in));
+		case T_NAMED:
+			return new Type.Named(in.readUTF());
+		case T_TUPLE:
+			return new Type.Tuple(readTypes(in));
+		case T_LIST:
+			return new Type.List(readType(in));
+		case T_RECORD: {
+			HashMap<String, Type> fields = new HashMap<String, Type>();
+			int n = in.readInt();
+			for (int i = 0; i != n; ++i) {
+				String name = in.readUTF();
+				fields.put(name, readType(in));
+			}
+			return new Type.Record(fields);
+		}
+		case T_UNION:
+			return new Type.Union(readTypes(in));
+		default:
+			throw new IOException("invalid type in module file");
+		}
+	}
+
+	private static List<Type> readTypes(DataInputStream in) throws IOException {
+		ArrayList<Type> types = new ArrayList<Type>();
+		int n = in.readInt();
+		for (int i = 0; i != n; ++i) {
+			types.add(readType(in));
+		}
+		return types;
+	}
+}
@@ -0,0 +1,956 @@
+// This file is part of the WyScript Compiler (wysc).
+//
+// The WyScript Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WyScript Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WyScript Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+//
+// Copyright 2013, David James Pearce.
+
+package wyscript.vm;
+
+import static wyscript.util.CopyOnWriteValue.copy;
+import static wyscript.util.CopyOnWriteValue.release;
+import static wyscript.vm.Bytecode.*;
+
+import java.util.*;
+
+import wyscript.lang.Type;
+import wyscript.util.*;
+
+/**
+ * <p>
+ * Executes a <code>Module</code> of register-based bytecode, exactly as the
+ * <code>VirtualMachine</code> does, except that ints, reals, bools and chars
+ * are never boxed whilst held in registers. Instead, each register has a tag
+ * giving the kind of value it holds, and either the bits of that value (for a
+ * primitive) or a reference to it (for anything else). Hence, arithmetic,
+ * comparisons, branches, range loops and indexing into lists which are stored
+ * unboxed (see <code>ListValue</code>) allocate nothing.
+ * </p>
+ * <p>
+ * Primitive values are passed to and returned from functions in the same
+ * way. They are only boxed where they leave a stack frame by some other
+ * route, e.g. when printed, stored in a record, tuple or reference, or passed
+ * to <code>Values</code> for a type test or cast.
+ * </p>
+ */
+public class TaggedVirtualMachine {
+
+	// The kinds of value held by a register
+	private static final byte REF = 0;
+	private static final byte INT = 1;
+	private static final byte REAL = 2;
+	private static final byte BOOL = 3;
+	private static final byte CHAR = 4;
+
+	private final Module module;
+	private final Object[] pool;
+	private final Function[] functions;
+
+	/**
+	 * The tag and bits of each primitive constant in the pool, so that loading
+	 * it need not unbox it.
+	 */
+	private final byte[] poolTags;
+	private final long[] poolBits;
+
+	/**
+	 * The value of each constant, held boxed as in the
+	 * <code>VirtualMachine</code>.
+	 */
+	private final Object[] globals;
+	private final Values values;
+
+	/**
+	 * The shape of the records constructed with the fields in each entry of
+	 * the constant pool, and the offset of each of those fields in it. These
+	 * are filled in when first needed.
+	 */
+	private final Shape[] shapes;
+	private final int[][] offsets;
+
+	/**
+	 * The tag of the value returned by the most recent call and, if that is a
+	 * primitive, its bits (otherwise, the value itself is returned).
+	 */
+	private byte returnTag;
+	private long returnBits;
+
+	/**
+	 * The frame last used at each depth of calls, which is reused by the next
+	 * call made at that depth (provided it has enough registers). Hence, a
+	 * call allocates nothing either, once the deepest calls have been made.
+	 */
+	private Frame[] stack = new Frame[16];
+	private int depth;
+
+	public TaggedVirtualMachine(Module module) {
+		this.module = module;
+		this.pool = VirtualMachine.strings(module.pool);
+		this.functions = module.functions;
+		this.globals = new Object[module.globals];
+		this.values = new Values(module.filename, module.userTypes);
+		this.shapes = new Shape[pool.length];
+		this.offsets = new int[pool.length][];
+		this.poolTags = new byte[pool.length];
+		this.poolBits = new long[pool.length];
+		Frame constants = new Frame(1);
+		for (int k = 0; k != pool.length; ++k) {
+			constants.put(0, pool[k]);
+			poolTags[k] = constants.tags[0];
+			poolBits[k] = constants.bits[0];
+		}
+	}
+
+	public void run() {
+		execute(module.init, new Frame(module.init.registers));
+
+		// Finally, pick the main method (if one exits) and execute it
+		Function main = module.function("main");
+		if (main != null) {
+			execute(main, new Frame(main.registers));
+		} else {
+			System.out.println("Cannot find a main() function");
+		}
+	}
+
+	/**
+	 * Execute a function whose first registers already hold the arguments.
+	 *
+	 * @param function
+	 * @param frame
+	 * @return The value returned, unless it is a primitive (see
+	 *         <code>returnTag</code>).
+	 */
+	private Object execute(Function function, Frame frame) {
+		if (function.isNative) {
+			throw new RuntimeException("Can't execute native function "
+					+ function.name + " - must be run as JavaScript (-js)");
+		}
+		final int[] code = function.code;
+		final byte[] tags = frame.tags;
+		final long[] bits = frame.bits;
+		final Object[] refs = frame.refs;
+		int pc = 0;
+
+		while (true) {
+			switch (code[pc]) {
+			// Loads and stores
+			case CONST: {
+				int d = code[pc + 1];
+				int k = code[pc + 2];
+				byte t = poolTags[k];
+				tags[d] = t;
+				if (t == REF) {
+					Object value = pool[k];
+					if (value instanceof StringValue) {
+						// As for the VirtualMachine, each load gives a
+						// distinct string.
+						value = ((StringValue) value).duplicate();
+					}
+					refs[d] = value;
+				} else {
+					bits[d] = poolBits[k];
+				}
+				pc += 3;
+				break;
+			}
+			case GLOBAL:
+				frame.put(code[pc + 1], globals[code[pc + 2]]);
+				pc += 3;
+				break;
+			case SETGLOBAL:
+				globals[code[pc + 1]] = copy(frame.get(code[pc + 2]));
+				pc += 3;
+				break;
+			case MOVE:
+				frame.move(code[pc + 1], code[pc + 2]);
+				pc += 3;
+				break;
+			case STORE: {
+				int d = code[pc + 1];
+				Object old = tags[d] == REF ? refs[d] : null;
+				frame.copy(d, code[pc + 2]);
+				release(old);
+				pc += 3;
+				break;
+			}
+			case COPY:
+				frame.copy(code[pc + 1], code[pc + 2]);
+				pc += 3;
+				break;
+			case RELEASE: {
+				int a = code[pc + 1];
+				if (tags[a] == REF) {
+					release(refs[a]);
+				}
+				tags[a] = REF;
+				refs[a] = null;
+				pc += 2;
+				break;
+			}
+
+			// Operators
+			case ADD: {
+				int d = code[pc + 1];
+				int a = code[pc + 2];
+				int b = code[pc + 3];
+				if (tags[a] == INT && tags[b] == INT) {
+					tags[d] = INT;
+					bits[d] = (int) bits[a] + (int) bits[b];
+				} else if (tags[a] == REAL && tags[b] == REAL) {
+					tags[d] = REAL;
+					bits[d] = toBits(toReal(bits[a]) + toReal(bits[b]));
+				} else {
+					frame.put(d, mixed(ADD, frame.get(a), frame.get(b)));
+				}
+				pc += 4;
+				break;
+			}
+			case SUB: {
+				int d = code[pc + 1];
+				int a = code[pc + 2];
+				int b = code[pc + 3];
+				if (tags[a] == INT && tags[b] == INT) {
+					tags[d] = INT;
+					bits[d] = (int) bits[a] - (int) bits[b];
+				} else if (tags[a] == REAL && tags[b] == REAL) {
+					tags[d] = REAL;
+					bits[d] = toBits(toReal(bits[a]) - toReal(bits[b]));
+				} else {
+					frame.put(d, mixed(SUB, frame.get(a), frame.get(b)));
+				}
+				pc += 4;
+				break;
+			}
+			case MUL: {
+				int d = code[pc + 1];
+				int a = code[pc + 2];
+				int b = code[pc + 3];
+				if (tags[a] == INT && tags[b] == INT) {
+					tags[d] = INT;
+					bits[d] = (int) bits[a] * (int) bits[b];
+				} else if (tags[a] == REAL && tags[b] == REAL) {
+					tags[d] = REAL;
+					bits[d] = toBits(toReal(bits[a]) * toReal(bits[b]));
+				} else {
+					frame.put(d, mixed(MUL, frame.get(a), frame.get(b)));
+				}
+				pc += 4;
+				break;
+			}
+			case DIV: {
+				int d = code[pc + 1];
+				int a = code[pc + 2];
+				int b = code[pc + 3];
+				if (tags[a] == INT && tags[b] == INT) {
+					tags[d] = INT;
+					bits[d] = (int) bits[a] / (int) bits[b];
+				} else if (tags[a] == REAL && tags[b] == REAL) {
+					tags[d] = REAL;
+					bits[d] = toBits(toReal(bits[a]) / toReal(bits[b]));
+				} else {
+					frame.put(d, mixed(DIV, frame.get(a), frame.get(b)));
+				}
+				pc += 4;
+				break;
+			}
+			case REM: {
+				int d = code[pc + 1];
+				int a = code[pc + 2];
+				int b = code[pc + 3];
+				if (tags[a] == INT && tags[b] == INT) {
+					tags[d] = INT;
+					bits[d] = (int) bits[a] % (int) bits[b];
+				} else if (tags[a] == REAL && tags[b] == REAL) {
+					tags[d] = REAL;
+					bits[d] = toBits(toReal(bits[a]) % toReal(bits[b]));
+				} else {
+					frame.put(d, mixed(REM, frame.get(a), frame.get(b)));
+				}
+				pc += 4;
+				break;
+			}
+			case EQ: {
+				int d = code[pc + 1];
+				tags[d] = BOOL;
+				bits[d] = frame.equal(code[pc + 2], code[pc + 3]) ? 1 : 0;
+				pc += 4;
+				break;
+			}
+			case NEQ: {
+				int d = code[pc + 1];
+				tags[d] = BOOL;
+				bits[d] = frame.equal(code[pc + 2], code[pc + 3]) ? 0 : 1;
+				pc += 4;
+				break;
+			}
+			case LT: {
+				int d = code[pc + 1];
+				int a = code[pc + 2];
+				int b = code[pc + 3];
+				boolean r;
+				if (tags[a] == INT && tags[b] == INT) {
+					r = (int) bits[a] < (int) bits[b];
+				} else if (tags[a] == REAL && tags[b] == REAL) {
+					r = toReal(bits[a]) < toReal(bits[b]);
+				} else {
+					r = (Boolean) mixed(LT, frame.get(a), frame.get(b));
+				}
+				tags[d] = BOOL;
+				bits[d] = r ? 1 : 0;
+				pc += 4;
+				break;
+			}
+			case LTEQ: {
+				int d = code[pc + 1];
+				int a = code[pc + 2];
+				int b = code[pc + 3];
+				boolean r;
+				if (tags[a] == INT && tags[b] == INT) {
+					r = (int) bits[a] <= (int) bits[b];
+				} else if (tags[a] == REAL && tags[b] == REAL) {
+					r = toReal(bits[a]) <= toReal(bits[b]);
+				} else {
+					r = (Boolean) mixed(LTEQ, frame.get(a), frame.get(b));
+				}
+				tags[d] = BOOL;
+				bits[d] = r ? 1 : 0;
+				pc += 4;
+				break;
+			}
+			case GT: {
+				int d = code[pc + 1];
+				int a = code[pc + 2];
+				int b = code[pc + 3];
+				boolean r;
+				if (tags[a] == INT && tags[b] == INT) {
+					r = (int) bits[a] > (int) bits[b];
+				} else if (tags[a] == REAL && tags[b] == REAL) {
+					r = toReal(bits[a]) > toReal(bits[b]);
+				} else {
+					r = (Boolean) mixed(GT, frame.get(a), frame.get(b));
+				}
+				tags[d] = BOOL;
+				bits[d] = r ? 1 : 0;
+				pc += 4;
+				break;
+			}
+			case GTEQ: {
+				int d = code[pc + 1];
+				int a = code[pc + 2];
+				int b = code[pc + 3];
+				boolean r;
+				if (tags[a] == INT && tags[b] == INT) {
+					r = (int) bits[a] >= (int) bits[b];
+				} else if (tags[a] == REAL && tags[b] == REAL) {
+					r = toReal(bits[a]) >= toReal(bits[b]);
+				} else {
+					r = (Boolean) mixed(GTEQ, frame.get(a), frame.get(b));
+				}
+				tags[d] = BOOL;
+				bits[d] = r ? 1 : 0;
+				pc += 4;
+				break;
+			}
+			case APPEND: {
+				Object l = frame.get(code[pc + 2]);
+				Object r = frame.get(code[pc + 3]);
+				Object result;
+				if (l instanceof StringValue && r instanceof StringValue) {
+					result = ((StringValue) l).append((StringValue) r);
+				} else if (l instanceof StringValue) {
+					result = ((StringValue) l).append(values.toString(r));
+				} else if (r instanceof StringValue) {
+					result = new StringValue(values.toString(l)).append((StringValue) r);
+				} else {
+					result = ((ListValue) l).append((ListValue) r);
+				}
+				frame.put(code[pc + 1], result);
+				pc += 4;
+				break;
+			}
+			case RANGE: {
+				int start = (int) bits[code[pc + 2]];
+				int end = (int) bits[code[pc + 3]];
+				ListValue result = new ListValue(ListValue.Storage.INT,
+						Math.max(end - start, 0));
+				while (start < end) {
+					result.addInt(start);
+					start = start + 1;
+				}
+				frame.put(code[pc + 1], result);
+				pc += 4;
+				break;
+			}
+			case NOT: {
+				int d = code[pc + 1];
+				tags[d] = BOOL;
+				bits[d] = bits[code[pc + 2]] == 0 ? 1 : 0;
+				pc += 3;
+				break;
+			}
+			case NEG: {
+				int d = code[pc + 1];
+				int a = code[pc + 2];
+				if (tags[a] == REAL) {
+					tags[d] = REAL;
+					bits[d] = toBits(-toReal(bits[a]));
+				} else {
+					tags[d] = INT;
+					bits[d] = -(int) bits[a];
+				}
+				pc += 3;
+				break;
+			}
+			case LENGTHOF: {
+				int d = code[pc + 1];
+				Object value = refs[code[pc + 2]];
+				tags[d] = INT;
+				if (value instanceof StringValue) {
+					bits[d] = ((StringValue) value).length();
+				} else {
+					bits[d] = ((ListValue) value).size();
+				}
+				pc += 3;
+				break;
+			}
+			case IS: {
+				int d = code[pc + 1];
+				boolean r = values.instanceOf(frame.get(code[pc + 2]),
+						(Type) pool[code[pc + 3]]);
+				tags[d] = BOOL;
+				bits[d] = r ? 1 : 0;
+				pc += 4;
+				break;
+			}
+			case CAST: {
+				int d = code[pc + 1];
+				int a = code[pc + 2];
+				Type type = (Type) pool[code[pc + 3]];
+				if (tags[a] == INT && type instanceof Type.Real) {
+					tags[d] = REAL;
+					bits[d] = toBits((double) (int) bits[a]);
+				} else {
+					frame.put(d, values.doCast(type, frame.get(a), null));
+				}
+				pc += 4;
+				break;
+			}
+
+			// Control flow
+			case JMP:
+				pc = code[pc + 1];
+				break;
+			case JMPF:
+				if (bits[code[pc + 1]] != 0) {
+					pc += 3;
+				} else {
+					pc = code[pc + 2];
+				}
+				break;
+			case JMPT:
+				if (bits[code[pc + 1]] != 0) {
+					pc = code[pc + 2];
+				} else {
+					pc += 3;
+				}
+				break;
+			case JEQ:
+				if (frame.equal(code[pc + 1], code[pc + 2])) {
+					pc = code[pc + 3];
+				} else {
+					pc += 4;
+				}
+				break;
+			case CALL: {
+				// The arguments are placed directly into the callee's
+				// registers, where its parameters hold their own copies of
+				// them.
+				Function callee = functions[code[pc + 2]];
+				Frame next = enter(callee.registers);
+				int base = code[pc + 3];
+				int n = code[pc + 4];
+				for (int i = 0; i != n; ++i) {
+					byte t = tags[base + i];
+					next.tags[i] = t;
+					if (t == REF) {
+						next.refs[i] = copy(refs[base + i]);
+					} else {
+						next.bits[i] = bits[base + i];
+					}
+				}
+				Object r = execute(callee, next);
+				depth--;
+				int d = code[pc + 1];
+				tags[d] = returnTag;
+				if (returnTag == REF) {
+					refs[d] = r;
+				} else {
+					bits[d] = returnBits;
+				}
+				pc += 5;
+				break;
+			}
+			case RET: {
+				int a = code[pc + 1];
+				Object r = refs[a];
+				returnTag = tags[a];
+				returnBits = bits[a];
+				exit(function, frame);
+				return returnTag == REF ? r : null;
+			}
+			case RETV:
+				exit(function, frame);
+				returnTag = REF;
+				return Collections.EMPTY_SET; // used to indicate a function has
+												// returned
+			case FORNEXT: {
+				ListValue src = (ListValue) refs[code[pc + 2]];
+				int b = code[pc + 3];
+				int i = (int) bits[b];
+				if (i == src.size()) {
+					pc = code[pc + 4];
+				} else {
+					int d = code[pc + 1];
+					Object old = tags[d] == REF ? refs[d] : null;
+					frame.element(d, src, i);
+					if (tags[d] == REF) {
+						refs[d] = copy(refs[d]);
+					}
+					release(old);
+					bits[b] = i + 1;
+					pc += 5;
+				}
+				break;
+			}
+			case PRINT:
+				System.out.println(values.toString(frame.get(code[pc + 1])));
+				pc += 2;
+				break;
+
+			// Compound values
+			case LIST: {
+				int base = code[pc + 3];
+				int n = code[pc + 4];
+				ListValue ls = values.newList((Type) pool[code[pc + 2]], n);
+				for (int i = 0; i != n; ++i) {
+					int a = base + i;
+					switch (tags[a]) {
+					case INT:
+						ls.addInt((int) bits[a]);
+						break;
+					case REAL:
+						ls.addReal(toReal(bits[a]));
+						break;
+					default:
+						ls.add(frame.get(a));
+					}
+				}
+				frame.put(code[pc + 1], ls);
+				pc += 5;
+				break;
+			}
+			case RECORD: {
+				int k = code[pc + 2];
+				int[] offs = offsets[k];
+				if (offs == null) {
+					offs = shape(k);
+				}
+				int base = code[pc + 3];
+				RecordValue rs = new RecordValue(shapes[k]);
+				for (int i = 0; i != offs.length; ++i) {
+					rs.set(offs[i], frame.get(base + i));
+				}
+				frame.put(code[pc + 1], rs);
+				pc += 5;
+				break;
+			}
+			case TUPLE: {
+				int base = code[pc + 2];
+				int n = code[pc + 3];
+				Tuple t;
+				if (n == 2) {
+					t = Tuple.create(frame.get(base), frame.get(base + 1));
+				} else {
+					Object[] vals = new Object[n];
+					for (int i = 0; i != n; ++i) {
+						vals[i] = frame.get(base + i);
+					}
+					t = Tuple.create(vals);
+				}
+				frame.put(code[pc + 1], t);
+				pc += 4;
+				break;
+			}
+			case INDEX: {
+				int d = code[pc + 1];
+				Object src = refs[code[pc + 2]];
+				int idx = (int) bits[code[pc + 3]];
+				if (src instanceof StringValue) {
+					tags[d] = CHAR;
+					bits[d] = ((StringValue) src).charAt(idx);
+				} else {
+					ListValue ls = (ListValue) src;
+					if (idx < 0 || idx >= ls.size()) {
+						// Let the list report the error
+						ls.get(idx);
+					}
+					frame.element(d, ls, idx);
+				}
+				pc += 4;
+				break;
+			}
+			case FIELD:
+				frame.put(code[pc + 1], ((RecordValue) refs[code[pc + 2]])
+						.get((String) pool[code[pc + 3]]));
+				pc += 4;
+				break;
+			case TUPLEGET:
+				frame.put(code[pc + 1], ((Tuple) refs[code[pc + 2]])
+						.get(code[pc + 3]));
+				pc += 4;
+				break;
+			case DEREF:
+				frame.put(code[pc + 1], ((Ref) refs[code[pc + 2]]).getValue());
+				pc += 3;
+				break;
+			case NEW:
+				frame.put(code[pc + 1], new Ref(frame.get(code[pc + 2])));
+				pc += 3;
+				break;
+
+			// Updates
+			case UNSHARE: {
+				int a = code[pc + 2];
+				if (tags[a] == REF && refs[a] instanceof CopyOnWriteValue) {
+					refs[a] = ((CopyOnWriteValue) refs[a]).unshare();
+				}
+				frame.move(code[pc + 1], a);
+				pc += 3;
+				break;
+			}
+			case INDEXU:
+				frame.put(code[pc + 1], ((ListValue) refs[code[pc + 2]])
+						.getForUpdate((int) bits[code[pc + 3]]));
+				pc += 4;
+				break;
+			case FIELDU:
+				frame.put(code[pc + 1], ((RecordValue) refs[code[pc + 2]])
+						.getForUpdate((String) pool[code[pc + 3]]));
+				pc += 4;
+				break;
+			case DEREFU:
+				frame.put(code[pc + 1], ((Ref) refs[code[pc + 2]])
+						.getValueForUpdate());
+				pc += 3;
+				break;
+			case SETINDEX: {
+				Object src = refs[code[pc + 1]];
+				int idx = (int) bits[code[pc + 2]];
+				int c = code[pc + 3];
+				if (src instanceof ListValue) {
+					ListValue ls = (ListValue) src;
+					switch (tags[c]) {
+					case INT:
+						ls.setInt(idx, (int) bits[c]);
+						break;
+					case REAL:
+						ls.setReal(idx, toReal(bits[c]));
+						break;
+					case REF:
+						ls.set(idx, refs[c]);
+						release(refs[c]);
+						break;
+					default:
+						ls.set(idx, frame.get(c));
+					}
+				} else {
+					((StringValue) src).set(idx, (char) bits[c]);
+				}
+				pc += 4;
+				break;
+			}
+			case SETFIELD: {
+				Object value = frame.get(code[pc + 3]);
+				((RecordValue) refs[code[pc + 1]]).set(
+						(String) pool[code[pc + 2]], value);
+				release(value);
+				pc += 4;
+				break;
+			}
+			case SETDEREF:
+				((Ref) refs[code[pc + 1]]).setValue(frame.get(code[pc + 2]));
+				pc += 3;
+				break;
+
+			// Range loops
+			case FORRANGE: {
+				int a = code[pc + 2];
+				int i = (int) bits[a];
+				if (i < (int) bits[code[pc + 3]]) {
+					int d = code[pc + 1];
+					Object old = tags[d] == REF ? refs[d] : null;
+					tags[d] = INT;
+					bits[d] = i;
+					release(old);
+					bits[a] = i + 1;
+					pc += 5;
+				} else {
+					pc = code[pc + 4];
+				}
+				break;
+			}
+			default:
+				throw new RuntimeException("invalid opcode " + code[pc]
+						+ " in " + function.name);
+			}
+		}
+	}
+
+	/**
+	 * Determine the shape of the records constructed with the fields in a
+	 * given entry of the constant pool.
+	 *
+	 * @return The offset of each field in that shape.
+	 */
+	private int[] shape(int k) {
+		String[] fields = (String[]) pool[k];
+		Shape shape = Shape.of(fields);
+		int[] offs = new int[fields.length];
+		for (int i = 0; i != fields.length; ++i) {
+			offs[i] = shape.offsetOf(fields[i]);
+		}
+		shapes[k] = shape;
+		offsets[k] = offs;
+		return offs;
+	}
+
+	/**
+	 * Get the frame for a function about to be called, with a given number of
+	 * registers. Its variables hold nothing, though its temporaries may still
+	 * hold values from an earlier call.
+	 */
+	private Frame enter(int registers) {
+		if (depth == stack.length) {
+			stack = Arrays.copyOf(stack, depth * 2);
+		}
+		Frame frame = stack[depth];
+		if (frame == null || frame.tags.length < registers) {
+			frame = new Frame(registers);
+			stack[depth] = frame;
+		}
+		depth++;
+		return frame;
+	}
+
+	/**
+	 * Once a function returns, its variables (and any lists held by its for
+	 * loops) no longer hold their values. These are cleared, so that the frame
+	 * can be reused.
+	 */
+	private static void exit(Function function, Frame frame) {
+		byte[] tags = frame.tags;
+		Object[] refs = frame.refs;
+		for (int i = 0; i != function.locals; ++i) {
+			if (tags[i] == REF) {
+				release(refs[i]);
+			}
+			tags[i] = REF;
+			refs[i] = null;
+		}
+	}
+
+	/**
+	 * Apply an arithmetic or comparison operator to operands of different
+	 * kinds, exactly as the <code>VirtualMachine</code> does. The type checker
+	 * admits an operation such as <code>7.0 / 2</code>, but no engine converts
+	 * the int operand, and so this fails in the same way as the others.
+	 */
+	private static Object mixed(int op, Object l, Object r) {
+		if (l instanceof Integer) {
+			int x = (Integer) l;
+			int y = (Integer) r;
+			switch (op) {
+			case ADD:
+				return x + y;
+			case SUB:
+				return x - y;
+			case MUL:
+				return x * y;
+			case DIV:
+				return x / y;
+			case REM:
+				return x % y;
+			case LT:
+				return x < y;
+			case LTEQ:
+				return x <= y;
+			case GT:
+				return x > y;
+			default:
+				return x >= y;
+			}
+		} else {
+			double x = (Double) l;
+			double y = (Double) r;
+			switch (op) {
+			case ADD:
+				return x + y;
+			case SUB:
+				return x - y;
+			case MUL:
+				return x * y;
+			case DIV:
+				return x / y;
+			case REM:
+				return x % y;
+			case LT:
+				return x < y;
+			case LTEQ:
+				return x <= y;
+			case GT:
+				return x > y;
+			default:
+				return x >= y;
+			}
+		}
+	}
+
+	// NOTE: the bits of a real are those given by doubleToLongBits(), which
+	// are equal exactly when Double.equals() holds.
+
+	private static long toBits(double value) {
+		return Double.doubleToLongBits(value);
+	}
+
+	private static double toReal(long bits) {
+		return Double.longBitsToDouble(bits);
+	}
+
+	/**
+	 * The registers of a function being executed. The register at a given
+	 * index is held across all three arrays: its tag, and then either its
+	 * bits or its reference, as that tag requires.
+	 */
+	private static final class Frame {
+		private final byte[] tags;
+		private final long[] bits;
+		private final Object[] refs;
+
+		private Frame(int registers) {
+			this.tags = new byte[registers];
+			this.bits = new long[registers];
+			this.refs = new Object[registers];
+		}
+
+		/**
+		 * Get the value of a register, boxing it if it is a primitive.
+		 */
+		private Object get(int r) {
+			switch (tags[r]) {
+			case INT:
+				return (int) bits[r];
+			case REAL:
+				return toReal(bits[r]);
+			case BOOL:
+				return bits[r] != 0;
+			case CHAR:
+				return (char) bits[r];
+			default:
+				return refs[r];
+			}
+		}
+
+		/**
+		 * Set the value of a register, unboxing it if it is a primitive.
+		 */
+		private void put(int r, Object value) {
+			if (value instanceof Integer) {
+				tags[r] = INT;
+				bits[r] = (Integer) value;
+			} else if (value instanceof Double) {
+				tags[r] = REAL;
+				bits[r] = toBits((Double) value);
+			} else if (value instanceof Boolean) {
+				tags[r] = BOOL;
+				bits[r] = (Boolean) value ? 1 : 0;
+			} else if (value instanceof Character) {
+				tags[r] = CHAR;
+				bits[r] = (Character) value;
+			} else {
+				tags[r] = REF;
+				refs[r] = value;
+			}
+		}
+
+		/**
+		 * Set register <code>d</code> to the element at a given index of a
+		 * list, which must be within bounds.
+		 */
+		private void element(int d, ListValue src, int index) {
+			switch (src.storage()) {
+			case INT:
+				tags[d] = INT;
+				bits[d] = src.getIntUnchecked(index);
+				break;
+			case REAL:
+				tags[d] = REAL;
+				bits[d] = toBits(src.getRealUnchecked(index));
+				break;
+			case BOOL:
+				tags[d] = BOOL;
+				bits[d] = src.getBoolUnchecked(index) ? 1 : 0;
+				break;
+			case CHAR:
+				tags[d] = CHAR;
+				bits[d] = src.getCharUnchecked(index);
+				break;
+			default:
+				put(d, src.getUnchecked(index));
+			}
+		}
+
+		private void move(int d, int a) {
+			byte t = tags[a];
+			tags[d] = t;
+			if (t == REF) {
+				refs[d] = refs[a];
+			} else {
+				bits[d] = bits[a];
+			}
+		}
+
+		private void copy(int d, int a) {
+			byte t = tags[a];
+			tags[d] = t;
+			if (t == REF) {
+				refs[d] = CopyOnWriteValue.copy(refs[a]);
+			} else {
+				bits[d] = bits[a];
+			}
+		}
+
+		/**
+		 * Check whether the values of two registers are equal, as
+		 * <code>equals()</code> would determine for their boxed values.
+		 */
+		private boolean equal(int a, int b) {
+			byte t = tags[a];
+			if (t != REF && t == tags[b]) {
+				return bits[a] == bits[b];
+			}
+			return get(a).equals(get(b));
+		}
+	}
+}
@@ -0,0 +1,569 @@
+// This file is part of the WyScript Compiler (wysc).
+//
+// The WyScript Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WyScript Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WyScript Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+//
+// Copyright 2013, David James Pearce.
+
+package wyscript.vm;
+
+import static wyscript.util.CopyOnWriteValue.copy;
+import static wyscript.util.CopyOnWriteValue.release;
+import static wyscript.vm.Bytecode.*;
+
+import java.util.*;
+
+import wyscript.lang.Type;
+import wyscript.util.*;
+
+/**
+ * Executes a <code>Module</code> of register-based bytecode. Each function is
+ * executed by a single loop, which dispatches on the opcode of each
+ * instruction in turn. The runtime values are those of the reference
+ * <code>Interpreter</code>, whose behaviour this must match exactly.
+ *
+ */
+public class VirtualMachine {
+	private final Module module;
+	private final Object[] pool;
+	private final Function[] functions;
+
+	/**
+	 * The value of each constant, as set by SETGLOBAL in the module's
+	 * initialiser and read by GLOBAL.
+	 */
+	private final Object[] globals;
+	private final Values values;
+
+	/**
+	 * The shape of the records constructed with the fields in each entry of
+	 * the constant pool, and the offset of each of those fields in it. These
+	 * are filled in when first needed.
+	 */
+	private final Shape[] shapes;
+	private final int[][] offsets;
+
+	public VirtualMachine(Module module) {
+		this.module = module;
+		this.pool = strings(module.pool);
+		this.functions = module.functions;
+		this.globals = new Object[module.globals];
+		this.values = new Values(module.filename, module.userTypes);
+		this.shapes = new Shape[pool.length];
+		this.offsets = new int[pool.length][];
+	}
+
+	public void run() {
+		execute(module.init, new Object[module.init.registers]);
+
+		// Finally, pick the main method (if one exits) and execute it
+		Function main = module.function("main");
+		if (main != null) {
+			execute(main, new Object[main.registers]);
+		} else {
+			System.out.println("Cannot find a main() function");
+		}
+	}
+
+	/**
+	 * Execute a function whose first registers already hold the arguments.
+	 *
+	 * @param function
+	 * @param regs
+	 * @return
+	 */
+	private Object execute(Function function, Object[] regs) {
+		if (function.isNative) {
+			throw new RuntimeException("Can't execute native function "
+					+ function.name + " - must be run as JavaScript (-js)");
+		}
+		final int[] code = function.code;
+		int pc = 0;
+
+		while (true) {
+			switch (code[pc]) {
+			// Loads and stores
+			case CONST: {
+				Object k = pool[code[pc + 2]];
+				if (k instanceof StringValue) {
+					// Each load gives a distinct string, although they all
+					// share the same characters until one is updated.
+					k = ((StringValue) k).duplicate();
+				}
+				regs[code[pc + 1]] = k;
+				pc += 3;
+				break;
+			}
+			case GLOBAL:
+				regs[code[pc + 1]] = globals[code[pc + 2]];
+				pc += 3;
+				break;
+			case SETGLOBAL:
+				globals[code[pc + 1]] = copy(regs[code[pc + 2]]);
+				pc += 3;
+				break;
+			case MOVE:
+				regs[code[pc + 1]] = regs[code[pc + 2]];
+				pc += 3;
+				break;
+			case STORE: {
+				int d = code[pc + 1];
+				Object old = regs[d];
+				regs[d] = copy(regs[code[pc + 2]]);
+				release(old);
+				pc += 3;
+				break;
+			}
+			case COPY:
+				regs[code[pc + 1]] = copy(regs[code[pc + 2]]);
+				pc += 3;
+				break;
+			case RELEASE:
+				release(regs[code[pc + 1]]);
+				regs[code[pc + 1]] = null;
+				pc += 2;
+				break;
+
+			// Operators
+			case ADD: {
+				Object l = regs[code[pc + 2]];
+				Object r = regs[code[pc + 3]];
+				if (l instanceof Integer) {
+					regs[code[pc + 1]] = ((Integer) l) + ((Integer) r);
+				} else {
+					regs[code[pc + 1]] = ((Double) l) + ((Double) r);
+				}
+				pc += 4;
+				break;
+			}
+			case SUB: {
+				Object l = regs[code[pc + 2]];
+				Object r = regs[code[pc + 3]];
+				if (l instanceof Integer) {
+					regs[code[pc + 1]] = ((Integer) l) - ((Integer) r);
+				} else {
+					regs[code[pc + 1]] = ((Double) l) - ((Double) r);
+				}
+				pc += 4;
+				break;
+			}
+			case MUL: {
+				Object l = regs[code[pc + 2]];
+				Object r = regs[code[pc + 3]];
+				if (l instanceof Integer) {
+					regs[code[pc + 1]] = ((Integer) l) * ((Integer) r);
+				} else {
+					regs[code[pc + 1]] = ((Double) l) * ((Double) r);
+				}
+				pc += 4;
+				break;
+			}
+			case DIV: {
+				Object l = regs[code[pc + 2]];
+				Object r = regs[code[pc + 3]];
+				if (l instanceof Integer) {
+					regs[code[pc + 1]] = ((Integer) l) / ((Integer) r);
+				} else {
+					regs[code[pc + 1]] = ((Double) l) / ((Double) r);
+				}
+				pc += 4;
+				break;
+			}
+			case REM: {
+				Object l = regs[code[pc + 2]];
+				Object r = regs[code[pc + 3]];
+				if (l instanceof Integer) {
+					regs[code[pc + 1]] = ((Integer) l) % ((Integer) r);
+				} else {
+					regs[code[pc + 1]] = ((Double) l) % ((Double) r);
+				}
+				pc += 4;
+				break;
+			}
+			case EQ:
+				regs[code[pc + 1]] = regs[code[pc + 2]].equals(regs[code[pc + 3]]);
+				pc += 4;
+				break;
+			case NEQ:
+				regs[code[pc + 1]] = !regs[code[pc + 2]].equals(regs[code[pc + 3]]);
+				pc += 4;
+				break;
+			case LT: {
+				Object l = regs[code[pc + 2]];
+				Object r = regs[code[pc + 3]];
+				if (l instanceof Integer) {
+					regs[code[pc + 1]] = ((Integer) l) < ((Integer) r);
+				} else {
+					regs[code[pc + 1]] = ((Double) l) < ((Double) r);
+				}
+				pc += 4;
+				break;
+			}
+			case LTEQ: {
+				Object l = regs[code[pc + 2]];
+				Object r = regs[code[pc + 3]];
+				if (l instanceof Integer) {
+					regs[code[pc + 1]] = ((Integer) l) <= ((Integer) r);
+				} else {
+					regs[code[pc + 1]] = ((Double) l) <= ((Double) r);
+				}
+				pc += 4;
+				break;
+			}
+			case GT: {
+				Object l = regs[code[pc + 2]];
+				Object r = regs[code[pc + 3]];
+				if (l instanceof Integer) {
+					regs[code[pc + 1]] = ((Integer) l) > ((Integer) r);
+				} else {
+					regs[code[pc + 1]] = ((Double) l) > ((Double) r);
+				}
+				pc += 4;
+				break;
+			}
+			case GTEQ: {
+				Object l = regs[code[pc + 2]];
+				Object r = regs[code[pc + 3]];
+				if (l instanceof Integer) {
+					regs[code[pc + 1]] = ((Integer) l) >= ((Integer) r);
+				} else {
+					regs[code[pc + 1]] = ((Double) l) >= ((Double) r);
+				}
+				pc += 4;
+				break;
+			}
+			case APPEND: {
+				Object l = regs[code[pc + 2]];
+				Object r = regs[code[pc + 3]];
+				Object result;
+				if (l instanceof StringValue && r instanceof StringValue) {
+					result = ((StringValue) l).append((StringValue) r);
+				} else if (l instanceof StringValue) {
+					result = ((StringValue) l).append(values.toString(r));
+				} else if (r instanceof StringValue) {
+					result = new StringValue(values.toString(l)).append((StringValue) r);
+				} else {
+					result = ((ListValue) l).append((ListValue) r);
+				}
+				regs[code[pc + 1]] = result;
+				pc += 4;
+				break;
+			}
+			case RANGE: {
+				int start = (Integer) regs[code[pc + 2]];
+				int end = (Integer) regs[code[pc + 3]];
+				ListValue result = new ListValue(ListValue.Storage.INT,
+						Math.max(end - start, 0));
+				while (start < end) {
+					result.addInt(start);
+					start = start + 1;
+				}
+				regs[code[pc + 1]] = result;
+				pc += 4;
+				break;
+			}
+			case NOT:
+				regs[code[pc + 1]] = !((Boolean) regs[code[pc + 2]]);
+				pc += 3;
+				break;
+			case NEG: {
+				Object value = regs[code[pc + 2]];
+				if (value instanceof Double) {
+					regs[code[pc + 1]] = -((Double) value);
+				} else {
+					regs[code[pc + 1]] = -((Integer) value);
+				}
+				pc += 3;
+				break;
+			}
+			case LENGTHOF: {
+				Object value = regs[code[pc + 2]];
+				if (value instanceof StringValue) {
+					regs[code[pc + 1]] = ((StringValue) value).length();
+				} else {
+					regs[code[pc + 1]] = ((ListValue) value).size();
+				}
+				pc += 3;
+				break;
+			}
+			case IS:
+				regs[code[pc + 1]] = values.instanceOf(regs[code[pc + 2]],
+						(Type) pool[code[pc + 3]]);
+				pc += 4;
+				break;
+			case CAST:
+				regs[code[pc + 1]] = values.doCast((Type) pool[code[pc + 3]],
+						regs[code[pc + 2]], null);
+				pc += 4;
+				break;
+
+			// Control flow
+			case JMP:
+				pc = code[pc + 1];
+				break;
+			case JMPF:
+				if ((Boolean) regs[code[pc + 1]]) {
+					pc += 3;
+				} else {
+					pc = code[pc + 2];
+				}
+				break;
+			case JMPT:
+				if ((Boolean) regs[code[pc + 1]]) {
+					pc = code[pc + 2];
+				} else {
+					pc += 3;
+				}
+				break;
+			case JEQ:
+				if (regs[code[pc + 1]].equals(regs[code[pc + 2]])) {
+					pc = code[pc + 3];
+				} else {
+					pc += 4;
+				}
+				break;
+			case CALL: {
+				// The arguments are placed directly into the callee's
+				// registers, where its parameters hold their own copies of
+				// them.
+				Function callee = functions[code[pc + 2]];
+				Object[] frame = new Object[callee.registers];
+				int base = code[pc + 3];
+				int n = code[pc + 4];
+				for (int i = 0; i != n; ++i) {
+					frame[i] = copy(regs[base + i]);
+				}
+				regs[code[pc + 1]] = execute(callee, frame);
+				pc += 5;
+				break;
+			}
+			case RET: {
+				Object r = regs[code[pc + 1]];
+				exit(function, regs);
+				return r;
+			}
+			case RETV:
+				exit(function, regs);
+				return Collections.EMPTY_SET; // used to indicate a function has
+												// returned
+			case FORNEXT: {
+				ListValue src = (ListValue) regs[code[pc + 2]];
+				int b = code[pc + 3];
+				int i = (Integer) regs[b];
+				if (i == src.size()) {
+					pc = code[pc + 4];
+				} else {
+					int d = code[pc + 1];
+					Object old = regs[d];
+					regs[d] = copy(src.get(i));
+					release(old);
+					regs[b] = i + 1;
+					pc += 5;
+				}
+				break;
+			}
+			case PRINT:
+				System.out.println(values.toString(regs[code[pc + 1]]));
+				pc += 2;
+				break;
+
+			// Compound values
+			case LIST: {
+				int base = code[pc + 3];
+				int n = code[pc + 4];
+				ListValue ls = values.newList((Type) pool[code[pc + 2]], n);
+				for (int i = 0; i != n; ++i) {
+					ls.add(regs[base + i]);
+				}
+				regs[code[pc + 1]] = ls;
+				pc += 5;
+				break;
+			}
+			case RECORD: {
+				int k = code[pc + 2];
+				int[] offs = offsets[k];
+				if (offs == null) {
+					offs = shape(k);
+				}
+				int base = code[pc + 3];
+				RecordValue rs = new RecordValue(shapes[k]);
+				for (int i = 0; i != offs.length; ++i) {
+					rs.set(offs[i], regs[base + i]);
+				}
+				regs[code[pc + 1]] = rs;
+				pc += 5;
+				break;
+			}
+			case TUPLE: {
+				int base = code[pc + 2];
+				int n = code[pc + 3];
+				if (n == 2) {
+					regs[code[pc + 1]] = Tuple.create(regs[base], regs[base + 1]);
+				} else {
+					Object[] vals = new Object[n];
+					System.arraycopy(regs, base, vals, 0, n);
+					regs[code[pc + 1]] = Tuple.create(vals);
+				}
+				pc += 4;
+				break;
+			}
+			case INDEX: {
+				Object src = regs[code[pc + 2]];
+				int idx = (Integer) regs[code[pc + 3]];
+				if (src instanceof StringValue) {
+					regs[code[pc + 1]] = ((StringValue) src).charAt(idx);
+				} else {
+					regs[code[pc + 1]] = ((ListValue) src).get(idx);
+				}
+				pc += 4;
+				break;
+			}
+			case FIELD:
+				regs[code[pc + 1]] = ((RecordValue) regs[code[pc + 2]])
+						.get((String) pool[code[pc + 3]]);
+				pc += 4;
+				break;
+			case TUPLEGET:
+				regs[code[pc + 1]] = ((Tuple) regs[code[pc + 2]]).get(code[pc + 3]);
+				pc += 4;
+				break;
+			case DEREF:
+				regs[code[pc + 1]] = ((Ref) regs[code[pc + 2]]).getValue();
+				pc += 3;
+				break;
+			case NEW:
+				regs[code[pc + 1]] = new Ref(regs[code[pc + 2]]);
+				pc += 3;
+				break;
+
+			// Updates
+			case UNSHARE: {
+				int a = code[pc + 2];
+				Object value = regs[a];
+				if (value instanceof CopyOnWriteValue) {
+					value = ((CopyOnWriteValue) value).unshare();
+					regs[a] = value;
+				}
+				regs[code[pc + 1]] = value;
+				pc += 3;
+				break;
+			}
+			case INDEXU:
+				regs[code[pc + 1]] = ((ListValue) regs[code[pc + 2]])
+						.getForUpdate((Integer) regs[code[pc + 3]]);
+				pc += 4;
+				break;
+			case FIELDU:
+				regs[code[pc + 1]] = ((RecordValue) regs[code[pc + 2]])
+						.getForUpdate((String) pool[code[pc + 3]]);
+				pc += 4;
+				break;
+			case DEREFU:
+				regs[code[pc + 1]] = ((Ref) regs[code[pc + 2]])
+						.getValueForUpdate();
+				pc += 3;
+				break;
+			case SETINDEX: {
+				Object src = regs[code[pc + 1]];
+				int idx = (Integer) regs[code[pc + 2]];
+				Object value = regs[code[pc + 3]];
+				if (src instanceof ListValue) {
+					((ListValue) src).set(idx, value);
+					release(value);
+				} else {
+					((StringValue) src).set(idx, (Character) value);
+				}
+				pc += 4;
+				break;
+			}
+			case SETFIELD: {
+				Object value = regs[code[pc + 3]];
+				((RecordValue) regs[code[pc + 1]]).set(
+						(String) pool[code[pc + 2]], value);
+				release(value);
+				pc += 4;
+				break;
+			}
+			case SETDEREF:
+				((Ref) regs[code[pc + 1]]).setValue(regs[code[pc + 2]]);
+				pc += 3;
+				break;
+
+			// Range loops
+			case FORRANGE: {
+				int a = code[pc + 2];
+				int i = (Integer) regs[a];
+				if (i < (Integer) regs[code[pc + 3]]) {
+					int d = code[pc + 1];
+					Object old = regs[d];
+					regs[d] = i;
+					release(old);
+					regs[a] = i + 1;
+					pc += 5;
+				} else {
+					pc = code[pc + 4];
+				}
+				break;
+			}
+			default:
+				throw new RuntimeException("invalid opcode " + code[pc]
+						+ " in " + function.name);
+			}
+		}
+	}
+
+	/**
+	 * Determine the shape of the records constructed with the fields in a
+	 * given entry of the constant pool.
+	 *
+	 * @return The offset of each field in that shape.
+	 */
+	private int[] shape(int k) {
+		String[] fields = (String[]) pool[k];
+		Shape shape = Shape.of(fields);
+		int[] offs = new int[fields.length];
+		for (int i = 0; i != fields.length; ++i) {
+			offs[i] = shape.offsetOf(fields[i]);
+		}
+		shapes[k] = shape;
+		offsets[k] = offs;
+		return offs;
+	}
+
+	/**
+	 * Copy a constant pool, replacing each string constant with the
+	 * <code>StringValue</code> loaded from it at run time.
+	 */
+	static Object[] strings(Object[] pool) {
+		Object[] r = new Object[pool.length];
+		for (int i = 0; i != pool.length; ++i) {
+			if (pool[i] instanceof StringBuffer) {
+				r[i] = new StringValue((StringBuffer) pool[i]);
+			} else {
+				r[i] = pool[i];
+			}
+		}
+		return r;
+	}
+
+	/**
+	 * Once a function returns, its variables (and any lists held by its for
+	 * loops) no longer hold their values.
+	 */
+	private static void exit(Function function, Object[] regs) {
+		for (int i = 0; i != function.locals; ++i) {
+			release(regs[i]);
+		}
+	}
+}